@@ -0,0 +1,46 @@
+/*
+ * Benchmark.java
+ *
+ */
+package ika.benchmark;
+
+/**
+ * A single benchmark. The input is prepared by setUp(), which is not timed.
+ * run() is called repeatedly and timed; its result is consumed by the
+ * BenchmarkRunner, so that the JIT compiler cannot remove the computation.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Prepares the input of the benchmark. Called once before run() is
+     * called the first time.
+     * @throws Exception
+     */
+    protected void setUp() throws Exception {
+    }
+
+    /**
+     * Executes the timed operation.
+     * @return The result of the operation.
+     * @throws Exception
+     */
+    protected abstract Object run() throws Exception;
+
+    /**
+     * Releases resources after the last call to run().
+     * @throws Exception
+     */
+    protected void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * BenchmarkRunner.java
+ *
+ */
+package ika.benchmark;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs benchmarks and prints the timing of each benchmark. Every benchmark is
+ * first run a number of times to allow the JIT compiler to optimize the code,
+ * and is then timed for a number of iterations. The minimum, median and
+ * maximum duration of the timed iterations are reported in milliseconds.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class BenchmarkRunner {
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    /**
+     * Only benchmarks with a name matching this pattern are run.
+     */
+    private Pattern filter = Pattern.compile(".*");
+    private final PrintStream out;
+    /**
+     * Results of benchmarks are accumulated here, so that the JIT compiler
+     * cannot eliminate the computation of unused results.
+     */
+    private volatile int sink;
+
+    public BenchmarkRunner(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Runs benchmarks in the order of the list.
+     * @param benchmarks The benchmarks to run.
+     * @throws Exception Thrown if a benchmark fails.
+     */
+    public void run(List<Benchmark> benchmarks) throws Exception {
+        out.println(String.format("%-48s %10s %10s %10s", "Benchmark",
+                "Min [ms]", "Median", "Max"));
+        for (Benchmark benchmark : benchmarks) {
+            if (filter.matcher(benchmark.getName()).matches()) {
+                run(benchmark);
+            }
+        }
+    }
+
+    /**
+     * Runs a single benchmark.
+     * @param benchmark The benchmark to run.
+     * @return The durations of the timed iterations in nanoseconds, sorted in
+     * increasing order.
+     * @throws Exception Thrown if the benchmark fails.
+     */
+    public long[] run(Benchmark benchmark) throws Exception {
+        long[] durations = new long[iterations];
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                consume(benchmark.run());
+            }
+            for (int i = 0; i < iterations; i++) {
+                final long start = System.nanoTime();
+                Object result = benchmark.run();
+                durations[i] = System.nanoTime() - start;
+                consume(result);
+            }
+        } finally {
+            benchmark.tearDown();
+        }
+        Arrays.sort(durations);
+        out.println(String.format("%-48s %10.2f %10.2f %10.2f", benchmark.getName(),
+                durations[0] / 1e6,
+                durations[iterations / 2] / 1e6,
+                durations[iterations - 1] / 1e6));
+        return durations;
+    }
+
+    private void consume(Object result) {
+        sink += System.identityHashCode(result);
+    }
+
+    public int getWarmupIterations() {
+        return warmupIterations;
+    }
+
+    public void setWarmupIterations(int warmupIterations) {
+        if (warmupIterations < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.warmupIterations = warmupIterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void setIterations(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Only benchmarks with a name matching the passed regular expression are run.
+     * @param regex A regular expression.
+     */
+    public void setFilter(String regex) {
+        this.filter = Pattern.compile(regex);
+    }
+}
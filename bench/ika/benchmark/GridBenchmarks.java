@@ -0,0 +1,386 @@
+/*
+ * GridBenchmarks.java
+ *
+ */
+package ika.benchmark;
+
+import com.sanityinc.jargs.CmdLineParser;
+import com.sanityinc.jargs.CmdLineParser.Option;
+import ika.geo.GeoGrid;
+import ika.geo.grid.*;
+import ika.geoexport.ESRIASCIIGridExporter;
+import ika.geoimport.ESRIASCIIGridReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for grid operators, grid statistics and grid import and export.
+ * The input grids are synthetic elevation models with a fixed seed, so that
+ * timings of different versions of the code can be compared.
+ * <p>
+ * Usage: GridBenchmarks [--sizes 1000,4000,10000] [--warmup 3]
+ * [--iterations 5] [--filter regex]
+ * <p>
+ * Benchmark names start with the grid size, for example "4000 Plan Curvature".
+ * Large grids require a large heap, for example -Xmx8g for 10000 x 10000 cells.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GridBenchmarks {
+
+    /**
+     * Seed of the synthetic elevation models.
+     */
+    private static final long SEED = 1;
+
+    /**
+     * The elevation model shared by all benchmarks of the same size.
+     */
+    private static GeoGrid dem;
+    private static int demSize;
+
+    private GridBenchmarks() {
+    }
+
+    /**
+     * Returns the elevation model for a size. Only one model is kept in memory.
+     */
+    private static GeoGrid dem(int size) {
+        if (dem == null || demSize != size) {
+            dem = null;
+            dem = SyntheticDEM.create(size, SEED);
+            demSize = size;
+        }
+        return dem;
+    }
+
+    /**
+     * Benchmarks a ThreadedGridOperator writing to a grid that is allocated
+     * once, so that the timing does not include memory allocation.
+     */
+    private static class ThreadedOperatorBenchmark extends Benchmark {
+
+        private final int size;
+        private final ThreadedGridOperator op;
+        private GeoGrid src;
+        private GeoGrid dst;
+
+        ThreadedOperatorBenchmark(int size, ThreadedGridOperator op) {
+            super(size + " " + op.getName());
+            this.size = size;
+            this.op = op;
+        }
+
+        @Override
+        protected void setUp() {
+            src = dem(size);
+            dst = new GeoGrid(src.getCols(), src.getRows(), src.getCellSize());
+        }
+
+        @Override
+        protected Object run() {
+            return op.operate(src, dst);
+        }
+
+        @Override
+        protected void tearDown() {
+            src = dst = null;
+        }
+    }
+
+    /**
+     * Benchmarks a GridOperator that allocates the resulting grid.
+     */
+    private static class OperatorBenchmark extends Benchmark {
+
+        private final int size;
+        private final GridOperator op;
+        private GeoGrid src;
+
+        OperatorBenchmark(int size, String name, GridOperator op) {
+            super(size + " " + name);
+            this.size = size;
+            this.op = op;
+        }
+
+        @Override
+        protected void setUp() {
+            src = dem(size);
+        }
+
+        @Override
+        protected Object run() {
+            return op.operate(src);
+        }
+
+        @Override
+        protected void tearDown() {
+            src = null;
+        }
+    }
+
+    /**
+     * Benchmarks the Gaussian low-pass filter.
+     */
+    private static class GaussBenchmark extends Benchmark {
+
+        private final int size;
+        private final double std;
+        private final boolean approximated;
+        private final GridGaussLowPassOperator op = new GridGaussLowPassOperator();
+        private GeoGrid src;
+        private GeoGrid dst;
+
+        GaussBenchmark(int size, double std, boolean approximated) {
+            super(size + " Gaussian Low Pass std " + std
+                    + (approximated ? " Approximated" : ""));
+            this.size = size;
+            this.std = std;
+            this.approximated = approximated;
+        }
+
+        @Override
+        protected void setUp() {
+            src = dem(size);
+            dst = new GeoGrid(src.getCols(), src.getRows(), src.getCellSize());
+        }
+
+        @Override
+        protected Object run() {
+            if (approximated) {
+                return op.operateApproximated(src, dst, std);
+            }
+            return op.operate(src, dst, std);
+        }
+
+        @Override
+        protected void tearDown() {
+            src = dst = null;
+        }
+    }
+
+    /**
+     * Benchmarks tracing fall lines from seed points that are randomly
+     * distributed with a fixed seed.
+     */
+    private static class FalllineBenchmark extends Benchmark {
+
+        private final int size;
+        private final int seedsCount;
+        private final double minDistance;
+        private final GridFalllineBatchOperator op = new GridFalllineBatchOperator();
+        private GeoGrid src;
+
+        FalllineBenchmark(int size, int seedsCount, double minDistance) {
+            super(size + " Fall Lines " + seedsCount + " seeds"
+                    + (minDistance > 0 ? " min distance " + minDistance : ""));
+            this.size = size;
+            this.seedsCount = seedsCount;
+            this.minDistance = minDistance;
+        }
+
+        @Override
+        protected void setUp() {
+            src = dem(size);
+            Random random = new Random(SEED);
+            double[] x = new double[seedsCount];
+            double[] y = new double[seedsCount];
+            final double width = (src.getCols() - 1) * src.getCellSize();
+            final double height = (src.getRows() - 1) * src.getCellSize();
+            for (int i = 0; i < seedsCount; i++) {
+                x[i] = src.getWest() + random.nextDouble() * width;
+                y[i] = src.getNorth() - random.nextDouble() * height;
+            }
+            op.setSeeds(x, y);
+            op.setMinDistance(minDistance);
+        }
+
+        @Override
+        protected Object run() {
+            return op.trace(src);
+        }
+
+        @Override
+        protected void tearDown() {
+            src = null;
+        }
+    }
+
+    /**
+     * Creates the benchmarks for a grid size.
+     * @param size The number of columns and rows.
+     * @return The benchmarks.
+     */
+    private static List<Benchmark> benchmarks(final int size) {
+        List<Benchmark> list = new ArrayList<Benchmark>();
+
+        // Gaussian low-pass filter
+        for (double std : new double[]{1, 5, 20}) {
+            list.add(new GaussBenchmark(size, std, false));
+        }
+        list.add(new GaussBenchmark(size, 20, true));
+
+        // curvature
+        list.add(new ThreadedOperatorBenchmark(size, new GridPlanCurvatureOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new GridMaximumCurvatureOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new GridMinimumCurvatureOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new PositiveMaximumCurvatureOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new NegativeMinimumCurvatureOperator()));
+        list.add(new OperatorBenchmark(size, "Profile Curvature",
+                new GridProfileCurvatureOperator()));
+
+        // other multi-threaded operators
+        list.add(new ThreadedOperatorBenchmark(size, new GridSlopeOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new GridAbsoluteOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new GridAssignOperator(1)));
+        list.add(new ThreadedOperatorBenchmark(size, new GridChangeVoidOperator(0)));
+        list.add(new ThreadedOperatorBenchmark(size, new GridCopyOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new GridExtractMaskOperator()));
+        list.add(new ThreadedOperatorBenchmark(size, new GridScaleOperator(2)));
+        list.add(new ThreadedOperatorBenchmark(size, new GridScalePositiveOperator(2)));
+        list.add(new ThreadedOperatorBenchmark(size, new GridScaleNegativeOperator(2)));
+        list.add(new ThreadedOperatorBenchmark(size, new GridScaleToRangeOperator(0, 1)));
+        list.add(new ThreadedOperatorBenchmark(size, new GridThresholdOperator()));
+        ClipScaleOperator clipScaleOp = new ClipScaleOperator();
+        clipScaleOp.setThresholdValue(1000);
+        clipScaleOp.setScale(0.001f);
+        list.add(new ThreadedOperatorBenchmark(size, clipScaleOp));
+        list.add(new ThreadedOperatorBenchmark(size, new GridCombineOperator() {
+
+            @Override
+            public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+                setSrc2(src);
+                setWeightGrid(src);
+                return super.operate(src, dst);
+            }
+        }));
+        list.add(new ThreadedOperatorBenchmark(size, new CurvatureCombineOperator() {
+
+            @Override
+            public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+                setMaxCurv(src);
+                setScale(1);
+                return super.operate(src, dst);
+            }
+        }));
+        list.add(new Benchmark(size + " Weighted Scale") {
+
+            private GeoGrid src, dst;
+            private WeightedScaleOperator op;
+
+            @Override
+            protected void setUp() {
+                src = dem(size);
+                dst = new GeoGrid(src.getCols(), src.getRows(), src.getCellSize());
+                GeoGrid weight = new GridScaleToRangeOperator(0, 1).operate(src);
+                op = new WeightedScaleOperator(weight, 2);
+            }
+
+            @Override
+            protected Object run() {
+                return op.operate(src, dst);
+            }
+
+            @Override
+            protected void tearDown() {
+                src = dst = null;
+                op = null;
+            }
+        });
+        list.add(new OperatorBenchmark(size, "Resampling Bicubic Half Size",
+                new GridResamplingOperator(SyntheticDEM.CELL_SIZE * 2)));
+        list.add(new OperatorBenchmark(size, "Canny", new GridCannyOperator()));
+
+        // fall lines
+        list.add(new FalllineBenchmark(size, 10000, 0));
+        list.add(new FalllineBenchmark(size, 10000, SyntheticDEM.CELL_SIZE * 4));
+
+        // statistics
+        list.add(new Benchmark(size + " GeoGrid.getMinMax") {
+
+            @Override
+            protected Object run() {
+                return dem(size).getMinMax();
+            }
+        });
+        list.add(new Benchmark(size + " GeoGrid.getStatistics") {
+
+            @Override
+            protected Object run() {
+                return dem(size).getStatistics();
+            }
+        });
+
+        // import and export
+        list.add(new Benchmark(size + " ESRI ASCII Grid Export") {
+
+            private File file;
+
+            @Override
+            protected void setUp() throws Exception {
+                file = File.createTempFile("benchmark", ".asc");
+            }
+
+            @Override
+            protected Object run() throws Exception {
+                ESRIASCIIGridExporter.export(dem(size), file.getPath());
+                return file;
+            }
+
+            @Override
+            protected void tearDown() {
+                file.delete();
+            }
+        });
+        list.add(new Benchmark(size + " ESRI ASCII Grid Import") {
+
+            private File file;
+
+            @Override
+            protected void setUp() throws Exception {
+                file = File.createTempFile("benchmark", ".asc");
+                ESRIASCIIGridExporter.export(dem(size), file.getPath());
+            }
+
+            @Override
+            protected Object run() throws Exception {
+                return ESRIASCIIGridReader.read(file.getPath());
+            }
+
+            @Override
+            protected void tearDown() {
+                file.delete();
+            }
+        });
+
+        return list;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CmdLineParser parser = new CmdLineParser();
+        Option<String> sizesOption = parser.addStringOption("sizes");
+        Option<Integer> warmupOption = parser.addIntegerOption("warmup");
+        Option<Integer> iterationsOption = parser.addIntegerOption("iterations");
+        Option<String> filterOption = parser.addStringOption("filter");
+        try {
+            parser.parse(args);
+        } catch (CmdLineParser.OptionException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: GridBenchmarks [--sizes 1000,4000,10000] "
+                    + "[--warmup 3] [--iterations 5] [--filter regex]");
+            System.exit(2);
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(System.out);
+        runner.setWarmupIterations(parser.getOptionValue(warmupOption, 3));
+        runner.setIterations(parser.getOptionValue(iterationsOption, 5));
+        runner.setFilter(parser.getOptionValue(filterOption, ".*"));
+
+        System.out.println("Processors: " + Runtime.getRuntime().availableProcessors()
+                + ", maximum heap: " + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MB");
+        for (String size : parser.getOptionValue(sizesOption, "1000,4000").split(",")) {
+            runner.run(benchmarks(Integer.parseInt(size.trim())));
+        }
+    }
+}
@@ -0,0 +1,638 @@
+/*
+ * ScalingBenchmark.java
+ *
+ */
+package ika.benchmark;
+
+import com.sanityinc.jargs.CmdLineParser;
+import com.sanityinc.jargs.CmdLineParser.Option;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import ika.geo.GeoGrid;
+import ika.geo.grid.TerrainSculptorFilter;
+import ika.geoexport.ESRIASCIIGridExporter;
+import ika.geoimport.ESRIASCIIGridReader;
+import ika.gui.ProgressIndicator;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Measures how the complete Terrain Sculptor filter scales with grid size,
+ * number of processor cores and filter parameters.
+ * <p>
+ * Every combination of grid size, thread count and parameter preset is run in
+ * a separate JVM with -XX:ActiveProcessorCount set to the thread count, as
+ * ThreadedGridOperator allocates one thread per available processor. Two paths
+ * are measured: the filter pipeline (TerrainSculptorFilter.setGrid() and
+ * filter()) on a synthetic grid in memory, and the command line application
+ * reading, filtering and writing ESRI ASCII grids, including the start of the
+ * JVM.
+ * <p>
+ * For the pipeline, the wall time, the peak heap size, the allocation rate and
+ * the time of each work package are reported. The peak heap size is sampled
+ * every few milliseconds. The allocated memory is estimated from the usage of
+ * the young generation before and after each garbage collection. The time of
+ * each work package is taken from the Flight Recorder events emitted by
+ * ika.utils.Tracing, which requires Java 8 update 262 or newer. For both
+ * paths, a checksum of the resulting grid is compared to a baseline, which is
+ * stored in a properties file and can be updated with --update-baseline.
+ * Results must be identical for all thread counts, and the command line
+ * application must produce the same result as the pipeline. Checksums may
+ * differ between platforms and Java versions, because some methods of
+ * java.lang.Math may return slightly different results.
+ * <p>
+ * Usage: ScalingBenchmark [--sizes 512,1024,2048] [--threads 1,2,4]
+ * [--presets default,strong] [--terrain diamond_square|fbm] [--voids 0.02]
+ * [--xmx 4g] [--baseline bench/scaling-baseline.properties]
+ * [--update-baseline] [--skip-cli]
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class ScalingBenchmark {
+
+    /**
+     * Seed of the synthetic elevation models and of the void areas.
+     */
+    private static final long SEED = 1;
+    /**
+     * Interval for sampling the heap size in milliseconds.
+     */
+    private static final int HEAP_SAMPLING_INTERVAL = 5;
+    /**
+     * Prefix of lines written by child JVMs with results.
+     */
+    private static final String RESULT = "RESULT";
+    /**
+     * Prefix of lines written by child JVMs with the duration of a stage.
+     */
+    private static final String STAGE = "STAGE";
+
+    /**
+     * Filter parameters, expressed as options of the command line application
+     * in ika.app.Main.
+     */
+    private static final Map<String, String[]> PRESETS = new LinkedHashMap<String, String[]>();
+
+    static {
+        PRESETS.put("default", new String[]{
+            "--detail", "10", "--lowlandmountain", "15", "--valleysremoval", "5",
+            "--valleydepth", "40", "--valleywidth", "50", "--ridgesremoval", "5",
+            "--ridgesexaggeration", "500", "--ridgessharpness", "150"});
+        PRESETS.put("strong", new String[]{
+            "--detail", "30", "--lowlandmountain", "15", "--valleysremoval", "10",
+            "--valleydepth", "80", "--valleywidth", "50", "--ridgesremoval", "10",
+            "--ridgesexaggeration", "1000", "--ridgessharpness", "150"});
+    }
+
+    private ScalingBenchmark() {
+    }
+
+    /**
+     * Configures the filter with a preset in the same way as the command line
+     * application in ika.app.Main.
+     */
+    private static void applyPreset(TerrainSculptorFilter filter, String preset) {
+        Map<String, Integer> p = new LinkedHashMap<String, Integer>();
+        String[] options = PRESETS.get(preset);
+        for (int i = 0; i < options.length; i += 2) {
+            p.put(options[i].substring(2), Integer.parseInt(options[i + 1]));
+        }
+        filter.setGridFilterLoops(p.get("detail"));
+        filter.setValleysMeanFilterLoops(p.get("valleysremoval"));
+        filter.setValleysExaggeration(p.get("valleydepth") / 100f);
+        filter.setValleysCurvatureUpperLimit(p.get("valleywidth") / 100f);
+        filter.setRidgesMeanFilterLoops(p.get("ridgesremoval"));
+        filter.setRidgesExaggeration(p.get("ridgesexaggeration") / 100f);
+        filter.setCombinationSlopeThreshold(p.get("lowlandmountain"));
+        filter.setRidgesPlancurvatureWeight(p.get("ridgessharpness") / 100f);
+    }
+
+    /**
+     * Creates the synthetic elevation model for a size.
+     */
+    private static GeoGrid createGrid(SyntheticDEM.Terrain terrain, int size, double voids) {
+        GeoGrid grid = SyntheticDEM.create(terrain, size, size, SEED);
+        if (voids > 0) {
+            SyntheticDEM.addVoids(grid, voids, SEED);
+        }
+        return grid;
+    }
+
+    /**
+     * Computes a checksum of the values in a grid. All void values result in
+     * the same checksum.
+     */
+    private static String checksum(GeoGrid grid) {
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[grid.getCols() * 4];
+        for (float[] row : grid.getGrid()) {
+            for (int c = 0; c < row.length; c++) {
+                final int bits = Float.floatToIntBits(row[c]);
+                b[c * 4] = (byte) (bits >>> 24);
+                b[c * 4 + 1] = (byte) (bits >>> 16);
+                b[c * 4 + 2] = (byte) (bits >>> 8);
+                b[c * 4 + 3] = (byte) bits;
+            }
+            crc.update(b, 0, b.length);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * A progress indicator that is never aborted and ignores all messages.
+     */
+    private static class NullProgress implements ProgressIndicator {
+
+        private int tasksCount;
+
+        public void start() {
+        }
+
+        public void abort() {
+        }
+
+        public void complete() {
+        }
+
+        public boolean progress(int percentage) {
+            return true;
+        }
+
+        public boolean isAborted() {
+            return false;
+        }
+
+        public void disableCancel() {
+        }
+
+        public void enableCancel() {
+        }
+
+        public void setMessage(String msg) {
+        }
+
+        public void setTotalTasksCount(int tasksCount) {
+            this.tasksCount = tasksCount;
+        }
+
+        public int getTotalTasksCount() {
+            return tasksCount;
+        }
+
+        public void nextTask() {
+        }
+
+        public int currentTask() {
+            return 0;
+        }
+    }
+
+    /**
+     * Records the duration of each work package of the filter with the Java
+     * Flight Recorder. Work packages are identified by the name that
+     * TerrainSculptorFilter passes to Tracing.endWorkPackage(), which is the
+     * name of the work package class.
+     */
+    private static class WorkPackageRecorder {
+
+        private static final String WORK_PACKAGE_EVENT = "ika.WorkPackage";
+
+        private final Recording recording = new Recording();
+
+        WorkPackageRecorder() {
+            recording.enable(WORK_PACKAGE_EVENT).withoutThreshold();
+        }
+
+        void start() {
+            recording.start();
+        }
+
+        /**
+         * Stops the recording.
+         * @return The duration of each work package in nanoseconds, in the
+         * order in which the work packages were started.
+         */
+        Map<String, Long> stop() throws IOException {
+            recording.stop();
+            File file = File.createTempFile("scaling", ".jfr");
+            try {
+                recording.dump(file.toPath());
+                List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+                Collections.sort(events, new Comparator<RecordedEvent>() {
+                    public int compare(RecordedEvent e1, RecordedEvent e2) {
+                        return e1.getStartTime().compareTo(e2.getStartTime());
+                    }
+                });
+                Map<String, Long> durations = new LinkedHashMap<String, Long>();
+                for (RecordedEvent event : events) {
+                    if (!WORK_PACKAGE_EVENT.equals(event.getEventType().getName())) {
+                        continue;
+                    }
+                    final String name = event.getString("workPackage");
+                    final Long previous = durations.get(name);
+                    durations.put(name, event.getDuration().toNanos()
+                            + (previous == null ? 0 : previous));
+                }
+                return durations;
+            } finally {
+                recording.close();
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Samples the size of the heap in a background thread.
+     */
+    private static class HeapSampler extends Thread {
+
+        private volatile boolean stopped = false;
+        private volatile long peak = 0;
+
+        HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                sample();
+                try {
+                    Thread.sleep(HEAP_SAMPLING_INTERVAL);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            final long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            if (used > peak) {
+                peak = used;
+            }
+        }
+
+        long stopSampling() throws InterruptedException {
+            stopped = true;
+            join();
+            sample();
+            return peak;
+        }
+    }
+
+    /**
+     * Estimates the allocated memory from the usage of the young generation
+     * (eden) pool before and after each garbage collection. Objects allocated
+     * directly in the old generation are not included.
+     */
+    private static class AllocationMonitor implements NotificationListener {
+
+        private final MemoryPoolMXBean eden;
+        private long allocated;
+        private long lastUsage;
+        private long collectionsCount;
+        private long notificationsCount;
+
+        AllocationMonitor() {
+            MemoryPoolMXBean edenPool = null;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getName().contains("Eden")) {
+                    edenPool = pool;
+                }
+            }
+            this.eden = edenPool;
+        }
+
+        void start() {
+            if (eden == null) {
+                return;
+            }
+            collectionsCount = collectionsCount();
+            lastUsage = eden.getUsage().getUsed();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+        }
+
+        /**
+         * Returns the allocated memory in bytes, or -1 if not available.
+         */
+        long stop() throws Exception {
+            if (eden == null) {
+                return -1;
+            }
+            // notifications are delivered asynchronously
+            final long expected = collectionsCount() - collectionsCount;
+            for (int i = 0; i < 100; i++) {
+                synchronized (this) {
+                    if (notificationsCount >= expected) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).removeNotificationListener(this);
+            }
+            synchronized (this) {
+                return allocated + eden.getUsage().getUsed() - lastUsage;
+            }
+        }
+
+        private static long collectionsCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                    (CompositeData) notification.getUserData());
+            final String name = eden.getName();
+            allocated += info.getGcInfo().getMemoryUsageBeforeGc().get(name).getUsed() - lastUsage;
+            lastUsage = info.getGcInfo().getMemoryUsageAfterGc().get(name).getUsed();
+            ++notificationsCount;
+        }
+    }
+
+    /**
+     * Runs the pipeline once in this JVM and prints the results to the
+     * standard output.
+     */
+    private static void runChild(SyntheticDEM.Terrain terrain, int size,
+            double voids, String preset) throws Exception {
+        GeoGrid grid = createGrid(terrain, size, voids);
+        TerrainSculptorFilter filter = new TerrainSculptorFilter();
+        applyPreset(filter, preset);
+        WorkPackageRecorder recorder = new WorkPackageRecorder();
+
+        System.gc();
+        recorder.start();
+        HeapSampler heapSampler = new HeapSampler();
+        AllocationMonitor allocationMonitor = new AllocationMonitor();
+        heapSampler.start();
+        allocationMonitor.start();
+
+        final long start = System.nanoTime();
+        filter.setGrid(grid);
+        final long setGridEnd = System.nanoTime();
+        ArrayList<GeoGrid> grids = filter.filter(new NullProgress());
+        final long end = System.nanoTime();
+
+        final long allocated = allocationMonitor.stop();
+        final long peakHeap = heapSampler.stopSampling();
+        final Map<String, Long> stages = recorder.stop();
+
+        GeoGrid result = null;
+        for (GeoGrid g : grids) {
+            if (TerrainSculptorFilter.RESULT_NAME.equals(g.getName())) {
+                result = g;
+            }
+        }
+
+        System.out.println(STAGE + "\tsetGrid\t" + (setGridEnd - start) / 1000000);
+        for (Map.Entry<String, Long> stage : stages.entrySet()) {
+            System.out.println(STAGE + "\t" + stage.getKey() + "\t"
+                    + stage.getValue() / 1000000);
+        }
+        System.out.println(RESULT + "\ttime\t" + (end - start) / 1000000);
+        System.out.println(RESULT + "\tpeakHeap\t" + peakHeap);
+        System.out.println(RESULT + "\tallocated\t" + allocated);
+        System.out.println(RESULT + "\tchecksum\t" + checksum(result));
+    }
+
+    /**
+     * Starts a JVM and returns its standard output. The standard error is
+     * passed on.
+     */
+    private static List<String> runJVM(List<String> args) throws Exception {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(args);
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = pb.start();
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("JVM terminated with exit code " + process.exitValue()
+                    + ": " + command);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the arguments for starting a child JVM.
+     */
+    private static List<String> jvmArgs(int threads, String xmx) {
+        List<String> args = new ArrayList<String>();
+        args.add("-XX:ActiveProcessorCount=" + threads);
+        args.add("-Xmx" + xmx);
+        args.add("-cp");
+        args.add(System.getProperty("java.class.path"));
+        return args;
+    }
+
+    /**
+     * Compares a checksum to the baseline, or adds it to the baseline.
+     * @return A description of the comparison.
+     */
+    private static String checkBaseline(Properties baseline, String key,
+            String checksum, boolean update) {
+        String expected = baseline.getProperty(key);
+        if (expected == null || update) {
+            baseline.setProperty(key, checksum);
+            return expected == null || expected.equals(checksum) ? "new" : "updated";
+        }
+        return expected.equals(checksum) ? "ok" : "MISMATCH (expected " + expected + ")";
+    }
+
+    public static void main(String[] args) throws Exception {
+        CmdLineParser parser = new CmdLineParser();
+        Option<Boolean> childOption = parser.addBooleanOption("child");
+        Option<String> sizesOption = parser.addStringOption("sizes");
+        Option<String> threadsOption = parser.addStringOption("threads");
+        Option<String> presetsOption = parser.addStringOption("presets");
+        Option<String> terrainOption = parser.addStringOption("terrain");
+        Option<Double> voidsOption = parser.addDoubleOption("voids");
+        Option<String> xmxOption = parser.addStringOption("xmx");
+        Option<String> baselineOption = parser.addStringOption("baseline");
+        Option<Boolean> updateBaselineOption = parser.addBooleanOption("update-baseline");
+        Option<Boolean> skipCLIOption = parser.addBooleanOption("skip-cli");
+        try {
+            parser.parse(args);
+        } catch (CmdLineParser.OptionException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+
+        final SyntheticDEM.Terrain terrain = SyntheticDEM.Terrain.valueOf(
+                parser.getOptionValue(terrainOption, "diamond_square").toUpperCase());
+        final double voids = parser.getOptionValue(voidsOption, 0.02);
+        final String presets = parser.getOptionValue(presetsOption, "default");
+        final String sizes = parser.getOptionValue(sizesOption, "512,1024,2048");
+
+        if (parser.getOptionValue(childOption, false)) {
+            runChild(terrain, Integer.parseInt(sizes), voids, presets);
+            return;
+        }
+
+        // by default, use powers of two up to the number of processors
+        String defaultThreads = "1";
+        final int nProcessors = Runtime.getRuntime().availableProcessors();
+        for (int t = 2; t <= nProcessors; t *= 2) {
+            defaultThreads += "," + t;
+        }
+        final String threads = parser.getOptionValue(threadsOption, defaultThreads);
+        final String xmx = parser.getOptionValue(xmxOption, "4g");
+        final boolean updateBaseline = parser.getOptionValue(updateBaselineOption, false);
+        final boolean skipCLI = parser.getOptionValue(skipCLIOption, false);
+        final File baselineFile = new File(parser.getOptionValue(baselineOption,
+                "bench/scaling-baseline.properties"));
+        Properties baseline = new Properties();
+        if (baselineFile.exists()) {
+            InputStream in = new FileInputStream(baselineFile);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        System.out.println(String.format("%-8s %-10s %7s %-8s %10s %10s %10s  %s",
+                "Size", "Preset", "Threads", "Path", "Time [ms]", "Heap [MB]",
+                "Alloc MB/s", "Checksum"));
+        boolean mismatch = false;
+        boolean baselineChanged = false;
+        for (String sizeStr : sizes.split(",")) {
+            final int size = Integer.parseInt(sizeStr.trim());
+
+            // input and output files for the command line application
+            File inputFile = null;
+            File outputFile = null;
+            if (!skipCLI) {
+                inputFile = File.createTempFile("scaling", ".asc");
+                outputFile = File.createTempFile("scaling", ".asc");
+                ESRIASCIIGridExporter.export(createGrid(terrain, size, voids), inputFile.getPath());
+            }
+
+            for (String preset : presets.split(",")) {
+                if (!PRESETS.containsKey(preset)) {
+                    throw new IllegalArgumentException("unknown preset " + preset);
+                }
+                final String key = terrain.name().toLowerCase() + "." + size + "."
+                        + preset + ".voids" + voids;
+                for (String threadStr : threads.split(",")) {
+                    final int nThreads = Integer.parseInt(threadStr.trim());
+
+                    // pipeline
+                    List<String> jvmArgs = jvmArgs(nThreads, xmx);
+                    jvmArgs.add(ScalingBenchmark.class.getName());
+                    jvmArgs.add("--child");
+                    jvmArgs.add("--sizes");
+                    jvmArgs.add(Integer.toString(size));
+                    jvmArgs.add("--presets");
+                    jvmArgs.add(preset);
+                    jvmArgs.add("--terrain");
+                    jvmArgs.add(terrain.name());
+                    jvmArgs.add("--voids");
+                    jvmArgs.add(Double.toString(voids));
+                    Map<String, String> results = new LinkedHashMap<String, String>();
+                    List<String> stages = new ArrayList<String>();
+                    for (String line : runJVM(jvmArgs)) {
+                        String[] tokens = line.split("\t");
+                        if (tokens[0].equals(RESULT)) {
+                            results.put(tokens[1], tokens[2]);
+                        } else if (tokens[0].equals(STAGE)) {
+                            stages.add(String.format("    %-50s %10s", tokens[1], tokens[2]));
+                        }
+                    }
+                    final long time = Long.parseLong(results.get("time"));
+                    final long allocated = Long.parseLong(results.get("allocated"));
+                    final String checksum = results.get("checksum");
+                    final String check = checkBaseline(baseline, key, checksum, updateBaseline);
+                    mismatch |= check.startsWith("MISMATCH");
+                    baselineChanged |= check.equals("new") || check.equals("updated");
+                    System.out.println(String.format("%-8d %-10s %7d %-8s %10d %10d %10s  %s %s",
+                            size, preset, nThreads, "pipeline", time,
+                            Long.parseLong(results.get("peakHeap")) / 1024 / 1024,
+                            allocated < 0 ? "-" : Long.toString(allocated * 1000 / Math.max(1, time) / 1024 / 1024),
+                            checksum, check));
+                    for (String stage : stages) {
+                        System.out.println(stage);
+                    }
+
+                    // command line application
+                    if (!skipCLI) {
+                        jvmArgs = jvmArgs(nThreads, xmx);
+                        jvmArgs.add("ika.app.Main");
+                        jvmArgs.addAll(java.util.Arrays.asList(PRESETS.get(preset)));
+                        jvmArgs.add(inputFile.getPath());
+                        jvmArgs.add(outputFile.getPath());
+                        final long start = System.nanoTime();
+                        runJVM(jvmArgs);
+                        final long cliTime = (System.nanoTime() - start) / 1000000;
+                        final String cliChecksum = checksum(ESRIASCIIGridReader.read(outputFile.getPath()));
+                        final String cliCheck = cliChecksum.equals(checksum)
+                                ? "ok" : "MISMATCH (pipeline " + checksum + ")";
+                        mismatch |= !cliChecksum.equals(checksum);
+                        System.out.println(String.format("%-8d %-10s %7d %-8s %10d %10s %10s  %s %s",
+                                size, preset, nThreads, "cli", cliTime, "-", "-",
+                                cliChecksum, cliCheck));
+                    }
+                }
+            }
+            if (inputFile != null) {
+                inputFile.delete();
+                outputFile.delete();
+            }
+        }
+
+        if (baselineChanged) {
+            OutputStream out = new FileOutputStream(baselineFile);
+            try {
+                baseline.store(out, "Checksums of TerrainSculptorFilter results for ScalingBenchmark");
+            } finally {
+                out.close();
+            }
+        }
+        if (mismatch) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * SyntheticDEM.java
+ *
+ */
+package ika.benchmark;
+
+import ika.geo.GeoGrid;
+import java.util.Random;
+
+/**
+ * Generates reproducible synthetic digital elevation models for benchmarks.
+ * Two types of fractal terrain are available: fractional Brownian motion,
+ * which is a sum of octaves of value noise with halving amplitude and doubling
+ * frequency, and midpoint displacement with the diamond-square algorithm.
+ * Void areas can be added. The same seed and size always result in the same
+ * grid.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class SyntheticDEM {
+
+    /**
+     * Cell size of generated grids in meters.
+     */
+    public static final double CELL_SIZE = 25;
+    /**
+     * Elevation difference between the highest and the lowest possible value.
+     */
+    private static final double RELIEF = 3000;
+    /**
+     * The wavelength of the first octave relative to the grid size.
+     */
+    private static final double BASE_WAVELENGTH = 0.5;
+
+    /**
+     * The types of synthetic terrain.
+     */
+    public enum Terrain {FBM, DIAMOND_SQUARE};
+
+    private SyntheticDEM() {
+    }
+
+    /**
+     * Creates an elevation grid.
+     * @param terrain The type of terrain.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param seed The seed of the random terrain.
+     * @return A new grid.
+     */
+    public static GeoGrid create(Terrain terrain, int cols, int rows, long seed) {
+        switch (terrain) {
+            case DIAMOND_SQUARE:
+                return createDiamondSquare(cols, rows, 0.55, seed);
+            default:
+                return create(cols, rows, seed);
+        }
+    }
+
+    /**
+     * Creates a square elevation grid.
+     * @param size The number of columns and rows.
+     * @param seed The seed of the random terrain.
+     * @return A new grid.
+     */
+    public static GeoGrid create(int size, long seed) {
+        return create(size, size, seed);
+    }
+
+    /**
+     * Creates an elevation grid.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param seed The seed of the random terrain.
+     * @return A new grid.
+     */
+    public static GeoGrid create(int cols, int rows, long seed) {
+        GeoGrid grid = new GeoGrid(cols, rows, CELL_SIZE);
+        grid.setWest(0);
+        grid.setNorth((rows - 1) * CELL_SIZE);
+        grid.setName("Synthetic DEM " + cols + "x" + rows + " seed " + seed);
+
+        // add octaves until the wavelength is smaller than two cells
+        final double baseFrequency = 1. / (BASE_WAVELENGTH * Math.max(cols, rows));
+        int octaves = 0;
+        while (baseFrequency * (1 << octaves) < 0.5) {
+            ++octaves;
+        }
+
+        float[][] g = grid.getGrid();
+        for (int row = 0; row < rows; row++) {
+            final float[] gRow = g[row];
+            for (int col = 0; col < cols; col++) {
+                double v = 0;
+                double amplitude = RELIEF / 2;
+                double frequency = baseFrequency;
+                for (int o = 0; o < octaves; o++) {
+                    v += amplitude * valueNoise(col * frequency, row * frequency, seed + o);
+                    amplitude *= 0.5;
+                    frequency *= 2;
+                }
+                gRow[col] = (float) v;
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Smoothly interpolated random values at integer lattice positions.
+     * @return A value between -1 and +1.
+     */
+    private static double valueNoise(double x, double y, long seed) {
+        final int x0 = (int) Math.floor(x);
+        final int y0 = (int) Math.floor(y);
+        final double u = smoothStep(x - x0);
+        final double v = smoothStep(y - y0);
+        final double v00 = lattice(x0, y0, seed);
+        final double v10 = lattice(x0 + 1, y0, seed);
+        final double v01 = lattice(x0, y0 + 1, seed);
+        final double v11 = lattice(x0 + 1, y0 + 1, seed);
+        final double top = v00 + (v10 - v00) * u;
+        final double bottom = v01 + (v11 - v01) * u;
+        return top + (bottom - top) * v;
+    }
+
+    private static double smoothStep(double t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    /**
+     * A random value for a lattice position.
+     * @return A value between -1 and +1.
+     */
+    static double lattice(int x, int y, long seed) {
+        long h = seed * 0x9E3779B97F4A7C15L + x * 0xC2B2AE3D27D4EB4FL + y * 0x165667B19E3779F9L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (h >>> 11) * 0x1.0p-52 - 1;
+    }
+
+    /**
+     * Creates an elevation grid with the diamond-square midpoint displacement
+     * algorithm. The terrain is generated on a square grid of 2^n + 1 cells
+     * and then cropped.
+     * @param cols The number of columns.
+     * @param rows The number of rows.
+     * @param roughness The factor by which displacements decrease with each
+     * level. Values close to 1 result in rough terrain; 0.5 approximates
+     * natural terrain.
+     * @param seed The seed of the random terrain.
+     * @return A new grid.
+     */
+    public static GeoGrid createDiamondSquare(int cols, int rows,
+            double roughness, long seed) {
+        int n = 1;
+        while (n + 1 < Math.max(cols, rows)) {
+            n *= 2;
+        }
+        final int size = n + 1;
+        final float[][] h = new float[size][size];
+        Random random = new Random(seed);
+        double displacement = RELIEF / 2;
+        h[0][0] = (float) (displacement * (2 * random.nextDouble() - 1));
+        h[0][n] = (float) (displacement * (2 * random.nextDouble() - 1));
+        h[n][0] = (float) (displacement * (2 * random.nextDouble() - 1));
+        h[n][n] = (float) (displacement * (2 * random.nextDouble() - 1));
+
+        for (int step = n; step > 1; step /= 2) {
+            final int half = step / 2;
+
+            // diamond step: centers of squares
+            for (int r = half; r < size; r += step) {
+                for (int c = half; c < size; c += step) {
+                    final double mean = (h[r - half][c - half] + h[r - half][c + half]
+                            + h[r + half][c - half] + h[r + half][c + half]) / 4;
+                    h[r][c] = (float) (mean + displacement * (2 * random.nextDouble() - 1));
+                }
+            }
+
+            // square step: centers of edges, with fewer neighbors along the border
+            for (int r = 0; r < size; r += half) {
+                for (int c = (r + half) % step; c < size; c += step) {
+                    double sum = 0;
+                    int count = 0;
+                    if (r >= half) {
+                        sum += h[r - half][c];
+                        ++count;
+                    }
+                    if (r + half < size) {
+                        sum += h[r + half][c];
+                        ++count;
+                    }
+                    if (c >= half) {
+                        sum += h[r][c - half];
+                        ++count;
+                    }
+                    if (c + half < size) {
+                        sum += h[r][c + half];
+                        ++count;
+                    }
+                    h[r][c] = (float) (sum / count + displacement * (2 * random.nextDouble() - 1));
+                }
+            }
+            displacement *= roughness;
+        }
+
+        GeoGrid grid = new GeoGrid(cols, rows, CELL_SIZE);
+        grid.setWest(0);
+        grid.setNorth((rows - 1) * CELL_SIZE);
+        grid.setName("Diamond-Square DEM " + cols + "x" + rows + " seed " + seed);
+        float[][] g = grid.getGrid();
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(h[r], 0, g[r], 0, cols);
+        }
+        return grid;
+    }
+
+    /**
+     * Adds circular void areas to a grid until a fraction of all cells is
+     * void.
+     * @param grid The grid to change.
+     * @param fraction The fraction of void cells between 0 and 1.
+     * @param seed The seed for placing the void areas.
+     */
+    public static void addVoids(GeoGrid grid, double fraction, long seed) {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final long target = (long) (fraction * cols * rows);
+        final int maxRadius = Math.max(2, Math.min(cols, rows) / 20);
+        final float[][] g = grid.getGrid();
+        Random random = new Random(seed);
+        long voidCount = 0;
+        while (voidCount < target) {
+            final int cc = random.nextInt(cols);
+            final int cr = random.nextInt(rows);
+            final int radius = 1 + random.nextInt(maxRadius);
+            for (int r = Math.max(0, cr - radius); r <= Math.min(rows - 1, cr + radius); r++) {
+                for (int c = Math.max(0, cc - radius); c <= Math.min(cols - 1, cc + radius); c++) {
+                    final int dc = c - cc;
+                    final int dr = r - cr;
+                    if (dc * dc + dr * dr <= radius * radius && !Float.isNaN(g[r][c])) {
+                        g[r][c] = Float.NaN;
+                        ++voidCount;
+                    }
+                }
+            }
+        }
+    }
+}
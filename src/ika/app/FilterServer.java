@@ -0,0 +1,718 @@
+/*
+ * FilterServer.java
+ *
+ */
+package ika.app;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import ika.geo.GeoGrid;
+import ika.geo.grid.GridDiskCache;
+import ika.geo.grid.TerrainSculptorFilter;
+import ika.geoexport.ESRIASCIIGridExporter;
+import ika.geoimport.ESRIASCIIGridReader;
+import ika.gui.ProgressIndicator;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A local HTTP server that filters grids without the cost of starting a JVM,
+ * loading classes and reading the grid for every job. Grids and their
+ * TerrainSculptorFilter are kept in memory, keyed by the file path, the
+ * modification date and the size of the file, so that a repeated job on the
+ * same grid only recomputes the work packages that depend on changed
+ * parameters. The server only accepts connections from the local host. Jobs
+ * are processed one after the other.
+ * <p>
+ * Every request must carry the random token of the server, which is created
+ * when the server is constructed, in an "Authorization: Bearer" header.
+ * Requests with an Origin header, which browsers add to requests of web
+ * pages, and requests with a Host header other than the loopback address and
+ * the port of the server are rejected, so that web pages cannot use the
+ * server.
+ * <p>
+ * Requests:
+ * <ul>
+ * <li>POST /filter with a JSON object in the body and the content type
+ * application/json. "input" is the path of an
+ * ESRI ASCII grid; all other keys are the names of the command line options
+ * with a number or an array of numbers. If "output" is a path, the filtered
+ * grids are written to files, and a JSON object with the paths of the files
+ * is returned. Arrays of values result in a parameter sweep, as with the
+ * command line. Without "output", the filtered grid is returned in ESRI ASCII
+ * format.</li>
+ * <li>GET /status returns a JSON object with the resident grids.</li>
+ * <li>POST /shutdown stops the server.</li>
+ * </ul>
+ * Example: curl -H 'Authorization: Bearer TOKEN'
+ * -H 'Content-Type: application/json'
+ * -d '{"input":"dem.asc","output":"out.asc","detail":5}'
+ * http://localhost:7419/filter
+ *
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class FilterServer {
+
+    /**
+     * The default port.
+     */
+    public static final int DEFAULT_PORT = 7419;
+
+    /**
+     * A grid in memory with its filter.
+     */
+    private static class ResidentGrid {
+
+        final String path;
+        final long lastModified;
+        final long length;
+        final TerrainSculptorFilter filter;
+
+        ResidentGrid(String path, long lastModified, long length,
+                TerrainSculptorFilter filter) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * A progress indicator that does not report anything.
+     */
+    private static class SilentProgress implements ProgressIndicator {
+
+        private boolean aborted = false;
+        private int tasksCount = 0;
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void complete() {
+        }
+
+        @Override
+        public boolean progress(int percentage) {
+            return !aborted;
+        }
+
+        @Override
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        @Override
+        public void disableCancel() {
+        }
+
+        @Override
+        public void enableCancel() {
+        }
+
+        @Override
+        public void setMessage(String msg) {
+        }
+
+        @Override
+        public void setTotalTasksCount(int tasksCount) {
+            this.tasksCount = tasksCount;
+        }
+
+        @Override
+        public int getTotalTasksCount() {
+            return tasksCount;
+        }
+
+        @Override
+        public void nextTask() {
+        }
+
+        @Override
+        public int currentTask() {
+            return 0;
+        }
+    }
+
+    /**
+     * The grids in memory in the order of their last use.
+     */
+    private final LinkedHashMap<String, ResidentGrid> grids
+            = new LinkedHashMap<String, ResidentGrid>(16, 0.75f, true);
+    /**
+     * The maximum number of grids in memory.
+     */
+    private int maxGrids = 4;
+    /**
+     * An optional disk cache shared by all filters. Can be null.
+     */
+    private GridDiskCache diskCache;
+    private HttpServer server;
+    /**
+     * The port the server listens on.
+     */
+    private int port;
+    /**
+     * The secret that clients have to send with every request.
+     */
+    private final String token;
+
+    public FilterServer() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        token = sb.toString();
+    }
+
+    /**
+     * Returns the token that clients have to send in an
+     * "Authorization: Bearer" header.
+     * @return The token.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Sets the maximum number of grids that are kept in memory. If more grids
+     * are loaded, the least recently used grid is removed.
+     * @param maxGrids The maximum number of grids.
+     */
+    public void setMaxGrids(int maxGrids) {
+        if (maxGrids < 1) {
+            throw new IllegalArgumentException("at least one grid required");
+        }
+        this.maxGrids = maxGrids;
+    }
+
+    /**
+     * Sets a disk cache for the results of the work packages.
+     * @param diskCache The cache or null.
+     */
+    public void setDiskCache(GridDiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Starts the server on the loopback address.
+     * @param port The port.
+     * @throws IOException If the port cannot be opened.
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.port = server.getAddress().getPort();
+        server.createContext("/filter", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (authorize(exchange, "POST")) {
+                    handleFilter(exchange);
+                }
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (authorize(exchange, "GET")) {
+                    send(exchange, 200, "application/json", statusJSON());
+                }
+            }
+        });
+        server.createContext("/shutdown", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (authorize(exchange, "POST")) {
+                    send(exchange, 200, "application/json", "{}");
+                    // HttpServer.stop() waits for the handlers to return, and
+                    // blocks when called by a handler on some Java versions
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            stop();
+                        }
+                    }, "FilterServer shutdown").start();
+                }
+            }
+        });
+        // without executor, all requests are handled by one thread, so that
+        // filters are never used concurrently
+        server.setExecutor(null);
+        server.start();
+    }
+
+    /**
+     * Stops the server and releases all grids.
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        synchronized (grids) {
+            grids.clear();
+        }
+    }
+
+    /**
+     * Checks the method, the origin, the host and the token of a request, and
+     * sends an error response if the request is not accepted.
+     * @param exchange The request.
+     * @param method The accepted method.
+     * @return True if the request is accepted.
+     */
+    private boolean authorize(HttpExchange exchange, String method) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        if (headers.containsKey("Origin")) {
+            sendError(exchange, 403, "cross-origin requests are not accepted");
+            return false;
+        }
+        String host = headers.getFirst("Host");
+        if (host == null || !(host.equals("localhost:" + port)
+                || host.equals("127.0.0.1:" + port) || host.equals("[::1]:" + port))) {
+            sendError(exchange, 403, "invalid host");
+            return false;
+        }
+        String authorization = headers.getFirst("Authorization");
+        byte[] expected = ("Bearer " + token).getBytes("US-ASCII");
+        if (authorization == null
+                || !MessageDigest.isEqual(expected, authorization.getBytes("US-ASCII"))) {
+            sendError(exchange, 401, "invalid token");
+            return false;
+        }
+        if (!method.equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", method);
+            sendError(exchange, 405, method + " required");
+            return false;
+        }
+        return true;
+    }
+
+    private void handleFilter(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.split(";")[0].trim()
+                .equalsIgnoreCase("application/json")) {
+            sendError(exchange, 415, "application/json required");
+            return;
+        }
+        // once the response headers are sent, errors cannot be reported
+        boolean headersSent = false;
+        try {
+            final long startTime = System.nanoTime();
+            Map<String, Object> job = SimpleJSON.parseObject(readBody(exchange));
+            Object input = job.get("input");
+            if (!(input instanceof String)) {
+                throw new IllegalArgumentException("input path missing");
+            }
+            ParameterSweep sweep = createSweep(job);
+            boolean[] resident = new boolean[1];
+            TerrainSculptorFilter filter = getFilter((String) input, resident);
+            SilentProgress progress = new SilentProgress();
+
+            Object output = job.get("output");
+            if (output instanceof String) {
+                ArrayList<String> paths = sweep.run(filter, (String) output, progress);
+                StringBuilder sb = new StringBuilder("{\"outputs\":[");
+                for (int i = 0; i < paths.size(); i++) {
+                    sb.append(i > 0 ? "," : "").append(SimpleJSON.quote(paths.get(i)));
+                }
+                sb.append("],\"resident\":").append(resident[0]);
+                sb.append(",\"millis\":").append((System.nanoTime() - startTime) / 1000000);
+                sb.append('}');
+                send(exchange, 200, "application/json", sb.toString());
+            } else if (output == null) {
+                if (sweep.getCombinationsCount() != 1) {
+                    throw new IllegalArgumentException("output path required for a parameter sweep");
+                }
+                GeoGrid grid = sweep.filter(filter, progress);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(200, 0);
+                headersSent = true;
+                BufferedWriter writer = new BufferedWriter(
+                        new OutputStreamWriter(exchange.getResponseBody(), "US-ASCII"));
+                try {
+                    ESRIASCIIGridExporter.export(grid, writer);
+                } finally {
+                    writer.close();
+                }
+            } else {
+                throw new IllegalArgumentException("output must be a path");
+            }
+        } catch (IllegalArgumentException ex) {
+            sendError(exchange, headersSent, 400, ex.getMessage());
+        } catch (IOException ex) {
+            sendError(exchange, headersSent, 500, ex.getMessage());
+        } catch (CancellationException ex) {
+            sendError(exchange, headersSent, 503, ex.getMessage());
+        } catch (RuntimeException ex) {
+            sendError(exchange, headersSent, 500, ex.toString());
+        } catch (OutOfMemoryError ex) {
+            synchronized (grids) {
+                grids.clear();
+            }
+            sendError(exchange, headersSent, 500, "out of memory");
+        }
+    }
+
+    /**
+     * Creates a parameter sweep from the options of a job. Options that are
+     * not set use the default values of the command line.
+     */
+    private static ParameterSweep createSweep(Map<String, Object> job) {
+        for (String key : job.keySet()) {
+            if (!"input".equals(key) && !"output".equals(key) && parameter(key) == null) {
+                throw new IllegalArgumentException("unknown option " + key);
+            }
+        }
+        ParameterSweep sweep = new ParameterSweep();
+        for (ParameterSweep.FilterParameter fp : ParameterSweep.FilterParameter.values()) {
+            Object value = job.get(fp.name);
+            int[] values;
+            if (value == null) {
+                values = new int[]{fp.defaultValue};
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                values = new int[list.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = toInt(fp, list.get(i));
+                }
+            } else {
+                values = new int[]{toInt(fp, value)};
+            }
+            sweep.addParameter(new ParameterSweep.Parameter(fp, values));
+        }
+        return sweep;
+    }
+
+    private static ParameterSweep.FilterParameter parameter(String name) {
+        for (ParameterSweep.FilterParameter fp : ParameterSweep.FilterParameter.values()) {
+            if (fp.name.equals(name)) {
+                return fp;
+            }
+        }
+        return null;
+    }
+
+    private static int toInt(ParameterSweep.FilterParameter fp, Object value) {
+        if (!(value instanceof Double) || (Double) value != Math.rint((Double) value)) {
+            throw new IllegalArgumentException(fp.name + " must be an integer");
+        }
+        return ((Double) value).intValue();
+    }
+
+    /**
+     * Returns the filter for a grid file. The grid is read if it is not in
+     * memory or if the file changed since it was read.
+     * @param path The path of the grid file.
+     * @param resident Set to true if the grid was in memory.
+     * @return The filter with the grid.
+     */
+    private TerrainSculptorFilter getFilter(String path, boolean[] resident)
+            throws IOException {
+        File file = new File(path).getCanonicalFile();
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("no grid at " + path);
+        }
+        final String key = file.getPath();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        synchronized (grids) {
+            ResidentGrid residentGrid = grids.get(key);
+            if (residentGrid != null
+                    && residentGrid.lastModified == lastModified
+                    && residentGrid.length == length) {
+                resident[0] = true;
+                return residentGrid.filter;
+            }
+            // release memory of a changed grid before reading it again
+            grids.remove(key);
+        }
+
+        GeoGrid grid = ESRIASCIIGridReader.read(key);
+        TerrainSculptorFilter filter = new TerrainSculptorFilter();
+        filter.setDiskCache(diskCache);
+        filter.setGrid(grid);
+        synchronized (grids) {
+            grids.put(key, new ResidentGrid(key, lastModified, length, filter));
+            Iterator<ResidentGrid> it = grids.values().iterator();
+            while (grids.size() > maxGrids && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        return filter;
+    }
+
+    private String statusJSON() {
+        StringBuilder sb = new StringBuilder("{\"grids\":[");
+        synchronized (grids) {
+            int i = 0;
+            for (ResidentGrid residentGrid : grids.values()) {
+                GeoGrid grid = residentGrid.filter.getGrid();
+                sb.append(i++ > 0 ? "," : "");
+                sb.append("{\"path\":").append(SimpleJSON.quote(residentGrid.path));
+                sb.append(",\"cols\":").append(grid.getCols());
+                sb.append(",\"rows\":").append(grid.getRows()).append('}');
+            }
+        }
+        sb.append("],\"maxGrids\":").append(maxGrids);
+        Runtime rt = Runtime.getRuntime();
+        sb.append(",\"heapUsed\":").append(rt.totalMemory() - rt.freeMemory());
+        sb.append(",\"heapMax\":").append(rt.maxMemory()).append('}');
+        return sb.toString();
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Sends an error response, or closes the exchange without a response
+     * body if the response headers were already sent.
+     */
+    private static void sendError(HttpExchange exchange, boolean headersSent,
+            int status, String msg) throws IOException {
+        if (headersSent) {
+            // the client detects the error by the incomplete grid
+            exchange.close();
+        } else {
+            sendError(exchange, status, msg);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String msg)
+            throws IOException {
+        send(exchange, status, "application/json",
+                "{\"error\":" + SimpleJSON.quote(msg == null ? "" : msg) + "}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType,
+            String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A minimal parser for the JSON objects of jobs. Numbers are returned as
+     * Double, arrays as List, and objects as Map.
+     */
+    static class SimpleJSON {
+
+        private final String s;
+        private int pos = 0;
+
+        private SimpleJSON(String s) {
+            this.s = s;
+        }
+
+        /**
+         * Parses a JSON object.
+         * @param json The JSON text.
+         * @return The keys and values of the object.
+         */
+        @SuppressWarnings("unchecked")
+        static Map<String, Object> parseObject(String json) {
+            SimpleJSON parser = new SimpleJSON(json);
+            Object value = parser.value();
+            parser.skipWhitespace();
+            if (!(value instanceof Map) || parser.pos != json.length()) {
+                throw new IllegalArgumentException("JSON object expected");
+            }
+            return (Map<String, Object>) value;
+        }
+
+        /**
+         * Converts a string to a quoted JSON string.
+         * @param str The string.
+         * @return The quoted string.
+         */
+        static String quote(String str) {
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append('"').toString();
+        }
+
+        private void skipWhitespace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException("invalid JSON at position " + pos);
+        }
+
+        private void expect(char c) {
+            skipWhitespace();
+            if (pos >= s.length() || s.charAt(pos) != c) {
+                throw error();
+            }
+            pos++;
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            if (pos >= s.length()) {
+                throw error();
+            }
+            char c = s.charAt(pos);
+            if (c == '{') {
+                pos++;
+                LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+                if (consume('}')) {
+                    return map;
+                }
+                do {
+                    skipWhitespace();
+                    String key = string();
+                    expect(':');
+                    map.put(key, value());
+                } while (consume(','));
+                expect('}');
+                return map;
+            } else if (c == '[') {
+                pos++;
+                ArrayList<Object> list = new ArrayList<Object>();
+                if (consume(']')) {
+                    return list;
+                }
+                do {
+                    list.add(value());
+                } while (consume(','));
+                expect(']');
+                return list;
+            } else if (c == '"') {
+                return string();
+            } else if (s.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            } else if (s.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            } else if (s.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            } else {
+                int start = pos;
+                while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) {
+                    pos++;
+                }
+                try {
+                    return Double.valueOf(s.substring(start, pos));
+                } catch (NumberFormatException ex) {
+                    throw error();
+                }
+            }
+        }
+
+        private String string() {
+            if (pos >= s.length() || s.charAt(pos) != '"') {
+                throw error();
+            }
+            pos++;
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c == '\\') {
+                    if (pos >= s.length()) {
+                        throw error();
+                    }
+                    c = s.charAt(pos++);
+                    switch (c) {
+                        case 'n':
+                            sb.append('\n');
+                            break;
+                        case 't':
+                            sb.append('\t');
+                            break;
+                        case 'r':
+                            sb.append('\r');
+                            break;
+                        case 'b':
+                            sb.append('\b');
+                            break;
+                        case 'f':
+                            sb.append('\f');
+                            break;
+                        case 'u':
+                            if (pos + 4 > s.length()) {
+                                throw error();
+                            }
+                            try {
+                                sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                            } catch (NumberFormatException ex) {
+                                throw error();
+                            }
+                            pos += 4;
+                            break;
+                        default:
+                            sb.append(c);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            throw error();
+        }
+    }
+}
@@ -4,12 +4,15 @@ import com.sanityinc.jargs.CmdLineParser;
 import com.sanityinc.jargs.CmdLineParser.IllegalOptionValueException;
 import com.sanityinc.jargs.CmdLineParser.Option;
 import ika.geo.GeoGrid;
+import ika.geo.grid.GridDiskCache;
 import ika.geo.grid.TerrainSculptorFilter;
 import ika.geoexport.ESRIASCIIGridExporter;
 import ika.geoimport.ESRIASCIIGridReader;
 import ika.gui.*;
+import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
 import java.util.List;
 
 /**
@@ -39,12 +42,17 @@ public class Main {
      * A ProgressIndicator implementation which sends messages to the standard
      * output.
      */
-    private static class CmdLineProgress implements ProgressIndicator {
+    private static class CmdLineProgress implements ProgressIndicator, CellRateIndicator {
 
         private boolean aborted = false;
 
         private int tasksCount = 0;
 
+        /**
+         * The number of cells per second of the current task, or 0.
+         */
+        private volatile double cellRate = 0;
+
         @Override
         public void start() {
         }
@@ -60,10 +68,20 @@ public class Main {
 
         @Override
         public boolean progress(int percentage) {
-            System.out.print(percentage + "%\r");
+            double rate = cellRate;
+            if (rate > 0) {
+                System.out.print(percentage + "% (" + CellRateIndicator.formatCellRate(rate) + ")\r");
+            } else {
+                System.out.print(percentage + "%\r");
+            }
             return true;
         }
 
+        @Override
+        public void setCellRate(double cellsPerSecond) {
+            cellRate = cellsPerSecond;
+        }
+
         @Override
         public boolean isAborted() {
             return this.aborted;
@@ -79,6 +97,7 @@ public class Main {
 
         @Override
         public void setMessage(String msg) {
+            cellRate = 0;
             System.out.println(msg);
         }
 
@@ -116,14 +135,20 @@ public class Main {
                 + "                       [--ridgesremoval int (0 < int < 20)]\n"
                 + "                       [--ridgesexaggeration int (110 < int < 2000)]\n"
                 + "                       [--ridgessharpness int (0 < int < 150)]\n"
-                + "                       src_dem dst_dem");
+                + "                       [--cache directory]\n"
+                + "                       src_dem dst_dem\n"
+                + "       TerrainSculptor --server [--port int] [--cache directory]\n"
+                + "Options accept lists (5,10,20) or ranges (5:20:5) for a sweep.\n"
+                + "The values of swept options are appended to the dst_dem name.");
     }
 
     /**
      * An command line option that expects an integer value within a defined
-     * range.
+     * range, or a list of such values for a parameter sweep. A list is either
+     * separated by commas (5,10,20) or a range with an optional step size
+     * (5:20 or 5:20:5).
      */
-    public static class IntegerRangeOption extends Option.IntegerOption {
+    public static class IntegerRangeOption extends Option<int[]> {
 
         private final int minValue;
         private final int maxValue;
@@ -137,36 +162,65 @@ public class Main {
          * @param defaultValue The default value
          */
         public IntegerRangeOption(String longForm, int minValue, int maxValue, int defaultValue) {
-            super(longForm);
+            super(longForm, true);
             this.minValue = minValue;
             this.maxValue = maxValue;
             this.defaultValue = defaultValue;
         }
 
         @Override
-        protected Integer parseValue(String arg, java.util.Locale locale)
+        protected int[] parseValue(String arg, java.util.Locale locale)
                 throws IllegalOptionValueException {
             // Return the default value is argument is not set
             if (arg == null) {
-                return this.defaultValue;
+                return getDefaultValue();
             }
-            int value;
+            int[] values;
             // Try to parse the argument
             try {
-                value = Integer.parseInt(arg);
+                String[] range = arg.split(":");
+                if (range.length == 2 || range.length == 3) {
+                    int from = Integer.parseInt(range[0].trim());
+                    int to = Integer.parseInt(range[1].trim());
+                    int step = range.length == 3 ? Integer.parseInt(range[2].trim()) : 1;
+                    if (step <= 0 || to < from) {
+                        throw new IllegalOptionValueException(this, arg);
+                    }
+                    values = new int[(to - from) / step + 1];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = from + i * step;
+                    }
+                } else {
+                    String[] list = arg.split(",");
+                    values = new int[list.length];
+                    for (int i = 0; i < list.length; i++) {
+                        values[i] = Integer.parseInt(list[i].trim());
+                    }
+                }
             } catch (java.lang.NumberFormatException e) {
                 throw new IllegalOptionValueException(this, arg);
             }
-            // Check if the values is within the set range
-            if (value < this.minValue || value > this.maxValue) {
-                throw new IllegalOptionValueException(this, arg);
+            // Check if the values are within the set range
+            for (int value : values) {
+                if (value < this.minValue || value > this.maxValue) {
+                    throw new IllegalOptionValueException(this, arg);
+                }
             }
-            return value;
+            return values;
+        }
+
+        /**
+         * Returns the values set on the command line, or the default value.
+         * @param parser The parser.
+         * @return The values.
+         */
+        public int[] getValues(CmdLineParser parser) {
+            return parser.getOptionValue(this, getDefaultValue());
         }
 
         @Override
-        public Integer getDefaultValue() {
-            return this.defaultValue;
+        public int[] getDefaultValue() {
+            return new int[]{this.defaultValue};
         }
 
     }
@@ -183,22 +237,18 @@ public class Main {
         // Add all different options from the advanced interface.
         // Minimum, maximum and default values come from initComponents method
         // in TerrainSculptorWindow class
-        IntegerRangeOption gridFilterLoopsOption = new IntegerRangeOption("detail", 0, 50, 10);
-        parser.addOption(gridFilterLoopsOption);
-        IntegerRangeOption combinationSlopeThresholdOption = new IntegerRangeOption("lowlandmountain", 0, 45, 15);
-        parser.addOption(combinationSlopeThresholdOption);
-        IntegerRangeOption valleysMeanFilterLoopsOption = new IntegerRangeOption("valleysremoval", 0, 20, 5);
-        parser.addOption(valleysMeanFilterLoopsOption);
-        IntegerRangeOption valleysExaggerationOption = new IntegerRangeOption("valleydepth", 0, 500, 40);
-        parser.addOption(valleysExaggerationOption);
-        IntegerRangeOption valleysCurvatureThresholdOption = new IntegerRangeOption("valleywidth", 0, 100, 50);
-        parser.addOption(valleysCurvatureThresholdOption);
-        IntegerRangeOption ridgesMeanFilterLoopsOption = new IntegerRangeOption("ridgesremoval", 0, 20, 5);
-        parser.addOption(ridgesMeanFilterLoopsOption);
-        IntegerRangeOption ridgesExaggerationOption = new IntegerRangeOption("ridgesexaggeration", 110, 2000, 500);
-        parser.addOption(ridgesExaggerationOption);
-        IntegerRangeOption planCurvatureWeightOption = new IntegerRangeOption("ridgessharpness", 0, 150, 150);
-        parser.addOption(planCurvatureWeightOption);
+        EnumMap<ParameterSweep.FilterParameter, IntegerRangeOption> filterOptions
+                = new EnumMap<ParameterSweep.FilterParameter, IntegerRangeOption>(
+                        ParameterSweep.FilterParameter.class);
+        for (ParameterSweep.FilterParameter fp : ParameterSweep.FilterParameter.values()) {
+            IntegerRangeOption option = new IntegerRangeOption(fp.name,
+                    fp.minValue, fp.maxValue, fp.defaultValue);
+            parser.addOption(option);
+            filterOptions.put(fp, option);
+        }
+        Option<String> cacheOption = parser.addStringOption("cache");
+        Option<Boolean> serverOption = parser.addBooleanOption("server");
+        Option<Integer> portOption = parser.addIntegerOption("port");
         // Add a help option which prints the usage
         Option<Boolean> help = parser.addBooleanOption('h', "help");
 
@@ -217,6 +267,25 @@ public class Main {
             System.exit(0);
         }
 
+        // start a local filter server that keeps grids in memory
+        if (parser.getOptionValue(serverOption, false)) {
+            try {
+                FilterServer server = new FilterServer();
+                String cacheDir = parser.getOptionValue(cacheOption);
+                if (cacheDir != null) {
+                    server.setDiskCache(new GridDiskCache(new File(cacheDir)));
+                }
+                int port = parser.getOptionValue(portOption, FilterServer.DEFAULT_PORT);
+                server.start(port);
+                System.out.println("Listening on http://localhost:" + port);
+                System.out.println("Token: " + server.getToken());
+                return;
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            }
+        }
+
         List inputArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
         boolean isDebug = inputArgs.contains("-Xdebug");
 
@@ -249,6 +318,20 @@ public class Main {
             String inputFilePath = remainingArgs[0];
             String outputFilePath = remainingArgs[1];
 
+            // Set all grid filter options. This is analog to readGUI()
+            // in class TerrainSculptorWindow. Options with more than one
+            // value result in a parameter sweep.
+            ParameterSweep sweep = new ParameterSweep();
+            try {
+                for (ParameterSweep.FilterParameter fp : filterOptions.keySet()) {
+                    sweep.addParameter(new ParameterSweep.Parameter(fp,
+                            filterOptions.get(fp).getValues(parser)));
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+            }
+
             try {
                 // Read the input grid
                 p.setMessage("Reading grid");
@@ -257,47 +340,21 @@ public class Main {
                 // Add it to the grid filter
                 gridFilter.setGrid(grid);
 
-                // Set all grid filter options. This is analog to readGUI()
-                // in class TerrainSculptorWindow
-                gridFilter.setGridFilterLoops(parser.getOptionValue(
-                        gridFilterLoopsOption,
-                        gridFilterLoopsOption.getDefaultValue()));
-                gridFilter.setValleysMeanFilterLoops(parser.getOptionValue(
-                        valleysMeanFilterLoopsOption,
-                        valleysMeanFilterLoopsOption.getDefaultValue()));
-                gridFilter.setValleysExaggeration(parser.getOptionValue(
-                        valleysExaggerationOption,
-                        valleysExaggerationOption.getDefaultValue()) / 100f);
-                gridFilter.setValleysCurvatureUpperLimit(parser.getOptionValue(
-                        valleysCurvatureThresholdOption,
-                        valleysCurvatureThresholdOption.getDefaultValue()) / 100f);
-                gridFilter.setRidgesMeanFilterLoops(parser.getOptionValue(
-                        ridgesMeanFilterLoopsOption,
-                        ridgesMeanFilterLoopsOption.getDefaultValue()));
-                gridFilter.setRidgesExaggeration(parser.getOptionValue(
-                        ridgesExaggerationOption,
-                        ridgesExaggerationOption.getDefaultValue()) / 100f);
-                gridFilter.setCombinationSlopeThreshold(parser.getOptionValue(
-                        combinationSlopeThresholdOption,
-                        combinationSlopeThresholdOption.getDefaultValue()));
-                gridFilter.setRidgesPlancurvatureWeight(parser.getOptionValue(
-                        planCurvatureWeightOption,
-                        planCurvatureWeightOption.getDefaultValue()) / 100f);
-
-                // and filter the input grid
-                java.util.ArrayList<GeoGrid> grids = gridFilter.filter(p);
-
-                // Get the resulting filtered grid and save it to the output path
-                for (GeoGrid currentGrid : grids) {
-                    if (currentGrid.getName().equals("Result")) {
-                        p.setMessage("Exporting grid");
-                        ESRIASCIIGridExporter.export(currentGrid, outputFilePath);
-                        System.exit(0);
-                    }
+                // reuse intermediate results of previous runs
+                String cacheDir = parser.getOptionValue(cacheOption);
+                if (cacheDir != null) {
+                    gridFilter.setDiskCache(new GridDiskCache(new File(cacheDir)));
                 }
+
+                // filter the input grid and save the results to the output path
+                sweep.run(gridFilter, outputFilePath, p);
+                System.exit(0);
             } catch (java.io.IOException e) {
                 System.err.println(e.getMessage());
                 System.exit(2);
+            } catch (java.util.concurrent.CancellationException e) {
+                System.err.println("Filtering cancelled");
+                System.exit(1);
             }
         }
 
@@ -0,0 +1,341 @@
+/*
+ * ParameterSweep.java
+ *
+ */
+package ika.app;
+
+import ika.geo.GeoGrid;
+import ika.geo.grid.TerrainSculptorFilter;
+import ika.geoexport.ESRIASCIIGridExporter;
+import ika.gui.ProgressIndicator;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Filters a grid with all combinations of lists of parameter values and writes
+ * one output grid per combination. The combinations are ordered such that
+ * only one parameter changes between two consecutive runs (a reflected
+ * mixed-radix Gray code), and parameters that invalidate expensive work
+ * packages of the TerrainSculptorFilter change least often. Work packages
+ * that do not depend on the changed parameter are not recomputed by the
+ * filter.
+ *
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+class ParameterSweep {
+
+    /**
+     * The maximum number of combinations of parameter values. Each
+     * combination results in a filter run and an output file.
+     */
+    static final long MAX_COMBINATIONS = 10000;
+
+    /**
+     * The parameters of the TerrainSculptorFilter with the names, ranges and
+     * default values of the command line options. The parameters are ordered
+     * by decreasing cost of the work packages that are invalidated when they
+     * change.
+     */
+    enum FilterParameter {
+
+        DETAIL("detail", 0, 50, 10) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setGridFilterLoops(value);
+            }
+        },
+        RIDGES_REMOVAL("ridgesremoval", 0, 20, 5) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setRidgesMeanFilterLoops(value);
+            }
+        },
+        RIDGES_SHARPNESS("ridgessharpness", 0, 150, 150) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setRidgesPlancurvatureWeight(value / 100f);
+            }
+        },
+        VALLEYS_REMOVAL("valleysremoval", 0, 20, 5) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setValleysMeanFilterLoops(value);
+            }
+        },
+        VALLEY_WIDTH("valleywidth", 0, 100, 50) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setValleysCurvatureUpperLimit(value / 100f);
+            }
+        },
+        LOWLAND_MOUNTAIN("lowlandmountain", 0, 45, 15) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setCombinationSlopeThreshold(value);
+            }
+        },
+        RIDGES_EXAGGERATION("ridgesexaggeration", 110, 2000, 500) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setRidgesExaggeration(value / 100f);
+            }
+        },
+        VALLEY_DEPTH("valleydepth", 0, 500, 40) {
+            @Override
+            void apply(TerrainSculptorFilter filter, int value) {
+                filter.setValleysExaggeration(value / 100f);
+            }
+        };
+
+        /**
+         * The name of the command line option.
+         */
+        final String name;
+        final int minValue;
+        final int maxValue;
+        final int defaultValue;
+
+        private FilterParameter(String name, int minValue, int maxValue, int defaultValue) {
+            this.name = name;
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+            this.defaultValue = defaultValue;
+        }
+
+        /**
+         * Sets a value of this parameter.
+         * @param filter The filter to configure.
+         * @param value The value in the units of the command line option.
+         */
+        abstract void apply(TerrainSculptorFilter filter, int value);
+
+        /**
+         * Returns whether a value is in the valid range of this parameter.
+         * @param value The value to test.
+         * @return True if the value is valid.
+         */
+        boolean isValid(int value) {
+            return value >= minValue && value <= maxValue;
+        }
+    }
+
+    /**
+     * A filter parameter with a list of values.
+     */
+    static class Parameter {
+
+        private final FilterParameter parameter;
+        private final int[] values;
+
+        /**
+         * @param parameter The filter parameter.
+         * @param values The values to apply.
+         */
+        Parameter(FilterParameter parameter, int[] values) {
+            if (values == null || values.length == 0) {
+                throw new IllegalArgumentException("no values for " + parameter.name);
+            }
+            for (int value : values) {
+                if (!parameter.isValid(value)) {
+                    throw new IllegalArgumentException("illegal value " + value
+                            + " for " + parameter.name);
+                }
+            }
+            this.parameter = parameter;
+            this.values = values.clone();
+        }
+    }
+
+    /**
+     * The parameters, ordered from the most to the least expensive to change.
+     */
+    private final ArrayList<Parameter> parameters = new ArrayList<Parameter>();
+
+    /**
+     * The number of combinations of parameter values.
+     */
+    private long combinationsCount = 1;
+
+    /**
+     * Adds a parameter. Parameters must be added in the order of the
+     * FilterParameter constants.
+     * @param parameter The parameter to add.
+     * @throws IllegalArgumentException If the parameter is not in order, or
+     * if the sweep would have more than MAX_COMBINATIONS combinations.
+     */
+    void addParameter(Parameter parameter) {
+        if (!parameters.isEmpty() && parameters.get(parameters.size() - 1)
+                .parameter.compareTo(parameter.parameter) >= 0) {
+            throw new IllegalArgumentException("parameters not in order");
+        }
+        // cannot overflow, as the count is at most MAX_COMBINATIONS
+        final long count = combinationsCount * parameter.values.length;
+        if (count > MAX_COMBINATIONS) {
+            throw new IllegalArgumentException("parameter sweep with " + count
+                    + " or more combinations, the maximum is " + MAX_COMBINATIONS);
+        }
+        parameters.add(parameter);
+        combinationsCount = count;
+    }
+
+    /**
+     * Returns the number of combinations of parameter values.
+     * @return The number of filter runs.
+     */
+    long getCombinationsCount() {
+        return combinationsCount;
+    }
+
+    /**
+     * Returns an iterator over all combinations of parameter values in the
+     * order in which they are applied. Each combination contains one index
+     * into the values of each parameter. Consecutive combinations differ in
+     * exactly one index, and the index of the last parameter changes most
+     * often. Combinations are computed when they are requested.
+     * @return The combinations.
+     */
+    Iterator<int[]> combinations() {
+        final int m = parameters.size();
+        final int[] digits = new int[m];
+        final int[] directions = new int[m];
+        java.util.Arrays.fill(directions, 1);
+        return new Iterator<int[]>() {
+
+            private boolean hasNext = true;
+
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            public int[] next() {
+                if (!hasNext) {
+                    throw new NoSuchElementException();
+                }
+                final int[] combination = digits.clone();
+
+                // advance the digit of the last parameter that can move in
+                // its direction, and reverse the direction of all later ones
+                int j = m - 1;
+                while (j >= 0) {
+                    int next = digits[j] + directions[j];
+                    if (next >= 0 && next < parameters.get(j).values.length) {
+                        digits[j] = next;
+                        break;
+                    }
+                    directions[j] = -directions[j];
+                    j--;
+                }
+                hasNext = j >= 0;
+                return combination;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the path of the output file for a combination. If there is
+     * only one combination, the passed path is returned. Otherwise, the name
+     * and value of each parameter with more than one value are inserted
+     * before the file extension.
+     * @param path The path of the output file.
+     * @param combination The combination of parameter values.
+     * @return The path.
+     */
+    String outputPath(String path, int[] combination) {
+        StringBuilder suffix = new StringBuilder();
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter p = parameters.get(i);
+            if (p.values.length > 1) {
+                suffix.append('_').append(p.parameter.name).append(p.values[combination[i]]);
+            }
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf(File.separatorChar)) {
+            dot = path.length();
+        }
+        return path.substring(0, dot) + suffix + path.substring(dot);
+    }
+
+    /**
+     * Applies a combination of parameter values to a filter.
+     * @param filter The filter to configure.
+     * @param combination The combination of parameter values.
+     */
+    private void apply(TerrainSculptorFilter filter, int[] combination) {
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter p = parameters.get(i);
+            p.parameter.apply(filter, p.values[combination[i]]);
+        }
+    }
+
+    /**
+     * Runs a filter and returns the final result.
+     * @param filter The filter.
+     * @param progress Progress indicator.
+     * @return The result.
+     * @throws CancellationException If the operation was aborted.
+     */
+    private static GeoGrid runFilter(TerrainSculptorFilter filter, ProgressIndicator progress) {
+        ArrayList<GeoGrid> grids = filter.filter(progress);
+        if (grids != null) {
+            for (GeoGrid grid : grids) {
+                if (TerrainSculptorFilter.RESULT_NAME.equals(grid.getName())) {
+                    return grid;
+                }
+            }
+        }
+        throw new CancellationException("filtering aborted");
+    }
+
+    /**
+     * Filters a grid with the first value of each parameter.
+     * @param filter The filter with the grid to filter.
+     * @param progress Progress indicator.
+     * @return The filtered grid.
+     * @throws CancellationException If the operation was aborted.
+     */
+    GeoGrid filter(TerrainSculptorFilter filter, ProgressIndicator progress) {
+        apply(filter, new int[parameters.size()]);
+        return runFilter(filter, progress);
+    }
+
+    /**
+     * Filters a grid with all combinations of parameter values and writes
+     * the results to ESRI ASCII grid files.
+     * @param filter The filter with the grid to filter.
+     * @param outputPath The path of the output file. If there is more than one
+     * combination, the parameter values are added to the file name.
+     * @param progress Progress indicator.
+     * @return The paths of the written files.
+     * @throws IOException If an output file cannot be written.
+     * @throws CancellationException If the operation was aborted.
+     */
+    ArrayList<String> run(TerrainSculptorFilter filter, String outputPath,
+            ProgressIndicator progress) throws IOException {
+
+        ArrayList<String> paths = new ArrayList<String>((int) combinationsCount);
+        Iterator<int[]> combinations = combinations();
+        while (combinations.hasNext()) {
+            int[] combination = combinations.next();
+            apply(filter, combination);
+            String path = outputPath(outputPath, combination);
+            if (combinationsCount > 1) {
+                progress.setMessage("Run " + (paths.size() + 1) + " of "
+                        + combinationsCount + ": " + new File(path).getName());
+            }
+
+            GeoGrid grid = runFilter(filter, progress);
+            progress.setMessage("Exporting grid");
+            ESRIASCIIGridExporter.export(grid, path);
+            paths.add(path);
+        }
+        return paths;
+    }
+}
@@ -26,7 +26,7 @@ public class AdaptiveZoomGeoSet extends GeoSet {
     }
     
     @Override
-    public synchronized void drawNormalState(RenderParams rp) {
+    public void drawNormalState(RenderParams rp) {
         
         if (!this.isVisible()) {
             return;
@@ -0,0 +1,471 @@
+/*
+ * GeoBitGrid.java
+ *
+ */
+package ika.geo;
+
+import ika.geo.grid.GridMask;
+import java.awt.geom.*;
+
+/**
+ * A georeferenced raster grid with a single bit per cell. Bits are packed into
+ * an array of long values. Each row starts with a new long value, so that
+ * different rows can be written concurrently by different threads.
+ * Logical operations, erosion, dilation and counting process 64 cells at once.
+ * As a GridMask, set bits have a weight of 1 and cleared bits a weight of 0.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
+ */
+public class GeoBitGrid extends AbstractRaster implements GridMask {
+
+    private static final long serialVersionUID = 4632817539047136512L;
+
+    private int cols;
+    private int rows;
+    /**
+     * The number of long values per row.
+     */
+    private int wordsPerRow;
+    /**
+     * The bits of all rows. Bit (col % 64) of word (row * wordsPerRow + col / 64)
+     * stores the cell at col and row.
+     */
+    private long[] bits;
+
+    /** Creates a new instance of GeoBitGrid with all bits cleared. */
+    public GeoBitGrid(int cols, int rows, double cellSize) {
+        if (cols < 0 || rows < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.cols = cols;
+        this.rows = rows;
+        this.cellSize = cellSize;
+        this.wordsPerRow = (cols + 63) >>> 6;
+        this.bits = new long[wordsPerRow * rows];
+    }
+
+    /**
+     * Creates a new instance of GeoBitGrid with the same size and position as
+     * the passed grid. All bits are cleared.
+     * @param grid The grid to copy the size and position from.
+     */
+    public GeoBitGrid(AbstractRaster grid) {
+        this(grid.getCols(), grid.getRows(), grid.getCellSize());
+        this.west = grid.getWest();
+        this.north = grid.getNorth();
+    }
+
+    @Override
+    public GeoBitGrid clone() {
+        GeoBitGrid copy = (GeoBitGrid) super.clone();
+        copy.bits = bits.clone();
+        return copy;
+    }
+
+    /**
+     * Returns whether the bit of a cell is set.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return True if the bit is set.
+     */
+    public final boolean get(int col, int row) {
+        return (bits[row * wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+    }
+
+    /**
+     * Sets the bit of a cell.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     */
+    public final void set(int col, int row) {
+        bits[row * wordsPerRow + (col >>> 6)] |= 1L << col;
+    }
+
+    /**
+     * Clears the bit of a cell.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     */
+    public final void clear(int col, int row) {
+        bits[row * wordsPerRow + (col >>> 6)] &= ~(1L << col);
+    }
+
+    /**
+     * Sets or clears the bit of a cell.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param value The new value of the bit.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     */
+    public final void set(boolean value, int col, int row) {
+        if (value) {
+            set(col, row);
+        } else {
+            clear(col, row);
+        }
+    }
+
+    /**
+     * Returns the number of cells with a set bit.
+     * @return The number of set bits.
+     */
+    public long count() {
+        long count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the weight of a cell for use as a mask of a pyramid. Levels
+     * above 0 are sampled at every 2^pyramidLevel-th cell of this grid.
+     * @param col The column of the cell in the pyramid level.
+     * @param row The row of the cell in the pyramid level.
+     * @param pyramidLevel The pyramid level, 0 for the full resolution.
+     * @return 1 if the bit is set, 0 otherwise.
+     */
+    public final float getWeight(int col, int row, int pyramidLevel) {
+        col = Math.min(col << pyramidLevel, cols - 1);
+        row = Math.min(row << pyramidLevel, rows - 1);
+        return get(col, row) ? 1f : 0f;
+    }
+
+    /**
+     * Returns the number of cells with a set bit in a row.
+     * @param row The row.
+     * @return The number of set bits.
+     */
+    public int count(int row) {
+        int count = 0;
+        final int offset = row * wordsPerRow;
+        for (int w = 0; w < wordsPerRow; w++) {
+            count += Long.bitCount(bits[offset + w]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether no bit is set.
+     * @return True if all bits are cleared.
+     */
+    public boolean isEmpty() {
+        for (long word : bits) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a mask for the used bits of the last word of a row.
+     */
+    private long lastWordMask() {
+        final int n = cols & 63;
+        return n == 0 ? -1L : -1L >>> (64 - n);
+    }
+
+    private void checkSize(GeoBitGrid grid) {
+        if (grid == null || grid.cols != cols || grid.rows != rows) {
+            throw new IllegalArgumentException("bit grids of different size");
+        }
+    }
+
+    /**
+     * Clears all bits.
+     * <B>Important: This will not generate a MapChange event!</B>
+     */
+    public void clearAll() {
+        java.util.Arrays.fill(bits, 0L);
+    }
+
+    /**
+     * Sets all bits.
+     * <B>Important: This will not generate a MapChange event!</B>
+     */
+    public void setAll() {
+        java.util.Arrays.fill(bits, -1L);
+        clearUnusedBits();
+    }
+
+    /**
+     * Clears the unused bits at the end of each row.
+     */
+    private void clearUnusedBits() {
+        final long lastMask = lastWordMask();
+        if (lastMask != -1L) {
+            for (int i = wordsPerRow - 1; i < bits.length; i += wordsPerRow) {
+                bits[i] &= lastMask;
+            }
+        }
+    }
+
+    /**
+     * Keeps the bits that are also set in another grid.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param grid A grid of the same size.
+     * @return This grid.
+     */
+    public GeoBitGrid and(GeoBitGrid grid) {
+        checkSize(grid);
+        final long[] b = grid.bits;
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] &= b[i];
+        }
+        return this;
+    }
+
+    /**
+     * Sets the bits that are set in another grid.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param grid A grid of the same size.
+     * @return This grid.
+     */
+    public GeoBitGrid or(GeoBitGrid grid) {
+        checkSize(grid);
+        final long[] b = grid.bits;
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] |= b[i];
+        }
+        return this;
+    }
+
+    /**
+     * Toggles the bits that are set in another grid.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param grid A grid of the same size.
+     * @return This grid.
+     */
+    public GeoBitGrid xor(GeoBitGrid grid) {
+        checkSize(grid);
+        final long[] b = grid.bits;
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] ^= b[i];
+        }
+        return this;
+    }
+
+    /**
+     * Clears the bits that are set in another grid.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @param grid A grid of the same size.
+     * @return This grid.
+     */
+    public GeoBitGrid andNot(GeoBitGrid grid) {
+        checkSize(grid);
+        final long[] b = grid.bits;
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] &= ~b[i];
+        }
+        return this;
+    }
+
+    /**
+     * Inverts all bits.
+     * <B>Important: This will not generate a MapChange event!</B>
+     * @return This grid.
+     */
+    public GeoBitGrid not() {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = ~bits[i];
+        }
+        clearUnusedBits();
+        return this;
+    }
+
+    /**
+     * Returns a new grid with the set cells of this grid grown by one cell.
+     * Cells outside of the grid are treated as cleared.
+     * @param eightConnected If true, diagonal neighbors are included (3x3
+     * square), otherwise only the four direct neighbors (cross).
+     * @return A new grid with the dilated cells.
+     */
+    public GeoBitGrid dilate(boolean eightConnected) {
+        return morph(true, eightConnected);
+    }
+
+    /**
+     * Returns a new grid with the set cells of this grid shrunk by one cell.
+     * Cells outside of the grid are treated as set, so that set cells along
+     * the border of the grid are not removed.
+     * @param eightConnected If true, diagonal neighbors are included (3x3
+     * square), otherwise only the four direct neighbors (cross).
+     * @return A new grid with the eroded cells.
+     */
+    public GeoBitGrid erode(boolean eightConnected) {
+        return morph(false, eightConnected);
+    }
+
+    /**
+     * Dilation or erosion with a 3x3 square or a cross. The horizontal
+     * neighbors are combined by shifting words, with the bits crossing word
+     * boundaries carried over from the adjacent words. The vertical neighbors
+     * are then combined word by word.
+     */
+    private GeoBitGrid morph(boolean dilate, boolean eightConnected) {
+        final long lastMask = lastWordMask();
+        // value of the cells outside of the grid
+        final long outside = dilate ? 0L : -1L;
+        final int n = wordsPerRow;
+
+        // combine horizontal neighbors
+        long[] h = new long[bits.length];
+        for (int offset = 0; offset < bits.length; offset += n) {
+            long prev = outside;
+            long cur = bits[offset];
+            for (int w = 0; w < n; w++) {
+                long next = w + 1 < n ? bits[offset + w + 1] : outside;
+                if (w + 1 == n) {
+                    // the unused bits at the end of the row are outside
+                    cur = dilate ? cur : cur | ~lastMask;
+                } else if (w + 2 == n && !dilate) {
+                    next |= ~lastMask;
+                }
+                final long left = (cur << 1) | (prev >>> 63);
+                final long right = (cur >>> 1) | (next << 63);
+                h[offset + w] = dilate ? cur | left | right : cur & left & right;
+                prev = cur;
+                cur = next;
+            }
+        }
+
+        // combine vertical neighbors. For the 3x3 square, the horizontally
+        // combined rows are used, for the cross the original rows.
+        final long[] v = eightConnected ? h : bits;
+        GeoBitGrid result = new GeoBitGrid(this);
+        final long[] r = result.bits;
+        for (int offset = 0; offset < bits.length; offset += n) {
+            final boolean hasAbove = offset > 0;
+            final boolean hasBelow = offset + n < bits.length;
+            for (int w = 0; w < n; w++) {
+                final int i = offset + w;
+                final long above = hasAbove ? v[i - n] : outside;
+                final long below = hasBelow ? v[i + n] : outside;
+                r[i] = dilate ? h[i] | above | below : h[i] & above & below;
+            }
+        }
+        result.clearUnusedBits();
+        return result;
+    }
+
+    /**
+     * Returns the array with the bits of all rows. See getWordsPerRow().
+     * Unused bits at the end of each row are always 0.
+     * @return The packed bits.
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    /**
+     * Returns the number of long values used to store a row.
+     * @return The number of long values per row.
+     */
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    public boolean hasSameExtensionAndResolution(AbstractRaster grid) {
+        if (grid == null) {
+            return false;
+        }
+        return getCols() == grid.getCols()
+                && getRows() == grid.getRows()
+                && getWest() == grid.getWest()
+                && getNorth() == grid.getNorth()
+                && getCellSize() == grid.getCellSize();
+    }
+
+    @Override
+    public int getCols() {
+        return cols;
+    }
+
+    @Override
+    public int getRows() {
+        return rows;
+    }
+
+    @Override
+    public double getSouth() {
+        return this.north - (this.rows - 1) * this.cellSize;
+    }
+
+    @Override
+    public double getEast() {
+        return this.west + (this.cols - 1) * this.cellSize;
+    }
+
+    @Override
+    public void drawNormalState(RenderParams rp) {
+        GeoPath.newRect(getBounds2D(rp.scale)).drawNormalState(rp);
+    }
+
+    @Override
+    public void drawSelectedState(RenderParams rp) {
+        if (!this.isSelected()) {
+            return;
+        }
+        GeoPath.newRect(getBounds2D(rp.scale)).drawSelectedState(rp);
+    }
+
+    @Override
+    public Rectangle2D getBounds2D(double scale) {
+        final double width = cellSize * (cols - 1);
+        final double height = cellSize * (rows - 1);
+        return new Rectangle2D.Double(west, north - height, width, height);
+    }
+
+    @Override
+    public boolean isIntersectedByRectangle(Rectangle2D rect, double scale) {
+        // Use GeometryUtils.rectanglesIntersect and not Rectangle2D.intersects!
+        return ika.utils.GeometryUtils.rectanglesIntersect(rect, getBounds2D(scale));
+    }
+
+    @Override
+    public boolean isPointOnSymbol(Point2D point, double tolDist, double scale) {
+        Rectangle2D bounds = this.getBounds2D(scale);
+        ika.utils.GeometryUtils.enlargeRectangle(bounds, tolDist);
+        return bounds.contains(point);
+    }
+
+    @Override
+    public void move(double dx, double dy) {
+        this.west += dx;
+        this.north += dy;
+        MapEventTrigger.inform(this);
+    }
+
+    @Override
+    public void scale(double scale) {
+        this.west *= scale;
+        this.north *= scale;
+        this.cellSize *= scale;
+        MapEventTrigger.inform(this);
+    }
+
+    @Override
+    public void scale(double hScale, double vScale) {
+    }
+
+    @Override
+    public void transform(AffineTransform affineTransform) {
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.toString());
+        sb.append("\nDimension: ");
+        sb.append(getCols()).append(" x ").append(getRows());
+        sb.append("\nCell size: ");
+        sb.append(getCellSize());
+        sb.append("\nWest: ");
+        sb.append(getWest());
+        sb.append("\nNorth: ");
+        sb.append(getNorth());
+        return sb.toString();
+    }
+}
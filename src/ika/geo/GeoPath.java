@@ -891,7 +891,8 @@ public class GeoPath extends GeoObject implements Serializable, Cloneable {
 
         final Graphics2D g2d = rp.g2d;
         final double scale = rp.scale;
-        final GeneralPath flattenedPath = path.toGeneralPath(rp);
+        // draw a simplified version when the path has many points per pixel
+        final GeneralPath flattenedPath = path.getSimplified(scale).toGeneralPath(rp);
 
         // fill
         if (symbol != null && symbol.isFilled()) {
@@ -923,7 +924,7 @@ public class GeoPath extends GeoObject implements Serializable, Cloneable {
         }
 
         // only stroke, no fill
-        final GeneralPath flattenedPath = path.toGeneralPath(rp);
+        final GeneralPath flattenedPath = path.getSimplified(rp.scale).toGeneralPath(rp);
         rp.g2d.draw(flattenedPath);
 
     }
@@ -1061,6 +1062,7 @@ public class GeoPath extends GeoObject implements Serializable, Cloneable {
     @Override
     public void scale(double scale, double cx, double cy) {
         this.path.scale(scale, cx, cy);
+        MapEventTrigger.inform(this);
     }
 
     public void transform(AffineTransform affineTransform) {
@@ -44,6 +44,15 @@ public final class GeoPathModel implements Serializable, Cloneable {
      * Rectangle2D is not serializable!
      */
     private transient Rectangle2D bounds = null;
+    /**
+     * The version of the geometry. Incremented when the geometry changes.
+     */
+    private transient volatile int version;
+    /**
+     * Simplified versions of this path for drawing at small scales, or null.
+     * Outdated if its version differs from the version of this path.
+     */
+    private transient volatile SimplifiedPaths simplifiedPaths;
 
     /** Creates a new instance of PathModel */
     public GeoPathModel() {
@@ -141,6 +150,7 @@ public final class GeoPathModel implements Serializable, Cloneable {
         System.arraycopy(instructions, 0, newInstructions, 0, instructionsCount);
         newInstructions[instructionsCount] = instruction;
         instructions = newInstructions;
+        geometryChanged();
     }
 
     /**
@@ -155,6 +165,7 @@ public final class GeoPathModel implements Serializable, Cloneable {
         final byte[] newInstructions = new byte[instructionsCount - 1];
         System.arraycopy(instructions, 0, newInstructions, 0, instructionsCount - 1);
         instructions = newInstructions;
+        geometryChanged();
     }
 
     /**
@@ -279,6 +290,7 @@ public final class GeoPathModel implements Serializable, Cloneable {
         points = new double[0];
         instructions = new byte[0];
         bounds = null;
+        geometryChanged();
     }
 
     /**
@@ -291,6 +303,43 @@ public final class GeoPathModel implements Serializable, Cloneable {
         append(pathIterator);
     }
 
+    /**
+     * Removes all currently stored drawing instructions and points, and 
+     * replaces them with the passed arrays. The arrays are not copied, and
+     * must not be changed afterwards. This is considerably faster than adding
+     * points one by one for paths with many points.
+     * @param points The points: x1, y1, x2, y2, etc.
+     * @param instructions MOVETO, LINETO, CURVETO, QUADCURVETO or CLOSE.
+     */
+    public void reset(double[] points, byte[] instructions) {
+        int coordinatesCount = 0;
+        for (int i = 0; i < instructions.length; i++) {
+            switch (instructions[i]) {
+                case MOVETO:
+                case LINETO:
+                    coordinatesCount += 2;
+                    break;
+                case QUADCURVETO:
+                    coordinatesCount += 4;
+                    break;
+                case CURVETO:
+                    coordinatesCount += 6;
+                    break;
+                case CLOSE:
+                    break;
+                default:
+                    throw new IllegalArgumentException("invalid drawing instruction");
+            }
+        }
+        if (coordinatesCount != points.length) {
+            throw new IllegalArgumentException("points do not match instructions");
+        }
+        this.points = points;
+        this.instructions = instructions;
+        updateBounds();
+        geometryChanged();
+    }
+
     /**
      * Append a move-to command to the current path. Places the virtual pen at
      * the specified location without drawing any line.
@@ -637,6 +686,7 @@ public final class GeoPathModel implements Serializable, Cloneable {
         }
 
         updateBounds();
+        geometryChanged();
     }
 
     /**
@@ -646,6 +696,7 @@ public final class GeoPathModel implements Serializable, Cloneable {
     public void transform(AffineTransform affineTransform) {
         affineTransform.transform(points, 0, points, 0, points.length / 2);
         updateBounds();
+        geometryChanged();
     }
 
     /**
@@ -723,6 +774,82 @@ public final class GeoPathModel implements Serializable, Cloneable {
     
     }
     
+    /**
+     * Discards the simplified versions of this path. Must be called after the
+     * points or the instructions have changed.
+     */
+    private void geometryChanged() {
+        version++;
+        simplifiedPaths = null;
+    }
+
+    /**
+     * Returns a simplified version of this path for drawing at a scale. The
+     * simplified path deviates by less than half a pixel from this path.
+     * Simplified versions are computed in the background and this path is
+     * returned until the simplified version is available. Paths with bezier
+     * curves and paths with few points per pixel are not simplified.
+     * @param scale The scale of the map.
+     * @return A simplified path, or this path. The returned path must not be
+     * changed.
+     */
+    GeoPathModel getSimplified(double scale) {
+        final Rectangle2D b = bounds;
+        final int pointsCount = points.length / 2;
+        if (pointsCount < SimplifiedPaths.MIN_POINTS || b == null
+                || !(scale > 0)
+                || Math.max(b.getWidth(), b.getHeight()) * scale > pointsCount) {
+            return this;
+        }
+
+        final int level = SimplifiedPaths.level(scale);
+        final int v = version;
+        final SimplifiedPaths s = simplifiedPaths;
+        if (s != null && s.version == v && s.contains(level)) {
+            final GeoPathModel simplified = s.get(level);
+            return simplified == null ? this : simplified;
+        }
+
+        // mark the level as pending and compute it in the background
+        putSimplified(v, level, null);
+        SimplifiedPaths.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (v != version) {
+                    return;
+                }
+                GeoPathModel simplified = SimplifiedPaths.simplify(points,
+                        instructions, SimplifiedPaths.tolerance(level));
+                // only keep simplified paths that are considerably smaller
+                if (simplified == null
+                        || simplified.points.length > points.length * 3 / 4) {
+                    simplified = GeoPathModel.this;
+                }
+                putSimplified(v, level, simplified);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Stores a simplified version of this path if the geometry has not
+     * changed since the simplified version was computed.
+     * @param v The version of the geometry the simplified path was computed
+     * from.
+     * @param level The level of simplification.
+     * @param simplified The simplified path, or null if it is being computed.
+     */
+    private synchronized void putSimplified(int v, int level, GeoPathModel simplified) {
+        if (v != version) {
+            return;
+        }
+        SimplifiedPaths s = simplifiedPaths;
+        if (s == null || s.version != v) {
+            s = new SimplifiedPaths(v);
+        }
+        simplifiedPaths = s.with(level, simplified);
+    }
+
     public GeneralPath toGeneralPath(RenderParams rp) {
         if (rp == null) {
             return toGeneralPath();
@@ -12,6 +12,13 @@ import java.util.*;
 
 /**
  * GeoSet - an ordered group of GeoObjects.<br>
+ * The children are stored in an immutable snapshot that is replaced when 
+ * children are added or removed. Methods that only read the children, such 
+ * as drawing, hit detection and computing the bounding box, do not lock the
+ * GeoSet and iterate over the current snapshot. They can run concurrently with
+ * each other and with methods that change the GeoSet. Methods that change the
+ * children, or the selection state or geometry of the children, are 
+ * synchronized on the GeoSet.<br>
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class GeoSet extends GeoObject implements Serializable, Cloneable {
@@ -19,11 +26,115 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     private static final long serialVersionUID = -8029643397815392824L;
     
     /**
-     * A vector that contains the GeoObjects pertaining to this GeoSet.
+     * The serialized fields. The children are serialized in a Vector, which
+     * was used by earlier versions to store the children.
      */
-    private java.util.Vector vector = new java.util.Vector();
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("vector", Vector.class),
+        new ObjectStreamField("grouped", Boolean.TYPE),
+        new ObjectStreamField("spatialIndexEnabled", Boolean.TYPE)
+    };
     
-    private boolean grouped = false;
+    /**
+     * The GeoObjects pertaining to this GeoSet. Must only be replaced while
+     * synchronized on this GeoSet.
+     */
+    private transient volatile Children children = Children.EMPTY;
+    
+    private volatile boolean grouped = false;
+    
+    /**
+     * The minimum number of children for building a spatial index. Testing
+     * all children is fast enough for fewer children.
+     */
+    private static final int MIN_INDEXED_CHILDREN = 64;
+    
+    /**
+     * If true, the bounding boxes of the children are stored in a 
+     * SpatialIndex to accelerate hit detection, selection and drawing.
+     */
+    private volatile boolean spatialIndexEnabled = false;
+    
+    /**
+     * The spatial index of the children. It is built when needed and is
+     * outdated when its stamp is not spatialIndexStamp, or when it was built
+     * for the array of another snapshot of the children.
+     */
+    private transient volatile SpatialIndex spatialIndex;
+    
+    /**
+     * Identifies the current state of the geometry of the children. Replaced 
+     * by a new object when a child changes.
+     */
+    private transient volatile Object spatialIndexStamp = new Object();
+    
+    /**
+     * An immutable snapshot of the children of a GeoSet. A snapshot with an
+     * appended child shares the array of the original snapshot if the array is
+     * large enough. The elements of the array up to the size of a snapshot 
+     * are therefore never changed.
+     */
+    private static final class Children {
+        
+        static final Children EMPTY = new Children(new GeoObject[0], 0);
+        
+        final GeoObject[] array;
+        final int size;
+        
+        Children(GeoObject[] array, int size) {
+            this.array = array;
+            this.size = size;
+        }
+        
+        GeoObject get(int index) {
+            if (index >= size)
+                throw new ArrayIndexOutOfBoundsException(index + " >= " + size);
+            return array[index];
+        }
+        
+        int indexOf(Object obj) {
+            for (int i = 0; i < size; i++) {
+                if (obj.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+        
+        /**
+         * Returns a snapshot with an additional child at the end. Must only be
+         * called on the current snapshot of a GeoSet.
+         */
+        Children append(GeoObject geoObject) {
+            GeoObject[] a = array;
+            if (size == a.length)
+                a = Arrays.copyOf(a, Math.max(8, size * 2));
+            a[size] = geoObject;
+            return new Children(a, size + 1);
+        }
+        
+        Children insert(int index, GeoObject geoObject) {
+            if (index < 0 || index > size)
+                throw new ArrayIndexOutOfBoundsException(index + " > " + size);
+            final GeoObject[] a = new GeoObject[size + 1];
+            System.arraycopy(array, 0, a, 0, index);
+            a[index] = geoObject;
+            System.arraycopy(array, index, a, index + 1, size - index);
+            return new Children(a, size + 1);
+        }
+        
+        Children remove(int index) {
+            if (index < 0 || index >= size)
+                throw new ArrayIndexOutOfBoundsException(index + " >= " + size);
+            final GeoObject[] a = new GeoObject[size - 1];
+            System.arraycopy(array, 0, a, 0, index);
+            System.arraycopy(array, index + 1, a, index, size - index - 1);
+            return new Children(a, size - 1);
+        }
+        
+        List asList() {
+            return Collections.unmodifiableList(Arrays.asList(array).subList(0, size));
+        }
+    }
     
     /** Creates a new instance of GeoSet */
     public GeoSet() {
@@ -46,13 +157,14 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public GeoSet clone() {
         try {
             GeoSet copy = (GeoSet)super.clone();
+            copy.spatialIndex = null;
+            copy.spatialIndexStamp = new Object();
             
             // clone all children in this GeoSet and add them to the copy
-            copy.vector = new Vector(this.vector.size());
-            final int nbrChildren = this.getNumberOfChildren();
-            for (int i = 0; i < nbrChildren; i++) {
-                GeoObject geoObject = this.getGeoObject(i);
-                copy.add(geoObject.clone());
+            final Children c = this.children;
+            copy.children = Children.EMPTY;
+            for (int i = 0; i < c.size; i++) {
+                copy.add(c.array[i].clone());
             }
             return copy;
         } catch (Exception exc) {
@@ -73,7 +185,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         GeoSet newGeoSet = new GeoSet();
         geoSet.add(newGeoSet);
         
-        Iterator iterator = this.vector.iterator();
+        Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             final GeoObject geoObject = (GeoObject)iterator.next();
             geoObject.cloneIfSelected(newGeoSet);
@@ -86,7 +198,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @param geoObject The GeoObject to add.
      */
     public synchronized void add(GeoObject geoObject) {
-        this.add(this.vector.size(), geoObject);
+        this.add(this.children.size, geoObject);
     }
     
     /**
@@ -99,7 +211,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         final MapEventTrigger trigger = new MapEventTrigger(this);
         try {
             this.setSelected(false);
-            this.add(this.vector.size(), geoObject);
+            this.add(this.children.size, geoObject);
         } finally {
             trigger.inform(new MapEvent(true, true, true));
         }
@@ -137,7 +249,8 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         if (!this.isSelectable())
             geoObject.setSelectable(false);
         
-        vector.add(index, geoObject);
+        final Children c = this.children;
+        this.children = index == c.size ? c.append(geoObject) : c.insert(index, geoObject);
         geoObject.setParent(this);
         
         MapEventTrigger.inform(MapEvent.structureChange(), this);
@@ -230,7 +343,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            Iterator iterator = this.vector.iterator();
+            Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()) {
                 final GeoObject geoObject = (GeoObject)iterator.next();
                 geoObject.setParent(null);
@@ -239,7 +352,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
                     geoSet.removeAllGeoObjects();
                 }
             }
-            vector.clear();
+            this.children = Children.EMPTY;
         } finally {
             trigger.inform(new MapEvent(true, hasSelected, true));
         }
@@ -248,10 +361,10 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public synchronized void remove(GeoObject geoObject) {
         if (geoObject == null)
             return;
-        int index = vector.indexOf(geoObject);
+        int index = this.children.indexOf(geoObject);
         if (index == -1)
             return;
-        vector.remove(index);
+        this.children = this.children.remove(index);
         geoObject.setParent(null);
         MapEventTrigger.inform(new MapEvent(true, geoObject.isSelected(), false), this);
     }
@@ -262,10 +375,10 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @return The removed object.
      */
     public synchronized GeoObject remove(int index) {
-        GeoObject geoObject = (GeoObject)vector.get(index);
+        GeoObject geoObject = this.children.get(index);
         if (geoObject == null)
             return null;
-        vector.remove(index);
+        this.children = this.children.remove(index);
         geoObject.setParent(null);
         MapEventTrigger.inform(new MapEvent(true, geoObject.isSelected(), false), this);
         return geoObject;
@@ -278,14 +391,14 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         boolean foundSelected = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            for (int i = vector.size() - 1; i >= 0; i--) {
-                GeoObject geoObject = (GeoObject) (vector.get(i));
+            for (int i = this.children.size - 1; i >= 0; i--) {
+                GeoObject geoObject = this.children.get(i);
                 if (geoObject instanceof GeoSet) {
                     foundSelected |= ((GeoSet) geoObject).removeSelectedGeoObjects();
                 }
 
                 if (geoObject.isSelected()) {
-                    vector.remove(i);
+                    this.children = this.children.remove(i);
                     geoObject.setParent(null);
                     if (geoObject instanceof GeoSet) {
                         final GeoSet geoSet = (GeoSet) geoObject;
@@ -317,11 +430,11 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         boolean removedObject = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            for (int i = vector.size() - 1; i >= 0; i--) {
-                GeoObject geoObject = (GeoObject)(vector.get(i));
+            for (int i = this.children.size - 1; i >= 0; i--) {
+                GeoObject geoObject = this.children.get(i);
                 
                 if (name.equals(geoObject.getName())) {
-                    vector.remove(i);
+                    this.children = this.children.remove(i);
                     geoObject.setParent(null);
                     removedObject = true;
                 } else {
@@ -350,17 +463,24 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @param onlyVisible If true, only the bounding box of the currently
      * visible GeoObjects is returned.
      */
-    public synchronized java.awt.geom.Rectangle2D getBounds2D(
+    public java.awt.geom.Rectangle2D getBounds2D(
             double scale,
             boolean onlyVisible,
             boolean onlySelected) {
         
-        if (vector.size() == 0)
+        final Children c = this.children;
+        if (c.size == 0)
             return null;
         
+        // the spatial index knows the bounding box of most children
+        final SpatialIndex index = 
+                onlyVisible || onlySelected ? null : this.getSpatialIndex(c);
+        if (index != null)
+            return this.getBounds2D(scale, c, index);
+        
         // search through children for first object with valid bounding box
         Rectangle2D rect = null;
-        java.util.Iterator iterator = this.vector.iterator();
+        java.util.Iterator iterator = c.asList().iterator();
         while (iterator.hasNext() && rect == null) {
             final GeoObject geoObject = (GeoObject)iterator.next();
             rect = geoObject.getBounds2D(scale, onlyVisible, onlySelected);
@@ -383,6 +503,36 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         return rect;
     }
     
+    /**
+     * Returns the bounding box of all children, using the bounding box of
+     * the children stored in a spatial index.
+     */
+    private Rectangle2D getBounds2D(double scale, Children c, SpatialIndex index) {
+        Rectangle2D rect = index.getBounds();
+        if (rect != null)
+            rect = (Rectangle2D)rect.clone();
+        
+        // add children that are not stored in the index
+        final int[] others = index.getOthers();
+        for (int i = 0; i < others.length; i++) {
+            rect = this.union(rect, c.array[others[i]], scale);
+        }
+        for (int i = index.childCount; i < c.size; i++) {
+            rect = this.union(rect, c.array[i], scale);
+        }
+        return rect;
+    }
+    
+    private Rectangle2D union(Rectangle2D rect, GeoObject geoObject, double scale) {
+        final Rectangle2D objBounds = geoObject.getBounds2D(scale, false, false);
+        if (!ika.utils.GeometryUtils.isRectangleValid(objBounds))
+            return rect;
+        if (rect == null)
+            return (Rectangle2D)objBounds.clone();
+        Rectangle2D.union(rect, objBounds, rect);
+        return rect;
+    }
+    
     /**
      * Required by abstract super class GeoObject. This implementation returns
      * alway false, since a GeoSet does not have its own geometry.
@@ -407,14 +557,19 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @param scale The current scale of the map.
      * @return Returns the GeoObject if any, null otherwise.
      */
-    public synchronized GeoObject getObjectAtPosition(Point2D point, double tolDist,
+    public GeoObject getObjectAtPosition(Point2D point, double tolDist,
             double scale,
             boolean onlySelectable,
             boolean onlyVisible) {
         
+        // only test children that are close to the point
+        final Children c = this.children;
+        final int[] ids = this.findChildren(c, point, tolDist);
+        
         // search in inverse order
-        for (int i = vector.size() - 1; i >= 0; i--) {
-            final GeoObject geoObject = (GeoObject)vector.get(i);
+        final int nbrChildren = ids == null ? c.size : ids.length;
+        for (int i = nbrChildren - 1; i >= 0; i--) {
+            final GeoObject geoObject = c.array[ids == null ? i : ids[i]];
             // test if point is on symbolized GeoObject
             final GeoObject geoObjectAtPosition = 
                     geoObject.getObjectAtPosition(point, tolDist, scale,
@@ -452,8 +607,11 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         boolean selectionChanged = false;
         
         boolean objectHit = false;
-        for (int i = this.vector.size() - 1; i >= 0; i--) {
-            final GeoObject geoObject = (GeoObject)this.vector.get(i);
+        final Children c = this.children;
+        final int[] ids = this.findChildren(c, point, tolDist);
+        final int nbrChildren = ids == null ? c.size : ids.length;
+        for (int i = nbrChildren - 1; i >= 0; i--) {
+            final GeoObject geoObject = c.array[ids == null ? i : ids[i]];
             if (!geoObject.isVisible())
                 continue;
             objectHit = geoObject.isPointOnSymbol(point, tolDist, scale);
@@ -462,7 +620,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         }
         
         final boolean select;
-        final GeoObject firstGeoObject = (GeoObject)this.vector.get(0);
+        final GeoObject firstGeoObject = c.get(0);
         if (objectHit) {
             if (extendSelection) {
                 select = !firstGeoObject.isSelected();
@@ -483,7 +641,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public synchronized boolean selectByPoint(Point2D point, double scale,
             boolean extendSelection, double tolDist) {
         
-        if (this.vector.size() == 0 || !this.isVisible())
+        if (this.children.size == 0 || !this.isVisible())
             return false;
         boolean selectionChanged = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
@@ -507,28 +665,33 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     /**
      * Selects all GeoObjects contained by this GeoSet that intersect with the
      * passed rectangle.
+     * If a spatial index is used, only children close to the rectangle are
+     * tested. The other children are deselected if extendSelection is false.
      */
     public synchronized boolean selectByRectangle(Rectangle2D rect, double scale,
             boolean extendSelection){
         
-        if (this.vector.size() == 0)
+        final Children c = this.children;
+        if (c.size == 0)
             return false;
         
         boolean selectionChanged = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
+            final int[] ids = this.findChildren(c, rect);
             if (this.grouped) {
                 // this is a group, test if rectangle hits any child.
                 boolean objectHit = false;
-                for (int i = this.vector.size() - 1; i >= 0; i--) {
-                    final GeoObject geoObject = (GeoObject)this.vector.get(i);
+                final int nbrChildren = ids == null ? c.size : ids.length;
+                for (int i = nbrChildren - 1; i >= 0; i--) {
+                    final GeoObject geoObject = c.array[ids == null ? i : ids[i]];
                     objectHit = geoObject.isIntersectedByRectangle(rect, scale);
                     if (objectHit)
                         break;
                 }
                 
                 final boolean select;
-                final GeoObject firstGeoObject = (GeoObject)this.vector.get(0);
+                final GeoObject firstGeoObject = c.get(0);
                 if (objectHit) {
                     if (extendSelection) {
                         select = !firstGeoObject.isSelected();
@@ -544,12 +707,31 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
                 
                 this.setSelected(select);
                 
-            } else {
-                java.util.Iterator iterator = this.vector.iterator();
+            } else if (ids == null) {
+                java.util.Iterator iterator = c.asList().iterator();
                 while (iterator.hasNext()) {
                     final GeoObject geoObject = (GeoObject)iterator.next();
                     selectionChanged |= geoObject.selectByRectangle(rect, scale, extendSelection);
                 }
+            } else if (extendSelection) {
+                // children that are not intersected do not change
+                for (int i = 0; i < ids.length; i++) {
+                    final GeoObject geoObject = c.array[ids[i]];
+                    selectionChanged |= geoObject.selectByRectangle(rect, scale, true);
+                }
+            } else {
+                // deselect children that are not intersected
+                int next = 0;
+                for (int i = 0; i < c.size; i++) {
+                    final GeoObject geoObject = c.array[i];
+                    if (next < ids.length && ids[next] == i) {
+                        ++next;
+                        selectionChanged |= geoObject.selectByRectangle(rect, scale, false);
+                    } else if (geoObject.isSelected()) {
+                        geoObject.setSelected(false);
+                        selectionChanged = true;
+                    }
+                }
             }
             return selectionChanged;
         } finally {
@@ -573,7 +755,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
             super.setSelected(selected);
             
             // pass the selection state to all children
-            java.util.Iterator iterator = this.vector.iterator();
+            java.util.Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()) {
                 GeoObject geoObject = (GeoObject)iterator.next();
                 geoObject.setSelected(selected);
@@ -596,7 +778,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
             super.setSelectable(selectable);
             
             // pass the selection state to all children
-            java.util.Iterator iterator = this.vector.iterator();
+            java.util.Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()) {
                 GeoObject geoObject = (GeoObject)iterator.next();
                 geoObject.setSelectable(selectable);
@@ -614,7 +796,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public synchronized void setVectorSymbol(VectorSymbol vectorSymbol){
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();
+            java.util.Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()) {
                 Object obj = iterator.next();
                 if (obj instanceof GeoPath)
@@ -631,8 +813,8 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * Returns the number of GeoObjects contained by this GeoSet.
      * @return The number of GeoObjects contained by this GeoSet.
      */
-    public synchronized int getNumberOfChildren() {
-        return this.vector.size();
+    public int getNumberOfChildren() {
+        return this.children.size;
     }
     
     /**
@@ -640,9 +822,9 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * GeoSets further down the tree are not counted.
      * @return The number of GeoSets contained by this GeoSet.
      */
-    public synchronized int getNumberOfSubSets() {
+    public int getNumberOfSubSets() {
         int numberOfSubSets = 0;
-        java.util.Iterator iterator = this.vector.iterator();
+        java.util.Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             GeoObject geoObject = (GeoObject)iterator.next();
             if (geoObject instanceof GeoSet)
@@ -655,9 +837,9 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * Returns the number of GeoSets contained in the tree below this GeoSet.
      * @return The number of GeoSets contained by this GeoSet.
      */
-    public synchronized int getNumberOfSubSetsInTree() {
+    public int getNumberOfSubSetsInTree() {
         int numberOfSubSets = 0;
-        java.util.Iterator iterator = this.vector.iterator();
+        java.util.Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             Object geoObject = iterator.next();
             if (geoObject instanceof GeoSet)
@@ -669,19 +851,20 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     /**
      * Returns the GeoObject at a certain index.
      */
-    public synchronized GeoObject getGeoObject(int id) {
-        return (GeoObject)this.vector.get(id);
+    public GeoObject getGeoObject(int id) {
+        return this.children.get(id);
     }
     
-    public synchronized Object[] getGeoObjectsAsArray() {
-        return this.vector.toArray();
+    public Object[] getGeoObjectsAsArray() {
+        final Children c = this.children;
+        return Arrays.copyOf(c.array, c.size, Object[].class);
     }
     
     /**
      * Returns the first GeoObject with an ID. Note that IDs need not to be unique.
      */
-    public synchronized GeoObject getGeoObjectByID(long id) {
-        java.util.Iterator iterator = this.vector.iterator();
+    public GeoObject getGeoObjectByID(long id) {
+        java.util.Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             GeoObject geoObject = (GeoObject)iterator.next();
             if (geoObject.getID() == id)
@@ -698,12 +881,12 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @param name The name of the GeoObject that is being searched.
      * @return This GeoSet or the first child with the passed name.
      */
-    public synchronized GeoObject getGeoObject(String name) {
+    public GeoObject getGeoObject(String name) {
         
         if (name.equals(this.getName()))
             return this;
         
-        Iterator iterator = this.vector.iterator();
+        Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             GeoObject geoObject = (GeoObject)iterator.next();
             GeoObject foundGeoObject = geoObject.getGeoObject(name);
@@ -719,10 +902,10 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @return The position of the passed object in the array that stores the 
      * GeoObjects of this GeoSet. Returns -1 if the object is not found.
      */
-    public synchronized int getIndexOfGeoObject(Object obj) {
+    public int getIndexOfGeoObject(Object obj) {
         if (obj == null)
             return -1;
-        return this.vector.indexOf(obj);
+        return this.children.indexOf(obj);
     }
 
     /**
@@ -730,10 +913,10 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @return The position of the object with the passed name in the array that stores the
      * GeoObjects of this GeoSet. Returns -1 if the object is not found.
      */
-    public synchronized int getIndexForName(String name) {
+    public int getIndexForName(String name) {
 
         int id = 0;
-        Iterator iterator = this.vector.iterator();
+        Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             GeoObject geoObject = (GeoObject)iterator.next();
             GeoObject foundGeoObject = geoObject.getGeoObject(name);
@@ -746,11 +929,14 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
 
     }
 
-    public synchronized void drawNormalState(RenderParams rp) {
+    public void drawNormalState(RenderParams rp) {
         if (this.isVisible()) {
-            final java.util.Iterator iterator = vector.iterator();
-            while (iterator.hasNext()) {
-                final GeoObject geoObject = (GeoObject)iterator.next();
+            // only draw children that are in the visible area
+            final Children c = this.children;
+            final int[] ids = this.findChildren(c, rp);
+            final int nbrChildren = ids == null ? c.size : ids.length;
+            for (int i = 0; i < nbrChildren; i++) {
+                final GeoObject geoObject = c.array[ids == null ? i : ids[i]];
                 if (geoObject.isVisible()) {
                     geoObject.drawNormalState(rp);
                 }
@@ -758,11 +944,16 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         }
     }
     
-    public synchronized void drawSelectedState(RenderParams rp) {
+    public void drawSelectedState(RenderParams rp) {
         if (this.isVisible()) {
-            final java.util.Iterator iterator = this.vector.iterator();
-            while (iterator.hasNext()) {
-                final GeoObject geoObject = (GeoObject)iterator.next();
+            // selected objects are drawn at a different position when they 
+            // are transformed
+            final Children c = this.children;
+            final int[] ids = 
+                    rp.selectedTransform == null ? this.findChildren(c, rp) : null;
+            final int nbrChildren = ids == null ? c.size : ids.length;
+            for (int i = 0; i < nbrChildren; i++) {
+                final GeoObject geoObject = c.array[ids == null ? i : ids[i]];
                  if (geoObject.isVisible()) {
                     geoObject.drawSelectedState(rp);
                 }
@@ -773,8 +964,8 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     /**
      * Returns true if this GeoSet contains any GeoObject that is currently selected.
      */
-    public synchronized boolean hasSelectedGeoObjects() {
-        java.util.Iterator iterator = this.vector.iterator();
+    public boolean hasSelectedGeoObjects() {
+        java.util.Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             GeoObject geoObject = (GeoObject)iterator.next();
             if (geoObject instanceof GeoSet) {
@@ -796,11 +987,11 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * This traverses all children and children of children until a visible
      * GeoObject is found.
      */
-    public synchronized boolean hasVisibleGeoObjects() {
+    public boolean hasVisibleGeoObjects() {
         if (!this.isVisible())
             return false;
         
-        java.util.Iterator iterator = this.vector.iterator();
+        java.util.Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             GeoObject geoObject = (GeoObject)iterator.next();
             if (geoObject instanceof GeoSet) {
@@ -825,7 +1016,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         
         private void search(GeoSet geoSet) {
             
-            java.util.Iterator iterator = geoSet.vector.iterator();
+            java.util.Iterator iterator = geoSet.children.asList().iterator();
             while (iterator.hasNext()) {
                 GeoObject geoObject = (GeoObject)iterator.next();
                 if (geoObject instanceof GeoSet && !((GeoSet)geoObject).isGrouped()) {
@@ -855,9 +1046,9 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * exactly one selected, returns null otherwise.
      * Abuses excpetions. Should be done in a nicer and better way. !!! ???
      */
-    private synchronized GeoObject searchSingleSelectedGeoObject(
+    private GeoObject searchSingleSelectedGeoObject(
             GeoObject selectedObj, boolean searchChildren) throws Exception {
-        java.util.Iterator iterator = this.vector.iterator();
+        java.util.Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             GeoObject geoObject = (GeoObject)iterator.next();
             if (searchChildren
@@ -889,7 +1080,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * returns null otherwise.
      * A grouped GeoSet is considered to be a single object.
      */
-    public synchronized GeoObject getSingleSelectedGeoObject(boolean searchChildren) {
+    public GeoObject getSingleSelectedGeoObject(boolean searchChildren) {
         return new SingleSelectionSearcher(this).getSingleSelectedGeoObject();
     }
     
@@ -903,7 +1094,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * A grouped GeoSet is considered to be a single object.
      *
      */
-    public synchronized GeoObject getSingleSelectedGeoObject(Class requiredClass,
+    public GeoObject getSingleSelectedGeoObject(Class requiredClass,
             boolean searchChildren) {
         
         GeoObject geoObject =
@@ -921,13 +1112,14 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     /**
      * Returns all GeoObject of a certain class or its subclasses.
      */
-    public synchronized void getAllGeoObjects(Class cl, 
+    public void getAllGeoObjects(Class cl, 
             Collection foundGeoObjects,
             boolean onlySelected) {
         
         try {
             // do a scan among all children of this GeoSet
-            java.util.Iterator iterator = this.vector.iterator();
+            final List list = this.children.asList();
+            java.util.Iterator iterator = list.iterator();
             while (iterator.hasNext()) {
                 Object obj = iterator.next();
                 if (cl.isInstance(obj)) {
@@ -941,7 +1133,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
             }
 
             // ask children for selected objects
-            iterator = this.vector.iterator();
+            iterator = list.iterator();
             while (iterator.hasNext()) {
                 Object obj = iterator.next();
                 if (GeoSet.class.isInstance(obj)) {
@@ -968,12 +1160,13 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
      * @return The first GeoObject in this GeoSet or in one of its sub-GeoSets
      * that is of the specified class.
      */
-    public synchronized GeoObject getFirstGeoObject(Class requiredClass, 
+    public GeoObject getFirstGeoObject(Class requiredClass, 
             boolean exclusive, boolean requireSelected) {
         
         try {
             // do a scan among all children of this GeoSet
-            java.util.Iterator iterator = this.vector.iterator();
+            final List list = this.children.asList();
+            java.util.Iterator iterator = list.iterator();
             while (iterator.hasNext()) {
                 final Object obj = iterator.next();
                 final boolean sameClass = requiredClass.isInstance(obj);
@@ -984,7 +1177,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
             }
             
             // ask child GeoSets for the object
-            iterator = this.vector.iterator();
+            iterator = list.iterator();
             while (iterator.hasNext()) {
                 Object obj = iterator.next();
                 if (obj instanceof GeoSet) {
@@ -1002,7 +1195,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public synchronized void move(double dx, double dy) {
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();
+            java.util.Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()) {
                 GeoObject geoObject = (GeoObject)iterator.next();
                 geoObject.move(dx, dy);
@@ -1015,7 +1208,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public synchronized void rotate(double rotRad) {
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();
+            java.util.Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()) {
                 GeoObject geoObject = (GeoObject)iterator.next();
                 geoObject.rotate(rotRad);
@@ -1028,7 +1221,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public synchronized void transform(AffineTransform affineTransform) {
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();
+            java.util.Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()) {
                 GeoObject geoObject = (GeoObject)iterator.next();
                 geoObject.transform(affineTransform);
@@ -1046,7 +1239,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         boolean transformedChild = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();            
+            java.util.Iterator iterator = this.children.asList().iterator();            
             while (iterator.hasNext()) {
                 final GeoObject geoObject = (GeoObject)iterator.next();
                 transformedChild |= geoObject.transformSelected(affineTransform);
@@ -1068,7 +1261,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         boolean movedChild = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();            
+            java.util.Iterator iterator = this.children.asList().iterator();            
             while (iterator.hasNext()) {
                 final GeoObject geoObject = (GeoObject)iterator.next();
                 movedChild |= geoObject.moveSelected(dx, dy);
@@ -1086,11 +1279,11 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         boolean foundSelected = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            // can't use an iterator, since the cloned objects will be appended to
-            // the vector of this GeoSet
-            final int nbrInitialChildren = this.getNumberOfChildren();
-            for (int i = 0; i < nbrInitialChildren; i++) {
-                final GeoObject geoObject = (GeoObject)this.vector.get(i);
+            // the cloned objects will be appended to the children of this 
+            // GeoSet, but not to this snapshot of the children
+            final Children c = this.children;
+            for (int i = 0; i < c.size; i++) {
+                final GeoObject geoObject = c.array[i];
                 foundSelected |= geoObject.cloneAndMoveSelected(dx, dy);
             }
             return foundSelected;
@@ -1112,7 +1305,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
     public synchronized void scale(double hScale, double vScale) {
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();
+            java.util.Iterator iterator = this.children.asList().iterator();
             while (iterator.hasNext()){
                 GeoObject geoObject = (GeoObject)iterator.next();
                 geoObject.scale(hScale, vScale);
@@ -1136,7 +1329,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         boolean scaledChild = false;
         MapEventTrigger trigger = new MapEventTrigger(this);
         try {
-            java.util.Iterator iterator = this.vector.iterator();            
+            java.util.Iterator iterator = this.children.asList().iterator();            
             while (iterator.hasNext()) {
                 final GeoObject geoObject = (GeoObject)iterator.next();
                 scaledChild |= geoObject.scaleSelected(hScale, vScale);
@@ -1177,7 +1370,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         
     }
     
-    public synchronized boolean isGrouped() {
+    public boolean isGrouped() {
         return grouped;
     }
     
@@ -1185,7 +1378,7 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         this.grouped = grouped;
         
         // propagate to children GeoSets
-        java.util.Iterator iterator = this.vector.iterator();
+        java.util.Iterator iterator = this.children.asList().iterator();
         while (iterator.hasNext()) {
             final GeoObject geoObject = (GeoObject)iterator.next();
             if (geoObject instanceof GeoSet) {
@@ -1195,8 +1388,155 @@ public class GeoSet extends GeoObject implements Serializable, Cloneable {
         }
     }
     
-    public synchronized ArrayList toArrayList() {
-        return new ArrayList(this.vector);
+    public ArrayList toArrayList() {
+        return new ArrayList(this.children.asList());
+    }
+    
+    /**
+     * Returns whether the bounding boxes of the children are stored in a 
+     * spatial index.
+     */
+    public boolean isSpatialIndexEnabled() {
+        return spatialIndexEnabled;
+    }
+    
+    /**
+     * Stores the bounding boxes of the children in a spatial index. This
+     * accelerates hit detection, selection by rectangle and drawing of 
+     * GeoSets with many GeoPaths, as only GeoPaths close to the point, the
+     * rectangle or the visible area are tested. The index is not used by 
+     * GeoSets that are contained by this GeoSet.<br>
+     * The index is updated when children are added, removed or changed. 
+     * Children must therefore generate a MapEvent when their geometry changes.
+     * GeoPath.moveTo(), lineTo() etc. do not generate events and must not be
+     * called after a GeoPath has been added to an indexed GeoSet.
+     * @param spatialIndexEnabled True if a spatial index should be used.
+     */
+    public synchronized void setSpatialIndexEnabled(boolean spatialIndexEnabled) {
+        this.spatialIndexEnabled = spatialIndexEnabled;
+        this.invalidateSpatialIndex();
+    }
+    
+    /**
+     * Informs this GeoSet that the geometry of a child changed, and the 
+     * spatial index must be rebuilt. Does not lock this GeoSet, so it can be 
+     * called by any thread while holding locks on children.
+     */
+    void invalidateSpatialIndex() {
+        if (this.spatialIndexEnabled) {
+            this.spatialIndexStamp = new Object();
+            this.spatialIndex = null;
+        }
+    }
+    
+    /**
+     * Returns the spatial index for a snapshot of the children. A new index 
+     * is built if the geometry of the children changed, if children were 
+     * removed or inserted, or if many children were appended to the end since
+     * the index was built. Can be called by any thread.
+     * @param c The snapshot of the children.
+     * @return The index, or null if no index is used.
+     */
+    private SpatialIndex getSpatialIndex(Children c) {
+        if (!this.spatialIndexEnabled || c.size < MIN_INDEXED_CHILDREN)
+            return null;
+        
+        // read the stamp before reading the geometry of the children. If a 
+        // child changes while the index is built, the stamp of the index is
+        // outdated.
+        final Object stamp = this.spatialIndexStamp;
+        SpatialIndex index = this.spatialIndex;
+        
+        // removing and inserting children creates a new array. Appending
+        // children does not change the elements of the array covered by the
+        // index.
+        if (index == null || index.stamp != stamp
+                || index.children != c.array
+                || index.childCount > c.size
+                || c.size - index.childCount > 
+                Math.max(MIN_INDEXED_CHILDREN, index.childCount / 4)) {
+            index = new SpatialIndex(c.array, c.size, stamp);
+            this.spatialIndex = index;
+        }
+        return index;
+    }
+    
+    /**
+     * Returns the positions of the children in a snapshot that may intersect
+     * a rectangle.
+     * @return The positions in ascending order, or null if all children must
+     * be tested.
+     */
+    private int[] findChildren(Children c, 
+            double minX, double minY, double maxX, double maxY) {
+        final SpatialIndex index = this.getSpatialIndex(c);
+        if (index == null)
+            return null;
+        return index.query(minX, minY, maxX, maxY, c.size);
+    }
+    
+    /**
+     * Returns the positions of the children that may intersect a rectangle.
+     */
+    private int[] findChildren(Children c, Rectangle2D rect) {
+        if (rect == null)
+            return null;
+        return this.findChildren(c, rect.getMinX(), rect.getMinY(), 
+                rect.getMaxX(), rect.getMaxY());
+    }
+    
+    /**
+     * Returns the positions of the children that may be closer to a point 
+     * than a tolerance distance.
+     */
+    private int[] findChildren(Children c, Point2D point, double tolDist) {
+        if (point == null)
+            return null;
+        final double x = point.getX();
+        final double y = point.getY();
+        return this.findChildren(c, x - tolDist, y - tolDist, x + tolDist, y + tolDist);
+    }
+    
+    /**
+     * Returns the positions of the children that may be drawn in the visible 
+     * area.
+     */
+    private int[] findChildren(Children c, RenderParams rp) {
+        final SpatialIndex index = this.getSpatialIndex(c);
+        if (index == null || !(rp.scale > 0))
+            return null;
+        final double margin = index.strokeMargin(rp.scale);
+        return index.query(rp.visLeft - margin, 
+                rp.visTop - rp.visHeight - margin,
+                rp.visLeft + rp.visWidth + margin, 
+                rp.visTop + margin, 
+                c.size);
+    }
+    
+    /**
+     * Writes the children in a Vector.
+     */
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        final ObjectOutputStream.PutField fields = stream.putFields();
+        fields.put("vector", new Vector(this.children.asList()));
+        fields.put("grouped", this.grouped);
+        fields.put("spatialIndexEnabled", this.spatialIndexEnabled);
+        stream.writeFields();
+    }
+    
+    private void readObject(ObjectInputStream stream)
+            throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = stream.readFields();
+        final Vector vector = (Vector)fields.get("vector", null);
+        if (vector == null) {
+            this.children = Children.EMPTY;
+        } else {
+            final GeoObject[] array = new GeoObject[vector.size()];
+            this.children = new Children((GeoObject[])vector.toArray(array), array.length);
+        }
+        this.grouped = fields.get("grouped", false);
+        this.spatialIndexEnabled = fields.get("spatialIndexEnabled", false);
+        this.spatialIndexStamp = new Object();
     }
     
 }
@@ -0,0 +1,1168 @@
+/*
+ * GeoTiledGridImage.java
+ *
+ */
+package ika.geo;
+
+import java.awt.Component;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Displays a grid with tiles of TILE_SIZE x TILE_SIZE pixels. Only the tiles
+ * that are visible in the map are computed, at a pyramid level that matches
+ * the scale of the map. The tiles form a mipmap: a pixel of a tile at level L
+ * has the mean color of the 2^L x 2^L cells it covers, as rendered by a
+ * GridTileRenderer at full resolution. Tiles are computed on background
+ * threads and kept in a least-recently-used cache. A tile at level L is
+ * reduced from the four tiles at level L-1 if they are cached; otherwise it is
+ * computed from the grid, with several threads for large tiles. Until a tile
+ * is available, an outdated version of the tile or a section of a coarser
+ * tile is shown.
+ * <p>
+ * Tiles are kept for each grid passed to setGrid(), so that switching back to
+ * a grid that was displayed before does not require computing tiles again.
+ * When setGrid() is called with a grid that was displayed before and a
+ * renderer that equals the previous renderer, only tiles showing changed
+ * cells are computed again. Changes are detected with checksums of blocks of
+ * TILE_SIZE x TILE_SIZE cells. The grids must not be changed while tiles are
+ * computed; call freeze() before changing a grid, and setGrid() afterwards.
+ * <p>
+ * Tiles with only opaque gray and transparent pixels are stored with one byte
+ * per pixel. The images of tiles removed from the cache are reused for new
+ * tiles.
+ * <p>
+ * The georeference of this image is the georeference of the grid. A pixel
+ * covers the area of a cell, i.e. the image extends by half a cell beyond the
+ * centers of the border cells.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GeoTiledGridImage extends AbstractRaster {
+
+    private static final long serialVersionUID = -3841705629316652874L;
+
+    /**
+     * Width and height of a tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * The default maximum number of tiles in the cache. 1024 gray tiles
+     * require 64 MB, colored tiles require four times as much.
+     */
+    public static final int DEFAULT_MAX_TILES = 1024;
+
+    /**
+     * The maximum number of grids with cached tiles.
+     */
+    private static final int MAX_LAYERS = 8;
+
+    /**
+     * The maximum number of unused tile images kept for reuse.
+     */
+    private static final int MAX_POOLED_IMAGES = 64;
+
+    /**
+     * A tile covering more cells than this is computed by multiple threads.
+     */
+    private static final long MIN_CELLS_PER_THREAD = 1 << 20;
+
+    /**
+     * Color model of gray tiles: index 0 is transparent, index i is gray i.
+     * Black is stored as the darkest gray.
+     */
+    private static final IndexColorModel GRAY_COLOR_MODEL;
+
+    static {
+        byte[] gray = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            gray[i] = (byte) i;
+        }
+        GRAY_COLOR_MODEL = new IndexColorModel(8, 256, gray, gray, gray, 0);
+    }
+
+    /**
+     * Threads shared by all instances for computing tiles.
+     */
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Grid Tile Renderer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /**
+     * A buffer for the colors of a tile for each rendering thread.
+     */
+    private static final ThreadLocal<int[]> argbBuffer = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[TILE_SIZE * TILE_SIZE];
+        }
+    };
+
+    private static class Tile {
+
+        final BufferedImage image;
+        /**
+         * The pixels of a gray tile, or null.
+         */
+        final byte[] gray;
+        /**
+         * The pixels of a colored tile, or null.
+         */
+        final int[] argb;
+        /**
+         * True if the grid has changed since the image was rendered. The
+         * image is displayed until a new image has been rendered.
+         */
+        boolean stale;
+
+        Tile(BufferedImage image) {
+            this.image = image;
+            if (image.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
+                gray = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                argb = null;
+            } else {
+                gray = null;
+                argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            }
+        }
+
+        /**
+         * Returns the ARGB color of the pixel at index i.
+         */
+        int getARGB(int i) {
+            if (argb != null) {
+                return argb[i];
+            }
+            final int v = gray[i] & 0xFF;
+            return v == 0 ? 0 : 0xFF000000 | (v * 0x010101);
+        }
+    }
+
+    /**
+     * The tiles of a grid.
+     */
+    private static class Layer {
+
+        /**
+         * Identifies the tiles of this layer in the cache.
+         */
+        final int id;
+        final GeoGrid grid;
+        GridTileRenderer renderer;
+        /**
+         * The size and position of the grid when the tiles were rendered.
+         */
+        int cols, rows;
+        double cellSize, west, north;
+        /**
+         * A checksum for each block of TILE_SIZE x TILE_SIZE cells in row
+         * order.
+         */
+        long[] checksums;
+        /**
+         * The number of calls to freeze() when the checksums were computed.
+         */
+        int modifications;
+        /**
+         * Incremented whenever the grid may have changed. Tiles rendered for
+         * an older version are marked as stale.
+         */
+        int version;
+        /**
+         * Incremented whenever all tiles are discarded. Tiles rendered for an
+         * older generation are discarded.
+         */
+        int generation;
+
+        Layer(int id, GeoGrid grid) {
+            this.id = id;
+            this.grid = grid;
+        }
+
+        boolean hasGeometry(GeoGrid g) {
+            return cols == g.getCols() && rows == g.getRows()
+                    && cellSize == g.getCellSize()
+                    && west == g.getWest() && north == g.getNorth();
+        }
+
+        void setGeometry(GeoGrid g) {
+            cols = g.getCols();
+            rows = g.getRows();
+            cellSize = g.getCellSize();
+            west = g.getWest();
+            north = g.getNorth();
+        }
+
+        /**
+         * Returns the highest level, at which the grid fits into a single
+         * tile.
+         */
+        int maxLevel() {
+            int level = 0;
+            while (((cols - 1) >> level) >= TILE_SIZE
+                    || ((rows - 1) >> level) >= TILE_SIZE) {
+                level++;
+            }
+            return level;
+        }
+
+        /**
+         * Returns the number of columns of pixels at a level.
+         */
+        int pixelCols(int level) {
+            return ((cols - 1) >> level) + 1;
+        }
+
+        /**
+         * Returns the number of rows of pixels at a level.
+         */
+        int pixelRows(int level) {
+            return ((rows - 1) >> level) + 1;
+        }
+    }
+
+    /**
+     * Grids with cached tiles, ordered from the least to the most recently
+     * displayed.
+     */
+    private transient ArrayList<Layer> layers;
+
+    /**
+     * The displayed layer or null.
+     */
+    private transient Layer layer;
+
+    private transient int nextLayerID;
+
+    /**
+     * The number of calls to freeze(). Grids may have changed when this
+     * changes.
+     */
+    private transient int modifications;
+
+    /**
+     * The cached tiles of all layers, ordered from the least to the most
+     * recently used.
+     */
+    private transient LinkedHashMap<Long, Tile> tiles;
+
+    /**
+     * Keys of tiles that are waiting to be rendered or are being rendered.
+     */
+    private transient HashSet<Long> pending;
+
+    /**
+     * Images of gray tiles of TILE_SIZE x TILE_SIZE pixels that can be reused.
+     */
+    private transient ArrayDeque<BufferedImage> imagePool;
+
+    private int maxTiles = DEFAULT_MAX_TILES;
+
+    /**
+     * If true, no tiles are rendered.
+     */
+    private transient boolean frozen;
+
+    /**
+     * The level and the range of tiles that were last drawn. Tiles outside of
+     * this range are not rendered.
+     */
+    private transient int visibleLevel = -1;
+    private transient int visibleFirstCol, visibleFirstRow, visibleLastCol, visibleLastRow;
+
+    /**
+     * The component to repaint when a tile has been rendered.
+     */
+    private transient Component repaintComponent;
+
+    /**
+     * Creates a new instance without a grid.
+     */
+    public GeoTiledGridImage() {
+        initCache();
+    }
+
+    private void initCache() {
+        tiles = new LinkedHashMap<Long, Tile>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                if (size() > maxTiles) {
+                    recycle(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        pending = new HashSet<Long>();
+        layers = new ArrayList<Layer>();
+        imagePool = new ArrayDeque<BufferedImage>();
+    }
+
+    private void readObject(ObjectInputStream stream)
+            throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        visibleLevel = -1;
+        initCache();
+    }
+
+    /**
+     * Sets the grid to display. The grid must not be changed while it is
+     * displayed, except between calls to freeze() and setGrid().
+     * @param grid The grid. Can be null.
+     * @param renderer Converts cells to colors.
+     */
+    public void setGrid(GeoGrid grid, GridTileRenderer renderer) {
+        if (grid == null) {
+            synchronized (this) {
+                layer = null;
+                frozen = false;
+            }
+            repaint();
+            return;
+        }
+        if (renderer == null || !grid.isWellFormed()) {
+            throw new IllegalArgumentException();
+        }
+
+        Layer l;
+        boolean unchanged;
+        synchronized (this) {
+            l = findLayer(grid);
+            // the grid cannot have changed if freeze() has not been called
+            // since the checksums were computed
+            unchanged = l != null && l.modifications == modifications
+                    && l.hasGeometry(grid) && renderer.equals(l.renderer);
+        }
+
+        // compute the checksums before locking, as this requires a pass over
+        // all cells
+        long[] newChecksums = unchanged ? null : checksums(grid);
+
+        synchronized (this) {
+            if (l == null || !layers.contains(l)) {
+                l = new Layer(newLayerID(), grid);
+                l.setGeometry(grid);
+                l.renderer = renderer;
+                l.checksums = newChecksums != null ? newChecksums : checksums(grid);
+                l.modifications = modifications;
+                layers.add(l);
+                if (layers.size() > MAX_LAYERS) {
+                    removeLayer(layers.get(0));
+                }
+            } else if (!unchanged) {
+                if (l.hasGeometry(grid) && renderer.equals(l.renderer)) {
+                    invalidate(l, newChecksums);
+                } else {
+                    removeTiles(l);
+                    l.generation++;
+                }
+                l.setGeometry(grid);
+                l.renderer = renderer;
+                l.checksums = newChecksums;
+                l.modifications = modifications;
+                l.version++;
+            }
+
+            // the most recently displayed layer is the last layer
+            layers.remove(l);
+            layers.add(l);
+            layer = l;
+            cellSize = l.cellSize;
+            west = l.west;
+            north = l.north;
+            frozen = false;
+        }
+        repaint();
+    }
+
+    /**
+     * Returns an identifier that is not used by any layer. Identifiers are
+     * stored with 11 bits in the keys of tiles.
+     */
+    private int newLayerID() {
+        while (true) {
+            final int id = nextLayerID++ & 0x7FF;
+            boolean used = false;
+            for (Layer l : layers) {
+                used |= l.id == id;
+            }
+            if (!used) {
+                return id;
+            }
+        }
+    }
+
+    private Layer findLayer(GeoGrid grid) {
+        for (Layer l : layers) {
+            if (l.grid == grid) {
+                return l;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discards the tiles of all grids that are not in a collection.
+     * @param grids The grids to keep tiles for. Can be null.
+     */
+    public synchronized void retainGrids(Collection<GeoGrid> grids) {
+        for (Layer l : new ArrayList<Layer>(layers)) {
+            boolean retain = false;
+            if (grids != null) {
+                for (GeoGrid grid : grids) {
+                    retain |= grid == l.grid;
+                }
+            }
+            if (!retain) {
+                removeLayer(l);
+            }
+        }
+    }
+
+    private void removeLayer(Layer l) {
+        removeTiles(l);
+        l.generation++;
+        layers.remove(l);
+        if (layer == l) {
+            layer = null;
+        }
+    }
+
+    private void removeTiles(Layer l) {
+        Iterator<Map.Entry<Long, Tile>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Tile> entry = it.next();
+            if (keyLayer(entry.getKey()) == l.id) {
+                recycle(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the displayed grid.
+     * @return The grid.
+     */
+    public synchronized GeoGrid getGrid() {
+        return layer == null ? null : layer.grid;
+    }
+
+    /**
+     * Stops rendering tiles until setGrid() is called. Tiles that are being
+     * rendered are marked as stale. Must be called before any grid that was
+     * passed to setGrid() is changed.
+     */
+    public synchronized void freeze() {
+        frozen = true;
+        modifications++;
+        for (Layer l : layers) {
+            l.version++;
+        }
+    }
+
+    /**
+     * Sets the component that is repainted when a tile has been rendered.
+     * @param repaintComponent The component, usually the MapComponent
+     * displaying this image. Can be null.
+     */
+    public synchronized void setRepaintComponent(Component repaintComponent) {
+        this.repaintComponent = repaintComponent;
+    }
+
+    /**
+     * Sets the maximum number of tiles in the cache.
+     * @param maxTiles The maximum number of tiles. Should be large enough for
+     * the tiles of the map at two levels.
+     */
+    public synchronized void setMaxTiles(int maxTiles) {
+        if (maxTiles < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxTiles = maxTiles;
+    }
+
+    public synchronized int getMaxTiles() {
+        return maxTiles;
+    }
+
+    private void repaint() {
+        Component c;
+        synchronized (this) {
+            c = repaintComponent;
+        }
+        if (c != null) {
+            c.repaint();
+        }
+    }
+
+    private static long tileKey(int layerID, int level, int tileCol, int tileRow) {
+        return ((long) layerID << 53) | ((long) level << 48)
+                | ((long) tileRow << 24) | tileCol;
+    }
+
+    private static int keyLayer(long key) {
+        return (int) (key >>> 53);
+    }
+
+    private static int keyLevel(long key) {
+        return (int) ((key >>> 48) & 0x1F);
+    }
+
+    private static int keyRow(long key) {
+        return (int) ((key >>> 24) & 0xFFFFFF);
+    }
+
+    private static int keyCol(long key) {
+        return (int) (key & 0xFFFFFF);
+    }
+
+    /**
+     * Keeps the image of a tile that is no longer used for reuse.
+     */
+    private void recycle(Tile tile) {
+        if (tile.gray != null && tile.image.getWidth() == TILE_SIZE
+                && tile.image.getHeight() == TILE_SIZE
+                && imagePool.size() < MAX_POOLED_IMAGES) {
+            imagePool.push(tile.image);
+        }
+    }
+
+    /**
+     * Creates a tile from ARGB colors. Tiles with only opaque gray and
+     * transparent pixels are stored with one byte per pixel.
+     */
+    private Tile createTile(int[] argb, int w, int h) {
+        final int n = w * h;
+        boolean isGray = true;
+        for (int i = 0; i < n && isGray; i++) {
+            final int c = argb[i];
+            isGray = c == 0 || c == (0xFF000000 | ((c & 0xFF) * 0x010101));
+        }
+
+        BufferedImage image = null;
+        if (isGray) {
+            if (w == TILE_SIZE && h == TILE_SIZE) {
+                synchronized (this) {
+                    image = imagePool.poll();
+                }
+            }
+            if (image == null) {
+                image = new BufferedImage(w, h,
+                        BufferedImage.TYPE_BYTE_INDEXED, GRAY_COLOR_MODEL);
+            }
+        } else {
+            image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        Tile tile = new Tile(image);
+        if (isGray) {
+            final byte[] gray = tile.gray;
+            for (int i = 0; i < n; i++) {
+                final int c = argb[i];
+                gray[i] = (byte) (c == 0 ? 0 : Math.max(1, c & 0xFF));
+            }
+        } else {
+            System.arraycopy(argb, 0, tile.argb, 0, n);
+        }
+        return tile;
+    }
+
+    /**
+     * Computes a checksum for each block of TILE_SIZE x TILE_SIZE cells.
+     */
+    private static long[] checksums(GeoGrid grid) {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final int blockCols = (cols + TILE_SIZE - 1) / TILE_SIZE;
+        final int blockRows = (rows + TILE_SIZE - 1) / TILE_SIZE;
+        long[] sums = new long[blockCols * blockRows];
+        final float[][] g = grid.getGrid();
+        for (int row = 0; row < rows; row++) {
+            final float[] r = g[row];
+            final int offset = (row / TILE_SIZE) * blockCols;
+            for (int b = 0; b < blockCols; b++) {
+                long h = sums[offset + b];
+                final int end = Math.min(cols, (b + 1) * TILE_SIZE);
+                for (int col = b * TILE_SIZE; col < end; col++) {
+                    h = (h ^ Float.floatToRawIntBits(r[col])) * 0x100000001B3L;
+                }
+                sums[offset + b] = h;
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Marks tiles of a layer as stale that show cells in blocks with changed
+     * checksums. As the renderer may access neighboring cells, a tile is also
+     * stale if a block adjacent to the tile changed.
+     */
+    private void invalidate(Layer l, long[] newChecksums) {
+        final int blockCols = (l.cols + TILE_SIZE - 1) / TILE_SIZE;
+        final int blockRows = (l.rows + TILE_SIZE - 1) / TILE_SIZE;
+
+        // changed blocks, grown by one block
+        boolean[] dirty = new boolean[newChecksums.length];
+        boolean changed = false;
+        for (int by = 0; by < blockRows; by++) {
+            for (int bx = 0; bx < blockCols; bx++) {
+                final int i = by * blockCols + bx;
+                if (l.checksums[i] != newChecksums[i]) {
+                    changed = true;
+                    for (int y = Math.max(0, by - 1); y <= Math.min(blockRows - 1, by + 1); y++) {
+                        for (int x = Math.max(0, bx - 1); x <= Math.min(blockCols - 1, bx + 1); x++) {
+                            dirty[y * blockCols + x] = true;
+                        }
+                    }
+                }
+            }
+        }
+        if (!changed) {
+            return;
+        }
+
+        for (Map.Entry<Long, Tile> entry : tiles.entrySet()) {
+            final long key = entry.getKey();
+            if (keyLayer(key) != l.id) {
+                continue;
+            }
+            final int level = keyLevel(key);
+            final int bx0 = keyCol(key) << level;
+            final int by0 = keyRow(key) << level;
+            final int bx1 = Math.min(blockCols, bx0 + (1 << level));
+            final int by1 = Math.min(blockRows, by0 + (1 << level));
+            search:
+            for (int y = by0; y < by1; y++) {
+                for (int x = bx0; x < bx1; x++) {
+                    if (dirty[y * blockCols + x]) {
+                        entry.getValue().stale = true;
+                        break search;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the level for a map scale. The pixels of tiles at this level are
+     * not larger than the pixels of the map.
+     */
+    private static int level(Layer l, double scale) {
+        final double cellsPerPixel = 1. / (l.cellSize * scale);
+        final int maxLevel = l.maxLevel();
+        int level = 0;
+        while (level < maxLevel && (1 << (level + 1)) <= cellsPerPixel) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Draws the visible tiles and starts rendering missing and stale tiles.
+     */
+    @Override
+    public void drawNormalState(RenderParams rp) {
+        synchronized (this) {
+            final Layer l = layer;
+            if (l == null) {
+                return;
+            }
+            final int level = level(l, rp.scale);
+            final double tileExtent = TILE_SIZE * l.cellSize * (1 << level);
+            final double left = l.west - l.cellSize / 2;
+            final double top = l.north + l.cellSize / 2;
+            final int tileCols = (l.pixelCols(level) + TILE_SIZE - 1) / TILE_SIZE;
+            final int tileRows = (l.pixelRows(level) + TILE_SIZE - 1) / TILE_SIZE;
+
+            final int firstCol = Math.max(0, (int) Math.floor((rp.visLeft - left) / tileExtent));
+            final int lastCol = Math.min(tileCols - 1,
+                    (int) Math.floor((rp.visLeft + rp.visWidth - left) / tileExtent));
+            final int firstRow = Math.max(0, (int) Math.floor((top - rp.visTop) / tileExtent));
+            final int lastRow = Math.min(tileRows - 1,
+                    (int) Math.floor((top - rp.visTop + rp.visHeight) / tileExtent));
+
+            visibleLevel = level;
+            visibleFirstCol = firstCol;
+            visibleFirstRow = firstRow;
+            visibleLastCol = lastCol;
+            visibleLastRow = lastRow;
+
+            ArrayList<Long> missing = new ArrayList<Long>();
+            for (int ty = firstRow; ty <= lastRow; ty++) {
+                for (int tx = firstCol; tx <= lastCol; tx++) {
+                    final long key = tileKey(l.id, level, tx, ty);
+                    Tile tile = tiles.get(key);
+                    if (tile != null) {
+                        drawTile(rp, l, tile.image, level, tx, ty, 0, 0,
+                                tile.image.getWidth(), tile.image.getHeight());
+                    } else {
+                        drawCoarserTile(rp, l, level, tx, ty);
+                    }
+                    if (tile == null || tile.stale) {
+                        missing.add(key);
+                    }
+                }
+            }
+            if (!frozen) {
+                render(l, missing, (firstCol + lastCol) / 2, (firstRow + lastRow) / 2);
+                // the single tile at the highest level is shown while finer
+                // tiles are rendered
+                final int maxLevel = l.maxLevel();
+                final long overviewKey = tileKey(l.id, maxLevel, 0, 0);
+                if (level < maxLevel && !tiles.containsKey(overviewKey)
+                        && pending.add(overviewKey)) {
+                    executor.execute(new TileRenderer(l, overviewKey));
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a section of an image into the area of a tile. The corners are
+     * rounded to pixels, so that there are no gaps between tiles.
+     */
+    private static void drawTile(RenderParams rp, Layer l, BufferedImage image,
+            int level, int tileCol, int tileRow,
+            int sx0, int sy0, int sx1, int sy1) {
+        final double pixelSize = l.cellSize * (1 << level);
+        final double tileLeft = l.west - l.cellSize / 2 + tileCol * TILE_SIZE * pixelSize;
+        final double tileTop = l.north + l.cellSize / 2 - tileRow * TILE_SIZE * pixelSize;
+        final int w = Math.min(TILE_SIZE, l.pixelCols(level) - tileCol * TILE_SIZE);
+        final int h = Math.min(TILE_SIZE, l.pixelRows(level) - tileRow * TILE_SIZE);
+        final int dx0 = (int) Math.round(rp.tX(tileLeft));
+        final int dy0 = (int) Math.round(rp.tY(tileTop));
+        final int dx1 = (int) Math.round(rp.tX(tileLeft + w * pixelSize));
+        final int dy1 = (int) Math.round(rp.tY(tileTop - h * pixelSize));
+        rp.g2d.drawImage(image, dx0, dy0, dx1, dy1, sx0, sy0, sx1, sy1, null);
+    }
+
+    /**
+     * Draws the section of the closest cached coarser tile that covers a tile.
+     */
+    private void drawCoarserTile(RenderParams rp, Layer l, int level,
+            int tileCol, int tileRow) {
+        final int maxLevel = l.maxLevel();
+        for (int k = 1; level + k <= maxLevel; k++) {
+            final int parentCol = tileCol >> k;
+            final int parentRow = tileRow >> k;
+            Tile parent = tiles.get(tileKey(l.id, level + k, parentCol, parentRow));
+            if (parent != null) {
+                final int w = Math.min(TILE_SIZE, l.pixelCols(level) - tileCol * TILE_SIZE);
+                final int h = Math.min(TILE_SIZE, l.pixelRows(level) - tileRow * TILE_SIZE);
+                final int sx0 = ((tileCol - (parentCol << k)) * TILE_SIZE) >> k;
+                final int sy0 = ((tileRow - (parentRow << k)) * TILE_SIZE) >> k;
+                final int sx1 = Math.min(parent.image.getWidth(), sx0 + Math.max(1, w >> k));
+                final int sy1 = Math.min(parent.image.getHeight(), sy0 + Math.max(1, h >> k));
+                drawTile(rp, l, parent.image, level, tileCol, tileRow, sx0, sy0, sx1, sy1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues tiles for rendering, starting with the tiles closest to the
+     * center of the map.
+     */
+    private void render(Layer l, ArrayList<Long> keys,
+            final int centerCol, final int centerRow) {
+        Collections.sort(keys, new Comparator<Long>() {
+            @Override
+            public int compare(Long k1, Long k2) {
+                return distance(k1) - distance(k2);
+            }
+
+            private int distance(long key) {
+                return Math.abs(keyCol(key) - centerCol) + Math.abs(keyRow(key) - centerRow);
+            }
+        });
+        for (Long key : keys) {
+            if (pending.add(key)) {
+                executor.execute(new TileRenderer(l, key));
+            }
+        }
+    }
+
+    /**
+     * Renders a tile on a background thread.
+     */
+    private class TileRenderer implements Runnable {
+
+        private final Layer l;
+        private final long key;
+
+        TileRenderer(Layer l, long key) {
+            this.l = l;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            final int level = keyLevel(key);
+            final int tileCol = keyCol(key);
+            final int tileRow = keyRow(key);
+            final GeoGrid g;
+            final GridTileRenderer r;
+            final int v;
+            final int gen;
+            final int w, h;
+            synchronized (GeoTiledGridImage.this) {
+                // skip tiles that are no longer visible
+                if (frozen || l != layer) {
+                    pending.remove(key);
+                    return;
+                }
+                if (level != l.maxLevel() && (level != visibleLevel
+                        || tileCol < visibleFirstCol || tileCol > visibleLastCol
+                        || tileRow < visibleFirstRow || tileRow > visibleLastRow)) {
+                    pending.remove(key);
+                    return;
+                }
+                g = l.grid;
+                r = l.renderer;
+                v = l.version;
+                gen = l.generation;
+                w = Math.min(TILE_SIZE, l.pixelCols(level) - tileCol * TILE_SIZE);
+                h = Math.min(TILE_SIZE, l.pixelRows(level) - tileRow * TILE_SIZE);
+            }
+
+            Tile tile = null;
+            try {
+                // the colors are computed in a buffer that is reused for all
+                // tiles rendered by this thread
+                int[] argb = argbBuffer.get();
+                if (level == 0) {
+                    r.renderTile(g, tileCol * TILE_SIZE, tileRow * TILE_SIZE, 1, w, h, argb);
+                } else if (!reduceChildren(l, level, tileCol, tileRow, w, h, argb)) {
+                    boxFilter(g, r, level, tileCol, tileRow, w, h, argb);
+                }
+                tile = createTile(argb, w, h);
+            } catch (Throwable ex) {
+                Logger.getLogger(GeoTiledGridImage.class.getName()).log(Level.SEVERE,
+                        "cannot render tile", ex);
+            } finally {
+                synchronized (GeoTiledGridImage.this) {
+                    pending.remove(key);
+                    if (tile != null) {
+                        if (gen == l.generation) {
+                            tile.stale = v != l.version;
+                            Tile old = tiles.put(key, tile);
+                            if (old != null) {
+                                recycle(old);
+                            }
+                        } else {
+                            recycle(tile);
+                            tile = null;
+                        }
+                    }
+                }
+            }
+            if (tile != null) {
+                repaint();
+            }
+        }
+    }
+
+    /**
+     * Computes a tile at level 1 or higher from the four cached tiles at the
+     * next lower level. Each pixel is the mean of 2 x 2 pixels. The tiles at
+     * the lower level are read while this object is locked, as their images
+     * could otherwise be reused for other tiles.
+     * @return False if not all tiles at the lower level are cached and
+     * up-to-date.
+     */
+    private synchronized boolean reduceChildren(Layer l, int level,
+            int tileCol, int tileRow, int w, int h, int[] argb) {
+        final int childCols = l.pixelCols(level - 1);
+        final int childRows = l.pixelRows(level - 1);
+        Tile[] children = new Tile[4];
+        int[] childWidths = new int[4];
+        for (int i = 0; i < 4; i++) {
+            final int cx = tileCol * 2 + (i & 1);
+            final int cy = tileRow * 2 + (i >> 1);
+            if (cx * TILE_SIZE >= childCols || cy * TILE_SIZE >= childRows) {
+                continue; // outside of the grid
+            }
+            Tile child = tiles.get(tileKey(l.id, level - 1, cx, cy));
+            if (child == null || child.stale) {
+                return false;
+            }
+            children[i] = child;
+            childWidths[i] = child.image.getWidth();
+        }
+
+        long[] sums = new long[4];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                java.util.Arrays.fill(sums, 0);
+                int n = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    // pixel coordinates at the lower level
+                    final int py = (tileRow * TILE_SIZE + y) * 2 + dy;
+                    if (py >= childRows) {
+                        continue;
+                    }
+                    for (int dx = 0; dx < 2; dx++) {
+                        final int px = (tileCol * TILE_SIZE + x) * 2 + dx;
+                        if (px >= childCols) {
+                            continue;
+                        }
+                        final int i = ((py / TILE_SIZE) - tileRow * 2) * 2
+                                + (px / TILE_SIZE) - tileCol * 2;
+                        add(sums, children[i].getARGB((py % TILE_SIZE) * childWidths[i] + px % TILE_SIZE));
+                        n++;
+                    }
+                }
+                argb[y * w + x] = mean(sums, n);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds an ARGB color to sums of alpha and alpha-weighted red, green and
+     * blue.
+     */
+    private static void add(long[] sums, int c) {
+        final int a = c >>> 24;
+        sums[0] += a;
+        sums[1] += a * ((c >> 16) & 0xFF);
+        sums[2] += a * ((c >> 8) & 0xFF);
+        sums[3] += a * (c & 0xFF);
+    }
+
+    /**
+     * Returns the mean ARGB color of n colors accumulated by add().
+     */
+    private static int mean(long[] sums, int n) {
+        final long a = sums[0];
+        if (a == 0 || n == 0) {
+            return 0;
+        }
+        final long alpha = (a + n / 2) / n;
+        final long r = (sums[1] + a / 2) / a;
+        final long g = (sums[2] + a / 2) / a;
+        final long b = (sums[3] + a / 2) / a;
+        return (int) ((alpha << 24) | (r << 16) | (g << 8) | b);
+    }
+
+    /**
+     * Computes a tile at level 1 or higher from the grid. The cells covered by
+     * the tile are rendered row by row at full resolution, and the colors of
+     * the 2^level x 2^level cells of each pixel are averaged.
+     */
+    private static void boxFilter(final GeoGrid grid, final GridTileRenderer renderer,
+            final int level, final int tileCol, final int tileRow,
+            final int w, final int h, final int[] argb) {
+        final long cells = ((long) w * h) << (2 * level);
+        final int nThreads = (int) Math.max(1, Math.min(
+                Runtime.getRuntime().availableProcessors(), cells / MIN_CELLS_PER_THREAD));
+        if (nThreads == 1) {
+            boxFilter(grid, renderer, level, tileCol, tileRow, w, argb, 0, h);
+            return;
+        }
+        ArrayList<Thread> threads = new ArrayList<Thread>(nThreads);
+        final int rowChunk = (h + nThreads - 1) / nThreads;
+        for (int i = 0; i < nThreads; i++) {
+            final int y0 = i * rowChunk;
+            final int y1 = Math.min(h, y0 + rowChunk);
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    boxFilter(grid, renderer, level, tileCol, tileRow, w, argb, y0, y1);
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(GeoTiledGridImage.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Computes the rows y0 to y1 (exclusive) of a tile from the grid.
+     */
+    private static void boxFilter(GeoGrid grid, GridTileRenderer renderer,
+            int level, int tileCol, int tileRow, int w, int[] argb, int y0, int y1) {
+        final int step = 1 << level;
+        final int firstCol = tileCol * TILE_SIZE * step;
+        final int stripCols = Math.min(w * step, grid.getCols() - firstCol);
+        final int rows = grid.getRows();
+        int[] strip = new int[stripCols];
+        long[][] sums = new long[w][4];
+        int[] n = new int[w];
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0; x < w; x++) {
+                java.util.Arrays.fill(sums[x], 0);
+                n[x] = 0;
+            }
+            final int firstRow = (tileRow * TILE_SIZE + y) * step;
+            final int lastRow = Math.min(rows, firstRow + step);
+            for (int row = firstRow; row < lastRow; row++) {
+                renderer.renderTile(grid, firstCol, row, 1, stripCols, 1, strip);
+                for (int i = 0; i < stripCols; i++) {
+                    add(sums[i >> level], strip[i]);
+                    n[i >> level]++;
+                }
+            }
+            for (int x = 0; x < w; x++) {
+                argb[y * w + x] = mean(sums[x], n[x]);
+            }
+        }
+    }
+
+    /**
+     * Removes all tiles from the cache.
+     */
+    public synchronized void clearTiles() {
+        for (Layer l : layers) {
+            l.generation++;
+        }
+        tiles.clear();
+        imagePool.clear();
+    }
+
+    /**
+     * Returns the number of tiles in the cache.
+     * @return The number of tiles.
+     */
+    public synchronized int getTilesCount() {
+        return tiles.size();
+    }
+
+    /**
+     * Returns the number of stale tiles in the cache.
+     * @return The number of tiles that will be rendered again when they are
+     * displayed.
+     */
+    public synchronized int getStaleTilesCount() {
+        int count = 0;
+        for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext();) {
+            if (it.next().stale) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the memory used by the images of the cached tiles.
+     * @return The number of bytes.
+     */
+    public synchronized long getTilesMemory() {
+        long bytes = 0;
+        for (Tile tile : tiles.values()) {
+            bytes += tile.gray != null ? tile.gray.length : 4L * tile.argb.length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void drawSelectedState(RenderParams rp) {
+        if (!isSelected()) {
+            return;
+        }
+        Rectangle2D bounds = getBounds2D(rp.scale);
+        if (bounds != null) {
+            GeoPath.newRect(bounds).drawSelectedState(rp);
+        }
+    }
+
+    @Override
+    public synchronized Rectangle2D getBounds2D(double scale) {
+        if (layer == null) {
+            return null;
+        }
+        final double w = cellSize * layer.cols;
+        final double h = cellSize * layer.rows;
+        return new Rectangle2D.Double(west - cellSize / 2, north + cellSize / 2 - h, w, h);
+    }
+
+    @Override
+    public boolean isIntersectedByRectangle(Rectangle2D rect, double scale) {
+        // Use GeometryUtils.rectanglesIntersect and not Rectangle2D.intersects!
+        return ika.utils.GeometryUtils.rectanglesIntersect(rect, getBounds2D(scale));
+    }
+
+    @Override
+    public boolean isPointOnSymbol(Point2D point, double tolDist, double scale) {
+        Rectangle2D bounds = getBounds2D(scale);
+        if (bounds == null) {
+            return false;
+        }
+        ika.utils.GeometryUtils.enlargeRectangle(bounds, tolDist);
+        return bounds.contains(point);
+    }
+
+    @Override
+    public synchronized int getCols() {
+        return layer == null ? 0 : layer.cols;
+    }
+
+    @Override
+    public synchronized int getRows() {
+        return layer == null ? 0 : layer.rows;
+    }
+
+    @Override
+    public double getSouth() {
+        return north - (getRows() - 1) * cellSize;
+    }
+
+    @Override
+    public double getEast() {
+        return west + (getCols() - 1) * cellSize;
+    }
+
+    /**
+     * The tiles are computed from the grid, which cannot be moved, scaled or
+     * transformed by this image.
+     */
+    @Override
+    public void move(double dx, double dy) {
+    }
+
+    @Override
+    public void scale(double scale) {
+    }
+
+    @Override
+    public void scale(double hScale, double vScale) {
+    }
+
+    @Override
+    public void transform(AffineTransform affineTransform) {
+    }
+}
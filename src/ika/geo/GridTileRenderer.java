@@ -0,0 +1,32 @@
+/*
+ * GridTileRenderer.java
+ *
+ */
+package ika.geo;
+
+/**
+ * Converts a rectangular section of a grid to colors for display. Used by
+ * GeoTiledGridImage to render tiles on background threads. Implementations
+ * must be thread-safe and must implement equals(), because tiles are only
+ * kept when the renderer of a new grid equals the previous renderer.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public interface GridTileRenderer {
+
+    /**
+     * Renders a tile. Pixel (x, y) of the tile shows the cell at column
+     * min(firstCol + x * step, cols - 1) and row min(firstRow + y * step,
+     * rows - 1) of the grid. Neighboring cells should be taken at a
+     * distance of step cells, so that coarse tiles are not noisy.
+     * @param grid The grid to render.
+     * @param firstCol The column of the first pixel.
+     * @param firstRow The row of the first pixel.
+     * @param step The distance between two pixels in cells.
+     * @param width The number of columns of pixels.
+     * @param height The number of rows of pixels.
+     * @param argb Destination for the ARGB colors, with width * height values
+     * in row order. Void cells should be transparent.
+     */
+    public void renderTile(GeoGrid grid, int firstCol, int firstRow, int step,
+            int width, int height, int[] argb);
+}
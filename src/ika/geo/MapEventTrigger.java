@@ -46,6 +46,11 @@ public class MapEventTrigger {
      */
     private transient GeoSetBroadcaster root;
     
+    /**
+     * The GeoObject passed to the constructor.
+     */
+    private transient GeoObject geoObject;
+    
     /**
      * Creates a new instance of MapEventTrigger
      * @param geoObject Any object in the tree of geo objects.
@@ -53,6 +58,7 @@ public class MapEventTrigger {
     public MapEventTrigger(GeoObject geoObject) {
         if (geoObject == null)
             throw new IllegalArgumentException();
+        this.geoObject = geoObject;
         this.root = geoObject.getRoot();
         if (this.root != null) {
             this.eventsSuspendedInitially = this.root.mapEventListenersSuspended();
@@ -86,6 +92,7 @@ public class MapEventTrigger {
      * @param evt The MapEvent that is sent to all registered listeners.
      */
     public void inform(MapEvent evt) {
+        MapEventTrigger.invalidateSpatialIndex(evt, this.geoObject);
         if (this.root != null && this.eventsSuspendedInitially == false) {
             this.root.activateMapEventListeners();
             this.root.informMapEventListeners(evt);
@@ -108,8 +115,29 @@ public class MapEventTrigger {
      * the GeoObject that changed, but this is not required.
      */
     static public void inform(MapEvent evt, GeoObject geoObject) {
+        MapEventTrigger.invalidateSpatialIndex(evt, geoObject);
         final GeoSetBroadcaster root = geoObject.getRoot();
         if (root != null)
             root.informMapEventListeners(evt);
     }
+    
+    /**
+     * Informs the parent GeoSet of a changed GeoObject that its spatial index
+     * may be outdated. Changes of the selection or the visibility do not 
+     * change bounding boxes. The spatial index of a GeoSet does not contain
+     * the children of its child GeoSets; a child GeoSet therefore does not
+     * have to inform its parent.
+     * @param evt The MapEvent discribing the type of change that occured.
+     * @param geoObject The GeoObject that changed.
+     */
+    static private void invalidateSpatialIndex(MapEvent evt, GeoObject geoObject) {
+        if (geoObject instanceof GeoSet)
+            return;
+        if (!evt.isStructureChanged() 
+                && (evt.isSelectionChanged() || evt.isVisibilityChanged()))
+            return;
+        final GeoSet parent = geoObject.getParent();
+        if (parent != null)
+            parent.invalidateSpatialIndex();
+    }
 }
@@ -0,0 +1,284 @@
+/*
+ * SimplifiedPaths.java
+ *
+ */
+package ika.geo;
+
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Simplified versions of the geometry of a GeoPathModel for drawing at small
+ * scales. Each version is computed with the Douglas-Peucker algorithm for a
+ * tolerance that is a power of two in world coordinates. The tolerance for a
+ * scale is the largest power of two that is not larger than TOLERANCE_PIXELS
+ * pixels, so the simplified geometry cannot be distinguished from the
+ * original geometry when drawn.
+ * <p>
+ * Instances are not changed after construction. A GeoPathModel replaces its
+ * instance when a version is added, and discards it when the geometry
+ * changes.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+final class SimplifiedPaths {
+
+    /**
+     * The maximum distance in pixels between the original and the simplified
+     * geometry.
+     */
+    private static final double TOLERANCE_PIXELS = 0.5;
+
+    /**
+     * Paths with fewer points are not simplified.
+     */
+    static final int MIN_POINTS = 64;
+
+    /**
+     * A thread shared by all paths for computing simplified versions, so that
+     * the Event Dispatching Thread is not blocked. Until a version has been
+     * computed, the original geometry is drawn, which looks the same.
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Path Simplifier");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /**
+     * The version of the geometry of the GeoPathModel that the simplified
+     * paths were computed from.
+     */
+    final int version;
+
+    /**
+     * The levels of the simplified paths. The tolerance of a level is 2 to
+     * the power of the level.
+     */
+    private final int[] levels;
+
+    /**
+     * The simplified path for each level. An element is null while the path
+     * is computed, or the original GeoPathModel if simplification does not
+     * remove enough points.
+     */
+    private final GeoPathModel[] paths;
+
+    SimplifiedPaths(int version) {
+        this(version, new int[0], new GeoPathModel[0]);
+    }
+
+    private SimplifiedPaths(int version, int[] levels, GeoPathModel[] paths) {
+        this.version = version;
+        this.levels = levels;
+        this.paths = paths;
+    }
+
+    /**
+     * Returns the level of simplification for drawing at a scale.
+     * @param scale The scale of the map.
+     * @return The level.
+     */
+    static int level(double scale) {
+        return Math.getExponent(TOLERANCE_PIXELS / scale);
+    }
+
+    /**
+     * Returns the tolerance of a level in world coordinates.
+     */
+    static double tolerance(int level) {
+        return Math.scalb(1d, level);
+    }
+
+    /**
+     * Returns whether a level has been added.
+     */
+    boolean contains(int level) {
+        for (int l : levels) {
+            if (l == level) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the simplified path of a level.
+     * @return The path, or null if the level has not been added or is being
+     * computed.
+     */
+    GeoPathModel get(int level) {
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] == level) {
+                return paths[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy with the simplified path of a level added or replaced.
+     * @param level The level.
+     * @param path The path, or null if it is being computed.
+     * @return The new instance.
+     */
+    SimplifiedPaths with(int level, GeoPathModel path) {
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] == level) {
+                GeoPathModel[] newPaths = paths.clone();
+                newPaths[i] = path;
+                return new SimplifiedPaths(version, levels, newPaths);
+            }
+        }
+        int[] newLevels = Arrays.copyOf(levels, levels.length + 1);
+        GeoPathModel[] newPaths = Arrays.copyOf(paths, paths.length + 1);
+        newLevels[levels.length] = level;
+        newPaths[paths.length] = path;
+        return new SimplifiedPaths(version, newLevels, newPaths);
+    }
+
+    /**
+     * Computes a simplified path in the background.
+     * @param task The task computing and storing the path.
+     */
+    static void schedule(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Simplifies a path with straight lines using the Douglas-Peucker
+     * algorithm. The first and the last point of each sub-path are retained.
+     * @param points The points of the path: x1, y1, x2, y2, etc.
+     * @param instructions The drawing instructions of the path.
+     * @param tolerance The maximum distance between the original and the
+     * simplified path.
+     * @return The simplified path, or null if the path contains bezier curves,
+     * or the instructions and the points do not match.
+     */
+    static GeoPathModel simplify(double[] points, byte[] instructions,
+            double tolerance) {
+
+        final int pointsCount = points.length / 2;
+        final boolean[] keep = new boolean[pointsCount];
+        final double tolSq = tolerance * tolerance;
+        int[] stack = new int[64];
+
+        // find the sub-paths and simplify each
+        int ptID = 0;
+        int first = -1;
+        for (int i = 0; i <= instructions.length; i++) {
+            final byte instruction = i < instructions.length
+                    ? instructions[i] : GeoPathModel.MOVETO;
+            switch (instruction) {
+                case GeoPathModel.MOVETO:
+                case GeoPathModel.CLOSE:
+                    if (first >= 0) {
+                        stack = simplify(points, first, ptID - 1, tolSq, keep, stack);
+                        first = -1;
+                    }
+                    if (instruction == GeoPathModel.MOVETO && i < instructions.length) {
+                        if (ptID >= pointsCount) {
+                            return null;
+                        }
+                        first = ptID++;
+                    }
+                    break;
+                case GeoPathModel.LINETO:
+                    if (first < 0 || ptID >= pointsCount) {
+                        return null;
+                    }
+                    ptID++;
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        // copy the retained points and their instructions
+        int keptCount = 0;
+        for (int i = 0; i < ptID; i++) {
+            if (keep[i]) {
+                keptCount++;
+            }
+        }
+        final int closeCount = instructions.length - ptID;
+        final double[] newPoints = new double[keptCount * 2];
+        final byte[] newInstructions = new byte[keptCount + closeCount];
+        int p = 0, n = 0;
+        ptID = 0;
+        for (int i = 0; i < instructions.length; i++) {
+            final byte instruction = instructions[i];
+            if (instruction == GeoPathModel.CLOSE) {
+                newInstructions[n++] = instruction;
+                continue;
+            }
+            if (keep[ptID]) {
+                newPoints[p++] = points[ptID * 2];
+                newPoints[p++] = points[ptID * 2 + 1];
+                newInstructions[n++] = instruction;
+            }
+            ptID++;
+        }
+        GeoPathModel path = new GeoPathModel();
+        path.points = newPoints;
+        path.instructions = newInstructions;
+        path.updateBounds();
+        return path;
+    }
+
+    /**
+     * Marks the points of a sub-path that are retained.
+     * @param points The points of the path.
+     * @param first The first point of the sub-path.
+     * @param last The last point of the sub-path.
+     * @param tolSq The square of the tolerance.
+     * @param keep Receives true for retained points.
+     * @param stack A buffer for the stack of segments to simplify.
+     * @return The buffer, which may have been enlarged.
+     */
+    private static int[] simplify(double[] points, int first, int last,
+            double tolSq, boolean[] keep, int[] stack) {
+
+        keep[first] = keep[last] = true;
+        int top = 0;
+        stack[top++] = first;
+        stack[top++] = last;
+        while (top > 0) {
+            final int end = stack[--top];
+            final int start = stack[--top];
+            final double x1 = points[start * 2], y1 = points[start * 2 + 1];
+            final double x2 = points[end * 2], y2 = points[end * 2 + 1];
+
+            // find the point farthest from the segment between start and end
+            double maxDistSq = tolSq;
+            int farthest = -1;
+            for (int i = start + 1; i < end; i++) {
+                final double d = Line2D.ptSegDistSq(x1, y1, x2, y2,
+                        points[i * 2], points[i * 2 + 1]);
+                if (d > maxDistSq) {
+                    maxDistSq = d;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+            keep[farthest] = true;
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = start;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = end;
+        }
+        return stack;
+    }
+}
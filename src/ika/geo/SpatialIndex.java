@@ -0,0 +1,345 @@
+/*
+ * SpatialIndex.java
+ *
+ */
+package ika.geo;
+
+import ika.utils.GeometryUtils;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * A packed R-tree with the bounding boxes of the children of a GeoSet. The
+ * tree is built once from all children, and is not changed afterwards. It is
+ * replaced by a new tree when the children change.
+ * <p>
+ * Only GeoPaths with a valid bounding box are stored in the tree, as the
+ * bounding box of a GeoPath does not depend on the map scale. All other
+ * children are returned by every query. Children that are added after the
+ * tree is built are also returned by every query.
+ * <p>
+ * The entries are sorted along a Hilbert curve through the centers of their
+ * bounding boxes, and grouped into nodes of NODE_SIZE entries. This results
+ * in compact nodes that overlap little.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+final class SpatialIndex {
+
+    /**
+     * The maximum number of entries in a node.
+     */
+    private static final int NODE_SIZE = 16;
+
+    /**
+     * The stroke of a path can extend beyond the bounding box of its geometry
+     * by this factor times the stroke width, which is half the default miter
+     * limit of BasicStroke.
+     */
+    private static final double MITER_FACTOR = 5;
+
+    /**
+     * The array with the children of the GeoSet when the tree was built.
+     */
+    final GeoObject[] children;
+
+    /**
+     * The number of children of the GeoSet when the tree was built.
+     */
+    final int childCount;
+
+    /**
+     * The object identifying the state of the GeoSet when the tree was built.
+     * The tree is outdated when the GeoSet has a different object.
+     */
+    final Object stamp;
+
+    /**
+     * Bounding boxes of entries and nodes. Four values per box: minimum x,
+     * minimum y, maximum x, maximum y. The entries are stored first, followed
+     * by the nodes of each level. The root is the last box.
+     */
+    private final double[] boxes;
+
+    /**
+     * For each entry, the position of the child in the GeoSet. For each node,
+     * the position of the first box of the node in boxes.
+     */
+    private final int[] ids;
+
+    /**
+     * The number of entries.
+     */
+    private final int entriesCount;
+
+    /**
+     * Positions of children that are not stored in the tree, in ascending
+     * order.
+     */
+    private final int[] others;
+
+    /**
+     * The union of the bounding boxes of all entries, or null.
+     */
+    private final Rectangle2D bounds;
+
+    /**
+     * The largest stroke width of entries with a stroke that scales with the
+     * map, in world coordinates.
+     */
+    private final double maxWorldStrokeWidth;
+
+    /**
+     * The largest stroke width of entries with a scale-invariant stroke, in
+     * pixels.
+     */
+    private final double maxPixelStrokeWidth;
+
+    /**
+     * Builds a tree for the children of a GeoSet.
+     * @param children The children. The elements up to childCount must not be
+     * changed.
+     * @param childCount The number of children.
+     * @param stamp The object identifying the current state of the GeoSet.
+     */
+    SpatialIndex(GeoObject[] children, int childCount, Object stamp) {
+        this.children = children;
+        this.childCount = childCount;
+        this.stamp = stamp;
+
+        // collect bounding boxes of paths
+        final double[] entryBoxes = new double[childCount * 4];
+        final int[] entryIds = new int[childCount];
+        final int[] otherIds = new int[childCount];
+        int n = 0;
+        int nOthers = 0;
+        double worldStroke = 0;
+        double pixelStroke = 0;
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < childCount; i++) {
+            final GeoObject child = children[i];
+            Rectangle2D b = null;
+            if (child instanceof GeoPath) {
+                b = ((GeoPath) child).getBounds2D(GeoObject.UNDEFINED_SCALE);
+            }
+            if (!GeometryUtils.isRectangleValid(b)) {
+                otherIds[nOthers++] = i;
+                continue;
+            }
+            final double x1 = b.getMinX(), y1 = b.getMinY();
+            final double x2 = b.getMaxX(), y2 = b.getMaxY();
+            entryBoxes[n * 4] = x1;
+            entryBoxes[n * 4 + 1] = y1;
+            entryBoxes[n * 4 + 2] = x2;
+            entryBoxes[n * 4 + 3] = y2;
+            entryIds[n++] = i;
+            minX = Math.min(minX, x1);
+            minY = Math.min(minY, y1);
+            maxX = Math.max(maxX, x2);
+            maxY = Math.max(maxY, y2);
+
+            final VectorSymbol symbol = ((GeoPath) child).getVectorSymbol();
+            if (symbol == null) {
+                pixelStroke = Math.max(pixelStroke, 1);
+            } else if (symbol.isStroked()) {
+                if (symbol.isScaleInvariant()) {
+                    pixelStroke = Math.max(pixelStroke, symbol.getStrokeWidth());
+                } else {
+                    worldStroke = Math.max(worldStroke, symbol.getStrokeWidth());
+                }
+            }
+        }
+        entriesCount = n;
+        others = Arrays.copyOf(otherIds, nOthers);
+        maxWorldStrokeWidth = worldStroke;
+        maxPixelStrokeWidth = pixelStroke;
+        bounds = n > 0 ? new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY) : null;
+
+        // sort entries along a Hilbert curve
+        final long[] keys = new long[n];
+        final double w = maxX - minX, h = maxY - minY;
+        final double sx = w > 0 ? 0xffff / w : 0;
+        final double sy = h > 0 ? 0xffff / h : 0;
+        for (int i = 0; i < n; i++) {
+            final double cx = (entryBoxes[i * 4] + entryBoxes[i * 4 + 2]) / 2;
+            final double cy = (entryBoxes[i * 4 + 1] + entryBoxes[i * 4 + 3]) / 2;
+            final int hx = (int) ((cx - minX) * sx);
+            final int hy = (int) ((cy - minY) * sy);
+            keys[i] = (hilbert(hx, hy) << 31) | i;
+        }
+        Arrays.sort(keys);
+
+        // count nodes of all levels
+        int boxesCount = n;
+        for (int levelSize = n; levelSize > 1;) {
+            levelSize = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+            boxesCount += levelSize;
+        }
+        boxes = new double[boxesCount * 4];
+        ids = new int[boxesCount];
+
+        // store the sorted entries
+        for (int i = 0; i < n; i++) {
+            final int e = (int) (keys[i] & Integer.MAX_VALUE);
+            System.arraycopy(entryBoxes, e * 4, boxes, i * 4, 4);
+            ids[i] = entryIds[e];
+        }
+
+        // build the nodes, level by level
+        int levelStart = 0;
+        int levelEnd = n;
+        int pos = n;
+        while (levelEnd - levelStart > 1) {
+            for (int first = levelStart; first < levelEnd; first += NODE_SIZE) {
+                final int last = Math.min(first + NODE_SIZE, levelEnd);
+                double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE;
+                double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+                for (int i = first; i < last; i++) {
+                    x1 = Math.min(x1, boxes[i * 4]);
+                    y1 = Math.min(y1, boxes[i * 4 + 1]);
+                    x2 = Math.max(x2, boxes[i * 4 + 2]);
+                    y2 = Math.max(y2, boxes[i * 4 + 3]);
+                }
+                boxes[pos * 4] = x1;
+                boxes[pos * 4 + 1] = y1;
+                boxes[pos * 4 + 2] = x2;
+                boxes[pos * 4 + 3] = y2;
+                ids[pos++] = first;
+            }
+            levelStart = levelEnd;
+            levelEnd = pos;
+        }
+    }
+
+    /**
+     * Returns the positions of all children that may intersect a rectangle.
+     * Boxes touching the rectangle are considered to intersect.
+     * @param x1 Minimum x of the rectangle.
+     * @param y1 Minimum y of the rectangle.
+     * @param x2 Maximum x of the rectangle.
+     * @param y2 Maximum y of the rectangle.
+     * @param currentChildCount The current number of children of the GeoSet.
+     * Children at positions beyond the number of children when the tree was
+     * built are always included.
+     * @return The positions in ascending order.
+     */
+    int[] query(double x1, double y1, double x2, double y2, int currentChildCount) {
+        final int added = Math.max(0, currentChildCount - childCount);
+        int[] res = new int[Math.min(64, entriesCount) + others.length + added];
+        int n = 0;
+
+        if (entriesCount > 0) {
+            int[] stack = new int[4 * NODE_SIZE];
+            int top = 0;
+            final int root = ids.length - 1;
+            if (intersects(root, x1, y1, x2, y2)) {
+                stack[top++] = root;
+            }
+            while (top > 0) {
+                final int node = stack[--top];
+                if (node < entriesCount) {
+                    if (n == res.length) {
+                        res = Arrays.copyOf(res, res.length * 2);
+                    }
+                    res[n++] = ids[node];
+                    continue;
+                }
+                final int first = ids[node];
+                final int last = Math.min(first + NODE_SIZE, levelEnd(first));
+                for (int i = first; i < last; i++) {
+                    if (intersects(i, x1, y1, x2, y2)) {
+                        if (top == stack.length) {
+                            stack = Arrays.copyOf(stack, top * 2);
+                        }
+                        stack[top++] = i;
+                    }
+                }
+            }
+        }
+
+        // add children that are not in the tree
+        if (n + others.length + added > res.length) {
+            res = Arrays.copyOf(res, n + others.length + added);
+        }
+        System.arraycopy(others, 0, res, n, others.length);
+        n += others.length;
+        for (int i = childCount; i < currentChildCount; i++) {
+            res[n++] = i;
+        }
+        Arrays.sort(res, 0, n);
+        return n == res.length ? res : Arrays.copyOf(res, n);
+    }
+
+    /**
+     * Returns the end of the level that contains a box.
+     * @param box The position of a box.
+     * @return The position after the last box of the level.
+     */
+    private int levelEnd(int box) {
+        int levelStart = 0;
+        int levelSize = entriesCount;
+        while (box >= levelStart + levelSize) {
+            levelStart += levelSize;
+            levelSize = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+        }
+        return levelStart + levelSize;
+    }
+
+    private boolean intersects(int box, double x1, double y1, double x2, double y2) {
+        final int i = box * 4;
+        return boxes[i] <= x2 && boxes[i + 1] <= y2
+                && boxes[i + 2] >= x1 && boxes[i + 3] >= y1;
+    }
+
+    /**
+     * Returns the union of the bounding boxes of all children stored in the
+     * tree.
+     * @return The bounding box or null. Must not be changed.
+     */
+    Rectangle2D getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Returns the positions of all children that are not stored in the tree.
+     * @return The positions in ascending order. Must not be changed.
+     */
+    int[] getOthers() {
+        return others;
+    }
+
+    /**
+     * Returns the distance by which strokes can extend beyond the bounding
+     * boxes stored in the tree.
+     * @param scale The scale of the map.
+     * @return The distance in world coordinates.
+     */
+    double strokeMargin(double scale) {
+        return MITER_FACTOR * (maxWorldStrokeWidth + maxPixelStrokeWidth / scale)
+                + 1 / scale;
+    }
+
+    /**
+     * Converts a position in a 65536 x 65536 grid to the distance along a
+     * Hilbert curve through the grid.
+     */
+    private static long hilbert(int x, int y) {
+        long d = 0;
+        for (int s = 1 << 15; s > 0; s >>= 1) {
+            final int rx = (x & s) > 0 ? 1 : 0;
+            final int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = 0xffff - x;
+                    y = 0xffff - y;
+                }
+                final int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+}
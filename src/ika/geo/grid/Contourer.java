@@ -7,6 +7,8 @@
 package ika.geo.grid;
 
 import ika.geo.*;
+import ika.geoexport.ShapeWriter;
+import java.io.IOException;
 
 /**
  *
@@ -54,24 +56,62 @@ public class Contourer implements GridOperator {
         GeoSet geoSet = new GeoSet();
 
         final int nlevels = (int) ((lastContourLevel - firstContourLevel) / interval) + 1;
-        if (treatDegreeJump) {
-            GeoSet levelGeoSet = new GeoSet();
-            this.contourLevel(geoGrid, 0.f, levelGeoSet);
-            levelGeoSet.setName(Float.toString(0.f));
-            geoSet.add(levelGeoSet);
+        try {
+            if (treatDegreeJump) {
+                GeoSet levelGeoSet = new GeoSet();
+                levelGeoSet.setSpatialIndexEnabled(true);
+                this.contourLevel(geoGrid, 0.f, levelGeoSet, null);
+                levelGeoSet.setName(Float.toString(0.f));
+                geoSet.add(levelGeoSet);
+            }
+
+            for (int i = 0; i < nlevels; ++i) {
+                final double contourLevel = firstContourLevel + i * interval;
+                GeoSet levelGeoSet = new GeoSet();
+                levelGeoSet.setSpatialIndexEnabled(true);
+                this.contourLevel(geoGrid, contourLevel, levelGeoSet, null);
+                levelGeoSet.setName(Double.toString(contourLevel));
+                geoSet.add(levelGeoSet);
+            }
+        } catch (IOException e) {
+            // only thrown when writing to a ShapeWriter
+            throw new IllegalStateException(e);
         }
+        return geoSet;
+    }
+
+    /**
+     * Writes contour lines to a Shape file instead of collecting them in a
+     * GeoSet. Each line is written as soon as it has been traced, so that the
+     * contour lines of large grids do not have to fit into memory.
+     * @param geoGrid The grid to contour.
+     * @param firstContourLevel The lowest contour level.
+     * @param lastContourLevel The highest contour level.
+     * @param writer The writer for a polyline Shape file with a single number
+     * column, which receives the contour level of each line.
+     */
+    public void operate(GeoGrid geoGrid,
+            double firstContourLevel,
+            double lastContourLevel,
+            ShapeWriter writer) throws IOException {
+        flags = new boolean[geoGrid.getRows()][geoGrid.getCols()];
 
+        final int nlevels = (int) ((lastContourLevel - firstContourLevel) / interval) + 1;
+        if (treatDegreeJump) {
+            this.contourLevel(geoGrid, 0.f, null, writer);
+        }
         for (int i = 0; i < nlevels; ++i) {
             final double contourLevel = firstContourLevel + i * interval;
-            GeoSet levelGeoSet = new GeoSet();
-            this.contourLevel(geoGrid, contourLevel, levelGeoSet);
-            levelGeoSet.setName(Double.toString(contourLevel));
-            geoSet.add(levelGeoSet);
+            this.contourLevel(geoGrid, contourLevel, null, writer);
         }
-        return geoSet;
     }
 
-    private void contourLevel(GeoGrid geoGrid, double level, GeoSet levelGeoSet) {
+    /**
+     * Traces all contour lines of a level and adds them to a GeoSet or writes
+     * them to a Shape file.
+     */
+    private void contourLevel(GeoGrid geoGrid, double level,
+            GeoSet levelGeoSet, ShapeWriter writer) throws IOException {
 
         final int nbrCellsX = geoGrid.getCols() - 1;
         final int nbrCellsY = geoGrid.getRows() - 1;
@@ -88,7 +128,7 @@ public class Contourer implements GridOperator {
             boolean[] flag_row = flags[y];
             for (int x = 0; x < nbrCellsX; x++) {
                 if (flag_row[x] == false) {
-                    traceContour(grid, new int[]{x, y}, level, west, north, cellSize, levelGeoSet);
+                    traceContour(grid, new int[]{x, y}, level, west, north, cellSize, levelGeoSet, writer);
                 }
             }
         }
@@ -171,11 +211,16 @@ public class Contourer implements GridOperator {
     }
 
     private void traceContour(float[][] grid, int[] cell, double level,
-            double west, double north, double cellSize, GeoSet levelGeoSet) {
+            double west, double north, double cellSize,
+            GeoSet levelGeoSet, ShapeWriter writer) throws IOException {
 
         GeoPath geoPath = traceContour(grid, cell, level, west, north, cellSize);
         if (geoPath != null && geoPath.getPointsCount() > 1) {
-            levelGeoSet.add(geoPath);
+            if (writer != null) {
+                writer.write(geoPath, Double.valueOf(level));
+            } else {
+                levelGeoSet.add(geoPath);
+            }
         }
     }
 
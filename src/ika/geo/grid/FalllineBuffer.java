@@ -0,0 +1,235 @@
+/*
+ * FalllineBuffer.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoPath;
+import ika.geo.GeoSet;
+import ika.geo.VectorSymbol;
+import ika.geoexport.ShapeWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A compact store for a large number of polylines. The coordinates of all
+ * lines are stored in a single array of primitive values.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class FalllineBuffer {
+
+    /**
+     * Interleaved x and y coordinates of all points of all lines.
+     */
+    private double[] xy = new double[1024];
+    /**
+     * The index of the first point of each line. The entry after the last
+     * line is the total number of points.
+     */
+    private int[] firstPoint = new int[64];
+    /**
+     * The index of the seed point that generated each line.
+     */
+    private int[] seeds = new int[64];
+    /**
+     * The number of lines.
+     */
+    private int linesCount = 0;
+    /**
+     * The number of points of all lines.
+     */
+    private int pointsCount = 0;
+
+    /**
+     * Appends a point to the last line.
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     */
+    void addPoint(double x, double y) {
+        if (pointsCount * 2 + 2 > xy.length) {
+            xy = Arrays.copyOf(xy, xy.length * 2);
+        }
+        xy[pointsCount * 2] = x;
+        xy[pointsCount * 2 + 1] = y;
+        ++pointsCount;
+    }
+
+    /**
+     * Starts a new line. Points added subsequently are appended to this line.
+     * @param seed The index of the seed point of the line.
+     */
+    void startLine(int seed) {
+        if (linesCount + 2 > firstPoint.length) {
+            firstPoint = Arrays.copyOf(firstPoint, firstPoint.length * 2);
+            seeds = Arrays.copyOf(seeds, seeds.length * 2);
+        }
+        firstPoint[linesCount] = pointsCount;
+        seeds[linesCount] = seed;
+        ++linesCount;
+        firstPoint[linesCount] = pointsCount;
+    }
+
+    /**
+     * Ends the last line. Removes the line if it has less than two points.
+     */
+    void endLine() {
+        firstPoint[linesCount] = pointsCount;
+        if (getPointsCount(linesCount - 1) < 2) {
+            pointsCount = firstPoint[linesCount - 1];
+            --linesCount;
+        }
+    }
+
+    /**
+     * Reverses the order of the points of the last line, starting at a
+     * specified point.
+     * @param first The index of the first point to reverse, counted from the
+     * start of the last line.
+     */
+    void reverseLastLine(int first) {
+        int i = (firstPoint[linesCount - 1] + first) * 2;
+        int j = (pointsCount - 1) * 2;
+        for (; i < j; i += 2, j -= 2) {
+            double t = xy[i];
+            xy[i] = xy[j];
+            xy[j] = t;
+            t = xy[i + 1];
+            xy[i + 1] = xy[j + 1];
+            xy[j + 1] = t;
+        }
+    }
+
+    /**
+     * Returns the number of points of the last line.
+     */
+    int getLastLinePointsCount() {
+        return pointsCount - firstPoint[linesCount - 1];
+    }
+
+    /**
+     * Removes the last point of the last line.
+     */
+    void removeLastPoint() {
+        --pointsCount;
+    }
+
+    /**
+     * Appends all lines of another buffer.
+     * @param buffer The lines to append.
+     */
+    void append(FalllineBuffer buffer) {
+        for (int line = 0; line < buffer.linesCount; line++) {
+            startLine(buffer.seeds[line]);
+            for (int i = buffer.firstPoint[line]; i < buffer.firstPoint[line + 1]; i++) {
+                addPoint(buffer.xy[i * 2], buffer.xy[i * 2 + 1]);
+            }
+            endLine();
+        }
+    }
+
+    /**
+     * Returns the number of lines.
+     * @return The number of lines.
+     */
+    public int getLinesCount() {
+        return linesCount;
+    }
+
+    /**
+     * Returns the number of points of a line.
+     * @param line The index of the line.
+     * @return The number of points.
+     */
+    public int getPointsCount(int line) {
+        return firstPoint[line + 1] - firstPoint[line];
+    }
+
+    /**
+     * Returns the total number of points of all lines.
+     * @return The number of points.
+     */
+    public int getPointsCount() {
+        return pointsCount;
+    }
+
+    /**
+     * Returns the index of the seed point that generated a line.
+     * @param line The index of the line.
+     * @return The index of the seed point.
+     */
+    public int getSeed(int line) {
+        return seeds[line];
+    }
+
+    /**
+     * Returns the horizontal coordinate of a point.
+     * @param line The index of the line.
+     * @param point The index of the point in the line.
+     * @return The x coordinate.
+     */
+    public double getX(int line, int point) {
+        return xy[(firstPoint[line] + point) * 2];
+    }
+
+    /**
+     * Returns the vertical coordinate of a point.
+     * @param line The index of the line.
+     * @param point The index of the point in the line.
+     * @return The y coordinate.
+     */
+    public double getY(int line, int point) {
+        return xy[(firstPoint[line] + point) * 2 + 1];
+    }
+
+    /**
+     * Converts a line to a GeoPath.
+     * @param line The index of the line.
+     * @return A new GeoPath.
+     */
+    public GeoPath toGeoPath(int line) {
+        GeoPath path = new GeoPath();
+        final int first = firstPoint[line];
+        final int last = firstPoint[line + 1];
+        path.moveTo(xy[first * 2], xy[first * 2 + 1]);
+        for (int i = first + 1; i < last; i++) {
+            path.lineTo(xy[i * 2], xy[i * 2 + 1]);
+        }
+        return path;
+    }
+
+    /**
+     * Converts all lines to GeoPaths with a scale-invariant vector symbol.
+     * @return A new GeoSet containing a GeoPath for each line.
+     */
+    public GeoSet toGeoSet() {
+        VectorSymbol vs = new VectorSymbol();
+        vs.setScaleInvariant(true);
+        GeoSet geoSet = new GeoSet();
+        geoSet.setSpatialIndexEnabled(true);
+        for (int line = 0; line < linesCount; line++) {
+            GeoPath path = toGeoPath(line);
+            path.setVectorSymbol(vs);
+            geoSet.add(path);
+        }
+        return geoSet;
+    }
+
+    /**
+     * Writes all lines to a Shape file, without converting them to GeoPaths.
+     * The index of the seed point of each line is written as attribute.
+     * @param writer The writer for a polyline Shape file with a single number
+     * column.
+     */
+    public void write(ShapeWriter writer) throws IOException {
+        final int[] parts = new int[]{0};
+        double[] lineXY = new double[0];
+        for (int line = 0; line < linesCount; line++) {
+            final int n = getPointsCount(line);
+            if (lineXY.length < n * 2) {
+                lineXY = new double[n * 2];
+            }
+            System.arraycopy(xy, firstPoint[line] * 2, lineXY, 0, n * 2);
+            writer.writeLines(lineXY, n, parts, 1, Double.valueOf(seeds[line]));
+        }
+    }
+}
@@ -3,372 +3,359 @@
  *
  * Created on February 6, 2006, 3:13 PM
  *
- * To change this template, choose Tools | Template Manager
- * and open the template in the editor.
  */
 
 package ika.geo.grid;
 
-import ika.geo.*;
-import ika.utils.ImageUtils;
-import java.awt.*;
-import java.awt.image.*;
+import ika.geo.GeoBitGrid;
+import ika.geo.GeoGrid;
 
 /**
- * Canny edge detector by leandrotrevisan
- * http://forum.java.sun.com/thread.jspa?threadID=546211&start=45&tstart=0
+ * Canny edge detector operating on the float values of a grid. The grid is
+ * smoothed with a Gaussian low-pass filter, and the gradient is computed with
+ * a Sobel operator. Edges are thinned by non-maximum suppression along the
+ * gradient direction, and then traced by hysteresis thresholding: cells with
+ * a gradient larger than the high threshold are edges, and cells with a
+ * gradient larger than the low threshold are edges if they are connected to
+ * another edge. Smoothing, gradient computation and thinning are
+ * multi-threaded. Hysteresis thresholding uses an explicit stack instead of
+ * recursion, so that long edges cannot overflow the call stack.
+ * The result is a bit grid with a set bit for each edge cell.
  *
- * @author leandrotrevisan, jenny
+ * @author jenny
  */
-public class GridCannyOperator implements GridOperator{
-    
-    final float ORIENT_SCALE = 40F;
-    private int height;
-    private int width;
-    private int picsize;
-    private int data[];
-    private int derivative_mag[];
-    private int magnitude[];
-    private int orientation[];
-    private Image sourceImage;
-    private Image edgeImage;
-    private int threshold1;
-    private int threshold2;
-    private int threshold;
-    private int widGaussianKernel;
-    
-    public String getName() {
-        return "Canny";
-    }
+public class GridCannyOperator implements GridOperator {
+
+    /**
+     * tan(22.5 deg) for classifying gradient directions into four sectors.
+     */
+    private static final float TAN_22_5 = 0.41421356f;
+
+    /**
+     * Standard deviation of the Gaussian smoothing filter in cells.
+     */
+    private double std = 1;
 
-    public GeoObject operate(GeoGrid geoGrid) {
+    /**
+     * Cells with a gradient below this value are never edges. The gradient
+     * is the change in value per unit of the cell size.
+     */
+    private float lowThreshold = 0.1f;
 
-        try {
-            this.process();
+    /**
+     * Cells with a gradient above this value are always edges, unless they
+     * are removed by non-maximum suppression.
+     */
+    private float highThreshold = 0.3f;
+
+    /**
+     * The Gaussian low-pass filter is an instance variable, as it caches an
+     * internal grid to reduce the number of memory allocations.
+     */
+    private final GridGaussLowPassOperator lowPassOp = new GridGaussLowPassOperator();
+
+    /**
+     * Computes the magnitude of the gradient for each cell.
+     */
+    private static class GradientMagnitudeOperator extends ThreadedGridOperator {
+
+        public String getName() {
+            return "Canny Gradient";
         }
-        catch(Exception e) {
-            System.out.println(e.getMessage());
+
+        @Override
+        public boolean isOverwrittingSupported() {
+            return false;
         }
-        
-        BufferedImage bufferedEdgeImage = ImageUtils.makeBufferedImage(this.getEdgeImage());
-        GeoImage geoImage = new GeoImage(bufferedEdgeImage, null);
-        geoImage.setWest(geoGrid.getWest());
-        geoImage.setNorth(geoGrid.getNorth());
-        geoImage.setCellSize(geoGrid.getCellSize());
-        return new ImageToGridOperator().operate(geoImage);
-    }
-    
-    /** Creates a new instance of GridCannyOperator */
-    public GridCannyOperator() {
-        //threshold1 = 50;
-        //threshold2 = 230;
-        setThreshold(128, 50, 230);
-        setWidGaussianKernel(15);
-    }
-    
-    public void process() throws Exception {
-        if (threshold < 0 || threshold > 255)
-            throw new Exception("The value of the threshold is out of its valid range.");
-        if (widGaussianKernel < 3 || widGaussianKernel > 40)
-            throw new Exception("The value of the widGaussianKernel is out of its valid range.");
-        
-        width = sourceImage.getWidth(null);
-        height = sourceImage.getHeight(null);
-        picsize = width * height;
-        data = new int[picsize];
-        magnitude = new int[picsize];
-        orientation = new int[picsize];
-        float f = 1.0F;
-        canny_core(f, widGaussianKernel);
-        thresholding_tracker(threshold1, threshold2);
-        for (int i = 0; i < picsize; i++)
-            if (data[i] > threshold)
-                data[i] = 0xff000000;
-            else
-                data[i] = -1;
-        
-        edgeImage = pixels2image(data);
-        data = null;
-        magnitude = null;
-        orientation = null;
-    }
-    
-    private void canny_core(float f, int i) {
-        boolean flag = false;
-        boolean flag1 = false;
-        derivative_mag = new int[picsize];
-        float af4[] = new float[i];
-        float af5[] = new float[i];
-        float af6[] = new float[i];
-        data = image2pixels(sourceImage);
-        int k4 = 0;
-        do {
-            if (k4 >= i)
-                break;
-            float f1 = gaussian(k4, f);
-            if (f1 <= 0.005F && k4 >= 2)
-                break;
-            float f2 = gaussian((float) k4 - 0.5F, f);
-            float f3 = gaussian((float) k4 + 0.5F, f);
-            float f4 = gaussian(k4, f * 0.5F);
-            af4[k4] = (f1 + f2 + f3) / 3F / (6.283185F * f * f);
-            af5[k4] = f3 - f2;
-            af6[k4] = 1.6F * f4 - f1;
-            k4++;
-        } while (true);
-        int j = k4;
-        float af[] = new float[picsize];
-        float af1[] = new float[picsize];
-        int j1 = width - (j - 1);
-        int l = width * (j - 1);
-        int i1 = width * (height - (j - 1));
-        for (int l4 = j - 1; l4 < j1; l4++) {
-            for (int l5 = l; l5 < i1; l5 += width) {
-                int k1 = l4 + l5;
-                float f8 = (float) data[k1] * af4[0];
-                float f10 = f8;
-                int l6 = 1;
-                int k7 = k1 - width;
-                for (int i8 = k1 + width; l6 < j; i8 += width) {
-                    f8 += af4[l6] * (float) (data[k7] + data[i8]);
-                    f10 += af4[l6] * (float) (data[k1 - l6] + data[k1 + l6]);
-                    l6++;
-                    k7 -= width;
+
+        @Override
+        protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+            final float[][] srcGrid = src.getGrid();
+            final float[][] dstGrid = dst.getGrid();
+            final int rows = src.getRows();
+            final int cols = src.getCols();
+            final float scale = (float) (1. / (8. * src.getCellSize()));
+            for (int row = startRow; row < endRow; row++) {
+                final float[] above = srcGrid[Math.max(0, row - 1)];
+                final float[] center = srcGrid[row];
+                final float[] below = srcGrid[Math.min(rows - 1, row + 1)];
+                final float[] dstRow = dstGrid[row];
+                for (int col = 0; col < cols; col++) {
+                    final float gx = gradX(above, center, below, col, cols) * scale;
+                    final float gy = gradY(above, below, col, cols) * scale;
+                    dstRow[col] = (float) Math.sqrt(gx * gx + gy * gy);
                 }
-                
-                af[k1] = f8;
-                af1[k1] = f10;
             }
-            
         }
-        
-        float af2[] = new float[picsize];
-        for (int i5 = j - 1; i5 < j1; i5++) {
-            for (int i6 = l; i6 < i1; i6 += width) {
-                float f9 = 0.0F;
-                int l1 = i5 + i6;
-                for (int i7 = 1; i7 < j; i7++)
-                    f9 += af5[i7] * (af[l1 - i7] - af[l1 + i7]);
-                
-                af2[l1] = f9;
-            }
-            
+    }
+
+    /**
+     * Thins edges by only retaining cells with a gradient magnitude that is
+     * a local maximum along the gradient direction. The source grid contains
+     * gradient magnitudes. The destination grid receives the magnitude of
+     * local maxima that are not smaller than the low threshold, and 0 for all
+     * other cells. Cells along the border of the grid are never edges.
+     */
+    private static class NonMaximumSuppression extends ThreadedGridOperator {
+
+        /**
+         * The smoothed grid for computing gradient directions.
+         */
+        private final GeoGrid smooth;
+        /**
+         * Cells with a gradient magnitude below this value are suppressed.
+         */
+        private final float lowThreshold;
+
+        NonMaximumSuppression(GeoGrid smooth, float lowThreshold) {
+            this.smooth = smooth;
+            this.lowThreshold = lowThreshold;
         }
-        
-        af = null;
-        float af3[] = new float[picsize];
-        for (int j5 = k4; j5 < width - k4; j5++) {
-            for (int j6 = l; j6 < i1; j6 += width) {
-                float f11 = 0.0F;
-                int i2 = j5 + j6;
-                int j7 = 1;
-                for (int l7 = width; j7 < j; l7 += width) {
-                    f11 += af5[j7] * (af1[i2 - l7] - af1[i2 + l7]);
-                    j7++;
-                }
-                
-                af3[i2] = f11;
-            }
-            
+
+        public String getName() {
+            return "Canny Non-Maximum Suppression";
         }
-        
-        af1 = null;
-        j1 = width - j;
-        l = width * j;
-        i1 = width * (height - j);
-        for (int k5 = j; k5 < j1; k5++) {
-            for (int k6 = l; k6 < i1; k6 += width) {
-                int j2 = k5 + k6;
-                int k2 = j2 - width;
-                int l2 = j2 + width;
-                int i3 = j2 - 1;
-                int j3 = j2 + 1;
-                int k3 = k2 - 1;
-                int l3 = k2 + 1;
-                int i4 = l2 - 1;
-                int j4 = l2 + 1;
-                float f6 = af2[j2];
-                float f7 = af3[j2];
-                float f12 = hypotenuse(f6, f7);
-                int k = (int) ((double) f12 * 20D);
-                derivative_mag[j2] = k >= 256 ? 255 : k;
-                float f13 = hypotenuse(af2[k2], af3[k2]);
-                float f14 = hypotenuse(af2[l2], af3[l2]);
-                float f15 = hypotenuse(af2[i3], af3[i3]);
-                float f16 = hypotenuse(af2[j3], af3[j3]);
-                float f18 = hypotenuse(af2[l3], af3[l3]);
-                float f20 = hypotenuse(af2[j4], af3[j4]);
-                float f19 = hypotenuse(af2[i4], af3[i4]);
-                float f17 = hypotenuse(af2[k3], af3[k3]);
-                float f5;
-                if (f6 * f7 <= (float) 0
-                        ? Math.abs(f6) >= Math.abs(f7)
-                        ? (f5 = Math.abs(f6 * f12))
-                        >= Math.abs(f7 * f18 - (f6 + f7) * f16)
-                        && f5
-                        > Math.abs(f7 * f19 - (f6 + f7) * f15) : (
-                        f5 = Math.abs(f7 * f12))
-                        >= Math.abs(f6 * f18 - (f7 + f6) * f13)
-                        && f5
-                        > Math.abs(f6 * f19 - (f7 + f6) * f14) : Math.abs(f6)
-                        >= Math.abs(f7)
-                        ? (f5 = Math.abs(f6 * f12))
-                        >= Math.abs(f7 * f20 + (f6 - f7) * f16)
-                        && f5
-                        > Math.abs(f7 * f17 + (f6 - f7) * f15) : (
-                        f5 = Math.abs(f7 * f12))
-                        >= Math.abs(f6 * f20 + (f7 - f6) * f14)
-                        && f5 > Math.abs(f6 * f17 + (f7 - f6) * f13)) {
-                    magnitude[j2] = derivative_mag[j2];
-                    orientation[j2] = (int) (Math.atan2(f7, f6) * (double) 40F);
+
+        @Override
+        public boolean isOverwrittingSupported() {
+            return false;
+        }
+
+        @Override
+        protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+            final float[][] mag = src.getGrid();
+            final float[][] smoothGrid = smooth.getGrid();
+            final float[][] dstGrid = dst.getGrid();
+            final int rows = src.getRows();
+            final int cols = src.getCols();
+            for (int row = startRow; row < endRow; row++) {
+                final float[] dstRow = dstGrid[row];
+                java.util.Arrays.fill(dstRow, 0f);
+                if (row == 0 || row == rows - 1) {
+                    continue;
+                }
+                final float[] above = smoothGrid[row - 1];
+                final float[] center = smoothGrid[row];
+                final float[] below = smoothGrid[row + 1];
+                final float[] magAbove = mag[row - 1];
+                final float[] magRow = mag[row];
+                final float[] magBelow = mag[row + 1];
+                for (int col = 1; col < cols - 1; col++) {
+                    final float m = magRow[col];
+                    if (!(m >= lowThreshold)) {
+                        continue;
+                    }
+
+                    // gradient direction in column and row coordinates
+                    final float dc = gradX(above, center, below, col, cols);
+                    final float dr = -gradY(above, below, col, cols);
+                    final float adc = Math.abs(dc);
+                    final float adr = Math.abs(dr);
+
+                    // magnitudes of the two neighbors along the gradient
+                    final float m1, m2;
+                    if (adr <= TAN_22_5 * adc) {
+                        m1 = magRow[col - 1];
+                        m2 = magRow[col + 1];
+                    } else if (adc <= TAN_22_5 * adr) {
+                        m1 = magAbove[col];
+                        m2 = magBelow[col];
+                    } else if (dc * dr > 0) {
+                        m1 = magAbove[col - 1];
+                        m2 = magBelow[col + 1];
+                    } else {
+                        m1 = magAbove[col + 1];
+                        m2 = magBelow[col - 1];
+                    }
+
+                    // asymmetric comparison to retain one of two equal cells
+                    if (m >= m1 && m > m2) {
+                        dstRow[col] = m;
+                    }
                 }
             }
-            
         }
-        
-        derivative_mag = null;
-        af2 = null;
-        af3 = null;
     }
-    
-    private float hypotenuse(float f, float f1) {
-        if (f == 0.0F && f1 == 0.0F)
-            return 0.0F;
-        else
-            return (float) Math.sqrt(f * f + f1 * f1);
+
+    /** Creates a new instance of GridCannyOperator */
+    public GridCannyOperator() {
     }
-    
-    private float gaussian(float f, float f1) {
-        return (float) Math.exp((-f * f) / ((float) 2 * f1 * f1));
+
+    /**
+     * Creates a new instance of GridCannyOperator
+     * @param std Standard deviation of the Gaussian smoothing filter in cells.
+     * @param lowThreshold The low gradient threshold.
+     * @param highThreshold The high gradient threshold.
+     */
+    public GridCannyOperator(double std, float lowThreshold, float highThreshold) {
+        setStandardDeviation(std);
+        setThresholds(lowThreshold, highThreshold);
     }
-    
-    private void thresholding_tracker(int i, int j) {
-        for (int k = 0; k < picsize; k++)
-            data[k] = 0;
-        
-        for (int l = 0; l < width; l++) {
-            for (int i1 = 0; i1 < height; i1++)
-                if (magnitude[l + width * i1] >= i)
-                    follow(l, i1, j);
-            
+
+    public String getName() {
+        return "Canny";
+    }
+
+    /**
+     * Detects edges.
+     * @param geoGrid The grid to detect edges in. Not changed.
+     * @return A bit grid of the same size and position as geoGrid with set
+     * bits for edges.
+     */
+    public GeoBitGrid operate(GeoGrid geoGrid) {
+        if (geoGrid == null || !geoGrid.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+
+        final int cols = geoGrid.getCols();
+        final int rows = geoGrid.getRows();
+        final double cellSize = geoGrid.getCellSize();
+
+        GeoGrid smooth = geoGrid;
+        if (std > 0) {
+            smooth = lowPassOp.operate(geoGrid, new GeoGrid(cols, rows, cellSize), std);
         }
-        
+        GeoGrid magnitude = new GradientMagnitudeOperator().operate(smooth);
+
+        GeoGrid thin = new NonMaximumSuppression(smooth, lowThreshold).operate(magnitude);
+        smooth = magnitude = null;
+
+        // cells above the high threshold are edges, cells between the two
+        // thresholds are weak edges
+        GeoBitGrid edges = new GeoBitGrid(geoGrid);
+        GeoBitGrid weak = new GeoBitGrid(geoGrid);
+        final float[][] thinGrid = thin.getGrid();
+        for (int row = 0; row < rows; row++) {
+            final float[] thinRow = thinGrid[row];
+            for (int col = 0; col < cols; col++) {
+                final float m = thinRow[col];
+                if (m >= highThreshold) {
+                    edges.set(col, row);
+                } else if (m > 0) {
+                    weak.set(col, row);
+                }
+            }
+        }
+        thin = null;
+
+        hysteresis(edges, weak);
+        edges.setName(getName());
+        return edges;
     }
-    
-    private boolean follow(int i, int j, int k) {
-        int j1 = i + 1;
-        int k1 = i - 1;
-        int l1 = j + 1;
-        int i2 = j - 1;
-        int j2 = i + j * width;
-        if (l1 >= height)
-            l1 = height - 1;
-        if (i2 < 0)
-            i2 = 0;
-        if (j1 >= width)
-            j1 = width - 1;
-        if (k1 < 0)
-            k1 = 0;
-        if (data[j2] == 0) {
-            data[j2] = magnitude[j2];
-            boolean flag = false;
-            int l = k1;
-            do {
-                if (l > j1)
-                    break;
-                int i1 = i2;
-                do {
-                    if (i1 > l1)
-                        break;
-                    int k2 = l + i1 * width;
-                    if ((i1 != j || l != i)
-                    && magnitude[k2] >= k
-                            && follow(l, i1, k)) {
-                        flag = true;
-                        break;
+
+    /**
+     * Adds weak edge cells to the edges if they are connected to an edge.
+     * @param edges The edges. New edge cells are added.
+     * @param weak The weak edge cells. Cells added to the edges are cleared.
+     */
+    private static void hysteresis(GeoBitGrid edges, GeoBitGrid weak) {
+        final int cols = edges.getCols();
+        final int rows = edges.getRows();
+        final long[] bits = edges.getBits();
+        final int wordsPerRow = edges.getWordsPerRow();
+
+        // stack with indices of edge cells whose neighbors need to be visited
+        int[] stack = new int[1024];
+        int stackSize = 0;
+
+        for (int row = 0; row < rows; row++) {
+            for (int w = 0; w < wordsPerRow; w++) {
+                long word = bits[row * wordsPerRow + w];
+                while (word != 0) {
+                    final int col = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+
+                    stack[0] = row * cols + col;
+                    stackSize = 1;
+                    while (stackSize > 0) {
+                        final int id = stack[--stackSize];
+                        final int r = id / cols;
+                        final int c = id % cols;
+                        final int r0 = Math.max(0, r - 1);
+                        final int r1 = Math.min(rows - 1, r + 1);
+                        final int c0 = Math.max(0, c - 1);
+                        final int c1 = Math.min(cols - 1, c + 1);
+                        for (int nr = r0; nr <= r1; nr++) {
+                            for (int nc = c0; nc <= c1; nc++) {
+                                if (weak.get(nc, nr)) {
+                                    weak.clear(nc, nr);
+                                    edges.set(nc, nr);
+                                    if (stackSize == stack.length) {
+                                        stack = java.util.Arrays.copyOf(stack, stackSize * 2);
+                                    }
+                                    stack[stackSize++] = nr * cols + nc;
+                                }
+                            }
+                        }
                     }
-                    i1++;
-                } while (true);
-                if (!flag)
-                    break;
-                l++;
+                }
             }
-            while (true);
-            return true;
-        } else {
-            return false;
         }
     }
-    
-    private Image pixels2image(int ai[]) {
-        MemoryImageSource memoryimagesource =
-                new MemoryImageSource(
-                width,
-                height,
-                ColorModel.getRGBdefault(),
-                ai,
-                0,
-                width);
-        return Toolkit.getDefaultToolkit().createImage(memoryimagesource);
+
+    /**
+     * Horizontal Sobel gradient, positive towards the east. Not scaled.
+     */
+    private static float gradX(float[] above, float[] center, float[] below,
+            int col, int cols) {
+        final int cl = Math.max(0, col - 1);
+        final int cr = Math.min(cols - 1, col + 1);
+        return (above[cr] + 2 * center[cr] + below[cr])
+                - (above[cl] + 2 * center[cl] + below[cl]);
     }
-    
-    private int[] image2pixels(Image image) {
-        int ai[] = new int[picsize];
-        PixelGrabber pixelgrabber =
-                new PixelGrabber(image, 0, 0, width, height, ai, 0, width);
-        try {
-            pixelgrabber.grabPixels();
-        } catch (InterruptedException interruptedexception) {
-            interruptedexception.printStackTrace();
-        }
-        boolean flag = false;
-        int k1 = 0;
-        do {
-            if (k1 >= 16)
-                break;
-            int i = (ai[k1] & 0xff0000) >> 16;
-            int k = (ai[k1] & 0xff00) >> 8;
-            int i1 = ai[k1] & 0xff;
-            if (i != k || k != i1) {
-                flag = true;
-                break;
-            }
-            k1++;
-        } while (true);
-        if (flag) {
-            for (int l1 = 0; l1 < picsize; l1++) {
-                int j = (ai[l1] & 0xff0000) >> 16;
-                int l = (ai[l1] & 0xff00) >> 8;
-                int j1 = ai[l1] & 0xff;
-                ai[l1] =
-                        (int) (0.29799999999999999D * (double) j
-                        + 0.58599999999999997D * (double) l
-                        + 0.113D * (double) j1);
-            }
-            
-        } else {
-            for (int i2 = 0; i2 < picsize; i2++)
-                ai[i2] = ai[i2] & 0xff;
-            
-        }
-        return ai;
+
+    /**
+     * Vertical Sobel gradient, positive towards the north. Not scaled.
+     */
+    private static float gradY(float[] above, float[] below, int col, int cols) {
+        final int cl = Math.max(0, col - 1);
+        final int cr = Math.min(cols - 1, col + 1);
+        return (above[cl] + 2 * above[col] + above[cr])
+                - (below[cl] + 2 * below[col] + below[cr]);
     }
-    
-    public void setSourceImage(Image image) {
-        sourceImage = image;
+
+    /**
+     * Returns the standard deviation of the Gaussian smoothing filter.
+     * @return The standard deviation in cells.
+     */
+    public double getStandardDeviation() {
+        return std;
     }
-    
-    public Image getEdgeImage() {
-        return edgeImage;
+
+    /**
+     * Sets the standard deviation of the Gaussian smoothing filter. If std is
+     * 0, the grid is not smoothed.
+     * @param std The standard deviation in cells.
+     */
+    public final void setStandardDeviation(double std) {
+        if (std < 0) {
+            throw new IllegalArgumentException("negative standard deviation");
+        }
+        this.std = std;
     }
-    
-    public void setThreshold(int i, int threshold1, int threshold2) {
-        threshold = i;
-        this.threshold1 = threshold1;
-        this.threshold2 = threshold2;
+
+    public float getLowThreshold() {
+        return lowThreshold;
     }
-    
-    public void setWidGaussianKernel(int i) {
-        widGaussianKernel = i;
+
+    public float getHighThreshold() {
+        return highThreshold;
+    }
+
+    /**
+     * Sets the gradient thresholds for hysteresis thresholding. The gradient
+     * is the change in value per unit of the cell size; for an elevation
+     * model with identical horizontal and vertical units, it is the tangent
+     * of the slope angle.
+     * @param lowThreshold The low threshold.
+     * @param highThreshold The high threshold. Must not be smaller than the
+     * low threshold.
+     */
+    public final void setThresholds(float lowThreshold, float highThreshold) {
+        if (lowThreshold > highThreshold) {
+            throw new IllegalArgumentException("low threshold larger than high threshold");
+        }
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = highThreshold;
     }
-}
\ No newline at end of file
+}
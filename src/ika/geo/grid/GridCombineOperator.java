@@ -1,19 +1,20 @@
 package ika.geo.grid;
 
+import ika.geo.GeoBitGrid;
 import ika.geo.GeoGrid;
 import ika.geo.GeoObject;
 import java.awt.geom.Rectangle2D;
 
 /**
  * Combines two grid. An optional grid with weights for linear weighting per 
- * cell can be used. An optional mask with NaN values can be used.
+ * cell can be used. An optional packed mask can be used to set void cells.
  * @author jenny
  */
 public class GridCombineOperator extends ThreadedGridOperator {
 
     private GeoGrid src2;
     private GeoGrid weightGrid;
-    private GeoGrid mask;
+    private GeoBitGrid voidMask;
 
     public String getName() {
         return "Combination";
@@ -21,13 +22,13 @@ public class GridCombineOperator extends ThreadedGridOperator {
 
     public void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
         if (weightGrid == null) {
-            if (mask == null) {
+            if (voidMask == null) {
                 combine(startRow, endRow, src, dst);
             } else {
                 combineMasked(startRow, endRow, src, dst);
             }
         } else {
-            if (mask == null) {
+            if (voidMask == null) {
                 combineWeighted(startRow, endRow, src, dst);
             } else {
                 combineWeightedMasked(startRow, endRow, src, dst);
@@ -38,19 +39,19 @@ public class GridCombineOperator extends ThreadedGridOperator {
     private void combineWeightedMasked(int startRow, int endRow, GeoGrid src, GeoGrid dst) {
         final int nCols = src.getCols();
         float[][] wGrid = weightGrid.getGrid();
+        final long[] bits = voidMask.getBits();
+        final int wordsPerRow = voidMask.getWordsPerRow();
         for (int row = startRow; row < endRow; ++row) {
             float[] srcRow1 = src.getGrid()[row];
             float[] srcRow2 = src2.getGrid()[row];
             float[] wRow = wGrid[row];
             float[] dstRow = dst.getGrid()[row];
-            float[] maskRow = mask.getGrid()[row];
+            final int rowOffset = row * wordsPerRow;
             for (int col = 0; col < nCols; ++col) {
-                if (Float.isNaN(maskRow[col])) {
-                    dstRow[col] = Float.NaN;
-                } else {
-                    final float w = wRow[col];
-                    dstRow[col] = srcRow1[col] * w + srcRow2[col] * (1f - w);
-                }
+                final float w = wRow[col];
+                final float v = srcRow1[col] * w + srcRow2[col] * (1f - w);
+                final long isVoid = (bits[rowOffset + (col >>> 6)] >>> col) & 1L;
+                dstRow[col] = isVoid != 0 ? Float.NaN : v;
             }
         }
     }
@@ -72,17 +73,17 @@ public class GridCombineOperator extends ThreadedGridOperator {
 
     private void combineMasked(int startRow, int endRow, GeoGrid src, GeoGrid dst) {
         final int nCols = src.getCols();
+        final long[] bits = voidMask.getBits();
+        final int wordsPerRow = voidMask.getWordsPerRow();
         for (int row = startRow; row < endRow; ++row) {
             float[] srcRow1 = src.getGrid()[row];
             float[] srcRow2 = src2.getGrid()[row];
             float[] dstRow = dst.getGrid()[row];
-            float[] maskRow = mask.getGrid()[row];
+            final int rowOffset = row * wordsPerRow;
             for (int col = 0; col < nCols; ++col) {
-                if (Float.isNaN(maskRow[col])) {
-                    dstRow[col] = Float.NaN;
-                } else {
-                    dstRow[col] = srcRow1[col] + srcRow2[col];
-                }
+                final float v = srcRow1[col] + srcRow2[col];
+                final long isVoid = (bits[rowOffset + (col >>> 6)] >>> col) & 1L;
+                dstRow[col] = isVoid != 0 ? Float.NaN : v;
             }
         }
     }
@@ -156,9 +157,25 @@ public class GridCombineOperator extends ThreadedGridOperator {
     }
 
     /**
-     * @param mask the mask to set
+     * Sets a mask for void cells. Cells with a set bit are set to NaN in the
+     * destination grid.
+     * @param voidMask the mask to set. Must have the size of the source grid.
+     * Can be null.
+     */
+    public void setVoidMask(GeoBitGrid voidMask) {
+        this.voidMask = voidMask;
+    }
+
+    /**
+     * Sets a mask for void cells. Cells that are NaN in the mask are set to
+     * NaN in the destination grid.
+     * @param mask the mask to set. Must have the size of the source grid.
+     * Can be null.
+     * @deprecated Use setVoidMask(GeoBitGrid), which requires 1/32 of the
+     * memory.
      */
+    @Deprecated
     public void setMask(GeoGrid mask) {
-        this.mask = mask;
+        setVoidMask(mask == null ? null : new GridVoidMaskOperator().createMask(mask));
     }
 }
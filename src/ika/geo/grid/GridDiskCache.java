@@ -0,0 +1,251 @@
+/*
+ * GridDiskCache.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed cache of grids in a directory. Each grid is stored in
+ * its own file named after a key, which is a hash of everything the grid was
+ * computed from. Files are written to a temporary file and then renamed, so
+ * that several processes can share a cache directory. Files are read with a
+ * memory-mapped buffer.
+ * <p>
+ * File format: a header with the magic number, the format version, the number
+ * of columns and rows, the cell size, the western and the northern border, and
+ * the name of the grid, followed by the grid values in row order. The header
+ * is padded to a multiple of four bytes. All values are big-endian.
+ * <p>
+ * The cache never deletes files. Entries that are no longer needed have to be
+ * removed manually by deleting files in the directory.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GridDiskCache {
+
+    private static final int MAGIC = 0x54534743; // "TSGC"
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".grid";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final File directory;
+
+    /**
+     * Creates a cache in a directory. The directory is created if it does
+     * not exist.
+     * @param directory The directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public GridDiskCache(File directory) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("no cache directory");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create cache directory " + directory);
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cache directory.
+     * @return The directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Creates a new message digest for computing cache keys.
+     * @return A SHA-1 digest.
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Converts a digest to a key for load() and store().
+     * @param digest The digest.
+     * @return A hexadecimal string.
+     */
+    public static String toKey(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Adds the geometry and all values of a grid to a digest.
+     * @param grid The grid.
+     * @param digest The digest.
+     */
+    public static void digest(GeoGrid grid, MessageDigest digest) {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        ByteBuffer header = ByteBuffer.allocate(32);
+        header.putInt(cols).putInt(rows);
+        header.putDouble(grid.getCellSize());
+        header.putDouble(grid.getWest()).putDouble(grid.getNorth());
+        digest.update(header.array());
+        ByteBuffer buffer = ByteBuffer.allocate(cols * 4);
+        FloatBuffer floatBuffer = buffer.asFloatBuffer();
+        float[][] g = grid.getGrid();
+        for (int r = 0; r < rows; r++) {
+            floatBuffer.clear();
+            floatBuffer.put(g[r]);
+            digest.update(buffer.array());
+        }
+    }
+
+    private File file(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+
+    /**
+     * Reads a grid from the cache.
+     * @param key The key of the grid.
+     * @return The grid, or null if the cache does not contain a valid grid
+     * for the key.
+     */
+    public GeoGrid load(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final int cols = buffer.getInt();
+            final int rows = buffer.getInt();
+            final double cellSize = buffer.getDouble();
+            final double west = buffer.getDouble();
+            final double north = buffer.getDouble();
+            byte[] name = new byte[buffer.getShort() & 0xffff];
+            buffer.get(name);
+            buffer.position((buffer.position() + 3) & ~3);
+            if (cols <= 0 || rows <= 0
+                    || buffer.remaining() != (long) cols * rows * 4) {
+                return null;
+            }
+
+            GeoGrid grid = new GeoGrid(cols, rows, cellSize);
+            grid.setWest(west);
+            grid.setNorth(north);
+            grid.setName(new String(name, UTF8));
+            FloatBuffer values = buffer.asFloatBuffer();
+            float[][] g = grid.getGrid();
+            for (int r = 0; r < rows; r++) {
+                values.get(g[r]);
+            }
+            return grid;
+        } catch (Exception ex) {
+            Logger.getLogger(GridDiskCache.class.getName()).log(Level.WARNING,
+                    "cannot read cached grid " + file, ex);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a grid to the cache. Errors are logged and otherwise ignored, as
+     * the grid can be computed again.
+     * @param key The key of the grid.
+     * @param grid The grid to store.
+     */
+    public void store(String key, GeoGrid grid) {
+        File tmpFile = null;
+        RandomAccessFile raf = null;
+        try {
+            tmpFile = File.createTempFile(key, ".tmp", directory);
+            raf = new RandomAccessFile(tmpFile, "rw");
+            FileChannel channel = raf.getChannel();
+
+            String name = grid.getName() == null ? "" : grid.getName();
+            byte[] nameBytes = name.getBytes(UTF8);
+            if (nameBytes.length > 0xffff) {
+                nameBytes = new byte[0];
+            }
+            final int headerLength = (4 * 4 + 3 * 8 + 2 + nameBytes.length + 3) & ~3;
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.putInt(grid.getCols()).putInt(grid.getRows());
+            header.putDouble(grid.getCellSize());
+            header.putDouble(grid.getWest()).putDouble(grid.getNorth());
+            header.putShort((short) nameBytes.length).put(nameBytes);
+            header.rewind();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(grid.getCols() * 4);
+            FloatBuffer floatBuffer = buffer.asFloatBuffer();
+            float[][] g = grid.getGrid();
+            for (int r = 0; r < g.length; r++) {
+                floatBuffer.clear();
+                floatBuffer.put(g[r]);
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            raf.close();
+            raf = null;
+
+            try {
+                Files.move(tmpFile.toPath(), file(key).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile.toPath(), file(key).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
+        } catch (IOException ex) {
+            Logger.getLogger(GridDiskCache.class.getName()).log(Level.WARNING,
+                    "cannot write cached grid " + key, ex);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                }
+            }
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@
  */
 package ika.geo.grid;
 
+import ika.geo.GeoBitGrid;
 import ika.geo.GeoGrid;
 
 /**
@@ -39,4 +40,16 @@ public class GridEdgeMarker {
         return markedGrid;
 
     }
+
+    /**
+     * Marks the edge cells of a bit mask. An edge cell is set in the mask and
+     * has at least one of its four direct neighbors cleared. Cells outside of
+     * the grid are not considered cleared. The remaining set cells of the
+     * mask are mask.clone().andNot(edges).
+     * @param mask The mask. Not changed.
+     * @return A bit grid with the edge cells.
+     */
+    public static GeoBitGrid markEdges(GeoBitGrid mask) {
+        return mask.clone().andNot(mask.erode(false));
+    }
 }
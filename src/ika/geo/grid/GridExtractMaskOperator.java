@@ -1,11 +1,14 @@
 package ika.geo.grid;
 
+import ika.geo.GeoBitGrid;
 import ika.geo.GeoGrid;
 import ika.geo.grid.ThreadedGridOperator;
 
 /**
  * Fills the destination grid with NaN values where the source grid has NaN
  * values. Other cells are set to 0. 
+ * createMask() returns the same information in a bit grid, which requires
+ * 1/32 of the memory.
  * @author jenny
  */
 public class GridExtractMaskOperator extends ThreadedGridOperator{
@@ -22,6 +25,15 @@ public class GridExtractMaskOperator extends ThreadedGridOperator{
         }
     }
 
+    /**
+     * Creates a mask of the NaN cells of a grid.
+     * @param grid The grid. Not changed.
+     * @return A bit grid with set bits for NaN cells.
+     */
+    public GeoBitGrid createMask(GeoGrid grid) {
+        return new GridVoidMaskOperator().createMask(grid);
+    }
+
     @Override
     public String getName() {
         return "Extract NaN Mask";
@@ -0,0 +1,429 @@
+/*
+ * GridFalllineBatchOperator.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import ika.geo.GeoObject;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Traces fall lines for a large number of seed points. The gradient of the
+ * elevation grid is computed once, and lines are then traced by following
+ * the bilinearly interpolated gradient with a constant step length. Seed
+ * points are distributed among as many threads as CPU cores are available.
+ * The lines are returned in a FalllineBuffer.
+ * <p>
+ * Optionally, lines stop when they approach another line. Traced lines mark
+ * the cells of a shared occupancy grid with a cell size of half the minimum
+ * distance. A line stops when a cell within two cells of its current position
+ * is occupied by another line. Lines therefore never come closer than the
+ * minimum distance, but may stop at up to about twice the minimum distance.
+ * Which of two approaching lines stops depends on the order in which threads
+ * trace the lines.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GridFalllineBatchOperator implements GridOperator {
+
+    /**
+     * The horizontal coordinates of the seed points.
+     */
+    private double[] seedX = new double[0];
+    /**
+     * The vertical coordinates of the seed points.
+     */
+    private double[] seedY = new double[0];
+    /**
+     * Trace lines upwards, downwards, or in both directions.
+     */
+    private GridFastFalllineOperator.Direction direction
+            = GridFastFalllineOperator.Direction.DIRBILATERAL;
+    /**
+     * Lines stop where the slope is flatter than this angle.
+     */
+    private double minSlopeDegree = 0;
+    /**
+     * The distance between two consecutive points of a line, relative to
+     * the cell size.
+     */
+    private double stepSize = 0.5;
+    /**
+     * The minimum distance between lines. Not applied if 0.
+     */
+    private double minDistance = 0;
+
+    /**
+     * Computes the horizontal gradient of the elevation in the source grid and
+     * stores it in the destination grid. The vertical gradient is stored in a
+     * second grid. Gradients are changes of elevation per map unit towards
+     * the east and towards the north.
+     */
+    private static class GradientOperator extends ThreadedGridOperator {
+
+        private final GeoGrid gyGrid;
+
+        GradientOperator(GeoGrid gyGrid) {
+            this.gyGrid = gyGrid;
+        }
+
+        public String getName() {
+            return "Fall Line Gradient";
+        }
+
+        @Override
+        public boolean isOverwrittingSupported() {
+            return false;
+        }
+
+        @Override
+        protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+            final float[][] srcGrid = src.getGrid();
+            final int cols = src.getCols();
+            final int rows = src.getRows();
+            final float f = (float) (1. / src.getCellSize());
+            for (int row = startRow; row < endRow; row++) {
+                final int rAbove = Math.max(0, row - 1);
+                final int rBelow = Math.min(rows - 1, row + 1);
+                final float fy = f / (rBelow - rAbove);
+                final float[] srcRow = srcGrid[row];
+                final float[] above = srcGrid[rAbove];
+                final float[] below = srcGrid[rBelow];
+                final float[] gxRow = dst.getGrid()[row];
+                final float[] gyRow = gyGrid.getGrid()[row];
+                for (int col = 0; col < cols; col++) {
+                    final int cLeft = Math.max(0, col - 1);
+                    final int cRight = Math.min(cols - 1, col + 1);
+                    gxRow[col] = (srcRow[cRight] - srcRow[cLeft]) * f / (cRight - cLeft);
+                    gyRow[col] = (above[col] - below[col]) * fy;
+                }
+            }
+        }
+    }
+
+    /**
+     * A grid with square cells of half the minimum distance between lines.
+     * Each cell stores the ID of the first line passing through it, or 0.
+     */
+    private static class OccupancyGrid {
+
+        private final AtomicIntegerArray cells;
+        private final int cols;
+        private final int rows;
+        /**
+         * Occupancy cells per elevation grid cell.
+         */
+        private final double scale;
+
+        OccupancyGrid(GeoGrid grid, double minDistance) {
+            scale = 2 * grid.getCellSize() / minDistance;
+            cols = (int) Math.ceil((grid.getCols() - 1) * scale) + 1;
+            rows = (int) Math.ceil((grid.getRows() - 1) * scale) + 1;
+            cells = new AtomicIntegerArray(cols * rows);
+        }
+
+        /**
+         * Returns whether a line can pass through a position without coming
+         * closer than the minimum distance to any other line.
+         * @param col Column in the elevation grid.
+         * @param row Row in the elevation grid.
+         * @param id The ID of the line.
+         * @return True if no other line is too close.
+         */
+        boolean isFree(double col, double row, int id) {
+            final int c = (int) (col * scale);
+            final int r = (int) (row * scale);
+            for (int nr = Math.max(0, r - 2); nr <= Math.min(rows - 1, r + 2); nr++) {
+                for (int nc = Math.max(0, c - 2); nc <= Math.min(cols - 1, c + 2); nc++) {
+                    final int v = cells.get(nr * cols + nc);
+                    if (v != 0 && v != id) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Marks a position as occupied by a line.
+         * @return False if the position is occupied by another line.
+         */
+        boolean occupy(double col, double row, int id) {
+            final int i = (int) (row * scale) * cols + (int) (col * scale);
+            return cells.compareAndSet(i, 0, id) || cells.get(i) == id;
+        }
+    }
+
+    /**
+     * Traces lines for a range of seed points.
+     */
+    private class Tracer implements Runnable {
+
+        private final GeoGrid gxGrid;
+        private final GeoGrid gyGrid;
+        private final OccupancyGrid occupancy;
+        private final int firstSeed;
+        private final int endSeed;
+        private final FalllineBuffer lines = new FalllineBuffer();
+
+        Tracer(GeoGrid gxGrid, GeoGrid gyGrid, OccupancyGrid occupancy,
+                int firstSeed, int endSeed) {
+            this.gxGrid = gxGrid;
+            this.gyGrid = gyGrid;
+            this.occupancy = occupancy;
+            this.firstSeed = firstSeed;
+            this.endSeed = endSeed;
+        }
+
+        public void run() {
+            final double cellSize = gxGrid.getCellSize();
+            for (int seed = firstSeed; seed < endSeed; seed++) {
+                // stop when the operation is cancelled
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final double col = (seedX[seed] - gxGrid.getWest()) / cellSize;
+                final double row = (gxGrid.getNorth() - seedY[seed]) / cellSize;
+                final int id = seed + 1;
+                if (occupancy != null && !occupancy.isFree(col, row, id)) {
+                    continue;
+                }
+                lines.startLine(seed);
+                switch (direction) {
+                    case DIRUP:
+                        trace(col, row, false, id);
+                        break;
+                    case DIRDOWN:
+                        trace(col, row, true, id);
+                        break;
+                    default:
+                        trace(col, row, false, id);
+                        lines.reverseLastLine(0);
+                        // remove the seed point, which is added again
+                        if (lines.getLastLinePointsCount() > 0) {
+                            lines.removeLastPoint();
+                        }
+                        trace(col, row, true, id);
+                }
+                lines.endLine();
+            }
+        }
+
+        /**
+         * Traces a line from a start position and adds its points to the last
+         * line of the buffer.
+         * @param col Column of the start position in the elevation grid.
+         * @param row Row of the start position in the elevation grid.
+         * @param downwards Trace downwards if true, upwards otherwise.
+         * @param id The ID of the line in the occupancy grid.
+         */
+        private void trace(double col, double row, boolean downwards, int id) {
+            final float[][] gx = gxGrid.getGrid();
+            final float[][] gy = gyGrid.getGrid();
+            final int cols = gxGrid.getCols();
+            final int rows = gxGrid.getRows();
+            final double west = gxGrid.getWest();
+            final double north = gxGrid.getNorth();
+            final double cellSize = gxGrid.getCellSize();
+            final double minGradient = Math.tan(Math.toRadians(minSlopeDegree));
+            final double sign = downwards ? -1 : 1;
+            final int maxPoints = (int) (2 * (cols + rows) / stepSize);
+            double prevDCol = 0;
+            double prevDRow = 0;
+
+            for (int i = 0; i < maxPoints; i++) {
+                if (!(col >= 0 && col <= cols - 1 && row >= 0 && row <= rows - 1)) {
+                    break;
+                }
+                if (occupancy != null && (!occupancy.isFree(col, row, id)
+                        || !occupancy.occupy(col, row, id))) {
+                    break;
+                }
+
+                // bilinear interpolation of the gradient
+                final int c0 = Math.min((int) col, cols - 2);
+                final int r0 = Math.min((int) row, rows - 2);
+                final double u = col - c0;
+                final double v = row - r0;
+                final double w00 = (1 - u) * (1 - v);
+                final double w01 = u * (1 - v);
+                final double w10 = (1 - u) * v;
+                final double w11 = u * v;
+                final double gEast = w00 * gx[r0][c0] + w01 * gx[r0][c0 + 1]
+                        + w10 * gx[r0 + 1][c0] + w11 * gx[r0 + 1][c0 + 1];
+                final double gNorth = w00 * gy[r0][c0] + w01 * gy[r0][c0 + 1]
+                        + w10 * gy[r0 + 1][c0] + w11 * gy[r0 + 1][c0 + 1];
+
+                lines.addPoint(west + col * cellSize, north - row * cellSize);
+
+                final double g = Math.hypot(gEast, gNorth);
+                if (!(g > minGradient) || g == 0) {
+                    break;
+                }
+
+                // unit step along the gradient in column and row coordinates
+                final double dCol = sign * gEast / g;
+                final double dRow = -sign * gNorth / g;
+
+                // stop at pits and ridges where the direction reverses
+                if (dCol * prevDCol + dRow * prevDRow < 0) {
+                    break;
+                }
+                prevDCol = dCol;
+                prevDRow = dRow;
+                col += dCol * stepSize;
+                row += dRow * stepSize;
+            }
+        }
+    }
+
+    /** Creates a new instance of GridFalllineBatchOperator */
+    public GridFalllineBatchOperator() {
+    }
+
+    public String getName() {
+        return "Fall Lines";
+    }
+
+    /**
+     * Traces fall lines for all seed points and returns them in a GeoSet.
+     * @param geoGrid The elevation grid.
+     * @return A GeoSet with a GeoPath for each line.
+     */
+    public GeoObject operate(GeoGrid geoGrid) {
+        return trace(geoGrid).toGeoSet();
+    }
+
+    /**
+     * Traces fall lines for all seed points.
+     * @param elevationGrid The elevation grid.
+     * @return The lines, ordered by seed point unless the minimum distance is
+     * applied. Seed points that do not result in a line with at least two
+     * points are skipped.
+     */
+    public FalllineBuffer trace(GeoGrid elevationGrid) {
+        if (elevationGrid == null || !elevationGrid.isWellFormed()
+                || elevationGrid.getCols() < 2 || elevationGrid.getRows() < 2) {
+            throw new IllegalArgumentException(getName() + ": invalid grid");
+        }
+
+        // gradient towards east and north
+        GeoGrid gyGrid = new GeoGrid(elevationGrid.getCols(),
+                elevationGrid.getRows(), elevationGrid.getCellSize());
+        GeoGrid gxGrid = new GradientOperator(gyGrid).operate(elevationGrid);
+        gxGrid.setWest(elevationGrid.getWest());
+        gxGrid.setNorth(elevationGrid.getNorth());
+
+        OccupancyGrid occupancy = minDistance > 0
+                ? new OccupancyGrid(elevationGrid, minDistance) : null;
+
+        // trace lines in multiple threads
+        int nSeeds = seedX.length;
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        int seedChunk = nSeeds / nThreads + 1;
+        ArrayList<Tracer> tracers = new ArrayList<Tracer>(nThreads);
+        ArrayList<Thread> threads = new ArrayList<Thread>(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            int first = i * seedChunk;
+            int end = Math.min(nSeeds, first + seedChunk);
+            Tracer tracer = new Tracer(gxGrid, gyGrid, occupancy, first, end);
+            tracers.add(tracer);
+            Thread t = new Thread(tracer);
+            threads.add(t);
+            t.start();
+        }
+        // wait for all threads, also when interrupted, as the tracers must
+        // not access the grids after this method returns
+        boolean interrupted = false;
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException ex) {
+                    // join() clears the interrupted status of the caller
+                    interrupted = true;
+                    for (Thread thread : threads) {
+                        thread.interrupt();
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        ThreadedGridOperator.checkCancelled(getName());
+
+        FalllineBuffer lines = new FalllineBuffer();
+        for (Tracer tracer : tracers) {
+            lines.append(tracer.lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Sets the seed points.
+     * @param x The horizontal coordinates.
+     * @param y The vertical coordinates. Must have the same length as x.
+     */
+    public void setSeeds(double[] x, double[] y) {
+        if (x == null || y == null || x.length != y.length) {
+            throw new IllegalArgumentException();
+        }
+        this.seedX = x.clone();
+        this.seedY = y.clone();
+    }
+
+    public GridFastFalllineOperator.Direction getDirection() {
+        return direction;
+    }
+
+    public void setDirection(GridFastFalllineOperator.Direction direction) {
+        this.direction = direction;
+    }
+
+    public double getMinSlopeDegree() {
+        return minSlopeDegree;
+    }
+
+    public void setMinSlopeDegree(double minSlopeDegree) {
+        this.minSlopeDegree = minSlopeDegree;
+    }
+
+    /**
+     * Returns the distance between consecutive points relative to the cell
+     * size.
+     */
+    public double getStepSize() {
+        return stepSize;
+    }
+
+    /**
+     * Sets the distance between consecutive points relative to the cell size.
+     */
+    public void setStepSize(double stepSize) {
+        if (!(stepSize > 0)) {
+            throw new IllegalArgumentException();
+        }
+        this.stepSize = stepSize;
+    }
+
+    /**
+     * Returns the minimum distance between lines in map units. 0 if lines
+     * can approach each other.
+     */
+    public double getMinDistance() {
+        return minDistance;
+    }
+
+    /**
+     * Sets the minimum distance between lines in map units. 0 if lines can
+     * approach each other.
+     */
+    public void setMinDistance(double minDistance) {
+        if (minDistance < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.minDistance = minDistance;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * GridMetrics.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Collects live metrics of grid operators and Terrain Sculptor filters and
+ * publishes them as a platform MXBean. ThreadedGridOperator reports the number
+ * of processed cells and the duration of each call, and TerrainSculptorFilter
+ * reports the duration of each completed run. The memory held by cached grids
+ * is computed when an attribute is read; filters register themselves and are
+ * referenced weakly, so that registration does not prevent garbage collection.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public final class GridMetrics implements GridMetricsMXBean {
+
+    /**
+     * The name of the MXBean in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "ika.geo.grid:type=GridMetrics";
+
+    private static final GridMetrics instance = new GridMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance,
+                    new ObjectName(OBJECT_NAME));
+        } catch (Exception ex) {
+            Logger.getLogger(GridMetrics.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Cumulative statistics for one operator class.
+     */
+    private static final class OperatorStatistics {
+
+        final AtomicLong cells = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+    }
+
+    /**
+     * Number and memory of a set of grids.
+     */
+    static final class GridUsage {
+
+        int grids;
+        long bytes;
+
+        /**
+         * Adds a grid. Null grids are ignored.
+         * @param grid The grid to add.
+         */
+        void add(GeoGrid grid) {
+            if (grid != null) {
+                ++grids;
+                bytes += 4L * grid.getCols() * grid.getRows();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, OperatorStatistics> operators
+            = new ConcurrentHashMap<String, OperatorStatistics>();
+    private final ArrayList<WeakReference<TerrainSculptorFilter>> filters
+            = new ArrayList<WeakReference<TerrainSculptorFilter>>();
+    private volatile long lastPipelineNanos = -1;
+    private final AtomicLong pipelineRuns = new AtomicLong();
+
+    private GridMetrics() {
+    }
+
+    /**
+     * Returns the shared instance, which is registered with the platform
+     * MBean server.
+     * @return The metrics.
+     */
+    public static GridMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records a call to a grid operator.
+     * @param operator The operator.
+     * @param cells The number of processed cells.
+     * @param nanos The duration in nanoseconds.
+     */
+    void operatorFinished(GridOperator operator, long cells, long nanos) {
+        String name = operator.getClass().getName();
+        OperatorStatistics stats = operators.get(name);
+        if (stats == null) {
+            OperatorStatistics newStats = new OperatorStatistics();
+            stats = operators.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        stats.cells.addAndGet(cells);
+        stats.nanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a completed run of a Terrain Sculptor filter.
+     * @param nanos The duration in nanoseconds.
+     */
+    void pipelineFinished(long nanos) {
+        lastPipelineNanos = nanos;
+        pipelineRuns.incrementAndGet();
+    }
+
+    /**
+     * Registers a filter for reporting the memory held by its cached grids.
+     * @param filter The filter.
+     */
+    synchronized void register(TerrainSculptorFilter filter) {
+        purge();
+        filters.add(new WeakReference<TerrainSculptorFilter>(filter));
+    }
+
+    /**
+     * Removes references to filters that have been garbage collected.
+     */
+    private void purge() {
+        Iterator<WeakReference<TerrainSculptorFilter>> it = filters.iterator();
+        while (it.hasNext()) {
+            if (it.next().get() == null) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Counts the grids cached by all registered filters.
+     * @return Usage of work package results, grid pools and temporary
+     * Gaussian grids, in this order.
+     */
+    private synchronized GridUsage[] countCachedGrids() {
+        purge();
+        GridUsage[] usage = new GridUsage[]{new GridUsage(), new GridUsage(), new GridUsage()};
+        for (WeakReference<TerrainSculptorFilter> ref : filters) {
+            TerrainSculptorFilter filter = ref.get();
+            if (filter != null) {
+                filter.countCachedGrids(usage[0], usage[1], usage[2]);
+            }
+        }
+        return usage;
+    }
+
+    @Override
+    public Map<String, Double> getCellsPerSecond() {
+        TreeMap<String, Double> map = new TreeMap<String, Double>();
+        for (Map.Entry<String, OperatorStatistics> e : operators.entrySet()) {
+            long nanos = e.getValue().nanos.get();
+            double cellsPerSecond = nanos > 0 ? e.getValue().cells.get() * 1e9 / nanos : 0;
+            map.put(e.getKey(), cellsPerSecond);
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getCellsProcessed() {
+        TreeMap<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<String, OperatorStatistics> e : operators.entrySet()) {
+            map.put(e.getKey(), e.getValue().cells.get());
+        }
+        return map;
+    }
+
+    @Override
+    public int getWorkPackageResultGrids() {
+        return countCachedGrids()[0].grids;
+    }
+
+    @Override
+    public long getWorkPackageResultBytes() {
+        return countCachedGrids()[0].bytes;
+    }
+
+    @Override
+    public int getGridPoolGrids() {
+        return countCachedGrids()[1].grids;
+    }
+
+    @Override
+    public long getGridPoolBytes() {
+        return countCachedGrids()[1].bytes;
+    }
+
+    @Override
+    public int getGaussTemporaryGrids() {
+        return countCachedGrids()[2].grids;
+    }
+
+    @Override
+    public long getGaussTemporaryBytes() {
+        return countCachedGrids()[2].bytes;
+    }
+
+    @Override
+    public double getLastPipelineMillis() {
+        long nanos = lastPipelineNanos;
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    @Override
+    public long getPipelineRuns() {
+        return pipelineRuns.get();
+    }
+
+    @Override
+    public void resetOperatorStatistics() {
+        operators.clear();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * GridMetricsMXBean.java
+ *
+ */
+package ika.geo.grid;
+
+import java.util.Map;
+
+/**
+ * Management interface for live metrics of grid operators and the Terrain
+ * Sculptor filter. The attributes can be inspected with JConsole or any other
+ * JMX client under the name ika.geo.grid:type=GridMetrics.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public interface GridMetricsMXBean {
+
+    /**
+     * Returns the number of processed grid cells per second for each operator
+     * class, averaged over all calls since the last reset.
+     * @return Operator class names mapped to cells per second.
+     */
+    public Map<String, Double> getCellsPerSecond();
+
+    /**
+     * Returns the cumulative number of processed grid cells for each operator
+     * class since the last reset.
+     * @return Operator class names mapped to the number of cells.
+     */
+    public Map<String, Long> getCellsProcessed();
+
+    /**
+     * Returns the number of grids holding work package results of all
+     * Terrain Sculptor filters.
+     */
+    public int getWorkPackageResultGrids();
+
+    /**
+     * Returns the memory in bytes held by work package results of all
+     * Terrain Sculptor filters.
+     */
+    public long getWorkPackageResultBytes();
+
+    /**
+     * Returns the number of grids in the grid pools of all Terrain Sculptor
+     * filters.
+     */
+    public int getGridPoolGrids();
+
+    /**
+     * Returns the memory in bytes held by the grid pools of all Terrain
+     * Sculptor filters.
+     */
+    public long getGridPoolBytes();
+
+    /**
+     * Returns the number of temporary transposed grids cached by the Gaussian
+     * low-pass filters of all Terrain Sculptor filters.
+     */
+    public int getGaussTemporaryGrids();
+
+    /**
+     * Returns the memory in bytes held by temporary transposed grids cached
+     * by the Gaussian low-pass filters of all Terrain Sculptor filters.
+     */
+    public long getGaussTemporaryBytes();
+
+    /**
+     * Returns the duration of the last completed Terrain Sculptor filter
+     * run in milliseconds, or -1 if no filter run has been completed.
+     */
+    public double getLastPipelineMillis();
+
+    /**
+     * Returns the number of completed Terrain Sculptor filter runs.
+     */
+    public long getPipelineRuns();
+
+    /**
+     * Resets the operator throughput statistics.
+     */
+    public void resetOperatorStatistics();
+}
@@ -173,7 +173,7 @@ public class GridPlanCurvatureOperator extends ThreadedGridOperator{
         }
 
         // bottom row
-        if (endRow == rows - 1) {
+        if (endRow == rows) {
             for (int col = 0; col < cols; col++) {
                 operateBorder(src, dst, col, rows - 1, cellSize);
             }
@@ -190,34 +190,38 @@ public class GridPlanCurvatureOperator extends ThreadedGridOperator{
         }
 
         // interior of grid
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
+        // Row arrays are extracted before the inner loop, and the inner loop
+        // has no branches other than a conditional assignment, which allows
+        // the JIT compiler to unroll and vectorize it.
+        final float[][] srcGrid = src.getGrid();
+        final float[][] dstGrid = dst.getGrid();
         final float inverseDoubleMeshSize = (float)(1 / (2 * cellSize));
         final float inverseSquareMeshSize = (float)(1 / (cellSize * cellSize));
         for (int row = firstInteriorRow; row < lastInteriorRow; row++) {
+            final float[] above = srcGrid[row - 1];
+            final float[] center = srcGrid[row];
+            final float[] below = srcGrid[row + 1];
+            final float[] dstRow = dstGrid[row];
             for (int col = 1; col < cols - 1; col++) {
 
-                final float e0 = srcGrid[row][col]; // center
-                final float e1 = srcGrid[row-1][col-1]; // north-west
-                final float e2 = srcGrid[row-1][col]; // north
-                final float e3 = srcGrid[row-1][col+1]; //north-east
-                final float e4 = srcGrid[row][col-1]; // west
-                final float e5 = srcGrid[row][col+1]; // east
-                final float e6 = srcGrid[row+1][col-1]; // south-west
-                final float e7 = srcGrid[row+1][col]; // south
-                final float e8 = srcGrid[row+1][col+1]; // south-east
+                final float e0 = center[col]; // center
+                final float e1 = above[col - 1]; // north-west
+                final float e2 = above[col]; // north
+                final float e3 = above[col + 1]; //north-east
+                final float e4 = center[col - 1]; // west
+                final float e5 = center[col + 1]; // east
+                final float e6 = below[col - 1]; // south-west
+                final float e7 = below[col]; // south
+                final float e8 = below[col + 1]; // south-east
 
                 final float D = ((e4 + e5) / 2 - e0) * inverseSquareMeshSize;
                 final float E = ((e2 + e7) / 2 - e0) * inverseSquareMeshSize;
                 final float F = (-e1 + e3 + e6 - e8) / 4 * inverseSquareMeshSize;
                 final float G = (-e4 + e5) * inverseDoubleMeshSize;
                 final float H = (e2 - e7) * inverseDoubleMeshSize;
-                final float divider = G*G+H*H;
-                if (divider != 0) {
-                    dstGrid[row][col] = 2*((D*H*H + E*G*G - F*G*H) / divider);
-                } else {
-                    dstGrid[row][col] = 0;
-                }
+                final float divider = G * G + H * H;
+                final float curv = 2 * ((D * H * H + E * G * G - F * G * H) / divider);
+                dstRow[col] = divider == 0 ? 0 : curv;
             }
         }
     }
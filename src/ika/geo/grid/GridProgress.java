@@ -0,0 +1,124 @@
+/*
+ * GridProgress.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.gui.CellRateIndicator;
+import ika.gui.ProgressIndicator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the progress of grid operators to a ProgressIndicator. Operators
+ * add the number of cells they have computed to a lock-free counter. The
+ * counter is converted to a percentage of an expected number of cells, and
+ * to a rate in cells per second if the indicator is a CellRateIndicator. The
+ * indicator is updated at most every REPORT_INTERVAL_NANOS by the thread that
+ * adds cells when the interval has elapsed.
+ * <p>
+ * An instance is attached to the thread that calls begin(), and is found by
+ * operators calling current() on this thread. ThreadedGridOperator passes
+ * the instance of the calling thread to its threads.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public final class GridProgress {
+
+    /**
+     * The minimum time between two updates of the progress indicator.
+     */
+    private static final long REPORT_INTERVAL_NANOS = 100000000L;
+
+    private static final ThreadLocal<GridProgress> current = new ThreadLocal<GridProgress>();
+
+    private final ProgressIndicator progressIndicator;
+    private final long expectedCells;
+    private final long startTime;
+    private final AtomicLong cells = new AtomicLong();
+    private final AtomicLong lastReportTime;
+
+    /**
+     * The last reported percentage. Reported percentages do not decrease.
+     * Reports are usually REPORT_INTERVAL_NANOS apart, but a report can still
+     * be running on a descheduled thread when the next one starts.
+     */
+    private final AtomicInteger percentage = new AtomicInteger();
+
+    private GridProgress(ProgressIndicator progressIndicator, long expectedCells) {
+        this.progressIndicator = progressIndicator;
+        this.expectedCells = Math.max(1, expectedCells);
+        this.startTime = System.nanoTime();
+        this.lastReportTime = new AtomicLong(startTime);
+    }
+
+    /**
+     * Attaches a new instance to the current thread.
+     * @param progressIndicator The indicator to update. Can be null.
+     * @param expectedCells The expected number of cells computed until end()
+     * is called.
+     * @return The new instance.
+     */
+    public static GridProgress begin(ProgressIndicator progressIndicator, long expectedCells) {
+        GridProgress gridProgress = new GridProgress(progressIndicator, expectedCells);
+        current.set(gridProgress);
+        return gridProgress;
+    }
+
+    /**
+     * Detaches the instance from the current thread.
+     */
+    public static void end() {
+        current.remove();
+    }
+
+    /**
+     * Returns the instance attached to the current thread.
+     * @return The instance or null.
+     */
+    public static GridProgress current() {
+        return current.get();
+    }
+
+    /**
+     * Adds cells computed by an operator. Can be called concurrently from any
+     * thread.
+     * @param n The number of cells.
+     */
+    public void add(long n) {
+        final long done = cells.addAndGet(n);
+        final long now = System.nanoTime();
+        final long last = lastReportTime.get();
+        if (now - last >= REPORT_INTERVAL_NANOS && lastReportTime.compareAndSet(last, now)) {
+            report(done, now);
+        }
+    }
+
+    private void report(long done, long now) {
+        if (progressIndicator == null) {
+            return;
+        }
+        // the expected number of cells is an estimate; do not report 100%
+        // before the operators have finished
+        final int p = (int) Math.min(99, done * 100 / expectedCells);
+        int reported = percentage.get();
+        while (p > reported && !percentage.compareAndSet(reported, p)) {
+            reported = percentage.get();
+        }
+        if (progressIndicator instanceof CellRateIndicator) {
+            final double seconds = (now - startTime) / 1e9;
+            ((CellRateIndicator) progressIndicator).setCellRate(done / seconds);
+        }
+        // the return value is ignored: operators are not cancelled through
+        // the progress indicator, but by interrupting the thread that started
+        // them (see ThreadedGridOperator)
+        progressIndicator.progress(percentage.get());
+    }
+
+    /**
+     * Returns the number of cells added so far.
+     * @return The number of cells.
+     */
+    public long getCells() {
+        return cells.get();
+    }
+}
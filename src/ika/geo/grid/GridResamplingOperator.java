@@ -1,5 +1,5 @@
 /*
- * GridMedianOperator.java
+ * GridResamplingOperator.java
  *
  * Created on February 14, 2006, 9:05 PM
  *
@@ -9,16 +9,151 @@ package ika.geo.grid;
 import ika.geo.GeoGrid;
 
 /**
- *
+ * Resamples a grid to a new cell size. The interpolation kernel is separable:
+ * weights are precomputed once for each column and each row of the new grid.
+ * Every thread then computes entire rows of the new grid by first combining
+ * source rows vertically, and then combining the resulting values
+ * horizontally. When the cell size increases, bilinear, bicubic and Lanczos
+ * resampling average the area covered by a new cell instead of interpolating.
+ * <p>
+ * The weights are computed for each call to operate() and passed to a
+ * RowResampler, so that an instance can be used by multiple threads.
  * @author jenny
  */
 public class GridResamplingOperator implements GridOperator {
 
+    /**
+     * The interpolation methods.
+     */
+    public enum Interpolation {NEAREST, BILINEAR, BICUBIC, LANCZOS};
+
+    /**
+     * The number of lobes of the Lanczos kernel.
+     */
+    private static final int LANCZOS_LOBES = 3;
+
+    /**
+     * Tolerance for computing the number of rows and columns of the new grid.
+     */
+    private static final double SIZE_TOLERANCE = 1e-6;
+
     private double newCellSize = 1;
     private double alignX = Double.NaN;
     private double alignY = Double.NaN;
+    private Interpolation interpolation = Interpolation.BICUBIC;
+
+    /**
+     * Indices of source cells and their weights for each column or each row
+     * of the new grid. All columns or rows have the same number of taps.
+     */
+    private static class SeparableWeights {
+
+        /**
+         * The number of source cells contributing to a new cell.
+         */
+        final int taps;
+        /**
+         * The indices of the source cells, taps values per new cell. Indices
+         * are clamped to the source grid.
+         */
+        final int[] indices;
+        /**
+         * The weights of the source cells, taps values per new cell. The
+         * weights of a new cell sum to 1.
+         */
+        final float[] weights;
+
+        SeparableWeights(int n, int taps) {
+            this.taps = taps;
+            indices = new int[n * taps];
+            weights = new float[n * taps];
+        }
+    }
+
+    /**
+     * Computes rows of a destination grid with the weights of one call to
+     * GridResamplingOperator.operate().
+     */
+    private static final class RowResampler extends ThreadedGridOperator {
+
+        private final SeparableWeights colWeights;
+        private final SeparableWeights rowWeights;
+
+        RowResampler(SeparableWeights colWeights, SeparableWeights rowWeights) {
+            this.colWeights = colWeights;
+            this.rowWeights = rowWeights;
+        }
+
+        public String getName() {
+            return "Resampling";
+        }
+
+        @Override
+        public boolean isOverwrittingSupported() {
+            return false;
+        }
+
+        @Override
+        protected int getRowsCount(GeoGrid src, GeoGrid dst) {
+            return dst.getRows();
+        }
+
+        /**
+         * Computes rows of the destination grid.
+         * @param src The source grid.
+         * @param dst The destination grid.
+         * @param startRow The first row of the destination grid.
+         * @param endRow The row after the last row of the destination grid.
+         */
+        @Override
+        protected void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
+
+            final float[][] srcGrid = src.getGrid();
+            final float[][] dstGrid = dst.getGrid();
+            final int srcCols = src.getCols();
+            final int dstCols = dst.getCols();
+            final int rowTaps = rowWeights.taps;
+            final int[] rowIndices = rowWeights.indices;
+            final float[] rowW = rowWeights.weights;
+            final int colTaps = colWeights.taps;
+            final int[] colIndices = colWeights.indices;
+            final float[] colW = colWeights.weights;
+
+            // a source row interpolated vertically
+            final float[] tmpRow = new float[srcCols];
+
+            for (int row = startRow; row < endRow; row++) {
+
+                // combine source rows
+                java.util.Arrays.fill(tmpRow, 0f);
+                for (int t = row * rowTaps, tEnd = t + rowTaps; t < tEnd; t++) {
+                    final float w = rowW[t];
+                    if (w == 0f) {
+                        continue;
+                    }
+                    final float[] srcRow = srcGrid[rowIndices[t]];
+                    for (int col = 0; col < srcCols; col++) {
+                        tmpRow[col] += w * srcRow[col];
+                    }
+                }
+
+                // combine columns and write the new row
+                final float[] dstRow = dstGrid[row];
+                for (int col = 0, t = 0; col < dstCols; col++) {
+                    float v = 0f;
+                    for (int tEnd = t + colTaps; t < tEnd; t++) {
+                        final float w = colW[t];
+                        if (w != 0f) {
+                            v += w * tmpRow[colIndices[t]];
+                        }
+                    }
+                    dstRow[col] = v;
+                }
+            }
+        }
+    }
 
-    /** Creates a new instance of GridMedianOperator */
+    /** Creates a new instance of GridResamplingOperator */
     public GridResamplingOperator(double newCellSize, double alignX, double alignY) {
         this.newCellSize = newCellSize;
         this.alignX = alignX;
@@ -28,36 +163,218 @@ public class GridResamplingOperator implements GridOperator {
     public GridResamplingOperator(double newCellSize) {
         this.newCellSize = newCellSize;
     }
-    
+
+    public GridResamplingOperator(double newCellSize, Interpolation interpolation) {
+        this.newCellSize = newCellSize;
+        setInterpolation(interpolation);
+    }
+
     public String getName() {
         return "Resampling";
     }
 
+    /**
+     * Resamples a grid to a new grid with the new cell size that covers the
+     * same area.
+     * @param geoGrid The source grid.
+     * @return The new grid.
+     */
     public GeoGrid operate(GeoGrid geoGrid) {
-        if (geoGrid == null)
-            throw new IllegalArgumentException();
+        return operate(geoGrid, initDestinationGrid(geoGrid));
+    }
 
-        if (Double.isNaN(this.alignX) || Double.isNaN(this.alignY)) {
-            this.alignX = geoGrid.getWest();
-            this.alignY = geoGrid.getNorth();
+    private GeoGrid initDestinationGrid(GeoGrid geoGrid) {
+        if (geoGrid == null || !geoGrid.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
         }
-        
+        if (!(newCellSize > 0)) {
+            throw new IllegalArgumentException(getName() + ": invalid cell size");
+        }
+
         double newWest = geoGrid.getWest(); // alignX - (int)((alignX - geoGrid.getWest()) / newCellSize) * newCellSize; !!! ???
         double newNorth = geoGrid.getNorth(); // alignY + (int)((geoGrid.getNorth() - alignY) / newCellSize) * newCellSize;
-        int newRows = (int)((newNorth - geoGrid.getSouth()) / newCellSize);
-        int newCols = (int)((geoGrid.getEast() - newWest) / newCellSize);
+        int newRows = newCount(newNorth - geoGrid.getSouth());
+        int newCols = newCount(geoGrid.getEast() - newWest);
         GeoGrid newGrid = new GeoGrid(newCols, newRows, newCellSize);
         newGrid.setWest(newWest);
         newGrid.setNorth(newNorth);
-        
-        for (int row = 0; row < newRows; row++) {
-            double y = newNorth - row * newCellSize;
-            for (int col = 0; col < newCols; col++) {
-                double x = newWest + col * newCellSize;
-                float v = geoGrid.getBicubicInterpol(x, y);
-                newGrid.setValue(v, col, row);
+        newGrid.setName(geoGrid.getName());
+        return newGrid;
+    }
+
+    /**
+     * Returns the number of new cells with centers inside a distance.
+     */
+    private int newCount(double dist) {
+        return (int) Math.floor(dist / newCellSize + SIZE_TOLERANCE) + 1;
+    }
+
+    /**
+     * Resamples the source grid to the passed destination grid. The
+     * destination grid can have any size, cell size and position.
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @return The passed destination grid.
+     */
+    public GeoGrid operate(GeoGrid src, GeoGrid dst) {
+        if (src == null || !src.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        if (dst == null || !dst.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid destination grid");
+        }
+        final Interpolation interp = interpolation;
+        final double srcCellSize = src.getCellSize();
+        final double scale = dst.getCellSize() / srcCellSize;
+        final double colOffset = (dst.getWest() - src.getWest()) / srcCellSize;
+        final double rowOffset = (src.getNorth() - dst.getNorth()) / srcCellSize;
+        SeparableWeights colWeights = weights(interp, dst.getCols(), src.getCols(), colOffset, scale);
+        SeparableWeights rowWeights = weights(interp, dst.getRows(), src.getRows(), rowOffset, scale);
+        return new RowResampler(colWeights, rowWeights).operate(src, dst);
+    }
+
+    /**
+     * Computes the weights for the columns or the rows of a new grid.
+     * @param interpolation The interpolation method.
+     * @param n The number of columns or rows of the new grid.
+     * @param srcN The number of columns or rows of the source grid.
+     * @param offset The position of the first new cell in source cells.
+     * @param scale The new cell size divided by the source cell size.
+     * @return The weights.
+     */
+    private static SeparableWeights weights(Interpolation interpolation,
+            int n, int srcN, double offset, double scale) {
+        if (scale > 1 && interpolation != Interpolation.NEAREST) {
+            return areaWeights(n, srcN, offset, scale);
+        }
+
+        final int taps;
+        final int firstTap;
+        switch (interpolation) {
+            case NEAREST:
+                taps = 1;
+                firstTap = 0;
+                break;
+            case BILINEAR:
+                taps = 2;
+                firstTap = 0;
+                break;
+            case BICUBIC:
+                taps = 4;
+                firstTap = -1;
+                break;
+            default:
+                taps = 2 * LANCZOS_LOBES;
+                firstTap = 1 - LANCZOS_LOBES;
+        }
+
+        SeparableWeights sw = new SeparableWeights(n, taps);
+        for (int i = 0; i < n; i++) {
+            final double x = offset + i * scale;
+            final int first = interpolation == Interpolation.NEAREST
+                    ? (int) Math.floor(x + 0.5)
+                    : (int) Math.floor(x) + firstTap;
+            double wSum = 0;
+            for (int t = 0; t < taps; t++) {
+                final int j = first + t;
+                final double w = kernel(interpolation, x - j);
+                sw.indices[i * taps + t] = Math.max(0, Math.min(srcN - 1, j));
+                sw.weights[i * taps + t] = (float) w;
+                wSum += w;
             }
+            normalize(sw, i, wSum);
         }
-        return newGrid;
+        return sw;
+    }
+
+    /**
+     * Computes weights that average the area covered by new cells, which
+     * are larger than the source cells.
+     */
+    private static SeparableWeights areaWeights(int n, int srcN, double offset, double scale) {
+        final int taps = (int) Math.ceil(scale) + 1;
+        SeparableWeights sw = new SeparableWeights(n, taps);
+        for (int i = 0; i < n; i++) {
+            final double center = offset + i * scale;
+            final double min = center - scale / 2;
+            final double max = center + scale / 2;
+            final int first = (int) Math.floor(min + 0.5);
+            double wSum = 0;
+            for (int t = 0; t < taps; t++) {
+                final int j = first + t;
+                // overlap of the new cell with source cell j
+                final double w = Math.max(0, Math.min(max, j + 0.5) - Math.max(min, j - 0.5));
+                sw.indices[i * taps + t] = Math.max(0, Math.min(srcN - 1, j));
+                sw.weights[i * taps + t] = (float) w;
+                wSum += w;
+            }
+            normalize(sw, i, wSum);
+        }
+        return sw;
+    }
+
+    /**
+     * Scales the weights of a new cell to sum to 1.
+     */
+    private static void normalize(SeparableWeights sw, int i, double wSum) {
+        if (wSum == 0) {
+            return;
+        }
+        for (int t = i * sw.taps, tEnd = t + sw.taps; t < tEnd; t++) {
+            sw.weights[t] = (float) (sw.weights[t] / wSum);
+        }
+    }
+
+    /**
+     * Evaluates the interpolation kernel.
+     * @param interpolation The interpolation method.
+     * @param x Distance in source cells.
+     * @return The weight.
+     */
+    private static double kernel(Interpolation interpolation, double x) {
+        x = Math.abs(x);
+        switch (interpolation) {
+            case NEAREST:
+                return 1;
+            case BILINEAR:
+                return x < 1 ? 1 - x : 0;
+            case BICUBIC:
+                // Catmull-Rom spline, as used by GeoGrid.getBicubicInterpol
+                if (x < 1) {
+                    return (3 * x - 5) * x * x / 2 + 1;
+                }
+                if (x < 2) {
+                    return ((-x + 5) * x - 8) * x / 2 + 2;
+                }
+                return 0;
+            default:
+                if (x == 0) {
+                    return 1;
+                }
+                if (x >= LANCZOS_LOBES) {
+                    return 0;
+                }
+                final double px = Math.PI * x;
+                return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+        }
+    }
+
+    public double getNewCellSize() {
+        return newCellSize;
+    }
+
+    public void setNewCellSize(double newCellSize) {
+        this.newCellSize = newCellSize;
+    }
+
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+
+    public void setInterpolation(Interpolation interpolation) {
+        if (interpolation == null) {
+            throw new IllegalArgumentException();
+        }
+        this.interpolation = interpolation;
     }
 }
@@ -12,10 +12,11 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 
 /**
- *
+ * Shaded relief with a light from the north-west. operateToImage() shades an
+ * entire grid, renderTile() shades a section for GeoTiledGridImage.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
-public class GridShadeOperator implements GridOperator {
+public class GridShadeOperator implements GridOperator, GridTileRenderer {
 
     private final double zenithRad = Math.toRadians(45);
     private final double azimuthRad = Math.toRadians(315);
@@ -98,4 +99,66 @@ public class GridShadeOperator implements GridOperator {
         return newImage;
     }
 
+    @Override
+    public void renderTile(GeoGrid grid, int firstCol, int firstRow, int step,
+            int width, int height, int[] argb) {
+
+        // light vector
+        final double sinz = Math.sin(zenithRad);
+        final double lx = Math.sin(azimuthRad) * sinz;
+        final double ly = Math.cos(azimuthRad) * sinz;
+        final double lz = Math.cos(zenithRad);
+
+        // neighbors are at a distance of step cells
+        final double nz = 2 * step * grid.getProjectedCellSize();
+        final double nz_sq = nz * nz;
+
+        final float[][] g = grid.getGrid();
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        int px = 0;
+        for (int y = 0; y < height; y++) {
+            final int row = Math.min(firstRow + y * step, rows - 1);
+            final int rn = Math.max(0, row - step);
+            final int rs = Math.min(rows - 1, row + step);
+            final float[] centerRow = g[row];
+            final float[] northRow = g[rn];
+            final float[] southRow = g[rs];
+            // scale differences at the border of the grid, where the
+            // distance between the neighbors is smaller
+            final double yScale = rs > rn ? 2. * step / (rs - rn) : 0;
+            for (int x = 0; x < width; x++) {
+                final int col = Math.min(firstCol + x * step, cols - 1);
+                final int cw = Math.max(0, col - step);
+                final int ce = Math.min(cols - 1, col + step);
+                final double xScale = ce - cw == 2 * step ? 1
+                        : ce > cw ? 2. * step / (ce - cw) : 0;
+                final double nx = -(centerRow[ce] - centerRow[cw]) * xScale;
+                final double ny = -(northRow[col] - southRow[col]) * yScale;
+                final double normalLength = Math.sqrt(nx * nx + ny * ny + nz_sq);
+                final double dotProduct = (nx * lx + ny * ly + nz * lz) / normalLength;
+                final int gray = (int) ((dotProduct + 1) * 127.5);
+                final int c = gray | (gray << 8) | (gray << 16) | 0xFF000000;
+                // void cells and cells with void neighbors are transparent
+                argb[px++] = Double.isNaN(dotProduct) || Float.isNaN(centerRow[col]) ? 0 : c;
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof GridShadeOperator)) {
+            return false;
+        }
+        GridShadeOperator op = (GridShadeOperator) obj;
+        return zenithRad == op.zenithRad && azimuthRad == op.azimuthRad;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(zenithRad) * 31
+                + Double.doubleToLongBits(azimuthRad);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
 }
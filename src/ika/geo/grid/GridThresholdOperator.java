@@ -6,10 +6,13 @@
  */
 package ika.geo.grid;
 
+import ika.geo.GeoBitGrid;
 import ika.geo.GeoGrid;
 
 /**
  * Changes all values greater or smaller than a limit value to another value.
+ * Alternatively, createMask() marks the cells that would be changed in a bit
+ * grid.
  * @author jenny
  */
 public class GridThresholdOperator extends ThreadedGridOperator {
@@ -26,6 +29,45 @@ public class GridThresholdOperator extends ThreadedGridOperator {
         return "Threshold";
     }
     
+    /**
+     * Creates a mask of the cells that are changed by this operator.
+     * @param grid The grid. Not changed.
+     * @return A bit grid of the same size and position as the passed grid
+     * with set bits for cells with values smaller (or greater) than the
+     * threshold value.
+     */
+    public GeoBitGrid createMask(GeoGrid grid) {
+        if (grid == null || !grid.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        GeoBitGrid mask = new GeoBitGrid(grid);
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final long[] bits = mask.getBits();
+        final int wordsPerRow = mask.getWordsPerRow();
+        final float t = thresholdValue;
+        for (int row = 0; row < rows; ++row) {
+            final float[] srcRow = grid.getGrid()[row];
+            final int rowOffset = row * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                final int firstCol = w << 6;
+                final int n = Math.min(64, cols - firstCol);
+                long word = 0;
+                if (smallerThan) {
+                    for (int b = 0; b < n; b++) {
+                        word |= (srcRow[firstCol + b] < t ? 1L : 0L) << b;
+                    }
+                } else {
+                    for (int b = 0; b < n; b++) {
+                        word |= (srcRow[firstCol + b] > t ? 1L : 0L) << b;
+                    }
+                }
+                bits[rowOffset + w] = word;
+            }
+        }
+        return mask;
+    }
+
     public void operate(GeoGrid src, GeoGrid dst, int startRow, int endRow) {
 
         float[][] srcGrid = src.getGrid();
@@ -74,5 +74,63 @@ public class GridToImageOperator implements GridOperator{
         final double gridNorth = geoGrid.getNorth() - cellSize / 2.;
         return new GeoImage(bufferedImage, gridWest, gridNorth, cellSize);
     }
+
+    /**
+     * Returns a renderer for GeoTiledGridImage that converts the values of a
+     * grid to gray values between the minimum and the maximum of the grid.
+     * @param geoGrid The grid.
+     * @return The renderer.
+     */
+    public GridTileRenderer createTileRenderer(GeoGrid geoGrid) {
+        final float[] minMax = geoGrid.getMinMax();
+        return new GrayTileRenderer(minMax[0], minMax[1] - minMax[0]);
+    }
+
+    private static class GrayTileRenderer implements GridTileRenderer {
+
+        private final float min;
+        private final float range;
+
+        GrayTileRenderer(float min, float range) {
+            this.min = min;
+            this.range = range;
+        }
+
+        @Override
+        public void renderTile(GeoGrid grid, int firstCol, int firstRow,
+                int step, int width, int height, int[] argb) {
+            final float[][] g = grid.getGrid();
+            final int cols = grid.getCols();
+            final int rows = grid.getRows();
+            int px = 0;
+            for (int y = 0; y < height; y++) {
+                final float[] row = g[Math.min(firstRow + y * step, rows - 1)];
+                for (int x = 0; x < width; x++) {
+                    final float v = row[Math.min(firstCol + x * step, cols - 1)];
+                    if (Float.isNaN(v)) {
+                        argb[px++] = 0;
+                        continue;
+                    }
+                    // white if the grid has a single value
+                    final int gray = range != 0 ? (int) ((v - min) / range * 255.f) & 0xFF : 0xFF;
+                    argb[px++] = gray | (gray << 8) | (gray << 16) | 0xFF000000;
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof GrayTileRenderer)) {
+                return false;
+            }
+            GrayTileRenderer r = (GrayTileRenderer) obj;
+            return Float.compare(min, r.min) == 0 && Float.compare(range, r.range) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Float.floatToIntBits(min) * 31 + Float.floatToIntBits(range);
+        }
+    }
     
 }
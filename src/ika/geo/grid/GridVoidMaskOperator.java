@@ -0,0 +1,62 @@
+/*
+ * GridVoidMaskOperator.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoBitGrid;
+import ika.geo.GeoGrid;
+
+/**
+ * Creates a packed bit mask of the void (NaN) cells of a grid. A set bit marks
+ * a void cell. The mask requires 1/32 of the memory of the grid.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GridVoidMaskOperator implements GridOperator {
+
+    public String getName() {
+        return "Void Mask";
+    }
+
+    /**
+     * Creates a mask of the void cells of a grid.
+     * @param geoGrid The grid. Not changed.
+     * @return A bit grid of the same size and position as the passed grid
+     * with set bits for void cells.
+     */
+    public GeoBitGrid operate(GeoGrid geoGrid) {
+        return createMask(geoGrid);
+    }
+
+    /**
+     * Creates a mask of the void cells of a grid.
+     * @param grid The grid. Not changed.
+     * @return A bit grid of the same size and position as the passed grid
+     * with set bits for void cells.
+     */
+    public GeoBitGrid createMask(GeoGrid grid) {
+        if (grid == null || !grid.isWellFormed()) {
+            throw new IllegalArgumentException(getName() + ": invalid source grid");
+        }
+        GeoBitGrid mask = new GeoBitGrid(grid);
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final long[] bits = mask.getBits();
+        final int wordsPerRow = mask.getWordsPerRow();
+        for (int row = 0; row < rows; row++) {
+            final float[] srcRow = grid.getGrid()[row];
+            final int rowOffset = row * wordsPerRow;
+            for (int w = 0; w < wordsPerRow; w++) {
+                final int firstCol = w << 6;
+                final int n = Math.min(64, cols - firstCol);
+                long word = 0;
+                for (int b = 0; b < n; b++) {
+                    final float v = srcRow[firstCol + b];
+                    word |= (v != v ? 1L : 0L) << b;
+                }
+                bits[rowOffset + w] = word;
+            }
+        }
+        return mask;
+    }
+}
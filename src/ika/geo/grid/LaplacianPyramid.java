@@ -58,7 +58,8 @@ public class LaplacianPyramid {
                     dst[r][0] = Float.NaN;
                     dst[r][1] = Float.NaN;
                 } else {
-                    expandWithVoid(src.getGrid(), dst, 0, r, true);
+                    dst[r][0] = expandEvenWithVoid(v0, v1, v2);
+                    dst[r][1] = expandOddWithVoid(v1, v2);
                 }
             } else {
                 dst[r][0] = vEven;
@@ -81,7 +82,8 @@ public class LaplacianPyramid {
                     dst[r][c] = Float.NaN;
                     dst[r][c + 1] = Float.NaN;
                 } else {
-                    expandWithVoid(src.getGrid(), dst, c, r, true);
+                    dst[r][c] = expandEvenWithVoid(v0, v1, v2);
+                    dst[r][c + 1] = expandOddWithVoid(v1, v2);
                 }
             } else {
                 dst[r][c] = vEven;
@@ -97,6 +99,12 @@ public class LaplacianPyramid {
         final int rows = dstGeoGrid.getRows();
         final float[][] dstGrid = dstGeoGrid.getGrid();
 
+        // the last row of the source grid. The destination grid has either
+        // twice as many rows as the source grid, or one row less.
+        final int lastSrcRow = (rows + 1) / 2 - 1;
+        final int lastEvenRow = lastSrcRow * 2;
+        final boolean hasLastOddRow = lastEvenRow + 1 < rows;
+
         // top row
         for (int c = 0; c < cols; c++) {
             float v0 = src[0][c];
@@ -109,7 +117,8 @@ public class LaplacianPyramid {
                     dstGrid[0][c] = Float.NaN;
                     dstGrid[1][c] = Float.NaN;
                 } else {
-                    expandWithVoid(dstGeoGrid.getGrid(), dstGrid, c, 0, false);
+                    dstGrid[0][c] = expandEvenWithVoid(v0, v1, v2);
+                    dstGrid[1][c] = expandOddWithVoid(v1, v2);
                 }
             } else {
                 dstGrid[0][c] = vEven;
@@ -120,25 +129,25 @@ public class LaplacianPyramid {
 
         // bottom row
         for (int c = 0; c < cols; c++) {
-            float v0 = src[rows / 2 - 2][c];
-            float v1 = src[rows / 2 - 1][c];
+            float v0 = src[lastSrcRow - 1][c];
+            float v1 = src[lastSrcRow][c];
             float v2 = v1;
             float vEven = 2.f * (wc * (v0 + v2) + wa * v1);
             float vOdd = 2.f * wb * (v1 + v2);
             if (Float.isNaN(vEven) || Float.isNaN(vOdd)) {
                 if (Float.isNaN(vEven) && Float.isNaN(vOdd)) {
-                    dstGrid[rows - 2][c] = Float.NaN;
-                    dstGrid[rows - 1][c] = Float.NaN;
+                    vEven = vOdd = Float.NaN;
                 } else {
-                    expandWithVoid(dstGeoGrid.getGrid(), dstGrid, c, rows - 2, false);
+                    vEven = expandEvenWithVoid(v0, v1, v2);
+                    vOdd = expandOddWithVoid(v1, v2);
                 }
-            } else {
-                dstGrid[rows - 2][c] = vEven;
-                dstGrid[rows - 1][c] = vOdd;
+            }
+            dstGrid[lastEvenRow][c] = vEven;
+            if (hasLastOddRow) {
+                dstGrid[lastEvenRow + 1][c] = vOdd;
             }
         }
     }
-    private static float[][] tempGrid = null;
 
     /**
      * Expand the size of a grid by a factor 2.
@@ -147,23 +156,42 @@ public class LaplacianPyramid {
      */
     public static GeoGrid expand(GeoGrid geoGrid, int maxCols, int maxRows) {
 
-        final int cols = geoGrid.getCols();
-        final int rows = geoGrid.getRows();
-
         // the new grid is twice as large
-        final int newCols = Math.min(maxCols, cols * 2);
-        final int newRows = Math.min(maxRows, rows * 2);
+        final int newCols = Math.min(maxCols, geoGrid.getCols() * 2);
+        final int newRows = Math.min(maxRows, geoGrid.getRows() * 2);
 
         GeoGrid expandedGrid = new GeoGrid(newCols, newRows, geoGrid.getCellSize() / 2);
         expandedGrid.setWest(geoGrid.getWest());
         expandedGrid.setNorth(geoGrid.getNorth());
+        expand(geoGrid, expandedGrid);
+        return expandedGrid;
+    }
 
-        // tempGrid holds an intermediate grid that is expanded horizontally, 
-        // but not vertically.
-        if (tempGrid == null || tempGrid.length < rows) {
-            tempGrid = new float[rows][cols * 2];
+    /**
+     * Expand the size of a grid by a factor 2 and store the result in an
+     * existing grid. The georeference of the destination grid is not changed.
+     * @param geoGrid The grid to expand.
+     * @param expandedGrid The grid that receives the expanded values. Must have
+     * twice as many columns and rows as geoGrid, or one column or row less.
+     */
+    public static void expand(GeoGrid geoGrid, GeoGrid expandedGrid) {
+
+        final int cols = geoGrid.getCols();
+        final int rows = geoGrid.getRows();
+        final int newCols = expandedGrid.getCols();
+        final int newRows = expandedGrid.getRows();
+        if (cols < 2 || rows < 2
+                || (newCols != cols * 2 && newCols != cols * 2 - 1)
+                || (newRows != rows * 2 && newRows != rows * 2 - 1)) {
+            throw new IllegalArgumentException("grids of incompatible size");
         }
 
+        // tempGrid holds an intermediate grid that is expanded horizontally, 
+        // but not vertically. It is allocated for each call, as expand is
+        // called concurrently by filters, GUI workers and server jobs, and
+        // is released when this method returns.
+        final float[][] tempGrid = new float[rows][cols * 2];
+
         LaplacianPyramid.expandBorderColumns(geoGrid, tempGrid);
         for (int r = 0; r < rows; r++) {
             final float[] tempGridRow = tempGrid[r];
@@ -201,7 +229,7 @@ public class LaplacianPyramid {
                         expandedGrid.setValue(Float.NaN, c, 2 * r);
                         expandedGrid.setValue(Float.NaN, c, 2 * r + 1);
                     } else {
-                        expandWithVoid(tempGrid, expandedGrid.getGrid(), c / 2, r, false);
+                        expandWithVoid(tempGrid, expandedGrid.getGrid(), c, r, false);
                     }
                 } else {
                     expandedGrid.setValue(vEven, c, 2 * r);
@@ -209,8 +237,6 @@ public class LaplacianPyramid {
                 }
             }
         }
-
-        return expandedGrid;
     }
 
     private static void expandWithVoid(float[][] srcGrid,
@@ -230,46 +256,62 @@ public class LaplacianPyramid {
             v2 = srcGrid[r + 1][c];
         }
 
-        float vEven = 0f;
-        float vOdd = 0f;
-        float totEvenW = 0f;
-        float totOddW = 0f;
+        final float vEven = expandEvenWithVoid(v0, v1, v2);
+        final float vOdd = expandOddWithVoid(v1, v2);
+        if (horizontal) {
+            expandedGrid[r][c * 2] = vEven;
+            expandedGrid[r][c * 2 + 1] = vOdd;
+        } else {
+            expandedGrid[r * 2][c] = vEven;
+            expandedGrid[r * 2 + 1][c] = vOdd;
+        }
+    }
 
+    /**
+     * Computes an expanded value at an even position, ignoring void values.
+     * The weights of the valid values are scaled to sum to the total weight.
+     * @return The expanded value or NaN if all three values are void.
+     */
+    private static float expandEvenWithVoid(float v0, float v1, float v2) {
+        float v = 0f;
+        float totW = 0f;
         if (!Float.isNaN(v0)) {
-            vEven = wc * v0;
-            totEvenW = wc;
+            v = wc * v0;
+            totW = wc;
         }
         if (!Float.isNaN(v1)) {
-            vEven += wa * v1;
-            vOdd += wb * v1;
-            totEvenW += wa;
-            totOddW += wb;
+            v += wa * v1;
+            totW += wa;
         }
         if (!Float.isNaN(v2)) {
-            vEven += wc * v2;
-            vOdd += wb * v2;
-            totEvenW += wc;
-            totOddW += wb;
+            v += wc * v2;
+            totW += wc;
+        }
+        if (totW == 0) {
+            return Float.NaN;
         }
+        return 2f * v * (wc * 2 + wa) / totW;
+    }
 
-        if (totEvenW == 0) {
-            vEven = Float.NaN;
+    /**
+     * Computes an expanded value at an odd position, ignoring void values.
+     * @return The expanded value or NaN if both values are void.
+     */
+    private static float expandOddWithVoid(float v1, float v2) {
+        float v = 0f;
+        float totW = 0f;
+        if (!Float.isNaN(v1)) {
+            v = wb * v1;
+            totW = wb;
         }
-        if (totOddW == 0) {
-            vOdd = Float.NaN;
+        if (!Float.isNaN(v2)) {
+            v += wb * v2;
+            totW += wb;
         }
-        final float scaleEven = (wc * 2 + wa) / totEvenW;
-        final float scaleOdd = wb * 2 / totOddW;
-
-        vEven *= 2f * scaleEven;
-        vOdd *= 2f * scaleOdd;
-        if (horizontal) {
-            expandedGrid[r][c * 2] = vEven;
-            expandedGrid[r][c * 2 + 1] = vOdd;
-        } else {
-            expandedGrid[r * 2][c] = vEven;
-            expandedGrid[r * 2 + 1][c] = vOdd;
+        if (totW == 0) {
+            return Float.NaN;
         }
+        return 2f * v * (wb * 2) / totW;
     }
 
     public static GeoGrid distanceWeightedScaling(GeoGrid geoGrid,
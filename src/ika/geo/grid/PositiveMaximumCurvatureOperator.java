@@ -68,7 +68,7 @@ public class PositiveMaximumCurvatureOperator extends ThreadedGridOperator {
         }
 
         // bottom row
-        if (endRow == rows - 1) {
+        if (endRow == rows) {
             for (int col = 0; col < cols; col++) {
                 operateBorder(src, dst, col, rows - 1, cellSize);
             }
@@ -85,20 +85,26 @@ public class PositiveMaximumCurvatureOperator extends ThreadedGridOperator {
         }
 
         // interior of grid
-        float[][] srcGrid = src.getGrid();
-        float[][] dstGrid = dst.getGrid();
+        // Row arrays are extracted before the inner loop, which allows the
+        // JIT compiler to unroll and vectorize it.
+        final float[][] srcGrid = src.getGrid();
+        final float[][] dstGrid = dst.getGrid();
         for (int row = firstInteriorRow; row < lastInteriorRow; row++) {
+            final float[] above = srcGrid[row - 1];
+            final float[] center = srcGrid[row];
+            final float[] below = srcGrid[row + 1];
+            final float[] dstRow = dstGrid[row];
             for (int col = 1; col < cols - 1; col++) {
 
-                final float z1 = srcGrid[row - 1][col - 1]; // top left
-                final float z2 = srcGrid[row - 1][col]; // top
-                final float z3 = srcGrid[row - 1][col + 1]; // top right
-                final float z4 = srcGrid[row][col - 1]; // left
-                final float z5 = srcGrid[row][col]; // center
-                final float z6 = srcGrid[row][col + 1]; // right
-                final float z7 = srcGrid[row + 1][col - 1]; // bottom left
-                final float z8 = srcGrid[row + 1][col]; // bottom
-                final float z9 = srcGrid[row + 1][col + 1]; // bottom right
+                final float z1 = above[col - 1]; // top left
+                final float z2 = above[col]; // top
+                final float z3 = above[col + 1]; // top right
+                final float z4 = center[col - 1]; // left
+                final float z5 = center[col]; // center
+                final float z6 = center[col + 1]; // right
+                final float z7 = below[col - 1]; // bottom left
+                final float z8 = below[col]; // bottom
+                final float z9 = below[col + 1]; // bottom right
 
                 final double a = gg * ((z1 + z3 + z4 + z6 + z7 + z9) / 6 - (z2 + z5 + z8) / 3);
                 final double b = gg * ((z1 + z2 + z3 + z7 + z8 + z9) / 6 - (z4 + z5 + z6) / 3);
@@ -106,7 +112,7 @@ public class PositiveMaximumCurvatureOperator extends ThreadedGridOperator {
                 final double c = (z3 + z7 - z1 - z9) / 4 * gg;
 
                 final double v = -a - b + Math.sqrt(a_b * a_b + c * c);
-                dstGrid[row][col] = v < 0f ? 0f : (float) v;
+                dstRow[col] = (float) Math.max(v, 0);
             }
         }
     }
@@ -1,8 +1,13 @@
 package ika.geo.grid;
 
+import ika.geo.GeoBitGrid;
 import ika.geo.GeoGrid;
 import ika.gui.ProgressIndicator;
+import ika.utils.Tracing;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
 
 public class TerrainSculptorFilter {
 
@@ -12,6 +17,13 @@ public class TerrainSculptorFilter {
     public static final String VALLEYS_NAME = "Valleys";
     public static final String COMBINATION_WEIGHT_NAME = "Combination Weight";
 
+    /**
+     * Version of the computations of the work packages. Is part of the keys
+     * of the disk cache and must be increased when a work package computes
+     * different results, so that results of earlier versions are not used.
+     */
+    private static final int CACHE_VERSION = 2;
+
     
     /**
      * Instances of each work package.
@@ -28,17 +40,17 @@ public class TerrainSculptorFilter {
      */
     private ArrayList<WorkPackage> workPackages;
     /**
-     * The original grid, which may contain void (NaN) values. If no void values
-     * are in the grid, this.originalGrid is identical to this.detailedGrid
+     * The original grid, which may contain void (NaN) values. Void values are
+     * not replaced; the low-pass filters exclude them from the convolution.
      */
     private GeoGrid originalGrid;
     /**
-     * The grid to filter without void (NaN) values. It is the same object as
-     * this.originalGrid if the original does not contain void values.
+     * A packed mask of the void cells of this.originalGrid, or null if the
+     * grid does not contain void values.
      */
-    private GeoGrid detailedGrid;
+    private GeoBitGrid voidMask;
     /**
-     * A grid with slope values derived from this.detailedGrid
+     * A grid with slope values derived from this.originalGrid
      */
     private GeoGrid slopeGrid;
     /**
@@ -46,6 +58,15 @@ public class TerrainSculptorFilter {
      * internal grid to reduce the number of memory allocations.
      */
     private GridGaussLowPassOperator lowPassOp;
+    /**
+     * An optional disk cache for the results of work packages. Can be null.
+     */
+    private GridDiskCache diskCache;
+    /**
+     * A hash of this.originalGrid for the keys of the disk cache. Is computed
+     * when first needed.
+     */
+    private byte[] inputDigest;
     
     private int gridFilterLoops = 10;
     private float ridgesPlancurvatureWeight = 1.5f;
@@ -98,7 +119,7 @@ public class TerrainSculptorFilter {
          * @param rows
          * @param cellSize 
          */
-        public void init(GeoGrid grid) {
+        public synchronized void init(GeoGrid grid) {
 
             if (grid.getCols() < 3 || grid.getRows() < 3 || grid.getCellSize() < 0) {
                 throw new IllegalArgumentException("grid with illegal dimensions");
@@ -124,15 +145,18 @@ public class TerrainSculptorFilter {
          * grid may have been initialized previously to any values.
          * @return 
          */
-        public GeoGrid acquire() {
+        public synchronized GeoGrid acquire() {
 
             if (pool.isEmpty()) {
+                Tracing.gridPool(true, false, 0);
                 GeoGrid grid = new GeoGrid(cols, rows, cellSize);
                 grid.setWest(west);
                 grid.setNorth(north);
                 return grid;
             } else {
-                return pool.remove(pool.size() - 1);
+                GeoGrid grid = pool.remove(pool.size() - 1);
+                Tracing.gridPool(true, true, pool.size());
+                return grid;
             }
         }
 
@@ -140,7 +164,7 @@ public class TerrainSculptorFilter {
          * The client has to call release() once the grid is no longer needed.
          * @param grid 
          */
-        public void release(GeoGrid grid) {
+        public synchronized void release(GeoGrid grid) {
             if (grid != null
                     && !pool.contains(grid)
                     && grid.getCols() == cols
@@ -149,6 +173,19 @@ public class TerrainSculptorFilter {
                     && grid.getWest() == west
                     && grid.getNorth() == north) {
                 pool.add(grid);
+                Tracing.gridPool(false, true, pool.size());
+            } else {
+                Tracing.gridPool(false, false, pool.size());
+            }
+        }
+
+        /**
+         * Adds the grids in this pool to the passed counter.
+         * @param usage The counter.
+         */
+        public synchronized void countGrids(GridMetrics.GridUsage usage) {
+            for (GeoGrid grid : pool) {
+                usage.add(grid);
             }
         }
     }
@@ -168,6 +205,24 @@ public class TerrainSculptorFilter {
 
         protected GeoGrid result;
 
+        /**
+         * The number of cells computed by the grid operators in the last call
+         * to process(), divided by the number of cells of the original grid.
+         * 0 if process() has not been called.
+         */
+        private double measuredPasses = 0;
+
+        /**
+         * Returns the approximate number of cells computed by the grid
+         * operators in process(), divided by the number of cells of the
+         * original grid. Used to report progress until process() has been
+         * called once.
+         * @return The number of passes over the grid.
+         */
+        protected double estimatedPasses() {
+            return 1;
+        }
+
         /**
          * Returns whether any parameter for this work package changed and the
          * result must be recomputed.
@@ -198,6 +253,29 @@ public class TerrainSculptorFilter {
          */
         public abstract void reset();
 
+        /**
+         * Resets the parameters, so that the result is computed again, but
+         * keeps the result grid for reuse. Called when process() has been
+         * cancelled and the result contains partial values.
+         */
+        public void invalidate() {
+            GeoGrid grid = result;
+            reset();
+            result = grid;
+        }
+
+        /**
+         * Adds the parameters read by this work package to a digest for the
+         * key of the disk cache. Returns false if the result is not cached,
+         * which is the default for work packages that are not more expensive
+         * to compute than to read from disk.
+         * @param digest The digest.
+         * @return True if the result of this work package is cached.
+         */
+        protected boolean digestParameters(MessageDigest digest) {
+            return false;
+        }
+
         /**
          * Initialize a grid for storing the result of this work package.
          * @param name 
@@ -205,17 +283,17 @@ public class TerrainSculptorFilter {
         protected void initResult(String name) {
 
             if (result == null
-                    || result.getCols() != detailedGrid.getCols()
-                    || result.getRows() != detailedGrid.getRows()
-                    || result.getCellSize() != detailedGrid.getCellSize()
-                    || result.getWest() != detailedGrid.getWest()
-                    || result.getNorth() != detailedGrid.getNorth()) {
-
-                int cols = detailedGrid.getCols();
-                int rows = detailedGrid.getRows();
-                result = new GeoGrid(cols, rows, detailedGrid.getCellSize());
-                result.setWest(detailedGrid.getWest());
-                result.setNorth(detailedGrid.getNorth());
+                    || result.getCols() != originalGrid.getCols()
+                    || result.getRows() != originalGrid.getRows()
+                    || result.getCellSize() != originalGrid.getCellSize()
+                    || result.getWest() != originalGrid.getWest()
+                    || result.getNorth() != originalGrid.getNorth()) {
+
+                int cols = originalGrid.getCols();
+                int rows = originalGrid.getRows();
+                result = new GeoGrid(cols, rows, originalGrid.getCellSize());
+                result.setWest(originalGrid.getWest());
+                result.setNorth(originalGrid.getNorth());
                 result.setName(name);
             }
         }
@@ -243,10 +321,21 @@ public class TerrainSculptorFilter {
             prevGridFilterLoops = gridFilterLoops;
         }
 
+        @Override
+        protected boolean digestParameters(MessageDigest digest) {
+            digestValue(digest, gridFilterLoops);
+            return true;
+        }
+
+        @Override
+        protected double estimatedPasses() {
+            return 2;
+        }
+
         @Override
         public void process() {
             initResult("initial low-pass filter");
-            lowPassOp.operate(detailedGrid, result, 0.4 * gridFilterLoops); // FIXME          
+            lowPassOp.operateApproximated(originalGrid, result, 0.4 * gridFilterLoops); // FIXME
         }
 
         @Override
@@ -286,6 +375,20 @@ public class TerrainSculptorFilter {
             prevRidgesMeanFilterLoopsForCombination = ridgesMeanFilterLoopsForCombination;
         }
 
+        @Override
+        protected boolean digestParameters(MessageDigest digest) {
+            digestValue(digest, ridgesMeanFilterLoops);
+            digestValue(digest, ridgesPlancurvatureWeight);
+            digestValue(digest, ridgesMeanFilterLoopsForCombination);
+            return true;
+        }
+
+        @Override
+        protected double estimatedPasses() {
+            // two low-pass filters with two passes each and four operators
+            return 8;
+        }
+
         /**
          * Generates a grid indicating the location of mountain ridges. Returns 
          * weight values in 0..1.
@@ -304,7 +407,7 @@ public class TerrainSculptorFilter {
 
                 initResult("ridges weight");
 
-                lowPassOp.operate(detailedGrid, result, 0.7 * ridgesMeanFilterLoops); // FIXME
+                lowPassOp.operate(originalGrid, result, 0.7 * ridgesMeanFilterLoops); // FIXME
 
                 // maximum curvature, all values must be larger than 0
                 new PositiveMaximumCurvatureOperator().operate(result, maxCurv);
@@ -322,6 +425,7 @@ public class TerrainSculptorFilter {
 
                 // scale to 0..1
                 new GridScaleToRangeOperator(0, 1).operate(result, result);
+                removeVoidWeights(result);
             } finally {
                 gridPool.release(maxCurv);
                 gridPool.release(planCurv);
@@ -410,6 +514,18 @@ public class TerrainSculptorFilter {
             prevValleysCurvatureUpperLimit = valleysCurvatureUpperLimit;
         }
 
+        @Override
+        protected boolean digestParameters(MessageDigest digest) {
+            digestValue(digest, valleysMeanFilterLoops);
+            digestValue(digest, valleysCurvatureUpperLimit);
+            return true;
+        }
+
+        @Override
+        protected double estimatedPasses() {
+            return 4;
+        }
+
         /**
          * Generates a grid indicating the location of valleys. Returns 
          * weight values in 0..1.
@@ -426,7 +542,7 @@ public class TerrainSculptorFilter {
                     return;
                 }
 
-                lowPassOp.operate(detailedGrid, result, 0.7 * valleysMeanFilterLoops); // FIXME
+                lowPassOp.operate(originalGrid, result, 0.7 * valleysMeanFilterLoops); // FIXME
 
                 // compute minimum curvature, the absolute values of negative curvature is returned
                 minCurv = gridPool.acquire();
@@ -442,6 +558,7 @@ public class TerrainSculptorFilter {
                 clipScaleOp.setThresholdValue(valleysCurvatureUpperLimit * minCurvatureMax);
                 clipScaleOp.setScale(1f / (valleysCurvatureUpperLimit * minCurvatureMax));
                 clipScaleOp.operate(minCurv, result);
+                removeVoidWeights(result);
             } finally {
                 gridPool.release(minCurv);
             }
@@ -523,6 +640,18 @@ public class TerrainSculptorFilter {
             prevCombinationSlopeThreshold = combinationSlopeThreshold;
         }
 
+        @Override
+        protected boolean digestParameters(MessageDigest digest) {
+            digestValue(digest, gridFilterLoops);
+            digestValue(digest, combinationSlopeThreshold);
+            return true;
+        }
+
+        @Override
+        protected double estimatedPasses() {
+            return 4;
+        }
+
         /**
          * Generates a grid for combining flat valley areas with mountainous areas.
          * @return 
@@ -538,7 +667,7 @@ public class TerrainSculptorFilter {
             }
             
             // low-pass filtered slope for smooth transitions
-            lowPassOp.operate(slopeGrid, result, 0.4 * gridFilterLoops); // FIXME
+            lowPassOp.operateApproximated(slopeGrid, result, 0.4 * gridFilterLoops); // FIXME
             
             
             // cut off large slope values
@@ -549,7 +678,8 @@ public class TerrainSculptorFilter {
             clipScaleOp.operate(result, result);
 
             // filter thresholded slope again to break sharp bevels
-            lowPassOp.operate(result, result, 0.4 * gridFilterLoops); // FIXME
+            lowPassOp.operateApproximated(result, result, 0.4 * gridFilterLoops); // FIXME
+            removeVoidWeights(result);
             
         }
 
@@ -593,7 +723,7 @@ public class TerrainSculptorFilter {
             GridCombineOperator combineOp = new GridCombineOperator();
             combineOp.setSrc2(valleysExaggerationWP.result);
             combineOp.setWeightGrid(flatMaskWP.result);
-            combineOp.setMask(originalGrid); // the original may contain void values
+            combineOp.setVoidMask(voidMask); // the original may contain void values
             combineOp.operate(ridgesExaggerationWP.result, result);
         }
 
@@ -612,6 +742,7 @@ public class TerrainSculptorFilter {
 
         lowPassOp = new GridGaussLowPassOperator();
         lowPassOp.setRelativeFilterSize(8);
+        GridMetrics.getInstance().register(this);
         
         lodWP = new LODWorkPackage();
         flatMaskWP = new FlatMaskWorkPackage();
@@ -676,62 +807,182 @@ public class TerrainSculptorFilter {
     }
 
     /**
-     * Filter this.detailedGrid.
+     * Filter this.originalGrid.
+     * <p>
+     * Filtering can be cancelled with the passed progress indicator, which is
+     * checked between work packages, or by interrupting the calling thread,
+     * which cancels the current grid operator. Work packages that computed
+     * their results before the cancellation are computed again by the next
+     * call, as their parameters are not stored.
      * @param progress
-     * @return 
+     * @return The grids for display, or null if filtering has been cancelled.
      */
     public ArrayList<GeoGrid> filter(ProgressIndicator progress) {
-       
+
         ArrayList<GeoGrid> displayGrids = new ArrayList(workPackages.size());
-        if (detailedGrid == null) {
+        if (originalGrid == null) {
             return displayGrids;
         } else {
             displayGrids.add(originalGrid);
         }
 
-        gridPool.init(detailedGrid);
+        final long startTime = System.nanoTime();
+        gridPool.init(originalGrid);
         initProgress(progress);
 
         // compute work package results
-        for (WorkPackage wp : workPackages) {
-            if (wp.parametersChanged()) {
-                if (!updateProgress(progress, wp)) {
-                    return null;
+        ArrayList<WorkPackage> processed = new ArrayList<WorkPackage>();
+        try {
+            for (WorkPackage wp : workPackages) {
+                if (wp.parametersChanged()) {
+                    if (!updateProgress(progress, wp)) {
+                        invalidate(processed);
+                        return null;
+                    }
+                    processed.add(wp);
+                    final Object event = Tracing.beginWorkPackage();
+                    process(wp, progress);
+                    Tracing.endWorkPackage(event, wp.getClass().getSimpleName(),
+                            originalGrid.getCols(), originalGrid.getRows());
                 }
-                wp.process();
+
+                // store result for display
+                displayGrids.add(wp.result);
             }
-            
-            // store result for display
-            displayGrids.add(wp.result);
+        } catch (CancellationException ex) {
+            invalidate(processed);
+            return null;
         }
         
         // store parameters
         for (WorkPackage wp : workPackages) {
             wp.storeParameters();
         }
+        GridMetrics.getInstance().pipelineFinished(System.nanoTime() - startTime);
 
         return displayGrids;
     }
 
+    /**
+     * Makes sure work packages are computed again after filtering has been
+     * cancelled. The results of the work packages may have been partially
+     * overwritten, and the parameters may change before the next call to
+     * filter().
+     * @param processed The work packages that have been processed.
+     */
+    private void invalidate(ArrayList<WorkPackage> processed) {
+        for (WorkPackage wp : processed) {
+            wp.invalidate();
+        }
+    }
+
+    /**
+     * Sets void cells of a weight grid to 0. Weights can be void in large void
+     * areas of the original grid, and next to void cells if no low-pass
+     * filter is applied after computing curvature or slope.
+     * @param weights The grid with weights.
+     */
+    private void removeVoidWeights(GeoGrid weights) {
+        if (voidMask != null) {
+            new GridChangeVoidOperator(0).operate(weights, weights);
+        }
+    }
+
+    /**
+     * Computes the result of a work package, or reads it from the disk cache.
+     * The grid operators report the cells they compute to the progress
+     * indicator. The expected number of cells is the number of cells computed
+     * by the last call, or an estimate for the first call.
+     * @param wp The work package.
+     * @param progress The progress indicator.
+     */
+    private void process(WorkPackage wp, ProgressIndicator progress) {
+        String key = diskCache == null ? null : cacheKey(wp);
+        if (key != null) {
+            GeoGrid cached = diskCache.load(key);
+            if (cached != null && cached.hasSameExtensionAndResolution(originalGrid)) {
+                wp.result = cached;
+                return;
+            }
+        }
+        final long gridCells = (long) originalGrid.getCols() * originalGrid.getRows();
+        final double passes = wp.measuredPasses > 0 ? wp.measuredPasses : wp.estimatedPasses();
+        GridProgress gridProgress = GridProgress.begin(progress, Math.round(passes * gridCells));
+        try {
+            wp.process();
+        } finally {
+            GridProgress.end();
+        }
+        wp.measuredPasses = (double) gridProgress.getCells() / gridCells;
+        if (key != null) {
+            diskCache.store(key, wp.result);
+        }
+    }
+
+    /**
+     * Returns the key of the disk cache for the result of a work package. The
+     * key is a hash of the original grid, the type of work package and the
+     * parameters read by the work package.
+     * @param wp The work package.
+     * @return The key, or null if the result of the work package is not
+     * cached.
+     */
+    private String cacheKey(WorkPackage wp) {
+        MessageDigest digest = GridDiskCache.createDigest();
+        if (!wp.digestParameters(digest)) {
+            return null;
+        }
+        if (inputDigest == null) {
+            MessageDigest gridDigest = GridDiskCache.createDigest();
+            GridDiskCache.digest(originalGrid, gridDigest);
+            inputDigest = gridDigest.digest();
+        }
+        digest.update(inputDigest);
+        digestValue(digest, CACHE_VERSION);
+        digest.update(wp.getClass().getSimpleName().getBytes());
+        return GridDiskCache.toKey(digest);
+    }
+
+    private static void digestValue(MessageDigest digest, double value) {
+        digest.update(ByteBuffer.allocate(8).putDouble(value).array());
+    }
+
+    /**
+     * Adds the grids cached by this filter to the passed counters. Called by
+     * GridMetrics from a JMX thread.
+     * @param results Counter for the results of the work packages.
+     * @param pool Counter for the grids in the grid pool.
+     * @param gauss Counter for the temporary grid of the Gaussian filter.
+     */
+    void countCachedGrids(GridMetrics.GridUsage results,
+            GridMetrics.GridUsage pool, GridMetrics.GridUsage gauss) {
+        for (WorkPackage wp : workPackages) {
+            results.add(wp.result);
+        }
+        gridPool.countGrids(pool);
+        gauss.add(lowPassOp.getTemporaryTransposedGrid());
+    }
+
     public GeoGrid getGrid() {
         return originalGrid;
     }
 
     public void setGrid(GeoGrid newGrid) {
         originalGrid = newGrid;
+        inputDigest = null;
         if (newGrid == null) {
-            detailedGrid = null;
+            voidMask = null;
             slopeGrid = null;
         } else {
             if (newGrid.getStatistics().voidCount > 0) {
-                // change NaN values to 0
-                detailedGrid = new GridChangeVoidOperator(0).operate(newGrid);
+                voidMask = new GridVoidMaskOperator().createMask(newGrid);
             } else {
-                detailedGrid = newGrid;
+                voidMask = null;
             }
+            lowPassOp.setVoidWeighting(voidMask != null);
 
-            // compute slope from grid without void values
-            slopeGrid = new GridSlopeOperator().operate(detailedGrid);
+            // slope is void next to void cells
+            slopeGrid = new GridSlopeOperator().operate(newGrid);
         }
 
         for (WorkPackage wp : workPackages) {
@@ -739,6 +990,25 @@ public class TerrainSculptorFilter {
         }
     }
 
+    /**
+     * Returns the disk cache for the results of work packages.
+     * @return The cache or null.
+     */
+    public GridDiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Sets a disk cache for the results of the work packages that are most
+     * expensive to compute. With a cache, results can be reused when the
+     * same grid is filtered again with partially identical parameters, also
+     * by other processes.
+     * @param diskCache The cache or null.
+     */
+    public void setDiskCache(GridDiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
     public void setRidgesMeanFilterLoops(int ridgesMeanFilterLoops) {
         this.ridgesMeanFilterLoops = ridgesMeanFilterLoops;
     }
@@ -1,17 +1,50 @@
 package ika.geo.grid;
 
 import ika.geo.GeoGrid;
+import ika.utils.Tracing;
 import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.CancellationException;
 
 /**
  * A base class for multi-threaded grid operators. Allocates as many threads
  * for operating on the grid as CPU cores are available.
+ * <p>
+ * The JIT compiler can unroll and vectorize the inner loop over the columns
+ * of a row if row arrays are extracted from the two-dimensional grid arrays
+ * before the loop, and if the loop body does not contain branches. Conditions
+ * should be expressed as conditional assignments, for example for void values:
+ * dstRow[col] = Float.isNaN(srcRow[col]) ? v : srcRow[col];
+ * <p>
+ * An operation can be cancelled by interrupting the thread that calls
+ * operate(). The threads check for the interruption after every
+ * ROWS_PER_CHECK rows, and operate() throws a CancellationException after
+ * all threads have stopped. The destination grid then contains partial
+ * results.
+ * <p>
+ * The threads add the cells they have computed to the GridProgress of the
+ * thread that calls operate(), if there is one.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
 public abstract class ThreadedGridOperator implements GridOperator {
 
+    /**
+     * The number of rows processed by a thread between two checks for
+     * cancellation.
+     */
+    private static final int ROWS_PER_CHECK = 16;
+
+    /**
+     * Throws a CancellationException if the current thread has been
+     * interrupted. The interrupted status is not cleared, so that subsequent
+     * operations are cancelled as well.
+     * @param name The name of the cancelled operation for the exception.
+     */
+    static void checkCancelled(String name) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException(name + ": cancelled");
+        }
+    }
+
     /**
      * Operate row-wise on the passed source grid and store the result in the passed 
      * destination grid. The source and the destination can be the same object
@@ -35,6 +68,19 @@ public abstract class ThreadedGridOperator implements GridOperator {
         return true;
     }
     
+    /**
+     * Returns the number of rows that are distributed among the threads.
+     * Defaults to the number of rows of the source grid. Must be overridden
+     * by derived classes that iterate over the rows of a destination grid
+     * with a different number of rows.
+     * @param src The source grid.
+     * @param dst The destination grid.
+     * @return The number of rows to operate on.
+     */
+    protected int getRowsCount(GeoGrid src, GeoGrid dst) {
+        return src.getRows();
+    }
+
     /**
      * Creates a new grid that will store the results of the operator. This
      * method creates a new grid of the same size as the source grid. It must be
@@ -85,25 +131,49 @@ public abstract class ThreadedGridOperator implements GridOperator {
             throw new IllegalArgumentException(getName() + ": overwriting source grid is not possible");
         }
         
-        int nRows = src.getRows();
+        checkCancelled(getName());
+        final Object event = Tracing.beginGridOperator();
+        final long startTime = System.nanoTime();
+        int nRows = getRowsCount(src, dst);
         int nThreads = Runtime.getRuntime().availableProcessors();
         ArrayList<GridOperatorThread> threads = new ArrayList(nThreads);
         int rowChunk = (nRows / nThreads) + 1;
+        Thread caller = Thread.currentThread();
+        GridProgress progress = GridProgress.current();
+        long cellsPerRow = (long) dst.getCols() * dst.getRows() / Math.max(1, nRows);
         for (int i = 0; i < nThreads; i++) {
             int startRow = i * rowChunk;
             int endRow = Math.min(nRows, startRow + rowChunk);
-            GridOperatorThread t = new GridOperatorThread(src, dst, startRow, endRow);
+            GridOperatorThread t = new GridOperatorThread(src, dst, startRow, endRow,
+                    caller, progress, cellsPerRow);
             threads.add(t);
             t.start();
         }
 
-        for (Thread t : threads) {
-            try {
-                t.join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ThreadedGridOperator.class.getName()).log(Level.SEVERE, null, ex);
+        // wait for all threads, also when interrupted, as the grids must not
+        // be changed after this method returns
+        boolean interrupted = false;
+        for (GridOperatorThread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException ex) {
+                    // join() clears the interrupted status of the caller
+                    interrupted = true;
+                    for (GridOperatorThread thread : threads) {
+                        thread.cancelled = true;
+                    }
+                }
             }
         }
+        if (interrupted) {
+            caller.interrupt();
+        }
+        checkCancelled(getName());
+
+        GridMetrics.getInstance().operatorFinished(this,
+                (long) dst.getCols() * dst.getRows(), System.nanoTime() - startTime);
+        Tracing.endGridOperator(event, getName(), dst.getCols(), dst.getRows(), nThreads);
 
         return dst;
     }
@@ -117,21 +187,47 @@ public abstract class ThreadedGridOperator implements GridOperator {
         final GeoGrid dstGrid;
         final int startRow;
         final int endRow;
+        /**
+         * The thread that called operate(). The operation is cancelled when
+         * it is interrupted.
+         */
+        final Thread caller;
+        volatile boolean cancelled;
+        /**
+         * Counts computed cells, or null.
+         */
+        final GridProgress progress;
+        final long cellsPerRow;
 
         public GridOperatorThread(GeoGrid srcGrid,
                 GeoGrid dstGrid,
                 int startRow,
-                int endRow) {
+                int endRow,
+                Thread caller,
+                GridProgress progress,
+                long cellsPerRow) {
 
             this.srcGrid = srcGrid;
             this.dstGrid = dstGrid;
             this.startRow = startRow;
             this.endRow = endRow;
+            this.caller = caller;
+            this.progress = progress;
+            this.cellsPerRow = cellsPerRow;
         }
 
         @Override
         public void run() {
-            operate(srcGrid, dstGrid, startRow, endRow);
+            for (int row = startRow; row < endRow; row += ROWS_PER_CHECK) {
+                if (cancelled || caller.isInterrupted()) {
+                    return;
+                }
+                final int chunkEnd = Math.min(endRow, row + ROWS_PER_CHECK);
+                operate(srcGrid, dstGrid, row, chunkEnd);
+                if (progress != null) {
+                    progress.add((chunkEnd - row) * cellsPerRow);
+                }
+            }
         }
     }
 }
@@ -7,6 +7,7 @@
 package ika.geoexport;
 
 import ika.geo.*;
+import ika.utils.Tracing;
 import java.io.*;
 
 /**
@@ -20,35 +21,50 @@ public class ESRIASCIIGridExporter {
 
     public static void export(GeoGrid geoGrid, String filePath) throws IOException {
 
+        final Object event = Tracing.beginGridIO();
         PrintWriter writer = null;
         try {
             writer = new PrintWriter(new BufferedWriter(new FileWriter(filePath)));
-            String voidValueStr = Float.toString(findVoidValue(geoGrid));
-            String lineSeparator = System.getProperty("line.separator");
-            writer.write("ncols " + geoGrid.getCols() + lineSeparator);
-            writer.write("nrows " + geoGrid.getRows() + lineSeparator);
-            writer.write("xllcorner " + geoGrid.getWest() + lineSeparator);
-            writer.write("yllcorner " + geoGrid.getSouth() + lineSeparator);
-            writer.write("cellsize " + geoGrid.getCellSize() + lineSeparator);
-            writer.write("nodata_value " + voidValueStr + lineSeparator);
-            float[][] grid = geoGrid.getGrid();
-            for (int r = 0; r < grid.length; ++r) {
-                for (int c = 0; c < grid[0].length; ++c) {
-                    float v = grid[r][c];
-                    if (Float.isNaN(v)) {
-                        writer.write(voidValueStr);
-                    } else {
-                        writer.write(Float.toString(v));
-                    }
-                    writer.write(" ");
-                }
-                writer.write(lineSeparator);
-            }
+            export(geoGrid, writer);
         } finally {
             if (writer != null) {
                 writer.close();
             }
         }
+        Tracing.endGridIO(event, true, "ESRI ASCII Grid", filePath,
+                geoGrid.getCols(), geoGrid.getRows());
+    }
+
+    /**
+     * Writes a grid in ESRI ASCII format to a Writer. The writer is not
+     * closed.
+     * @param geoGrid The grid to write.
+     * @param writer The destination.
+     * @throws IOException
+     */
+    public static void export(GeoGrid geoGrid, Writer writer) throws IOException {
+        String voidValueStr = Float.toString(findVoidValue(geoGrid));
+        String lineSeparator = System.getProperty("line.separator");
+        writer.write("ncols " + geoGrid.getCols() + lineSeparator);
+        writer.write("nrows " + geoGrid.getRows() + lineSeparator);
+        writer.write("xllcorner " + geoGrid.getWest() + lineSeparator);
+        writer.write("yllcorner " + geoGrid.getSouth() + lineSeparator);
+        writer.write("cellsize " + geoGrid.getCellSize() + lineSeparator);
+        writer.write("nodata_value " + voidValueStr + lineSeparator);
+        float[][] grid = geoGrid.getGrid();
+        for (int r = 0; r < grid.length; ++r) {
+            for (int c = 0; c < grid[0].length; ++c) {
+                float v = grid[r][c];
+                if (Float.isNaN(v)) {
+                    writer.write(voidValueStr);
+                } else {
+                    writer.write(Float.toString(v));
+                }
+                writer.write(" ");
+            }
+            writer.write(lineSeparator);
+        }
+        writer.flush();
     }
     
     private static float findVoidValue(GeoGrid grid) {
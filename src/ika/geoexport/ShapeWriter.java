@@ -0,0 +1,409 @@
+/*
+ * ShapeWriter.java
+ *
+ */
+package ika.geoexport;
+
+import ika.geo.GeoObject;
+import ika.geo.GeoPath;
+import ika.geo.GeoPathIterator;
+import ika.geo.GeoPathModel;
+import ika.geo.GeoPoint;
+import ika.table.DBFWriter;
+import ika.utils.FileUtils;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes an ESRI Shape file record by record, without holding the geometry in
+ * memory. Writes the .shp and .shx files, and a .dbf file if attribute
+ * columns are specified. The file lengths, the bounding box and the number
+ * of records are written to the headers when the files are closed.
+ * <p>
+ * Use this writer instead of ShapeExporter for data that is generated
+ * piecewise and is too large to be stored in a GeoSet, e.g. contour lines of
+ * a large grid.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class ShapeWriter {
+
+    /**
+     * The size of the buffer for records of the .shp file.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the file header of .shp and .shx files.
+     */
+    private static final int HEADER_BYTES = 100;
+
+    private static final int NULL_SHAPE_TYPE = 0;
+
+    private final int shapeType;
+
+    private final RandomAccessFile shpFile;
+    private final RandomAccessFile shxFile;
+    private final FileChannel shpChannel;
+    private final FileChannel shxChannel;
+    private ByteBuffer shpBuffer;
+    private final ByteBuffer shxBuffer;
+
+    /**
+     * Writes the attributes, or null.
+     */
+    private final DBFWriter dbfWriter;
+
+    /**
+     * The position in the .shp file of the next record.
+     */
+    private long shpPosition = HEADER_BYTES;
+
+    private int recordsCount = 0;
+
+    private double xMin = Double.MAX_VALUE, yMin = Double.MAX_VALUE;
+    private double xMax = -Double.MAX_VALUE, yMax = -Double.MAX_VALUE;
+
+    private boolean closed = false;
+
+    /**
+     * Creates new .shp and .shx files without attributes.
+     * @param filePath The path of the .shp file. Existing files are replaced.
+     * @param shapeType ShapeGeometryExporter.POINT_SHAPE_TYPE,
+     * POLYLINE_SHAPE_TYPE or POLYGON_SHAPE_TYPE.
+     */
+    public ShapeWriter(String filePath, int shapeType) throws IOException {
+        this(filePath, shapeType, null, null);
+    }
+
+    /**
+     * Creates new .shp, .shx and .dbf files.
+     * @param filePath The path of the .shp file. Existing files are replaced.
+     * @param shapeType ShapeGeometryExporter.POINT_SHAPE_TYPE,
+     * POLYLINE_SHAPE_TYPE or POLYGON_SHAPE_TYPE.
+     * @param columnNames The names of the attribute columns. If null, no .dbf
+     * file is written.
+     * @param columnClasses String.class or Double.class for each column.
+     */
+    public ShapeWriter(String filePath, int shapeType,
+            String[] columnNames, Class<?>[] columnClasses) throws IOException {
+
+        if (shapeType != ShapeGeometryExporter.POINT_SHAPE_TYPE
+                && shapeType != ShapeGeometryExporter.POLYLINE_SHAPE_TYPE
+                && shapeType != ShapeGeometryExporter.POLYGON_SHAPE_TYPE) {
+            throw new IllegalArgumentException("invalid shape type");
+        }
+        this.shapeType = shapeType;
+
+        filePath = FileUtils.forceFileNameExtension(filePath, "shp");
+        shpBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        shxBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE / 8);
+        RandomAccessFile shp = null, shx = null;
+        DBFWriter dbf = null;
+        try {
+            shp = new RandomAccessFile(filePath, "rw");
+            shx = new RandomAccessFile(FileUtils.replaceExtension(filePath, "shx"), "rw");
+            shp.setLength(0);
+            shx.setLength(0);
+            if (columnNames != null) {
+                dbf = new DBFWriter(FileUtils.replaceExtension(filePath, "dbf"),
+                        columnNames, columnClasses);
+            }
+        } catch (IOException e) {
+            if (shp != null) {
+                shp.close();
+            }
+            if (shx != null) {
+                shx.close();
+            }
+            throw e;
+        }
+        shpFile = shp;
+        shxFile = shx;
+        shpChannel = shp.getChannel();
+        shxChannel = shx.getChannel();
+        dbfWriter = dbf;
+
+        // leave space for the headers, which are written by close()
+        shpChannel.position(HEADER_BYTES);
+        shxChannel.position(HEADER_BYTES);
+    }
+
+    /**
+     * Appends a point.
+     * @param x The horizontal coordinate.
+     * @param y The vertical coordinate.
+     * @param attributes A value for each attribute column.
+     */
+    public void writePoint(double x, double y, Object... attributes) throws IOException {
+        if (shapeType != ShapeGeometryExporter.POINT_SHAPE_TYPE) {
+            throw new IllegalArgumentException("cannot write a point to this shape type");
+        }
+        writeAttributes(attributes);
+        beginRecord(4 + 2 * 8);
+        shpBuffer.putInt(ShapeGeometryExporter.POINT_SHAPE_TYPE);
+        shpBuffer.putDouble(x);
+        shpBuffer.putDouble(y);
+        extendBoundingBox(x, y, x, y);
+    }
+
+    /**
+     * Appends a polyline or polygon with one or more parts. The rings of
+     * polygons are closed if their last point differs from their first point.
+     * A record without geometry is written if there are no points.
+     * @param xy The points of all parts: x1, y1, x2, y2, etc.
+     * @param pointsCount The number of points in xy.
+     * @param parts The index of the first point of each part, in strictly
+     * ascending order and smaller than pointsCount. The first part must start
+     * at 0.
+     * @param partsCount The number of parts.
+     * @param attributes A value for each attribute column.
+     */
+    public void writeLines(double[] xy, int pointsCount, int[] parts, int partsCount,
+            Object... attributes) throws IOException {
+
+        if (shapeType == ShapeGeometryExporter.POINT_SHAPE_TYPE) {
+            throw new IllegalArgumentException("cannot write lines to this shape type");
+        }
+        if (pointsCount < 0 || pointsCount * 2 > xy.length
+                || partsCount < 0 || partsCount > parts.length
+                || partsCount > 0 && parts[0] != 0) {
+            throw new IllegalArgumentException("invalid parts");
+        }
+        for (int part = 1; part < partsCount; part++) {
+            if (parts[part] <= parts[part - 1] || parts[part] >= pointsCount) {
+                throw new IllegalArgumentException("invalid parts");
+            }
+        }
+        writeAttributes(attributes);
+        if (pointsCount == 0 || partsCount == 0) {
+            beginRecord(4);
+            shpBuffer.putInt(NULL_SHAPE_TYPE);
+            return;
+        }
+
+        // count the closing points that are added to polygon rings
+        final boolean polygon = shapeType == ShapeGeometryExporter.POLYGON_SHAPE_TYPE;
+        int closingPointsCount = 0;
+        if (polygon) {
+            for (int part = 0; part < partsCount; part++) {
+                if (!isRingClosed(xy, pointsCount, parts, partsCount, part)) {
+                    ++closingPointsCount;
+                }
+            }
+        }
+
+        // bounding box
+        double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE;
+        double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+        for (int i = 0; i < pointsCount; i++) {
+            final double x = xy[i * 2];
+            final double y = xy[i * 2 + 1];
+            x1 = Math.min(x1, x);
+            x2 = Math.max(x2, x);
+            y1 = Math.min(y1, y);
+            y2 = Math.max(y2, y);
+        }
+
+        final int numPoints = pointsCount + closingPointsCount;
+        beginRecord(4 + 4 * 8 + 4 + 4 + partsCount * 4 + numPoints * 2 * 8);
+        shpBuffer.putInt(shapeType);
+        shpBuffer.putDouble(x1);
+        shpBuffer.putDouble(y1);
+        shpBuffer.putDouble(x2);
+        shpBuffer.putDouble(y2);
+        shpBuffer.putInt(partsCount);
+        shpBuffer.putInt(numPoints);
+        int added = 0;
+        for (int part = 0; part < partsCount; part++) {
+            shpBuffer.putInt(parts[part] + added);
+            if (polygon && !isRingClosed(xy, pointsCount, parts, partsCount, part)) {
+                ++added;
+            }
+        }
+        for (int part = 0; part < partsCount; part++) {
+            final int first = parts[part];
+            final int end = part + 1 < partsCount ? parts[part + 1] : pointsCount;
+            shpBuffer.asDoubleBuffer().put(xy, first * 2, (end - first) * 2);
+            shpBuffer.position(shpBuffer.position() + (end - first) * 2 * 8);
+            if (polygon && !isRingClosed(xy, pointsCount, parts, partsCount, part)) {
+                shpBuffer.putDouble(xy[first * 2]);
+                shpBuffer.putDouble(xy[first * 2 + 1]);
+            }
+        }
+        extendBoundingBox(x1, y1, x2, y2);
+    }
+
+    /**
+     * Returns whether the last point of a part equals its first point.
+     */
+    private static boolean isRingClosed(double[] xy, int pointsCount,
+            int[] parts, int partsCount, int part) {
+        final int first = parts[part];
+        final int last = (part + 1 < partsCount ? parts[part + 1] : pointsCount) - 1;
+        return last > first && xy[first * 2] == xy[last * 2]
+                && xy[first * 2 + 1] == xy[last * 2 + 1];
+    }
+
+    /**
+     * Appends a GeoPath or a GeoPoint. Bezier curves of GeoPaths are not
+     * supported.
+     * @param geoObject The GeoPath or GeoPoint to write.
+     * @param attributes A value for each attribute column.
+     */
+    public void write(GeoObject geoObject, Object... attributes) throws IOException {
+        if (geoObject instanceof GeoPoint) {
+            GeoPoint geoPoint = (GeoPoint) geoObject;
+            writePoint(geoPoint.getX(), geoPoint.getY(), attributes);
+        } else if (geoObject instanceof GeoPath) {
+            GeoPath geoPath = (GeoPath) geoObject;
+            final int pointsCount = geoPath.getPointsCount();
+            double[] xy = new double[pointsCount * 2];
+            int[] parts = new int[Math.max(1, geoPath.getCompoundCount())];
+            int n = 0, partsCount = 0;
+            if (geoPath.hasOneOrMorePoints()) {
+                GeoPathIterator pi = geoPath.getIterator();
+                do {
+                    switch (pi.getInstruction()) {
+                        case GeoPathModel.MOVETO:
+                            if (partsCount == parts.length) {
+                                parts = Arrays.copyOf(parts, partsCount * 2);
+                            }
+                            parts[partsCount++] = n / 2;
+                            xy[n++] = pi.getX();
+                            xy[n++] = pi.getY();
+                            break;
+                        case GeoPathModel.LINETO:
+                            xy[n++] = pi.getX();
+                            xy[n++] = pi.getY();
+                            break;
+                        case GeoPathModel.CLOSE:
+                            break;
+                        default:
+                            throw new IllegalArgumentException("bezier curves are not supported");
+                    }
+                } while (pi.next());
+            }
+            writeLines(xy, n / 2, parts, partsCount, attributes);
+        } else {
+            throw new IllegalArgumentException("unsupported GeoObject");
+        }
+    }
+
+    /**
+     * Returns the number of records written so far.
+     * @return The number of records.
+     */
+    public int getRecordCount() {
+        return recordsCount;
+    }
+
+    /**
+     * Writes the headers and closes all files.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush(shpBuffer, shpChannel);
+            flush(shxBuffer, shxChannel);
+            final long shxSize = HEADER_BYTES + recordsCount * 8L;
+            shpChannel.write(header(shpPosition), 0);
+            shxChannel.write(header(shxSize), 0);
+        } finally {
+            try {
+                shpFile.close();
+                shxFile.close();
+            } finally {
+                if (dbfWriter != null) {
+                    dbfWriter.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a file header.
+     * @param fileSize The size of the file in bytes.
+     */
+    private ByteBuffer header(long fileSize) throws IOException {
+        if (fileSize / 2 > Integer.MAX_VALUE) {
+            throw new IOException("Shape file is too large");
+        }
+        ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES);
+        h.putInt(9994);                 // file code
+        h.position(24);                 // 5 unused integers
+        h.putInt((int) (fileSize / 2)); // file length in 16 bit words
+        h.order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(1000);                 // version
+        h.putInt(shapeType);
+        if (recordsCount > 0 && xMin <= xMax) {
+            h.putDouble(xMin);
+            h.putDouble(yMin);
+            h.putDouble(xMax);
+            h.putDouble(yMax);
+        }
+        // z and m ranges are 0
+        h.clear();
+        return h;
+    }
+
+    private void writeAttributes(Object[] attributes) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Shape file is closed");
+        }
+        if (dbfWriter != null) {
+            dbfWriter.writeRow(attributes);
+        } else if (attributes.length > 0) {
+            throw new IllegalArgumentException("no attribute columns");
+        }
+    }
+
+    /**
+     * Writes the record header and the index entry of a new record, and makes
+     * sure the buffer can hold the record content.
+     * @param contentLength The length of the record content in bytes.
+     */
+    private void beginRecord(int contentLength) throws IOException {
+        final int recordLength = 8 + contentLength;
+        if (shpBuffer.remaining() < recordLength) {
+            flush(shpBuffer, shpChannel);
+            if (shpBuffer.capacity() < recordLength) {
+                shpBuffer = ByteBuffer.allocate(recordLength);
+            }
+        }
+        if (shxBuffer.remaining() < 8) {
+            flush(shxBuffer, shxChannel);
+        }
+
+        // the index entry and the record header are big endian
+        shxBuffer.putInt((int) (shpPosition / 2));  // offset in 16 bit words
+        shxBuffer.putInt(contentLength / 2);        // content length in 16 bit words
+
+        shpBuffer.order(ByteOrder.BIG_ENDIAN);
+        shpBuffer.putInt(++recordsCount);           // record number, starting at 1
+        shpBuffer.putInt(contentLength / 2);
+        shpBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        shpPosition += recordLength;
+    }
+
+    private void extendBoundingBox(double x1, double y1, double x2, double y2) {
+        xMin = Math.min(xMin, x1);
+        yMin = Math.min(yMin, y1);
+        xMax = Math.max(xMax, x2);
+        yMax = Math.max(yMax, y2);
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
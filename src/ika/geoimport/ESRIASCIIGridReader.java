@@ -2,6 +2,7 @@ package ika.geoimport;
 
 import ika.geo.GeoGrid;
 import ika.gui.ProgressIndicator;
+import ika.utils.Tracing;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -135,12 +136,15 @@ public class ESRIASCIIGridReader {
     public static GeoGrid read(String filePath, ProgressIndicator progressIndicator)
             throws java.io.IOException {
 
+        final Object event = Tracing.beginGridIO();
         File file = new File(filePath);
         FileInputStream fis = new FileInputStream(file.getAbsolutePath());
         GeoGrid grid = ESRIASCIIGridReader.read(fis, progressIndicator);
         if (progressIndicator != null && progressIndicator.isAborted()) {
             return null;
         }
+        Tracing.endGridIO(event, false, "ESRI ASCII Grid", filePath,
+                grid.getCols(), grid.getRows());
         String name = file.getName();
         if (!"".equals(name)) {
             grid.setName(name);
@@ -0,0 +1,482 @@
+/*
+ * MappedShapeReader.java
+ *
+ */
+package ika.geoimport;
+
+import ika.geo.GeoObject;
+import ika.geo.GeoPoint;
+import ika.geo.GeoSet;
+import ika.gui.ProgressIndicator;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the geometry of a local ESRI Shape file with multiple threads. The
+ * positions of the records are read from the .shx file, or found by a scan
+ * over the record headers of the .shp file if there is no valid .shx file.
+ * The records are grouped into chunks of consecutive records, and the chunks
+ * are distributed over the threads. Each thread memory-maps a chunk and
+ * decodes the coordinates directly from the mapped buffer. The GeoObjects
+ * are added to the GeoSet in the order of the records.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+final class MappedShapeReader {
+
+    /**
+     * The approximate size of a chunk of records mapped and decoded by a
+     * thread in one piece.
+     */
+    private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The size of the windows mapped when scanning the record headers.
+     */
+    private static final int SCAN_WINDOW_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * The size of the file header of .shp and .shx files.
+     */
+    private static final int HEADER_BYTES = 100;
+
+    /**
+     * The importer that creates GeoPaths and filters records.
+     */
+    private final ShapeGeometryImporter importer;
+
+    private final File file;
+
+    /**
+     * The position of the header of each record in the file.
+     */
+    private long[] recordOffsets;
+
+    /**
+     * The number of records.
+     */
+    private int recordsCount;
+
+    /**
+     * The first record of each chunk, followed by recordsCount.
+     */
+    private int[] chunks;
+
+    /**
+     * The next chunk to decode.
+     */
+    private final AtomicInteger nextChunk = new AtomicInteger();
+
+    /**
+     * The number of decoded chunks.
+     */
+    private final AtomicInteger decodedChunks = new AtomicInteger();
+
+    /**
+     * The decoded GeoObjects of each chunk.
+     */
+    private ArrayList<GeoObject>[] results;
+
+    /**
+     * The first exception thrown by a thread, or null.
+     */
+    private volatile Exception exception;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a new instance.
+     * @param importer The importer for creating GeoPaths and filtering
+     * records.
+     * @param file The .shp file.
+     */
+    MappedShapeReader(ShapeGeometryImporter importer, File file) {
+        this.importer = importer;
+        this.file = file;
+    }
+
+    /**
+     * Reads all records.
+     * @param geoSet Receives the GeoObjects.
+     * @return The shape type of the file, or -1 if the import was cancelled.
+     */
+    int read(GeoSet geoSet) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                throw new IOException("File is not an ESRI Shape file.");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            final int fileCode = header.getInt(0);
+            if (fileCode != ShapeGeometryImporter.FILE_CODE) {
+                throw new IOException("File is not an ESRI Shape file. "
+                        + "Found file code: " + fileCode);
+            }
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            final int shapeType = header.getInt(32);
+
+            if (!readSHXFile(fileSize)) {
+                scanRecords(channel, fileSize);
+            }
+            if (!decode(channel)) {
+                return -1;
+            }
+
+            for (ArrayList<GeoObject> chunk : results) {
+                for (GeoObject geoObject : chunk) {
+                    geoSet.add(geoObject);
+                }
+            }
+            return shapeType;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the positions of the records from the .shx file.
+     * @param fileSize The size of the .shp file.
+     * @return True if the .shx file exists and is consistent with the .shp
+     * file.
+     */
+    private boolean readSHXFile(long fileSize) {
+        java.net.URL shxURL;
+        try {
+            shxURL = importer.findSHXURL(file.toURI().toURL());
+        } catch (IOException e) {
+            return false;
+        }
+        File shxFile = shxURL == null ? null : importer.findMappableFile(shxURL);
+        if (shxFile == null) {
+            return false;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(shxFile, "r");
+            final FileChannel channel = raf.getChannel();
+            final long shxSize = channel.size();
+            if (shxSize < HEADER_BYTES || (shxSize - HEADER_BYTES) / 8 > Integer.MAX_VALUE) {
+                return false;
+            }
+            final int n = (int) ((shxSize - HEADER_BYTES) / 8);
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES, n * 8L);
+            long[] offsets = new long[n];
+            long previousEnd = HEADER_BYTES;
+            for (int i = 0; i < n; i++) {
+                // offsets and lengths are in 16-bit words
+                final long offset = (index.getInt(i * 8) & 0xffffffffL) * 2;
+                final long length = (index.getInt(i * 8 + 4) & 0xffffffffL) * 2;
+                if (offset < previousEnd || offset + 8 + length > fileSize) {
+                    return false;
+                }
+                offsets[i] = offset;
+                previousEnd = offset + 8 + length;
+            }
+            recordOffsets = offsets;
+            recordsCount = n;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the positions of the records by scanning the record headers of
+     * the .shp file.
+     */
+    private void scanRecords(FileChannel channel, long fileSize) throws IOException {
+        long[] offsets = new long[1024];
+        int n = 0;
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        long pos = HEADER_BYTES;
+        while (pos + 8 <= fileSize) {
+            if (window == null || pos + 8 > windowStart + window.capacity()) {
+                windowStart = pos;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                        Math.min(SCAN_WINDOW_BYTES, fileSize - pos));
+            }
+            final long length = (window.getInt((int) (pos - windowStart) + 4) & 0xffffffffL) * 2;
+            if (pos + 8 + length > fileSize) {
+                break;
+            }
+            if (n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, n * 2);
+            }
+            offsets[n++] = pos;
+            pos += 8 + length;
+        }
+        recordOffsets = offsets;
+        recordsCount = n;
+    }
+
+    /**
+     * Decodes all records with multiple threads.
+     * @return False if the import was cancelled.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private boolean decode(FileChannel channel) throws IOException {
+
+        // group consecutive records into chunks
+        int[] c = new int[16];
+        int chunksCount = 0;
+        int first = 0;
+        while (first < recordsCount) {
+            int last = first + 1;
+            while (last < recordsCount
+                    && recordOffsets[last] - recordOffsets[first] < CHUNK_BYTES) {
+                last++;
+            }
+            if (chunksCount + 1 >= c.length) {
+                c = Arrays.copyOf(c, c.length * 2);
+            }
+            c[chunksCount++] = first;
+            first = last;
+        }
+        c[chunksCount] = recordsCount;
+        chunks = c;
+        results = new ArrayList[chunksCount];
+
+        final ProgressIndicator progressIndicator = importer.getProgressIndicator();
+        final int nThreads = Math.max(1, Math.min(chunksCount,
+                Runtime.getRuntime().availableProcessors()));
+        ArrayList<Thread> threads = new ArrayList<Thread>(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            Thread t = new DecoderThread(channel);
+            threads.add(t);
+            t.start();
+        }
+
+        // wait for all threads and report the progress
+        boolean interrupted = false;
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join(100);
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                    cancelled = true;
+                }
+                if (progressIndicator != null && !cancelled && chunksCount > 0) {
+                    final int percentage = decodedChunks.get() * 100 / chunksCount;
+                    if (!progressIndicator.progress(percentage)) {
+                        cancelled = true;
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (exception instanceof IOException) {
+            throw (IOException) exception;
+        }
+        if (exception != null) {
+            throw new IOException("Shape file is corrupt.", exception);
+        }
+        return !cancelled;
+    }
+
+    /**
+     * A thread decoding chunks until all chunks are decoded.
+     */
+    private class DecoderThread extends Thread {
+
+        private final FileChannel channel;
+
+        DecoderThread(FileChannel channel) {
+            super("Shape Reader");
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int chunk;
+                while (!cancelled && (chunk = nextChunk.getAndIncrement()) < results.length) {
+                    results[chunk] = decodeChunk(channel, chunks[chunk], chunks[chunk + 1]);
+                    decodedChunks.incrementAndGet();
+                }
+            } catch (Exception e) {
+                if (exception == null) {
+                    exception = e;
+                }
+                cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Maps and decodes a range of records.
+     * @param channel The channel of the .shp file.
+     * @param first The first record.
+     * @param last The record after the last record.
+     * @return The GeoObjects of the records.
+     */
+    private ArrayList<GeoObject> decodeChunk(FileChannel channel, int first, int last)
+            throws IOException {
+
+        final long start = recordOffsets[first];
+        final long lastLength = (last < recordsCount ? recordOffsets[last]
+                : channel.size()) - start;
+        if (lastLength > Integer.MAX_VALUE) {
+            throw new IOException("Shape file record is too large.");
+        }
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                start, lastLength);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        ArrayList<GeoObject> geoObjects = new ArrayList<GeoObject>(last - first);
+        for (int r = first; r < last; r++) {
+            final int pos = (int) (recordOffsets[r] - start);
+            // the record header is big endian
+            final int recordNumber = Integer.reverseBytes(buffer.getInt(pos));
+            final int contentLength = Integer.reverseBytes(buffer.getInt(pos + 4)) * 2;
+            if (contentLength < 4 || pos + 8L + contentLength > buffer.capacity()) {
+                if (contentLength == 0) {
+                    continue;
+                }
+                throw new EOFException("Shape file record " + recordNumber + " is corrupt.");
+            }
+            decodeRecord(buffer, pos + 8, contentLength, recordNumber, geoObjects);
+        }
+        return geoObjects;
+    }
+
+    /**
+     * Decodes a record.
+     * @param buffer The buffer with little endian byte order.
+     * @param pos The position of the content of the record.
+     * @param contentLength The length of the content in bytes.
+     * @param recordID The ID of the new GeoObjects.
+     * @param geoObjects Receives the GeoObjects.
+     */
+    private void decodeRecord(ByteBuffer buffer, int pos, int contentLength,
+            int recordID, ArrayList<GeoObject> geoObjects) throws IOException {
+
+        final int shapeType = buffer.getInt(pos);
+        switch (shapeType) {
+            case ShapeGeometryImporter.NULLSHAPE:
+                break;
+            case ShapeGeometryImporter.POINT:
+            case ShapeGeometryImporter.POINTZ:
+            case ShapeGeometryImporter.POINTM: {
+                checkLength(4 + 2 * 8, contentLength, recordID);
+                final double x = buffer.getDouble(pos + 4);
+                final double y = buffer.getDouble(pos + 12);
+                if (importer.isInRegionOfInterest(x, y, x, y)) {
+                    geoObjects.add(newPoint(x, y, recordID));
+                }
+                break;
+            }
+            case ShapeGeometryImporter.MULTIPOINT:
+            case ShapeGeometryImporter.MULTIPOINTZ:
+            case ShapeGeometryImporter.MULTIPOINTM: {
+                checkLength(4 + 4 * 8 + 4, contentLength, recordID);
+                if (!isInRegionOfInterest(buffer, pos + 4)) {
+                    break;
+                }
+                final int numPoints = buffer.getInt(pos + 36);
+                checkLength(numPoints < 0 ? -1 : 4 + 4 * 8 + 4 + numPoints * 16L,
+                        contentLength, recordID);
+                final double[] xy = readDoubles(buffer, pos + 40, numPoints * 2);
+                for (int i = 0; i < numPoints; i++) {
+                    geoObjects.add(newPoint(xy[i * 2], xy[i * 2 + 1], recordID));
+                }
+                break;
+            }
+            case ShapeGeometryImporter.POLYLINE:
+            case ShapeGeometryImporter.POLYLINEZ:
+            case ShapeGeometryImporter.POLYLINEM:
+            case ShapeGeometryImporter.POLYGON:
+            case ShapeGeometryImporter.POLYGONZ:
+            case ShapeGeometryImporter.POLYGONM: {
+                checkLength(4 + 4 * 8 + 4 + 4, contentLength, recordID);
+                if (!isInRegionOfInterest(buffer, pos + 4)) {
+                    break;
+                }
+                final int numParts = buffer.getInt(pos + 36);
+                final int numPoints = buffer.getInt(pos + 40);
+                checkLength(numParts < 0 || numPoints < 0 ? -1
+                        : 4 + 4 * 8 + 4 + 4 + numParts * 4L + numPoints * 16L,
+                        contentLength, recordID);
+                final int[] pointIds = new int[numParts];
+                ByteBuffer b = buffer.duplicate();
+                b.order(ByteOrder.LITTLE_ENDIAN);
+                b.position(pos + 44);
+                b.asIntBuffer().get(pointIds);
+                final double[] xy = readDoubles(buffer, pos + 44 + numParts * 4, numPoints * 2);
+                final boolean polygon = shapeType == ShapeGeometryImporter.POLYGON
+                        || shapeType == ShapeGeometryImporter.POLYGONZ
+                        || shapeType == ShapeGeometryImporter.POLYGONM;
+                geoObjects.add(importer.createGeoPath(xy, pointIds, polygon, recordID));
+                break;
+            }
+            case ShapeGeometryImporter.MULTIPATCH:
+                throw new IOException("Multipatch Shape files are not supported.");
+            default:
+                throw new IOException("Shapefile contains unsupported "
+                        + "geometry type: " + shapeType);
+        }
+    }
+
+    private static GeoPoint newPoint(double x, double y, int recordID) {
+        GeoPoint geoPoint = new GeoPoint(x, y);
+        geoPoint.setID(recordID);
+        return geoPoint;
+    }
+
+    /**
+     * Throws an exception if a record is shorter than required.
+     * @param required The required length, or a negative value if the record
+     * is invalid.
+     */
+    private static void checkLength(long required, int contentLength, int recordID)
+            throws IOException {
+        if (required > contentLength || required < 0) {
+            throw new IOException("Shape file record " + recordID + " is corrupt.");
+        }
+    }
+
+    /**
+     * Returns whether the bounding box of a record intersects the region of
+     * interest.
+     * @param pos The position of the bounding box.
+     */
+    private boolean isInRegionOfInterest(ByteBuffer buffer, int pos) {
+        return importer.isInRegionOfInterest(buffer.getDouble(pos),
+                buffer.getDouble(pos + 8), buffer.getDouble(pos + 16),
+                buffer.getDouble(pos + 24));
+    }
+
+    /**
+     * Copies doubles from a little endian buffer to a new array.
+     */
+    private static double[] readDoubles(ByteBuffer buffer, int pos, int count) {
+        ByteBuffer b = buffer.duplicate();
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        b.position(pos);
+        double[] values = new double[count];
+        b.asDoubleBuffer().get(values);
+        return values;
+    }
+}
@@ -8,34 +8,45 @@ package ika.geoimport;
 
 import ika.geo.*;
 import ika.utils.MixedEndianDataInputStream;
+import java.awt.geom.Rectangle2D;
 import java.io.*;
 
 /**
  * An importer for ESRI shape files. This importer only reads geometry from
  * .shp files.
+ * <p>
+ * Local files are read with a MappedShapeReader, which memory-maps the file
+ * and decodes the records with multiple threads. Other sources are read
+ * sequentially from a stream.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class ShapeGeometryImporter extends GeoImporter {
 
     /** Identifiers for different shape types. */
-    private static final int NULLSHAPE = 0;
-    private static final int POINT = 1;
-    private static final int POLYLINE = 3;
-    private static final int POLYGON = 5;
-    private static final int MULTIPOINT = 8;
-    private static final int POINTZ = 11;
-    private static final int POLYLINEZ = 13;
-    private static final int POLYGONZ = 15;
-    private static final int MULTIPOINTZ = 18;
-    private static final int POINTM = 21;
-    private static final int POLYLINEM = 23;
-    private static final int POLYGONM = 25;
-    private static final int MULTIPOINTM = 28;
-    private static final int MULTIPATCH = 31;   // not supported yet
+    static final int NULLSHAPE = 0;
+    static final int POINT = 1;
+    static final int POLYLINE = 3;
+    static final int POLYGON = 5;
+    static final int MULTIPOINT = 8;
+    static final int POINTZ = 11;
+    static final int POLYLINEZ = 13;
+    static final int POLYGONZ = 15;
+    static final int MULTIPOINTZ = 18;
+    static final int POINTM = 21;
+    static final int POLYLINEM = 23;
+    static final int POLYGONM = 25;
+    static final int MULTIPOINTM = 28;
+    static final int MULTIPATCH = 31;   // not supported yet
     /**
      * ESRI shapefile magic code at the beginning of the .shp file.
      */
-    private static final int FILE_CODE = 9994;
+    static final int FILE_CODE = 9994;
+
+    /**
+     * Only records intersecting this rectangle are imported. If null, all
+     * records are imported.
+     */
+    private Rectangle2D regionOfInterest;
 
     /**
      * Creates a new instance of ShapeGeometryImporter
@@ -43,6 +54,37 @@ public class ShapeGeometryImporter extends GeoImporter {
     public ShapeGeometryImporter() {
     }
 
+    /**
+     * Sets a region of interest. Only records with a bounding box
+     * intersecting the region are imported. Other records are skipped
+     * without decoding their coordinates.
+     * @param regionOfInterest The region in the coordinate system of the
+     * Shape file, or null to import all records.
+     */
+    public void setRegionOfInterest(Rectangle2D regionOfInterest) {
+        this.regionOfInterest = regionOfInterest == null
+                ? null : (Rectangle2D) regionOfInterest.clone();
+    }
+
+    /**
+     * Returns the region of interest.
+     * @return The region, or null if all records are imported.
+     */
+    public Rectangle2D getRegionOfInterest() {
+        return regionOfInterest == null
+                ? null : (Rectangle2D) regionOfInterest.clone();
+    }
+
+    /**
+     * Returns whether a bounding box intersects the region of interest.
+     * Boxes touching the region intersect.
+     */
+    boolean isInRegionOfInterest(double xMin, double yMin, double xMax, double yMax) {
+        final Rectangle2D r = regionOfInterest;
+        return r == null || (xMin <= r.getMaxX() && xMax >= r.getMinX()
+                && yMin <= r.getMaxY() && yMax >= r.getMinY());
+    }
+
     protected java.net.URL findDataURL(java.net.URL url) {
 
         if (url == null || url.getPath().length() < 5) {
@@ -78,7 +120,7 @@ public class ShapeGeometryImporter extends GeoImporter {
         return "shp";
     }
 
-    private java.net.URL findSHXURL(java.net.URL url) {
+    java.net.URL findSHXURL(java.net.URL url) {
         if (url == null || url.getPath().length() < 5) {
             return null;
         }
@@ -94,17 +136,68 @@ public class ShapeGeometryImporter extends GeoImporter {
         return bis;
     }
 
-    protected GeoObject importData(java.net.URL url) throws IOException {
-        MixedEndianDataInputStream is = null;
+    /**
+     * Returns the local file of a data URL, if it can be memory-mapped.
+     * @param url The URL of the data file.
+     * @return The file, or null if the data must be read from the stream
+     * returned by findInputStream().
+     */
+    protected File findMappableFile(java.net.URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
         try {
-            url = this.findDataURL(url);
-            if (url == null) {
-                return null;
-            }
+            File file = new File(url.toURI());
+            return file.isFile() ? file : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    protected GeoObject importData(java.net.URL url) throws IOException {
+        url = this.findDataURL(url);
+        if (url == null) {
+            return null;
+        }
+
+        GeoSet geoSet = this.createGeoSet();
+        geoSet.setSpatialIndexEnabled(true);
+        geoSet.setName(ika.utils.FileUtils.getFileNameWithoutExtension(url.getPath()));
+
+        final File file = this.findMappableFile(url);
+        final int shapeType;
+        if (file != null) {
+            shapeType = new MappedShapeReader(this, file).read(geoSet);
+        } else {
+            shapeType = this.readStream(url, geoSet);
+        }
+        if (shapeType < 0) {
+            return null;
+        }
 
-            GeoSet geoSet = this.createGeoSet();
-            geoSet.setName(ika.utils.FileUtils.getFileNameWithoutExtension(url.getPath()));
+        // setup the symbol
+        VectorSymbol symbol = new VectorSymbol();
+        symbol.setScaleInvariant(true);
+        symbol.setStrokeWidth(1);
+        if (shapeType == POLYGON || shapeType == POLYGONZ || shapeType == POLYGONM) {
+            symbol.setFilled(true);
+            symbol.setFillColor(java.awt.Color.WHITE);
+        }
+        geoSet.setVectorSymbol(symbol);
 
+        return geoSet;
+    }
+
+    /**
+     * Reads the records sequentially from the stream returned by
+     * findInputStream().
+     * @param url The URL of the data file.
+     * @param geoSet Receives the imported GeoObjects.
+     * @return The shape type of the file, or -1 if the import was cancelled.
+     */
+    private int readStream(java.net.URL url, GeoSet geoSet) throws IOException {
+        MixedEndianDataInputStream is = null;
+        try {
             BufferedInputStream bis = this.findInputStream(url);
             is = new MixedEndianDataInputStream(bis);
 
@@ -141,7 +234,7 @@ public class ShapeGeometryImporter extends GeoImporter {
                     if (progressIndicator != null) {
                         final int percentage = (currentRecord + 1) * 100 / recordCount;
                         if (!progressIndicator.progress(percentage)) {
-                            return null;
+                            return -1;
                         }
                     }
                     if (++currentRecord == recordCount) {
@@ -151,19 +244,7 @@ public class ShapeGeometryImporter extends GeoImporter {
             } catch (EOFException e) {
                 // EOFException indicates that all records have been read.
             }
-
-            // setup the symbol
-            VectorSymbol symbol = new VectorSymbol();
-            symbol.setScaleInvariant(true);
-            symbol.setStrokeWidth(1);
-            if (shapeType == POLYGON || shapeType == POLYGONZ || shapeType == POLYGONM) {
-                symbol.setFilled(true);
-                symbol.setFillColor(java.awt.Color.WHITE);
-            }
-            geoSet.setVectorSymbol(symbol);
-
-            return geoSet;
-
+            return shapeType;
         } finally {
             if (is != null) {
                 is.close();
@@ -231,9 +312,11 @@ public class ShapeGeometryImporter extends GeoImporter {
 
         final double x = is.readLittleEndianDouble();
         final double y = is.readLittleEndianDouble();
-        GeoPoint geoPoint = new GeoPoint(x, y);
-        geoSet.add(geoPoint);
-        geoSet.setID(recordID);
+        if (isInRegionOfInterest(x, y, x, y)) {
+            GeoPoint geoPoint = new GeoPoint(x, y);
+            geoPoint.setID(recordID);
+            geoSet.add(geoPoint);
+        }
         return 2 * 8;
 
     }
@@ -241,7 +324,9 @@ public class ShapeGeometryImporter extends GeoImporter {
     private int readMultipoint(MixedEndianDataInputStream is, GeoSet geoSet, int recordID)
             throws IOException {
 
-        is.skipBytes(4 * 8); // skip bounding box
+        if (!readBoundingBox(is)) {
+            return 4 * 8;
+        }
         final int numPoints = is.readLittleEndianInt();
         for (int ptID = 0; ptID < numPoints; ptID++) {
             readPoint(is, geoSet, recordID);
@@ -250,59 +335,40 @@ public class ShapeGeometryImporter extends GeoImporter {
 
     }
 
+    /**
+     * Reads the bounding box of a record.
+     * @return True if the bounding box intersects the region of interest.
+     */
+    private boolean readBoundingBox(MixedEndianDataInputStream is)
+            throws IOException {
+        final double xMin = is.readLittleEndianDouble();
+        final double yMin = is.readLittleEndianDouble();
+        final double xMax = is.readLittleEndianDouble();
+        final double yMax = is.readLittleEndianDouble();
+        return isInRegionOfInterest(xMin, yMin, xMax, yMax);
+    }
+
     private int readPolyline(MixedEndianDataInputStream is, GeoSet geoSet,
             int recordID) throws IOException {
-
-        is.skipBytes(4 * 8); // skip bounding box
-        final int numParts = is.readLittleEndianInt();
-        final int numPoints = is.readLittleEndianInt();
-
-        // read indices into point array
-        int[] pointIds = new int[numParts];
-        for (int partID = 0; partID < numParts; partID++) {
-            pointIds[partID] = is.readLittleEndianInt();
-        }
-
-        // read point array
-        double[] x = new double[numPoints];
-        double[] y = new double[numPoints];
-        for (int ptID = 0; ptID < numPoints; ptID++) {
-            x[ptID] = is.readLittleEndianDouble();
-            y[ptID] = is.readLittleEndianDouble();
-        }
-
-        // construct one GeoPath
-        GeoPath geoPath = this.createGeoPath();
-        geoPath.setID(recordID);
-
-        for (int partID = 0; partID < numParts; partID++) {
-
-            int firstPtID = pointIds[partID];
-            int lastPtID = partID + 1 < numParts ? pointIds[partID + 1] : numPoints;
-
-            // part must have at least two points
-            if ((lastPtID - firstPtID) < 2) {
-                continue;
-            }
-
-            geoPath.moveTo(x[firstPtID], y[firstPtID]);
-            for (int ptID = firstPtID + 1; ptID < lastPtID; ptID++) {
-                geoPath.lineTo(x[ptID], y[ptID]);
-            }
-        }
-
-        geoSet.add(geoPath);
-
-        return 4 * 8 + 4 + 4 + numParts * 4 + numPoints * 2 * 8;
+        return readParts(is, geoSet, recordID, false);
     }
 
     private int readPolygon(MixedEndianDataInputStream is, GeoSet geoSet,
             int recordID) throws IOException {
+        return readParts(is, geoSet, recordID, true);
+    }
 
-        is.skipBytes(4 * 8); // skip bounding box
+    private int readParts(MixedEndianDataInputStream is, GeoSet geoSet,
+            int recordID, boolean polygon) throws IOException {
 
+        if (!readBoundingBox(is)) {
+            return 4 * 8;
+        }
         final int numParts = is.readLittleEndianInt();
         final int numPoints = is.readLittleEndianInt();
+        if (numParts < 0 || numPoints < 0) {
+            throw new IOException("Shape file record " + recordID + " is corrupt.");
+        }
 
         // read indices into point array
         int[] pointIds = new int[numParts];
@@ -311,40 +377,88 @@ public class ShapeGeometryImporter extends GeoImporter {
         }
 
         // read point array
-        double[] x = new double[numPoints];
-        double[] y = new double[numPoints];
-        for (int ptID = 0; ptID < numPoints; ptID++) {
-            x[ptID] = is.readLittleEndianDouble();
-            y[ptID] = is.readLittleEndianDouble();
+        double[] xy = new double[numPoints * 2];
+        for (int i = 0; i < xy.length; i++) {
+            xy[i] = is.readLittleEndianDouble();
         }
 
-        // construct one GeoPath
-        GeoPath geoPath = this.createGeoPath();
-        geoPath.setID(recordID);
+        geoSet.add(createGeoPath(xy, pointIds, polygon, recordID));
+        return 4 * 8 + 4 + 4 + numParts * 4 + numPoints * 2 * 8;
+    }
 
-        // add sections
+    /**
+     * Creates a GeoPath for a polyline or polygon record. Parts with less
+     * than two points are ignored. The rings of polygons are closed, and the
+     * last point of a ring is omitted if it equals the first point.
+     * @param xy The points of all parts: x1, y1, x2, y2, etc.
+     * @param pointIds The index of the first point of each part.
+     * @param polygon True if the parts are rings of a polygon.
+     * @param recordID The ID of the new GeoPath.
+     * @return The new GeoPath.
+     */
+    GeoPath createGeoPath(double[] xy, int[] pointIds, boolean polygon,
+            int recordID) {
+
+        // count points and drawing instructions
+        final int numPoints = xy.length / 2;
+        final int numParts = pointIds.length;
+        int pointsCount = 0;
+        int instructionsCount = 0;
         for (int partID = 0; partID < numParts; partID++) {
-            int firstPtID = pointIds[partID];
-            int lastPtID = partID + 1 < numParts ? pointIds[partID + 1] : numPoints - 1;
+            final int n = partLength(xy, pointIds, partID, polygon);
+            if (n >= 2) {
+                pointsCount += n;
+                instructionsCount += polygon && n > 2 ? n + 1 : n;
+            }
+        }
 
-            // part must have at least two points
-            if ((lastPtID - firstPtID) < 2) {
+        // copy the parts
+        final double[] points = new double[pointsCount * 2];
+        final byte[] instructions = new byte[instructionsCount];
+        int p = 0, i = 0;
+        for (int partID = 0; partID < numParts; partID++) {
+            final int n = partLength(xy, pointIds, partID, polygon);
+            if (n < 2) {
                 continue;
             }
-
-            geoPath.moveTo(x[firstPtID], y[firstPtID]);
-            for (int ptID = firstPtID + 1; ptID < lastPtID; ptID++) {
-                geoPath.lineTo(x[ptID], y[ptID]);
+            final int firstPtID = Math.max(0, Math.min(pointIds[partID], numPoints));
+            System.arraycopy(xy, firstPtID * 2, points, p, n * 2);
+            p += n * 2;
+            instructions[i++] = GeoPathModel.MOVETO;
+            for (int j = 1; j < n; j++) {
+                instructions[i++] = GeoPathModel.LINETO;
             }
-
-            // close polygon when there are more than 2 points
-            if (geoPath.getDrawingInstructionCount() > 2) {
-                geoPath.closePath();
+            if (polygon && n > 2) {
+                instructions[i++] = GeoPathModel.CLOSE;
             }
         }
 
-        geoSet.add(geoPath);
-        return 4 * 8 + 4 + 4 + numParts * 4 + numPoints * 2 * 8;
+        GeoPathModel pathModel = new GeoPathModel();
+        pathModel.reset(points, instructions);
+        GeoPath geoPath = this.createGeoPath();
+        geoPath.setPathModel(pathModel);
+        geoPath.setID(recordID);
+        return geoPath;
+    }
+
+    /**
+     * Returns the number of points of a part, without the closing point of
+     * polygon rings.
+     */
+    private static int partLength(double[] xy, int[] pointIds, int partID,
+            boolean polygon) {
+        final int numPoints = xy.length / 2;
+        final int firstPtID = Math.max(0, Math.min(pointIds[partID], numPoints));
+        final int lastPtID = partID + 1 < pointIds.length
+                ? Math.max(firstPtID, Math.min(pointIds[partID + 1], numPoints))
+                : numPoints;
+        int n = lastPtID - firstPtID;
+        if (polygon && n > 2
+                && xy[firstPtID * 2] == xy[(lastPtID - 1) * 2]
+                && xy[firstPtID * 2 + 1] == xy[(lastPtID - 1) * 2 + 1]) {
+            --n;
+        }
+        return n;
     }
 
     /**
@@ -378,40 +492,4 @@ public class ShapeGeometryImporter extends GeoImporter {
         }
 
     }
-
-    private int[] readSHXFile(java.net.URL shapeURL) {
-
-        MixedEndianDataInputStream is = null;
-        try {
-            java.net.URL shxURL = findSHXURL(shapeURL);
-            if (shxURL == null) {
-                return null;
-            }
-            BufferedInputStream bis = new BufferedInputStream(shxURL.openStream());
-            is = new MixedEndianDataInputStream(bis);
-            is.skipBytes(24);
-            final int fileLength = is.readInt() * 2;
-            final int recordsCount = (fileLength - 100) / 8;
-            int[] offsets = new int[recordsCount];
-            is.skipBytes(72);
-
-            for (int i = 0; i < recordsCount; i++) {
-                System.out.println("Shape " + i);
-                System.out.println("Offset: " + is.readInt() * 2);
-                System.out.println("Content Length: " + is.readInt() * 2);
-            }
-
-            return null;
-        } catch (java.io.IOException e) {
-            return null;
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (java.io.IOException e) {
-                }
-            }
-        }
-
-    }
 }
\ No newline at end of file
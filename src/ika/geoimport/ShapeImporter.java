@@ -39,9 +39,15 @@ public class ShapeImporter extends ShapeGeometryImporter
             throw new java.io.IOException("DBF Shape attributes corrupt.");
         }
 
-        // create a link between the table and the geometry
+        // create a link between the table and the geometry. If only a region
+        // is imported, rows are linked by the record number, which is the ID
+        // of the GeoObjects and starts at 1.
         if (geoSet != null && table != null) {
-            this.tableLink = new TableLink(table, geoSet);
+            if (this.getRegionOfInterest() == null) {
+                this.tableLink = new TableLink(table, geoSet);
+            } else {
+                this.tableLink = new TableLink(table, geoSet, 1);
+            }
         } else {
             this.tableLink = null;
         }
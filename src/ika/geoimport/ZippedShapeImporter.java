@@ -30,4 +30,11 @@ public class ZippedShapeImporter extends ShapeImporter {
         BufferedInputStream bis = new BufferedInputStream( new GZIPInputStream(url.openStream()));
         return bis;
     }
+
+    /**
+     * Gzipped files cannot be memory-mapped.
+     */
+    protected java.io.File findMappableFile(java.net.URL url) {
+        return null;
+    }
 }
@@ -0,0 +1,31 @@
+/*
+ * CellRateIndicator.java
+ *
+ */
+package ika.gui;
+
+/**
+ * A progress indicator that also displays the number of grid cells processed
+ * per second. Implemented by progress indicators in addition to
+ * ProgressIndicator.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
+ */
+public interface CellRateIndicator {
+
+    /**
+     * Informs of the number of cells processed per second by the current
+     * task. Can be called from any thread.
+     * @param cellsPerSecond The number of cells per second, averaged since the
+     * start of the current task.
+     */
+    public void setCellRate(double cellsPerSecond);
+
+    /**
+     * Formats a rate for display.
+     * @param cellsPerSecond The number of cells per second.
+     * @return The formatted rate, for example "12.3 million cells per second".
+     */
+    public static String formatCellRate(double cellsPerSecond) {
+        return String.format("%.1f million cells per second", cellsPerSecond / 1e6);
+    }
+}
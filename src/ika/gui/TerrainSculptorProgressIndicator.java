@@ -15,7 +15,7 @@ import javax.swing.SwingWorker;
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public abstract class TerrainSculptorProgressIndicator<T> extends SwingWorker<T, Integer>
-        implements ProgressIndicator {
+        implements ProgressIndicator, CellRateIndicator {
 
     /**
      * The GUI. Must be accessed by the Swing thread only.
@@ -35,6 +35,15 @@ public abstract class TerrainSculptorProgressIndicator<T> extends SwingWorker<T,
      * synchronized.
      */
     private boolean aborted = false;
+    /**
+     * The thread that is interrupted by abort(), or null. Access must be
+     * synchronized.
+     */
+    private Thread interruptibleThread;
+    /**
+     * The message of the current task. Access must be synchronized.
+     */
+    private String message = "";
     /**
      * flag to remember whether the duration of the task is indeterminate.
      */
@@ -129,6 +138,9 @@ public abstract class TerrainSculptorProgressIndicator<T> extends SwingWorker<T,
         synchronized (this) {
             // the client has to regularly check the aborted flag.
             this.aborted = true;
+            if (interruptibleThread != null) {
+                interruptibleThread.interrupt();
+            }
         }
 
         SwingUtilities.invokeLater(new Runnable() {
@@ -139,6 +151,31 @@ public abstract class TerrainSculptorProgressIndicator<T> extends SwingWorker<T,
         });
     }
 
+    /**
+     * Lets abort() interrupt the current thread, so that operations that check
+     * the interrupted status stop immediately. Must be called in
+     * doInBackground(), followed by endInterruptible() in a finally block.
+     */
+    protected void beginInterruptible() {
+        synchronized (this) {
+            interruptibleThread = Thread.currentThread();
+            if (aborted) {
+                interruptibleThread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops abort() from interrupting the current thread and clears the
+     * interrupted status, as the thread is reused for other workers.
+     */
+    protected void endInterruptible() {
+        synchronized (this) {
+            interruptibleThread = null;
+            Thread.interrupted();
+        }
+    }
+
     /**
      * Inform the dialog that the operation has completed and it can be hidden.
      */
@@ -195,6 +232,28 @@ public abstract class TerrainSculptorProgressIndicator<T> extends SwingWorker<T,
     }
 
     public void setMessage(final String msg) {
+        synchronized (this) {
+            message = msg;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                progressPanel.setMessage(msg);
+            }
+        });
+    }
+
+    /**
+     * Displays the number of cells per second below the message of the
+     * current task.
+     * @param cellsPerSecond The number of cells per second.
+     */
+    public void setCellRate(double cellsPerSecond) {
+        final String msg;
+        synchronized (this) {
+            msg = "<html>" + message + "<br>"
+                    + CellRateIndicator.formatCellRate(cellsPerSecond) + "</html>";
+        }
         SwingUtilities.invokeLater(new Runnable() {
 
             public void run() {
@@ -29,6 +29,7 @@ import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
 
 /**
  * A document window containing a map.
@@ -50,9 +51,28 @@ public class TerrainSculptorWindow extends MainWindow
     }
     private TerrainSculptorFilter gridFilter = new TerrainSculptorFilter();
     private ArrayList<GeoGrid> displayGrids;
+    /**
+     * Displays one of the displayGrids in the map.
+     */
+    private final GeoTiledGridImage mapImage = new GeoTiledGridImage();
+    private final GridShadeOperator shadeOperator = new GridShadeOperator();
     private boolean adjustingGUI = false;
     private RecentDocumentsManager rdm;
     private boolean deferredFiltering = false;
+    /**
+     * The running filter or null. Only one filter runs at any time.
+     */
+    private TerrainSculptorProgressIndicator<ArrayList<GeoGrid>> filterWorker;
+    /**
+     * True if the parameters changed while the filter was running. The running
+     * filter is cancelled and a new filter is started when it has stopped.
+     */
+    private boolean refilter = false;
+    /**
+     * Actions that are run when the running filter has stopped. See
+     * stopFiltering().
+     */
+    private ArrayList<Runnable> afterFilterActions = new ArrayList<Runnable>();
 
     /**
      * Creates new form BaseMainWindow
@@ -72,6 +92,10 @@ public class TerrainSculptorWindow extends MainWindow
         // register this object so that rendering parameters can be customized.
         this.mapComponent.setRenderParamsProvider(this);
 
+        // repaint the map when tiles of the displayed grid have been rendered
+        mapImage.setSelectable(false);
+        mapImage.setRepaintComponent(mapComponent);
+
         mapComponent.getPageFormat().setVisible(false);
 
         // add a MapEventListener: When the map changes, the dirty
@@ -243,9 +267,26 @@ public class TerrainSculptorWindow extends MainWindow
             return;
         }
 
+        stopFiltering(new Runnable() {
+
+            @Override
+            public void run() {
+                readDEM(filePath);
+            }
+        });
+    }
+
+    /**
+     * Read a grid file asynchronously. Filtering must not be running.
+     *
+     * @param filePath
+     */
+    private void readDEM(final String filePath) {
+
         // release previous grid to free memory
         gridFilter.setGrid(null);
         displayGrids = null;
+        resetExportMenu();
 
         SwingWorkerWithProgressIndicator worker;
         worker = new SwingWorkerWithProgressIndicator<GeoGrid>(
@@ -344,25 +385,27 @@ public class TerrainSculptorWindow extends MainWindow
         GeoGrid grid = getNamedGrid(nameOfDisplayGrid);
         Rectangle2D visArea = mapComponent.getVisibleArea();
         mapComponent.removeAllGeoObjects();
+        // discard the tiles of grids of previous filter runs
+        mapImage.retainGrids(displayGrids);
         if (grid == null) {
+            mapImage.setGrid(null, null);
             return;
         }
 
-        // generate an image for display in the map
-        // FIXME: instead of allocating a new GeoImage, the existing image 
-        // could be re-used.
-        final GeoImage image;
+        // display the grid with tiles that are computed for the visible area.
+        // Tiles of a previous filter run are only computed again where the
+        // grid has changed, and the tiles of a grid that was displayed before
+        // are shown again without computation.
         boolean shading = !("Combination Weight".equals(nameOfDisplayGrid));
         if (shading) {
-            image = new GridShadeOperator().operateToImage(grid);
+            mapImage.setGrid(grid, shadeOperator);
         } else {
-            image = new GridToImageOperator().operate(grid);
+            mapImage.setGrid(grid, new GridToImageOperator().createTileRenderer(grid));
         }
-        image.setSelectable(false);
 
-        mapComponent.addGeoObject(image, false);
+        mapComponent.addGeoObject(mapImage, false);
         mapComponent.zoomOnRectangle(visArea);
-        if (!hadGrids || !mapComponent.isObjectVisibleOnMap(image, true)) {
+        if (!hadGrids || !mapComponent.isObjectVisibleOnMap(mapImage, true)) {
             mapComponent.showAll();
         }
 
@@ -402,15 +445,74 @@ public class TerrainSculptorWindow extends MainWindow
 
     }
 
+    /**
+     * Cancels the running filter and runs an action that changes the grid or
+     * the parameters of the filter when the filter has stopped. The action is
+     * run immediately if no filter is running. Otherwise, the Event
+     * Dispatching Thread is not blocked while waiting for the filter, and the
+     * action is run after the filter has stopped, in the order in which the
+     * actions were passed. The partial results of the cancelled filter are
+     * not displayed. Must be called in the Event Dispatching Thread.
+     * @param action The action to run.
+     */
+    private void stopFiltering(Runnable action) {
+        if (filterWorker == null) {
+            action.run();
+            return;
+        }
+        afterFilterActions.add(action);
+        refilter = false;
+        filterWorker.abort();
+    }
+
+    /**
+     * Starts filtering. If filtering is not deferred, the progress dialog does
+     * not block the window, and changes to the parameters cancel the running
+     * filter and start a new filter with the new parameters.
+     */
     private void filter() {
 
-        TerrainSculptorProgressIndicator worker;
+        TerrainSculptorProgressIndicator<ArrayList<GeoGrid>> worker;
         worker = new TerrainSculptorProgressIndicator<ArrayList<GeoGrid>>(
-                this, appName() + " - Filtering", "", true) {
+                this, appName() + " - Filtering", "", deferredFiltering) {
 
             private void closeProgressGUI(boolean hadGrids) {
+                filterWorker = null;
                 deferredFiltering = isDeferredFiltering();
                 updateEditMenu(); // enable Filter command
+                updateFileMenu(); // enable Save commands
+
+                // run the actions passed to stopFiltering(), which may start
+                // a new filter
+                ArrayList<Runnable> actions = afterFilterActions;
+                afterFilterActions = new ArrayList<Runnable>();
+                if (!actions.isEmpty()) {
+                    try {
+                        resetExportMenu();
+                        resetMap(hadGrids);
+                    } finally {
+                        complete();
+                    }
+                    for (Runnable action : actions) {
+                        stopFiltering(action);
+                    }
+                    // the parameters changed while filtering. A filter
+                    // started by the actions reads the current parameters.
+                    if (refilter && filterWorker == null) {
+                        refilter = false;
+                        readGUIAndFilter(true);
+                    }
+                    refilter = false;
+                    return;
+                }
+
+                if (refilter) {
+                    // the parameters changed while filtering
+                    refilter = false;
+                    complete();
+                    readGUIAndFilter(true);
+                    return;
+                }
                 try {
                     resetExportMenu();
                     resetMap(hadGrids);
@@ -427,6 +529,8 @@ public class TerrainSculptorWindow extends MainWindow
                 try {
                     ArrayList<GeoGrid> newGrids = get(); // also tests for exceptions
                     if (newGrids == null) {
+                        // the grids of the previous run were partially overwritten
+                        displayGrids = null;
                         return;
                     }
                     displayGrids = newGrids;
@@ -434,12 +538,25 @@ public class TerrainSculptorWindow extends MainWindow
                 } catch (Throwable ex) {
                     String exmsg = ex.getMessage();
                     if (exmsg != null && exmsg.contains("user canceled")) {
+                        if (refilter && afterFilterActions.isEmpty()) {
+                            // superseded by a filter with new parameters
+                            return;
+                        }
+                        // the cancelled filter has partially overwritten the
+                        // grids of the previous run, which must not be shown
+                        // or exported anymore
+                        displayGrids = null;
+                        if (!afterFilterActions.isEmpty()) {
+                            // stopped by stopFiltering()
+                            return;
+                        }
                         // show button to restart filtering
                         CardLayout cl = (CardLayout) (centerPanel.getLayout());
                         cl.show(centerPanel, "filterButton");
                         filteringStatusLabel.setText("Filtering has been canceled.");
                         return;
                     }
+                    displayGrids = null;
                     Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
                     String msg = "An error occured";
                     ErrorDialog.showErrorDialog(msg, errTitle(), ex, TerrainSculptorWindow.this);
@@ -465,13 +582,26 @@ public class TerrainSculptorWindow extends MainWindow
 
             @Override
             protected ArrayList<GeoGrid> doInBackground() throws Exception {
-                ArrayList<GeoGrid> filteredGrids = gridFilter.filter(this);
-                if (isAborted()) {
-                    throw new IllegalStateException("user canceled");
+                // abort() interrupts the grid operators
+                beginInterruptible();
+                try {
+                    ArrayList<GeoGrid> filteredGrids = gridFilter.filter(this);
+                    if (isAborted()) {
+                        throw new IllegalStateException("user canceled");
+                    }
+                    return filteredGrids;
+                } finally {
+                    endInterruptible();
                 }
-                return filteredGrids;
             }
         };
+        filterWorker = worker;
+
+        // the filter changes the displayed grids, which must not be saved or
+        // exported until it has finished
+        mapImage.freeze();
+        updateFileMenu();
+        exportMenu.setEnabled(false);
 
         worker.setDeferredFiltering(deferredFiltering);
         worker.setMaxTimeWithoutDialogMilliSec(2000);
@@ -485,6 +615,7 @@ public class TerrainSculptorWindow extends MainWindow
     private void resetExportMenu() {
 
         exportMenu.removeAll();
+        exportMenu.setEnabled(displayGrids != null && filterWorker == null);
         if (displayGrids == null) {
             return;
         }
@@ -561,6 +692,10 @@ public class TerrainSculptorWindow extends MainWindow
     @Override
     protected boolean saveDocumentWindow(String filePath) {
 
+        // the running filter overwrites the grids
+        if (filterWorker != null) {
+            return false;
+        }
         try {
             GeoGrid grid = getNamedGrid("Result");
             ESRIASCIIGridExporter.export(grid, filePath);
@@ -620,8 +755,10 @@ public class TerrainSculptorWindow extends MainWindow
      */
     private void updateFileMenu() {
         this.closeMenuItem.setEnabled(true);
-        this.saveMenuItem.setEnabled(gridFilter.getGrid() != null);
-        this.saveShadedReliefMenuItem.setEnabled(gridFilter.getGrid() != null);
+        // the running filter overwrites the grids
+        final boolean canSave = gridFilter.getGrid() != null && filterWorker == null;
+        this.saveMenuItem.setEnabled(canSave);
+        this.saveShadedReliefMenuItem.setEnabled(canSave);
     }
 
     private static Component getVisibleCard(JPanel panel) {
@@ -1911,7 +2048,7 @@ private void saveShadedReliefMenuItemActionPerformed(java.awt.event.ActionEvent
 
     try {
         GeoGrid grid = getNamedGrid("Result");
-        if (grid == null) {
+        if (grid == null || filterWorker != null) {
             return;
         }
         GeoImage geoImage = new GridShadeOperator().operateToImage(grid);
@@ -1963,7 +2100,22 @@ private void viewMenuActionHandler(java.awt.event.ActionEvent evt) {//GEN-FIRST:
         return m * x + y0;
     }
 
-    private void interpolateBasicParameters(int w) {
+    private void interpolateBasicParameters(final int w) {
+
+        stopFiltering(new Runnable() {
+
+            @Override
+            public void run() {
+                setBasicParameters(w);
+            }
+        });
+    }
+
+    /**
+     * Sets the parameters of the filter for a position of the scale slider.
+     * Filtering must not be running.
+     */
+    private void setBasicParameters(int w) {
 
         final int ridgesMeanFilterLoops;
         final float ridgesExaggeration;
@@ -2080,9 +2232,15 @@ private void scaleTerrainMenuItemActionPerformed(java.awt.event.ActionEvent evt)
         java.lang.Number f = (java.lang.Number) (scaleTerrainFormattedTextField.getValue());
         float scale = f.floatValue();
         GridScaleOperator op = new GridScaleOperator(scale);
-        GeoGrid scaledGrid = op.operate(grid);
-        gridFilter.setGrid(scaledGrid);
-        readGUIAndFilter(false);
+        final GeoGrid scaledGrid = op.operate(grid);
+        stopFiltering(new Runnable() {
+
+            @Override
+            public void run() {
+                gridFilter.setGrid(scaledGrid);
+                readGUIAndFilter(false);
+            }
+        });
     } catch (Exception exc) {
         String msg = "An error occured while scaling the terrain.";
         ErrorDialog.showErrorDialog(msg, errTitle(), exc, this);
@@ -2110,14 +2268,31 @@ private void voidValuesMenuItemActionPerformed(java.awt.event.ActionEvent evt) {
         voidValuesFormattedTextField.commitEdit();
         java.lang.Number f = (java.lang.Number) (voidValuesFormattedTextField.getValue());
         GridChangeVoidOperator op = new GridChangeVoidOperator(f.floatValue());
-        gridFilter.setGrid(op.operate(grid));
-        readGUIAndFilter(false);
+        final GeoGrid changedGrid = op.operate(grid);
+        stopFiltering(new Runnable() {
+
+            @Override
+            public void run() {
+                gridFilter.setGrid(changedGrid);
+                readGUIAndFilter(false);
+            }
+        });
     } catch (Exception exc) {
         ErrorDialog.showErrorDialog("An error occured while chaning void values.",
                 errTitle(), exc, this);
     }
 }//GEN-LAST:event_voidValuesMenuItemActionPerformed
 
+    /**
+     * Returns whether a change to a parameter slider is ignored. If filtering
+     * is not deferred, the terrain is filtered while the slider is dragged.
+     * Each change cancels the running filter.
+     */
+    private boolean ignoreSliderChange(ChangeEvent evt) {
+        JSlider slider = (JSlider) evt.getSource();
+        return adjustingGUI || (slider.getValueIsAdjusting() && deferredFiltering);
+    }
+
     private void readGUIAndFilter(boolean manuallyTriggeredFiltering) {
 
         boolean filter = manuallyTriggeredFiltering || !deferredFiltering;
@@ -2132,6 +2307,14 @@ private void voidValuesMenuItemActionPerformed(java.awt.event.ActionEvent evt) {
         if (gridFilter.getGrid() == null) {
             showNoTerrainMessage();
         } else {
+            // the parameters must not change while the filter is running.
+            // Cancel the filter and filter again when it has stopped.
+            if (filterWorker != null) {
+                refilter = true;
+                filterWorker.abort();
+                return;
+            }
+
             readGUI();
 
             if (adjustingGUI) {
@@ -2172,7 +2355,7 @@ private void filterButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-
 }//GEN-LAST:event_filterButtonActionPerformed
 
 private void combinationSlopeThresholdSliderStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_combinationSlopeThresholdSliderStateChanged
-    if (((JSlider) evt.getSource()).getValueIsAdjusting() || adjustingGUI) {
+    if (ignoreSliderChange(evt)) {
         return;
     }
     if (!viewCombinationCheckBoxMenuItem.isSelected()
@@ -2190,7 +2373,7 @@ private void viewMenuChanged(java.awt.event.ItemEvent evt) {//GEN-FIRST:event_vi
 }//GEN-LAST:event_viewMenuChanged
 
 private void ridgesSliderStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_ridgesSliderStateChanged
-    if (((JSlider) evt.getSource()).getValueIsAdjusting() || adjustingGUI) {
+    if (ignoreSliderChange(evt)) {
         return;
     }
     if (!viewMountainsCheckBoxMenuItem.isSelected()
@@ -2201,7 +2384,7 @@ private void ridgesSliderStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-
 }//GEN-LAST:event_ridgesSliderStateChanged
 
 private void valleysSliderStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_valleysSliderStateChanged
-    if (((JSlider) evt.getSource()).getValueIsAdjusting() || adjustingGUI) {
+    if (ignoreSliderChange(evt)) {
         return;
     }
     if (!viewLowlandsCheckBoxMenuItem.isSelected()
@@ -2212,7 +2395,7 @@ private void valleysSliderStateChanged(javax.swing.event.ChangeEvent evt) {//GEN
 }//GEN-LAST:event_valleysSliderStateChanged
 
 private void lodSliderStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_lodSliderStateChanged
-    if (((JSlider) evt.getSource()).getValueIsAdjusting() || adjustingGUI) {
+    if (ignoreSliderChange(evt)) {
         return;
     }
     if (viewOriginalCheckBoxMenuItem.isSelected()) {
@@ -2253,7 +2436,7 @@ private void deferredFilteringCheckBoxMenuItemActionPerformed(java.awt.event.Act
 
         // enable or disable the saveMenu accordingly
         if (windowModified != null) {
-            this.saveMenuItem.setEnabled(windowModified);
+            this.saveMenuItem.setEnabled(windowModified && filterWorker == null);
         }
     }
     // Variables declaration - do not modify//GEN-BEGIN:variables
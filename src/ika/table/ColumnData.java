@@ -0,0 +1,563 @@
+/*
+ * ColumnData.java
+ *
+ */
+package ika.table;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * The values of a column of a Table. Numbers are stored in an array of
+ * doubles, strings are stored as codes referencing a dictionary of distinct
+ * strings, and all other values are stored as objects. The number of rows is
+ * stored by the Table; arrays may be larger than the number of rows.
+ * <p>
+ * A column can have a hash index that maps values to the first row
+ * containing them. The index is built when it is first needed, and is
+ * discarded when a value of the column changes.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+abstract class ColumnData implements Serializable {
+
+    private static final long serialVersionUID = -2957371065409253631L;
+
+    /**
+     * Marks empty slots of hash indexes.
+     */
+    private static final int NO_ROW = -1;
+
+    /**
+     * True if findRow uses a hash index.
+     */
+    private boolean indexed = false;
+
+    /**
+     * Creates a column for a class of values.
+     * @param columnClass Double.class, String.class, or any other class for
+     * a column with objects.
+     * @param rows The initial number of rows, which are null.
+     */
+    static ColumnData create(Class<?> columnClass, int rows) {
+        if (columnClass == Double.class) {
+            return new DoubleColumn(rows);
+        } else if (columnClass == String.class) {
+            return new StringColumn(rows);
+        } else {
+            return new ObjectColumn(rows);
+        }
+    }
+
+    /**
+     * Returns the class of the values of this column.
+     */
+    abstract Class<?> getColumnClass(int rowCount);
+
+    /**
+     * Changes the number of rows. New rows are null.
+     * @param oldRowCount The current number of rows.
+     * @param newRowCount The new number of rows.
+     */
+    abstract void setRowCount(int oldRowCount, int newRowCount);
+
+    /**
+     * Returns whether a value can be stored in this column.
+     */
+    abstract boolean accepts(Object value);
+
+    /**
+     * Returns the value of a row, or null.
+     */
+    abstract Object get(int row);
+
+    /**
+     * Changes the value of a row.
+     * @param value The value, which must be accepted by this column.
+     */
+    abstract void set(int row, Object value);
+
+    /**
+     * Returns the first row containing a value, without using an index.
+     */
+    abstract int scan(Object value, int rowCount);
+
+    /**
+     * Returns the first row containing a value, using the index if it is
+     * enabled.
+     */
+    abstract int findRow(Object value, int rowCount);
+
+    /**
+     * Discards the index, because a value has changed.
+     */
+    abstract void invalidateIndex();
+
+    /**
+     * Returns a column storing the values of this column as objects.
+     */
+    ObjectColumn toObjectColumn(int rowCount) {
+        ObjectColumn column = new ObjectColumn(rowCount);
+        for (int row = 0; row < rowCount; row++) {
+            column.values[row] = get(row);
+        }
+        column.setIndexed(indexed);
+        return column;
+    }
+
+    final boolean isIndexed() {
+        return indexed;
+    }
+
+    final void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+        invalidateIndex();
+    }
+
+    /**
+     * Returns the capacity of a hash table for a number of keys, which is a
+     * power of two at least twice as large as the number of keys.
+     */
+    static int hashCapacity(int keys) {
+        return Integer.highestOneBit(Math.max(keys, 4) * 2 - 1) * 2;
+    }
+
+    /**
+     * Returns a new array for a larger number of rows.
+     */
+    static int grow(int capacity, int rows) {
+        return Math.max(rows, capacity + (capacity >> 1) + 16);
+    }
+
+    /**
+     * A column with numbers stored as doubles.
+     */
+    static final class DoubleColumn extends ColumnData {
+
+        private static final long serialVersionUID = 5817296358124409347L;
+
+        private double[] values;
+
+        /**
+         * Rows that contain null, or null if no row contains null.
+         */
+        private BitSet nulls;
+
+        /**
+         * Hash index with open addressing. The bits of the values are
+         * stored in indexKeys, the first row with a value in indexRows.
+         */
+        private transient long[] indexKeys;
+        private transient int[] indexRows;
+
+        DoubleColumn(int rows) {
+            values = new double[rows];
+            if (rows > 0) {
+                nulls = new BitSet(rows);
+                nulls.set(0, rows);
+            }
+        }
+
+        Class<?> getColumnClass(int rowCount) {
+            return Double.class;
+        }
+
+        void setRowCount(int oldRowCount, int newRowCount) {
+            if (newRowCount > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, newRowCount));
+            }
+            if (newRowCount > oldRowCount) {
+                Arrays.fill(values, oldRowCount, newRowCount, 0);
+                if (nulls == null) {
+                    nulls = new BitSet(newRowCount);
+                }
+                nulls.set(oldRowCount, newRowCount);
+            } else if (nulls != null) {
+                nulls.clear(newRowCount, oldRowCount);
+            }
+            invalidateIndex();
+        }
+
+        boolean accepts(Object value) {
+            return value == null || value instanceof Double;
+        }
+
+        Object get(int row) {
+            return isNull(row) ? null : Double.valueOf(values[row]);
+        }
+
+        void set(int row, Object value) {
+            if (value == null) {
+                if (nulls == null) {
+                    nulls = new BitSet(row + 1);
+                }
+                nulls.set(row);
+                values[row] = 0;
+            } else {
+                setDouble(row, ((Double) value).doubleValue());
+            }
+            invalidateIndex();
+        }
+
+        boolean isNull(int row) {
+            return nulls != null && nulls.get(row);
+        }
+
+        /**
+         * Returns the value of a row, or NaN if the row is null.
+         */
+        double getDouble(int row) {
+            return isNull(row) ? Double.NaN : values[row];
+        }
+
+        void setDouble(int row, double value) {
+            values[row] = value;
+            if (nulls != null) {
+                nulls.clear(row);
+            }
+            invalidateIndex();
+        }
+
+        int scan(Object value, int rowCount) {
+            if (!(value instanceof Double)) {
+                return NO_ROW;
+            }
+            // Double.equals compares the bits of the values
+            final long bits = Double.doubleToLongBits(((Double) value).doubleValue());
+            for (int row = 0; row < rowCount; row++) {
+                if (Double.doubleToLongBits(values[row]) == bits && !isNull(row)) {
+                    return row;
+                }
+            }
+            return NO_ROW;
+        }
+
+        int findRow(Object value, int rowCount) {
+            if (!isIndexed() || !(value instanceof Double)) {
+                return scan(value, rowCount);
+            }
+            if (indexKeys == null) {
+                buildIndex(rowCount);
+            }
+            final long bits = Double.doubleToLongBits(((Double) value).doubleValue());
+            final int mask = indexKeys.length - 1;
+            for (int i = hash(bits) & mask; indexRows[i] != NO_ROW; i = (i + 1) & mask) {
+                if (indexKeys[i] == bits) {
+                    return indexRows[i];
+                }
+            }
+            return NO_ROW;
+        }
+
+        private void buildIndex(int rowCount) {
+            final int capacity = hashCapacity(rowCount);
+            final long[] keys = new long[capacity];
+            final int[] rows = new int[capacity];
+            Arrays.fill(rows, NO_ROW);
+            final int mask = capacity - 1;
+            for (int row = 0; row < rowCount; row++) {
+                if (isNull(row)) {
+                    continue;
+                }
+                final long bits = Double.doubleToLongBits(values[row]);
+                int i = hash(bits) & mask;
+                while (rows[i] != NO_ROW && keys[i] != bits) {
+                    i = (i + 1) & mask;
+                }
+                // keep the first row with this value
+                if (rows[i] == NO_ROW) {
+                    keys[i] = bits;
+                    rows[i] = row;
+                }
+            }
+            indexKeys = keys;
+            indexRows = rows;
+        }
+
+        private static int hash(long bits) {
+            final long h = bits * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        void invalidateIndex() {
+            indexKeys = null;
+            indexRows = null;
+        }
+
+        /**
+         * Returns the minimum and maximum of all rows that are not null.
+         * @param absolute Use absolute values.
+         * @param notZero Ignore values that are 0.
+         */
+        double[] getMinMax(int rowCount, boolean absolute, boolean notZero) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int row = 0; row < rowCount; row++) {
+                double d = values[row];
+                if (absolute) {
+                    d = Math.abs(d);
+                }
+                if ((d == 0. && notZero) || isNull(row)) {
+                    continue;
+                }
+                if (d < min) {
+                    min = d;
+                }
+                if (d > max) {
+                    max = d;
+                }
+            }
+            return new double[]{min, max};
+        }
+    }
+
+    /**
+     * A column with strings. Each distinct string is stored once in a
+     * dictionary, and the rows store the position of their string in the
+     * dictionary.
+     */
+    static final class StringColumn extends ColumnData {
+
+        private static final long serialVersionUID = -6402170950843611762L;
+
+        /**
+         * The position in the dictionary of the string of each row, or NO_ROW
+         * for null.
+         */
+        private int[] codes;
+
+        /**
+         * The distinct strings.
+         */
+        private ArrayList<String> dictionary = new ArrayList<String>();
+
+        /**
+         * Maps strings to their position in the dictionary. Rebuilt when
+         * needed after deserialization.
+         */
+        private transient HashMap<String, Integer> lookup;
+
+        /**
+         * The index: the first row with each string of the dictionary.
+         */
+        private transient int[] firstRows;
+
+        StringColumn(int rows) {
+            codes = new int[rows];
+            Arrays.fill(codes, NO_ROW);
+        }
+
+        Class<?> getColumnClass(int rowCount) {
+            return String.class;
+        }
+
+        void setRowCount(int oldRowCount, int newRowCount) {
+            if (newRowCount > codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length, newRowCount));
+            }
+            if (newRowCount > oldRowCount) {
+                Arrays.fill(codes, oldRowCount, newRowCount, NO_ROW);
+            }
+            invalidateIndex();
+        }
+
+        boolean accepts(Object value) {
+            return value == null || value instanceof String;
+        }
+
+        Object get(int row) {
+            return getString(row);
+        }
+
+        String getString(int row) {
+            final int code = codes[row];
+            return code == NO_ROW ? null : dictionary.get(code);
+        }
+
+        void set(int row, Object value) {
+            setString(row, (String) value);
+        }
+
+        void setString(int row, String value) {
+            codes[row] = value == null ? NO_ROW : encode(value);
+            invalidateIndex();
+        }
+
+        /**
+         * Returns the position of a string in the dictionary, and adds the
+         * string if it is not in the dictionary.
+         */
+        private int encode(String str) {
+            final HashMap<String, Integer> map = getLookup();
+            final Integer code = map.get(str);
+            if (code != null) {
+                return code.intValue();
+            }
+            dictionary.add(str);
+            map.put(str, Integer.valueOf(dictionary.size() - 1));
+            return dictionary.size() - 1;
+        }
+
+        private HashMap<String, Integer> getLookup() {
+            if (lookup == null) {
+                lookup = new HashMap<String, Integer>(hashCapacity(dictionary.size()));
+                for (int i = 0; i < dictionary.size(); i++) {
+                    lookup.put(dictionary.get(i), Integer.valueOf(i));
+                }
+            }
+            return lookup;
+        }
+
+        int scan(Object value, int rowCount) {
+            if (!(value instanceof String)) {
+                return NO_ROW;
+            }
+            final Integer code = getLookup().get(value);
+            if (code == null) {
+                return NO_ROW;
+            }
+            final int c = code.intValue();
+            for (int row = 0; row < rowCount; row++) {
+                if (codes[row] == c) {
+                    return row;
+                }
+            }
+            return NO_ROW;
+        }
+
+        int findRow(Object value, int rowCount) {
+            if (!isIndexed() || !(value instanceof String)) {
+                return scan(value, rowCount);
+            }
+            final Integer code = getLookup().get(value);
+            if (code == null) {
+                return NO_ROW;
+            }
+            if (firstRows == null) {
+                final int[] rows = new int[dictionary.size()];
+                Arrays.fill(rows, NO_ROW);
+                for (int row = rowCount - 1; row >= 0; row--) {
+                    if (codes[row] != NO_ROW) {
+                        rows[codes[row]] = row;
+                    }
+                }
+                firstRows = rows;
+            }
+            return firstRows[code.intValue()];
+        }
+
+        void invalidateIndex() {
+            firstRows = null;
+        }
+
+        /**
+         * Converts the strings from one character encoding to another.
+         * Each distinct string is converted once.
+         */
+        void changeEncoding(int rowCount, String oldCharsetName,
+                String newCharsetName) throws java.io.UnsupportedEncodingException {
+
+            // convert the dictionary, which can result in duplicate strings
+            final int oldSize = dictionary.size();
+            final ArrayList<String> oldDictionary = dictionary;
+            final int[] newCodes = new int[oldSize];
+            dictionary = new ArrayList<String>(oldSize);
+            lookup = null;
+            for (int i = 0; i < oldSize; i++) {
+                byte[] bytes = oldDictionary.get(i).getBytes(oldCharsetName);
+                newCodes[i] = encode(new String(bytes, newCharsetName));
+            }
+            for (int row = 0; row < rowCount; row++) {
+                if (codes[row] != NO_ROW) {
+                    codes[row] = newCodes[codes[row]];
+                }
+            }
+            invalidateIndex();
+        }
+    }
+
+    /**
+     * A column with objects of any class.
+     */
+    static final class ObjectColumn extends ColumnData {
+
+        private static final long serialVersionUID = 3186460729165713985L;
+
+        private Object[] values;
+
+        /**
+         * Maps values to the first row containing them.
+         */
+        private transient HashMap<Object, Integer> index;
+
+        ObjectColumn(int rows) {
+            values = new Object[rows];
+        }
+
+        /**
+         * Returns the class of the first value, as all values are assumed to
+         * be of the same class.
+         */
+        Class<?> getColumnClass(int rowCount) {
+            Object o = rowCount > 0 ? values[0] : null;
+            return o == null ? Object.class : o.getClass();
+        }
+
+        void setRowCount(int oldRowCount, int newRowCount) {
+            if (newRowCount > values.length) {
+                values = Arrays.copyOf(values, grow(values.length, newRowCount));
+            }
+            if (newRowCount < oldRowCount) {
+                Arrays.fill(values, newRowCount, oldRowCount, null);
+            }
+            invalidateIndex();
+        }
+
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        Object get(int row) {
+            return values[row];
+        }
+
+        void set(int row, Object value) {
+            values[row] = value;
+            invalidateIndex();
+        }
+
+        int scan(Object value, int rowCount) {
+            if (value == null) {
+                return NO_ROW;
+            }
+            for (int row = 0; row < rowCount; row++) {
+                if (value.equals(values[row])) {
+                    return row;
+                }
+            }
+            return NO_ROW;
+        }
+
+        int findRow(Object value, int rowCount) {
+            if (!isIndexed()) {
+                return scan(value, rowCount);
+            }
+            if (index == null) {
+                index = new HashMap<Object, Integer>(hashCapacity(rowCount));
+                for (int row = rowCount - 1; row >= 0; row--) {
+                    if (values[row] != null) {
+                        index.put(values[row], Integer.valueOf(row));
+                    }
+                }
+            }
+            final Integer row = index.get(value);
+            return row == null ? NO_ROW : row.intValue();
+        }
+
+        void invalidateIndex() {
+            index = null;
+        }
+    }
+}
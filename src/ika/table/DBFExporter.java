@@ -21,9 +21,9 @@ import javax.swing.table.TableColumn;
  */
 public class DBFExporter implements TableExporter {
     
-    private static final int STRING_LENGTH = 64;
-    private static final int NUMBER_LENGTH = 20;    // F n=1..20
-    private static final int NUMBER_DECIMALS = 8;
+    static final int STRING_LENGTH = 64;
+    static final int NUMBER_LENGTH = 20;    // F n=1..20
+    static final int NUMBER_DECIMALS = 8;
     
     /** Creates a new instance of DBFExporter */
     public DBFExporter() {
@@ -169,12 +169,12 @@ public class DBFExporter implements TableExporter {
                 
                 TableColumn tc = table.getColumn(col);
                 if (table.isDoubleColumn(col)) {
-                    final Double d = (Double)table.getValueAt(row, col);
+                    final double d = table.getDouble(row, col);
                     String nbrStr = ika.utils.NumberFormatter.format(
-                            d.doubleValue(), NUMBER_LENGTH, NUMBER_DECIMALS);
+                            d, NUMBER_LENGTH, NUMBER_DECIMALS);
                     this.writeString(dos, nbrStr, NUMBER_LENGTH);
                 } else {
-                    String str = (String)table.getValueAt(row, col);
+                    String str = table.getString(row, col);
                     this.writeString(dos, str, STRING_LENGTH);  
                 }
                 
@@ -159,9 +159,11 @@ public class DBFImporter extends TableImporter {
             Table table = this.initTable(name);
             
             // read the records and fill the table
+            table.setRowCount((int)nbrRecords);
+            byte[] data = new byte[recordSize];
             for (int i = 0; i < nbrRecords; i++) {
                 this.printInfo("Reading Record " + i);
-                this.readRecord(is, recordSize, table);
+                this.readRecord(is, data, table, i);
             }
             
             return table;
@@ -205,40 +207,33 @@ public class DBFImporter extends TableImporter {
         
     }
     
-    private void readRecord(LittleEndianInputStream is, int recordSize, 
-            Table table) throws IOException {
+    /**
+     * Reads a record and stores its values in a row of the table. The values
+     * are stored without creating Double objects.
+     */
+    private void readRecord(LittleEndianInputStream is, byte[] data, 
+            Table table, int row) throws IOException {
         
         int deletedFlag = is.readUnsignedByte();
-        byte[] data = new byte[recordSize];
-        
-        Vector rowData = new Vector();
         
-        java.util.Iterator iterator = this.fields.iterator();
-        while (iterator.hasNext()) {
-            DBFField field = (DBFField)iterator.next();
+        final int nFields = this.fields.size();
+        for (int col = 0; col < nFields; col++) {
+            DBFField field = (DBFField)this.fields.get(col);
             is.read(data, 0, field.length);
             
             switch (field.type) {
                 case 'C':   // character string
                     String string = ika.utils.StringUtils.bytesToString(
                             data, field.length, this.charsetName);
-                    rowData.add(string.trim());
+                    table.setString(string.trim(), row, col);
                     break;
                 
                  case 'F':  // floating number
-                    try {
-                        rowData.add(new Double(new String(data, 0, field.length)));
-                    } catch (NumberFormatException exc) {
-                        rowData.add(this.DEFAULT_NUMBER);
-                    }
+                    table.setDouble(this.parseNumber(data, field.length), row, col);
                     break;
                 
                 case 'N':   // number
-                    try {
-                        rowData.add(new Double(new String(data, 0, field.length)));
-                    } catch (NumberFormatException exc) {
-                        rowData.add(this.DEFAULT_NUMBER);
-                    }
+                    table.setDouble(this.parseNumber(data, field.length), row, col);
                     break;
                 
                 case '8':
@@ -254,19 +249,19 @@ public class DBFImporter extends TableImporter {
                     long byte8 = data[7];
                     long l = (byte8 << 56) + (byte7 << 48) + (byte6 << 40) + (byte5 << 32) +
                             (byte4 << 24) + (byte3 << 16) + (byte2 << 8) + byte1;
-                    rowData.add(new Double(Double.longBitsToDouble(l)));
+                    table.setDouble(Double.longBitsToDouble(l), row, col);
                     break;
                     
                 case '4':
                 case 'I':
                     // little endian 4 byte integer. Not tested !!! ???
                     int i = (data[3] << 24) + (data[2] << 16) + (data[1] << 8) + data[0];
-                    rowData.add(new Double(i));
+                    table.setDouble(i, row, col);
                     break;
                 
                 case '2':
                     // little endian 2 byte integer. Not tested !!! ???
-                    rowData.add(new Double((data[1] << 8) + data[0]));
+                    table.setDouble((data[1] << 8) + data[0], row, col);
                     break;
                     
                 /*    
@@ -300,11 +295,22 @@ public class DBFImporter extends TableImporter {
                  */
                 default:
                     // add the raw bytes as String
-                    rowData.add(new String(data, 0, field.length));;
+                    table.setString(new String(data, 0, field.length), row, col);
                     
             }
         }
-        table.addRow(rowData);
+    }
+    
+    /**
+     * Converts the characters of a number field to a number. Returns
+     * DEFAULT_NUMBER if the characters cannot be converted.
+     */
+    private double parseNumber(byte[] data, int length) {
+        try {
+            return Double.parseDouble(new String(data, 0, length));
+        } catch (NumberFormatException exc) {
+            return this.DEFAULT_NUMBER.doubleValue();
+        }
     }
     
     private Table initTable(String name) {
@@ -314,7 +320,7 @@ public class DBFImporter extends TableImporter {
         java.util.Iterator iterator = this.fields.iterator();
         while (iterator.hasNext()) {
             DBFField field = (DBFField)iterator.next();
-            table.addColumn(field.name);
+            table.addColumn(field.name, field.isNumber() ? Double.class : String.class);
         }
         
         return table;
@@ -331,6 +337,24 @@ public class DBFImporter extends TableImporter {
         public int setFields;
         public int fieldInMDXIndex;
         
+        /**
+         * Returns whether the values of this field are read as numbers.
+         */
+        public boolean isNumber() {
+            switch (type) {
+                case 'F':
+                case 'N':
+                case '8':
+                case 'O':
+                case '4':
+                case 'I':
+                case '2':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        
         @Override
         public String toString() {
             StringBuffer sb = new StringBuffer();
@@ -0,0 +1,237 @@
+/*
+ * DBFWriter.java
+ *
+ */
+package ika.table;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Writes a DBF file row by row, without holding the rows in memory. The
+ * fields have the same format as the fields written by DBFExporter. The
+ * number of records in the header is written when the file is closed.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
+ */
+public class DBFWriter {
+
+    /**
+     * The size of the buffer for records.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * True for each column that contains strings, false for numbers.
+     */
+    private final boolean[] stringColumns;
+
+    private final int recordSize;
+
+    private int recordsCount = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a new DBF file and writes its header.
+     * @param filePath The path of the file. An existing file is replaced.
+     * @param columnNames The names of the columns. Only the first 10
+     * characters are written.
+     * @param columnClasses String.class or Double.class for each column.
+     */
+    public DBFWriter(String filePath, String[] columnNames, Class<?>[] columnClasses)
+            throws IOException {
+
+        if (columnNames == null || columnClasses == null
+                || columnNames.length != columnClasses.length) {
+            throw new IllegalArgumentException("DBF export: invalid columns");
+        }
+        final int columnsCount = columnNames.length;
+        stringColumns = new boolean[columnsCount];
+        int size = 1; // 1 for deletion flag
+        for (int i = 0; i < columnsCount; i++) {
+            if (columnClasses[i] == String.class) {
+                stringColumns[i] = true;
+                size += DBFExporter.STRING_LENGTH;
+            } else if (columnClasses[i] == Double.class) {
+                size += DBFExporter.NUMBER_LENGTH;
+            } else {
+                throw new IllegalArgumentException("DBF export: unsupported type");
+            }
+        }
+        recordSize = size;
+        buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, recordSize));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        file = new RandomAccessFile(filePath, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        try {
+            writeHeader(columnNames);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader(String[] columnNames) throws IOException {
+        // dbf flag
+        buffer.put((byte) 0x03);
+
+        // current date
+        Calendar cal = GregorianCalendar.getInstance();
+        buffer.put((byte) (cal.get(Calendar.YEAR) - 1900));
+        buffer.put((byte) (cal.get(Calendar.MONTH) + 1));
+        buffer.put((byte) cal.get(Calendar.DAY_OF_MONTH));
+
+        // number of records, written by close()
+        buffer.putInt(0);
+
+        // header size and record size
+        buffer.putShort((short) (32 + columnNames.length * 32 + 1));
+        buffer.putShort((short) recordSize);
+
+        // reserved value, transaction byte, encryption byte, multi user
+        // environment use
+        for (int i = 0; i < 2 + 1 + 1 + 13; i++) {
+            buffer.put((byte) 0);
+        }
+
+        // codepage / language driver: ANSI, as written by DBFExporter
+        buffer.put((byte) 0x57);
+
+        // two reserved bytes
+        buffer.putShort((short) 0);
+
+        // field descriptors
+        for (int i = 0; i < columnNames.length; i++) {
+            ensureRemaining(32);
+            // column title, 10 chars, plus terminating 0.
+            putString(columnNames[i].trim(), 10);
+            buffer.put((byte) 0);
+            if (stringColumns[i]) {
+                buffer.put((byte) 'C');
+                buffer.putInt(0);                           // field address (ignored)
+                buffer.put((byte) DBFExporter.STRING_LENGTH);   // field length
+                buffer.put((byte) 0);                       // decimal count not used
+            } else {
+                buffer.put((byte) 'F');
+                buffer.putInt(0);                           // field address (ignored)
+                buffer.put((byte) DBFExporter.NUMBER_LENGTH);   // field length
+                buffer.put((byte) DBFExporter.NUMBER_DECIMALS); // decimal count
+            }
+            // 14 reserved or unusued bytes
+            for (int c = 0; c < 14; c++) {
+                buffer.put((byte) 0);
+            }
+        }
+
+        // header record terminator
+        ensureRemaining(1);
+        buffer.put((byte) 0x0D);
+    }
+
+    /**
+     * Appends a row.
+     * @param values A value for each column. Strings for string columns,
+     * Numbers for number columns. Null values are written as empty fields.
+     */
+    public void writeRow(Object... values) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("DBF export: file is closed");
+        }
+        if (values.length != stringColumns.length) {
+            throw new IllegalArgumentException("DBF export: expected "
+                    + stringColumns.length + " values, found " + values.length);
+        }
+
+        ensureRemaining(recordSize);
+
+        // write deleted flag
+        buffer.put((byte) ' ');
+
+        for (int col = 0; col < values.length; col++) {
+            final Object value = values[col];
+            if (stringColumns[col]) {
+                putString(value == null ? "" : value.toString(), DBFExporter.STRING_LENGTH);
+            } else if (value == null) {
+                for (int c = 0; c < DBFExporter.NUMBER_LENGTH; c++) {
+                    buffer.put((byte) ' ');
+                }
+            } else if (value instanceof Number) {
+                String nbrStr = ika.utils.NumberFormatter.format(
+                        ((Number) value).doubleValue(),
+                        DBFExporter.NUMBER_LENGTH, DBFExporter.NUMBER_DECIMALS);
+                putString(nbrStr, DBFExporter.NUMBER_LENGTH);
+            } else {
+                throw new IllegalArgumentException("DBF export: column "
+                        + col + " requires a number");
+            }
+        }
+        ++recordsCount;
+    }
+
+    /**
+     * Returns the number of rows written so far.
+     * @return The number of rows.
+     */
+    public int getRowCount() {
+        return recordsCount;
+    }
+
+    /**
+     * Writes the number of records to the header and closes the file.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            count.putInt(0, recordsCount);
+            channel.write(count, 4);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes a string with a fixed length. Longer strings are cut, shorter
+     * strings are padded with 0.
+     */
+    private void putString(String str, int length) {
+        byte[] b = str.getBytes(CHARSET);
+        buffer.put(b, 0, Math.min(length, b.length));
+        for (int c = b.length; c < length; c++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
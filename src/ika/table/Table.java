@@ -15,16 +15,37 @@ import ika.geo.*;
 import javax.swing.event.TableModelListener;
 
 /**
- *
+ * A table with attributes. The values of each column are stored in a
+ * ColumnData: numbers in an array of doubles, strings in a dictionary of
+ * distinct strings. Values are only converted to objects when they are
+ * accessed through the TableModel interface, e.g. for display in a JTable.
+ * Use getDouble and getString to access values without creating objects.
  * @author jenny
  */
-public class Table extends DefaultTableModel 
+public class Table extends AbstractTableModel 
         implements java.io.Serializable {
     
+    private static final long serialVersionUID = 8215934607718332471L;
+    
     private String name;
     private TableColumnModel tableColumnModel;
     private ArrayList geometries;
     
+    /**
+     * The names of the columns.
+     */
+    private ArrayList<String> columnNames = new ArrayList<String>();
+    
+    /**
+     * The values of the columns.
+     */
+    private ArrayList<ColumnData> columns = new ArrayList<ColumnData>();
+    
+    /**
+     * The number of rows.
+     */
+    private int rowCount = 0;
+    
     /**
      * Store the name of the character set used by the source. Strings are 
      * stored in this table as stanadard UTF Java strings. The name of the 
@@ -165,6 +186,11 @@ public class Table extends DefaultTableModel
     }
     
     public double[] getMinMax (int colID, boolean absolute, boolean notZero) {
+        ColumnData column = this.columns.get(colID);
+        if (column instanceof ColumnData.DoubleColumn) {
+            return ((ColumnData.DoubleColumn) column).getMinMax(this.rowCount, 
+                    absolute, notZero);
+        }
         try {
             double min = Double.MAX_VALUE;
             double max = -Double.MAX_VALUE;
@@ -191,11 +217,205 @@ public class Table extends DefaultTableModel
         return this.getName();
     }
     
+    /**
+     * Adds a column. The class of the values of the column is defined by
+     * the first value.
+     * @param name The name of the column.
+     */
     public void addColumn(String name) {
-        super.addColumn(name);
+        this.addColumn(name, Object.class);
+    }
+    
+    /**
+     * Adds a column with values of a specified class. Columns for Double and
+     * String values store their values without creating objects. All rows
+     * of the new column are null.
+     * @param name The name of the column.
+     * @param columnClass The class of the values, Double.class or 
+     * String.class. Columns for other classes store objects.
+     */
+    public void addColumn(String name, Class<?> columnClass) {
+        this.columnNames.add(name);
+        this.columns.add(ColumnData.create(columnClass, this.rowCount));
         TableColumn tableColumn = new DisplayableTableColumn(this.getNbrColumns());
         tableColumn.setHeaderValue(name);
         this.tableColumnModel.addColumn(tableColumn);
+        this.fireTableStructureChanged();
+    }
+    
+    /**
+     * Appends a row.
+     * @param rowData The values of the row. Missing values are null.
+     */
+    public void addRow(Object[] rowData) {
+        final int row = this.rowCount;
+        this.setRows(row + 1);
+        final int n = Math.min(rowData.length, this.columns.size());
+        for (int col = 0; col < n; col++) {
+            this.setValue(rowData[col], row, col);
+        }
+        this.fireTableRowsInserted(row, row);
+    }
+    
+    /**
+     * Appends a row.
+     * @param rowData The values of the row. Missing values are null.
+     */
+    public void addRow(Vector rowData) {
+        this.addRow(rowData.toArray());
+    }
+    
+    /**
+     * Changes the number of rows. Added rows are null.
+     * @param rowCount The new number of rows.
+     */
+    public void setRowCount(int rowCount) {
+        if (rowCount < 0) {
+            throw new IllegalArgumentException("negative row count");
+        }
+        final int oldRowCount = this.rowCount;
+        this.setRows(rowCount);
+        if (rowCount > oldRowCount) {
+            this.fireTableRowsInserted(oldRowCount, rowCount - 1);
+        } else if (rowCount < oldRowCount) {
+            this.fireTableRowsDeleted(rowCount, oldRowCount - 1);
+        }
+    }
+    
+    private void setRows(int rowCount) {
+        for (ColumnData column : this.columns) {
+            column.setRowCount(this.rowCount, rowCount);
+        }
+        this.rowCount = rowCount;
+    }
+    
+    public int getRowCount() {
+        return this.rowCount;
+    }
+    
+    public int getColumnCount() {
+        return this.columns.size();
+    }
+    
+    public String getColumnName(int columnIndex) {
+        return this.columnNames.get(columnIndex);
+    }
+    
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return true;
+    }
+    
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        this.checkRow(rowIndex);
+        return this.columns.get(columnIndex).get(rowIndex);
+    }
+    
+    public void setValueAt(Object value, int rowIndex, int columnIndex) {
+        this.checkRow(rowIndex);
+        this.setValue(value, rowIndex, columnIndex);
+        this.fireTableCellUpdated(rowIndex, columnIndex);
+    }
+    
+    /**
+     * Stores a value. Converts the column to a column of objects if the 
+     * value cannot be stored otherwise.
+     */
+    private void setValue(Object value, int rowIndex, int columnIndex) {
+        ColumnData column = this.columns.get(columnIndex);
+        if (column.accepts(value) == false) {
+            column = column.toObjectColumn(this.rowCount);
+            this.columns.set(columnIndex, column);
+        }
+        column.set(rowIndex, value);
+    }
+    
+    /**
+     * Returns a number. Does not create an object if the column was added 
+     * for Double values.
+     * @param rowIndex The row.
+     * @param columnIndex The column, which must contain Double values.
+     * @return The number, or NaN if the value is null.
+     */
+    public double getDouble(int rowIndex, int columnIndex) {
+        this.checkRow(rowIndex);
+        ColumnData column = this.columns.get(columnIndex);
+        if (column instanceof ColumnData.DoubleColumn) {
+            return ((ColumnData.DoubleColumn) column).getDouble(rowIndex);
+        }
+        Object value = column.get(rowIndex);
+        if (value == null) {
+            return Double.NaN;
+        }
+        if (value instanceof Double == false) {
+            throw new IllegalArgumentException("column " + columnIndex 
+                    + " does not store numbers");
+        }
+        return ((Double) value).doubleValue();
+    }
+    
+    /**
+     * Changes a number without creating an object. Does not notify the
+     * TableModelListeners; call fireTableDataChanged after changing values.
+     * @param value The new value.
+     * @param rowIndex The row.
+     * @param columnIndex The column, which must contain Double values.
+     */
+    public void setDouble(double value, int rowIndex, int columnIndex) {
+        this.checkRow(rowIndex);
+        this.doubleColumn(columnIndex).setDouble(rowIndex, value);
+    }
+    
+    /**
+     * Returns a string.
+     * @param rowIndex The row.
+     * @param columnIndex The column, which must contain String values.
+     * @return The string or null.
+     */
+    public String getString(int rowIndex, int columnIndex) {
+        this.checkRow(rowIndex);
+        Object value = this.columns.get(columnIndex).get(rowIndex);
+        if (value != null && value instanceof String == false) {
+            throw new IllegalArgumentException("column " + columnIndex 
+                    + " does not store strings");
+        }
+        return (String) value;
+    }
+    
+    /**
+     * Changes a string. Equal strings of a column are stored once. Does not 
+     * notify the TableModelListeners; call fireTableDataChanged after 
+     * changing values.
+     * @param value The new value or null.
+     * @param rowIndex The row.
+     * @param columnIndex The column, which must contain String values.
+     */
+    public void setString(String value, int rowIndex, int columnIndex) {
+        this.checkRow(rowIndex);
+        this.stringColumn(columnIndex).setString(rowIndex, value);
+    }
+    
+    private ColumnData.DoubleColumn doubleColumn(int columnIndex) {
+        ColumnData column = this.columns.get(columnIndex);
+        if (column instanceof ColumnData.DoubleColumn == false) {
+            throw new IllegalArgumentException("column " + columnIndex 
+                    + " does not store numbers");
+        }
+        return (ColumnData.DoubleColumn) column;
+    }
+    
+    private ColumnData.StringColumn stringColumn(int columnIndex) {
+        ColumnData column = this.columns.get(columnIndex);
+        if (column instanceof ColumnData.StringColumn == false) {
+            throw new IllegalArgumentException("column " + columnIndex 
+                    + " does not store strings");
+        }
+        return (ColumnData.StringColumn) column;
+    }
+    
+    private void checkRow(int rowIndex) {
+        if (rowIndex < 0 || rowIndex >= this.rowCount) {
+            throw new ArrayIndexOutOfBoundsException(rowIndex);
+        }
     }
 
     public ArrayList getGeometries() {
@@ -214,39 +434,55 @@ public class Table extends DefaultTableModel
         
     }
     
+    /**
+     * Returns the first row with a value in a column. Uses a hash index if
+     * the column has one.
+     * @param value The value to search. Values are compared with equals().
+     * @param columnID The column.
+     * @return The row or -1 if no row contains the value or the value is
+     * null.
+     */
     public int findRowWithValue (Object value, int columnID) {
-        final int nbrRows = this.getRowCount();
-        for (int i = 0; i < nbrRows; i++) {
-            Object tableValue = this.getValueAt(i, columnID);
-            if (value.equals(tableValue))
-                return i;
-        }
-        return -1;
+        return this.columns.get(columnID).findRow(value, this.rowCount);
     }
     
     /**
-     * Returns the Class object of the first cell in specified column in the 
-     * table model. Unless this method is overridden, all values are assumed 
-     * to be of the returned Class.
+     * Enables a hash index for a column, which speeds up findRowWithValue, 
+     * e.g. when the column is used to join tables. The index is built 
+     * when it is first needed, and rebuilt after values of the column change.
+     * @param columnID The column.
+     * @param indexed True to enable the index, false to discard it.
+     */
+    public void setIndexed(int columnID, boolean indexed) {
+        this.columns.get(columnID).setIndexed(indexed);
+    }
+    
+    /**
+     * Returns whether a column has a hash index.
+     * @param columnID The column.
+     */
+    public boolean isIndexed(int columnID) {
+        return this.columns.get(columnID).isIndexed();
+    }
+    
+    /**
+     * Returns the Class object of the values in the specified column. For 
+     * columns that were added without a Class, this is the Class of the 
+     * first cell, and all values are assumed to be of the returned Class.
      * @param columnIndex The id of the column.
      * @return A Class object. All values in this column are of this Class.
      */
-    public Class getColumnClass(int columnIndex) {
-        Object o = getValueAt(0, columnIndex);
-        if (o == null) {
-            return Object.class;
-        } else {
-            return o.getClass();
-        }
+    public Class<?> getColumnClass(int columnIndex) {
+        return this.columns.get(columnIndex).getColumnClass(this.rowCount);
     }
     
     public boolean isStringColumn (int columnIndex) {
-            Class cl = this.getColumnClass(columnIndex);
+            Class<?> cl = this.getColumnClass(columnIndex);
             return (String.class.isAssignableFrom(cl));
     }
     
     public boolean isDoubleColumn (int columnIndex) {
-            Class cl = this.getColumnClass(columnIndex);
+            Class<?> cl = this.getColumnClass(columnIndex);
             return (Double.class.isAssignableFrom(cl));
     }
     
@@ -261,7 +497,7 @@ public class Table extends DefaultTableModel
     
     /**
      * Change the character encoding of all Strings stored in this table.
-     * This could be optimized for speed!
+     * Strings in String columns are converted once per distinct String.
      * @param charsetName The name of the new encoding. This name will be stored
      * in this object. E.g. MacRoman or UTF-16.
      */
@@ -277,7 +513,14 @@ public class Table extends DefaultTableModel
         final int nRows = this.getRowCount();
         
         for (int c = 0; c < nCols; c++) {
-            Class cl = this.getColumnClass(c);
+            ColumnData column = this.columns.get(c);
+            if (column instanceof ColumnData.StringColumn) {
+                ((ColumnData.StringColumn) column).changeEncoding(nRows, 
+                        this.sourceCharsetName, charsetName);
+                continue;
+            }
+            
+            Class<?> cl = this.getColumnClass(c);
             
             // search for columns of Strings
             if (String.class.isAssignableFrom(cl) == false) {
@@ -296,5 +539,6 @@ public class Table extends DefaultTableModel
         
         // store the name of the character set encoding
         this.sourceCharsetName = charsetName;
+        this.fireTableDataChanged();
     }
 }
@@ -34,6 +34,20 @@ public class TableLink extends java.util.HashMap {
         this.initSequential();
     }
     
+    /** Creates a new instance of TableLink. 
+     * Links each row in the table with the GeoObject whose ID is the index
+     * of the row plus firstID. Rows without a GeoObject are not linked.
+     */
+    public TableLink(Table table, GeoSet geoSet, long firstID) {
+        super (Math.min(table.getRowCount(), 
+                geoSet.getNumberOfChildren()));
+        
+        this.table = table;
+        this.geoSet = geoSet;
+        
+        this.initByID(firstID);
+    }
+    
     /** Creates a new instance of TableLink. 
      */
     public TableLink(Table table,
@@ -62,13 +76,30 @@ public class TableLink extends java.util.HashMap {
                 this.geoSet.getNumberOfChildren());
         this.clear();
         for (int i = 0; i < nbrEntries; i++) {
-            final Integer key = new Integer(i);
+            final Integer key = Integer.valueOf(i);
             final long geoObjectID = this.geoSet.getGeoObject(i).getID();
-            final Long value = new Long(geoObjectID);
+            final Long value = Long.valueOf(geoObjectID);
             this.put(key, value);
         }
     }
     
+    /**
+     * Links each row in the table with the GeoObject whose ID is the index of
+     * the row plus firstID.
+     */
+    private void initByID(long firstID) {
+        final int nbrRows = this.table.getRowCount();
+        final int nbrGeoObjects = this.geoSet.getNumberOfChildren();
+        this.clear();
+        for (int i = 0; i < nbrGeoObjects; i++) {
+            final long geoObjectID = this.geoSet.getGeoObject(i).getID();
+            final long rowID = geoObjectID - firstID;
+            if (rowID >= 0 && rowID < nbrRows) {
+                this.put(Integer.valueOf((int) rowID), Long.valueOf(geoObjectID));
+            }
+        }
+    }
+    
     private void initByTableColumns(TableLink oldTableLink, 
             TableColumn oldTableColumn, 
             TableColumn newTableColumn) {
@@ -77,18 +108,27 @@ public class TableLink extends java.util.HashMap {
         final int newTableColumnID = newTableColumn.getModelIndex();
         
         final Table oldTable = oldTableLink.table;
-        final int nbrEntries = Math.min(this.table.getRowCount(), 
-                this.geoSet.getNumberOfChildren());
-        for (int i = 0; i < nbrEntries; i++) {
-            final Integer key = new Integer(i);
-            
-            Object newValue = this.table.getValueAt(i, newTableColumnID);
-            int oldRowID = oldTable.findRowWithValue(newValue, oldTableColumnID);
-            if (oldRowID < 0)
-                continue;
-            final Object value = oldTableLink.get(new Integer(oldRowID));
+        
+        // the join column is searched once for every row. The index is
+        // released after the join.
+        final boolean wasIndexed = oldTable.isIndexed(oldTableColumnID);
+        oldTable.setIndexed(oldTableColumnID, true);
+        try {
+            final int nbrEntries = Math.min(this.table.getRowCount(), 
+                    this.geoSet.getNumberOfChildren());
+            for (int i = 0; i < nbrEntries; i++) {
+                final Integer key = Integer.valueOf(i);
 
-            this.put(key, value);
+                Object newValue = this.table.getValueAt(i, newTableColumnID);
+                int oldRowID = oldTable.findRowWithValue(newValue, oldTableColumnID);
+                if (oldRowID < 0)
+                    continue;
+                final Object value = oldTableLink.get(Integer.valueOf(oldRowID));
+
+                this.put(key, value);
+            }
+        } finally {
+            oldTable.setIndexed(oldTableColumnID, wasIndexed);
         }
     }
     
@@ -97,7 +137,7 @@ public class TableLink extends java.util.HashMap {
      * GeoObject associated with the passed row ID.
      */
     public final GeoObject getGeoObject (int rowID) {
-        final Integer key = new Integer(rowID);
+        final Integer key = Integer.valueOf(rowID);
         final Object value = this.get(key);
         if (value == null)
             return null;
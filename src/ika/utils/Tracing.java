@@ -0,0 +1,121 @@
+/*
+ * Tracing.java
+ *
+ */
+package ika.utils;
+
+/**
+ * Emits Java Flight Recorder events for work packages of the Terrain Sculptor
+ * filter, grid operators, the grid pool, and grid import and export. A
+ * recording shows the time spent in each stage of the pipeline, for example:
+ * java -XX:StartFlightRecording=filename=ts.jfr -jar TerrainSculptor.jar in.asc out.asc
+ * <p>
+ * Durations are measured by calling a begin method, which returns an event
+ * object, and then passing this object to the corresponding end method. The
+ * begin methods return null if the Flight Recorder is not available in this
+ * JVM or the event is not enabled in the current recording; the end methods
+ * ignore null events. If no recording is running, the overhead is a check of
+ * a static flag and the allocation of a small object.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public final class Tracing {
+
+    /**
+     * True if the Flight Recorder API is available. Java 8 only includes it
+     * from update 262 on.
+     */
+    private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+    private Tracing() {
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts timing a work package of the Terrain Sculptor filter.
+     * @return An event to pass to endWorkPackage(), or null.
+     */
+    public static Object beginWorkPackage() {
+        return AVAILABLE ? TracingEvents.beginWorkPackage() : null;
+    }
+
+    /**
+     * Ends timing a work package.
+     * @param event The event returned by beginWorkPackage().
+     * @param workPackage The name of the work package.
+     * @param cols The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     */
+    public static void endWorkPackage(Object event, String workPackage, int cols, int rows) {
+        if (event != null) {
+            TracingEvents.endWorkPackage(event, workPackage, cols, rows);
+        }
+    }
+
+    /**
+     * Starts timing a grid operator.
+     * @return An event to pass to endGridOperator(), or null.
+     */
+    public static Object beginGridOperator() {
+        return AVAILABLE ? TracingEvents.beginGridOperator() : null;
+    }
+
+    /**
+     * Ends timing a grid operator.
+     * @param event The event returned by beginGridOperator().
+     * @param operator The name of the operator.
+     * @param cols The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     * @param threads The number of threads.
+     */
+    public static void endGridOperator(Object event, String operator,
+            int cols, int rows, int threads) {
+        if (event != null) {
+            TracingEvents.endGridOperator(event, operator, cols, rows, threads);
+        }
+    }
+
+    /**
+     * Records that a grid is acquired from or released to a grid pool.
+     * @param acquire True if a grid is acquired, false if a grid is released.
+     * @param hit True if an acquired grid is taken from the pool or a released
+     * grid is added to the pool.
+     * @param poolSize The number of grids in the pool after the operation.
+     */
+    public static void gridPool(boolean acquire, boolean hit, int poolSize) {
+        if (AVAILABLE) {
+            TracingEvents.gridPool(acquire, hit, poolSize);
+        }
+    }
+
+    /**
+     * Starts timing reading or writing a grid file.
+     * @return An event to pass to endGridIO(), or null.
+     */
+    public static Object beginGridIO() {
+        return AVAILABLE ? TracingEvents.beginGridIO() : null;
+    }
+
+    /**
+     * Ends timing reading or writing a grid file.
+     * @param event The event returned by beginGridIO().
+     * @param export True if a grid is written, false if a grid is read.
+     * @param format The name of the file format.
+     * @param path The path to the file.
+     * @param cols The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     */
+    public static void endGridIO(Object event, boolean export, String format,
+            String path, int cols, int rows) {
+        if (event != null) {
+            TracingEvents.endGridIO(event, export, format, path, cols, rows);
+        }
+    }
+}
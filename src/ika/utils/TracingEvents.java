@@ -0,0 +1,167 @@
+/*
+ * TracingEvents.java
+ *
+ */
+package ika.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for tracing the Terrain Sculptor pipeline. This
+ * class is only loaded by Tracing if the Flight Recorder API is available. All
+ * events are in the "Terrain Sculptor" category of JDK Mission Control.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+final class TracingEvents {
+
+    private TracingEvents() {
+    }
+
+    @Name("ika.WorkPackage")
+    @Label("Work Package")
+    @Description("Computation of an intermediate result of the Terrain Sculptor filter")
+    @Category("Terrain Sculptor")
+    @StackTrace(false)
+    static final class WorkPackageEvent extends Event {
+
+        @Label("Work Package")
+        String workPackage;
+        @Label("Columns")
+        int cols;
+        @Label("Rows")
+        int rows;
+    }
+
+    @Name("ika.GridOperator")
+    @Label("Grid Operator")
+    @Description("Execution of a multi-threaded grid operator")
+    @Category("Terrain Sculptor")
+    @StackTrace(false)
+    static final class GridOperatorEvent extends Event {
+
+        @Label("Operator")
+        String operator;
+        @Label("Columns")
+        int cols;
+        @Label("Rows")
+        int rows;
+        @Label("Threads")
+        int threads;
+    }
+
+    @Name("ika.GridPool")
+    @Label("Grid Pool")
+    @Description("A grid is acquired from or released to the grid pool")
+    @Category("Terrain Sculptor")
+    @StackTrace(false)
+    static final class GridPoolEvent extends Event {
+
+        @Label("Acquire")
+        @Description("True if a grid is acquired, false if a grid is released")
+        boolean acquire;
+        @Label("Hit")
+        @Description("True if an acquired grid is taken from the pool or a released grid is added to the pool")
+        boolean hit;
+        @Label("Pool Size")
+        int poolSize;
+    }
+
+    @Name("ika.GridIO")
+    @Label("Grid Import and Export")
+    @Description("Reading or writing a grid file")
+    @Category("Terrain Sculptor")
+    @StackTrace(false)
+    static final class GridIOEvent extends Event {
+
+        @Label("Export")
+        @Description("True if a grid is written, false if a grid is read")
+        boolean export;
+        @Label("Format")
+        String format;
+        @Label("Path")
+        String path;
+        @Label("Columns")
+        int cols;
+        @Label("Rows")
+        int rows;
+    }
+
+    static Object beginWorkPackage() {
+        WorkPackageEvent event = new WorkPackageEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void endWorkPackage(Object e, String workPackage, int cols, int rows) {
+        WorkPackageEvent event = (WorkPackageEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.workPackage = workPackage;
+            event.cols = cols;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    static Object beginGridOperator() {
+        GridOperatorEvent event = new GridOperatorEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void endGridOperator(Object e, String operator, int cols, int rows, int threads) {
+        GridOperatorEvent event = (GridOperatorEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operator = operator;
+            event.cols = cols;
+            event.rows = rows;
+            event.threads = threads;
+            event.commit();
+        }
+    }
+
+    static void gridPool(boolean acquire, boolean hit, int poolSize) {
+        GridPoolEvent event = new GridPoolEvent();
+        if (event.shouldCommit()) {
+            event.acquire = acquire;
+            event.hit = hit;
+            event.poolSize = poolSize;
+            event.commit();
+        }
+    }
+
+    static Object beginGridIO() {
+        GridIOEvent event = new GridIOEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void endGridIO(Object e, boolean export, String format, String path,
+            int cols, int rows) {
+        GridIOEvent event = (GridIOEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.export = export;
+            event.format = format;
+            event.path = path;
+            event.cols = cols;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+}
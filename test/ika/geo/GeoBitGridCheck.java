@@ -0,0 +1,113 @@
+/*
+ * GeoBitGridCheck.java
+ *
+ */
+package ika.geo;
+
+import java.util.Random;
+
+/**
+ * Compares the word-wise logical and morphological operations of GeoBitGrid
+ * with cell-by-cell versions. Grid widths include 1, multiples of 64, and
+ * widths that leave unused bits in the last word of each row.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GeoBitGridCheck {
+
+    private static final int[] WIDTHS = {1, 2, 63, 64, 65, 127, 128, 130, 200};
+    private static final int[] HEIGHTS = {1, 2, 3, 17};
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        for (int cols : WIDTHS) {
+            for (int rows : HEIGHTS) {
+                // sparse, dense and full grids
+                for (double density : new double[]{0.2, 0.8, 1}) {
+                    GeoBitGrid a = random(cols, rows, density, random);
+                    GeoBitGrid b = random(cols, rows, 0.5, random);
+                    checkAndNot(a, b);
+                    checkMorph(a, false, false);
+                    checkMorph(a, false, true);
+                    checkMorph(a, true, false);
+                    checkMorph(a, true, true);
+                }
+            }
+        }
+    }
+
+    private static GeoBitGrid random(int cols, int rows, double density, Random random) {
+        GeoBitGrid grid = new GeoBitGrid(cols, rows, 1);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                grid.set(random.nextDouble() < density, col, row);
+            }
+        }
+        return grid;
+    }
+
+    private static void checkAndNot(GeoBitGrid a, GeoBitGrid b) {
+        GeoBitGrid result = a.clone().andNot(b);
+        for (int row = 0; row < a.getRows(); row++) {
+            for (int col = 0; col < a.getCols(); col++) {
+                boolean expected = a.get(col, row) && !b.get(col, row);
+                check(result.get(col, row) == expected, "andNot", a, col, row);
+            }
+        }
+        checkUnusedBits(result, "andNot");
+    }
+
+    private static void checkMorph(GeoBitGrid grid, boolean dilate, boolean eightConnected) {
+        GeoBitGrid result = dilate ? grid.dilate(eightConnected) : grid.erode(eightConnected);
+        String name = (dilate ? "dilate" : "erode") + (eightConnected ? " 8" : " 4");
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                boolean expected = grid.get(col, row);
+                for (int dr = -1; dr <= 1; dr++) {
+                    for (int dc = -1; dc <= 1; dc++) {
+                        if (!eightConnected && dr != 0 && dc != 0) {
+                            continue;
+                        }
+                        boolean neighbor = get(grid, col + dc, row + dr, !dilate);
+                        expected = dilate ? expected || neighbor : expected && neighbor;
+                    }
+                }
+                check(result.get(col, row) == expected, name, grid, col, row);
+            }
+        }
+        checkUnusedBits(result, name);
+    }
+
+    /**
+     * Returns a cell, or the passed value for cells outside of the grid.
+     */
+    private static boolean get(GeoBitGrid grid, int col, int row, boolean outside) {
+        if (col < 0 || row < 0 || col >= grid.getCols() || row >= grid.getRows()) {
+            return outside;
+        }
+        return grid.get(col, row);
+    }
+
+    /**
+     * The unused bits at the end of each row must be cleared, as count()
+     * counts all bits of all words.
+     */
+    private static void checkUnusedBits(GeoBitGrid grid, String name) {
+        long count = 0;
+        for (int row = 0; row < grid.getRows(); row++) {
+            for (int col = 0; col < grid.getCols(); col++) {
+                count += grid.get(col, row) ? 1 : 0;
+            }
+        }
+        if (count != grid.count()) {
+            throw new AssertionError(name + ": unused bits set in grid with "
+                    + grid.getCols() + " columns");
+        }
+    }
+
+    private static void check(boolean ok, String name, GeoBitGrid grid, int col, int row) {
+        if (!ok) {
+            throw new AssertionError(name + ": wrong cell " + col + "/" + row
+                    + " in grid with " + grid.getCols() + " x " + grid.getRows() + " cells");
+        }
+    }
+}
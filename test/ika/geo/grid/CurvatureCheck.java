@@ -0,0 +1,171 @@
+/*
+ * CurvatureCheck.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.util.Random;
+
+/**
+ * Compares the maximum, minimum, plan and positive maximum curvature
+ * operators with cell-by-cell versions of their kernels on a grid with void
+ * (NaN) cells. The grid is computed in one pass and in bands of rows, and the
+ * bottom row must be computed like all other border cells.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class CurvatureCheck {
+
+    /**
+     * A curvature kernel, as it was written before the inner loops were
+     * optimized. z1 to z9 are the cells of the 3x3 window, row by row.
+     */
+    private interface Kernel {
+
+        float value(float z1, float z2, float z3, float z4, float z5,
+                float z6, float z7, float z8, float z9, double cellSize);
+    }
+
+    private static final Kernel MAXIMUM = new Kernel() {
+        public float value(float z1, float z2, float z3, float z4, float z5,
+                float z6, float z7, float z8, float z9, double cellSize) {
+            final double gg = cellSize * cellSize;
+            final double a = gg * ((z1 + z3 + z4 + z6 + z7 + z9) / 6 - (z2 + z5 + z8) / 3);
+            final double b = gg * ((z1 + z2 + z3 + z7 + z8 + z9) / 6 - (z4 + z5 + z6) / 3);
+            final double a_b = a - b;
+            final double c = (z3 + z7 - z1 - z9) / 4 * gg;
+            return (float) (-a - b + Math.sqrt(a_b * a_b + c * c));
+        }
+    };
+
+    private static final Kernel MINIMUM = new Kernel() {
+        public float value(float z1, float z2, float z3, float z4, float z5,
+                float z6, float z7, float z8, float z9, double cellSize) {
+            final double gg = cellSize * cellSize;
+            final double a = gg * ((z1 + z3 + z4 + z6 + z7 + z9) / 6 - (z2 + z5 + z8) / 3);
+            final double b = gg * ((z1 + z2 + z3 + z7 + z8 + z9) / 6 - (z4 + z5 + z6) / 3);
+            final double a_b = a - b;
+            final double c = (z3 + z7 - z1 - z9) / 4 * gg;
+            return (float) (-a - b - Math.sqrt(a_b * a_b + c * c));
+        }
+    };
+
+    private static final Kernel POSITIVE_MAXIMUM = new Kernel() {
+        public float value(float z1, float z2, float z3, float z4, float z5,
+                float z6, float z7, float z8, float z9, double cellSize) {
+            final double gg = cellSize * cellSize;
+            final double a = gg * ((z1 + z3 + z4 + z6 + z7 + z9) / 6 - (z2 + z5 + z8) / 3);
+            final double b = gg * ((z1 + z2 + z3 + z7 + z8 + z9) / 6 - (z4 + z5 + z6) / 3);
+            final double a_b = a - b;
+            final double c = (z3 + z7 - z1 - z9) / 4 * gg;
+            final double v = -a - b + Math.sqrt(a_b * a_b + c * c);
+            return v < 0f ? 0f : (float) v;
+        }
+    };
+
+    private static final Kernel PLAN = new Kernel() {
+        public float value(float e1, float e2, float e3, float e4, float e0,
+                float e5, float e6, float e7, float e8, double cellSize) {
+            final float inverseDoubleMeshSize = (float) (1 / (2 * cellSize));
+            final float inverseSquareMeshSize = (float) (1 / (cellSize * cellSize));
+            final float D = ((e4 + e5) / 2 - e0) * inverseSquareMeshSize;
+            final float E = ((e2 + e7) / 2 - e0) * inverseSquareMeshSize;
+            final float F = (-e1 + e3 + e6 - e8) / 4 * inverseSquareMeshSize;
+            final float G = (-e4 + e5) * inverseDoubleMeshSize;
+            final float H = (e2 - e7) * inverseDoubleMeshSize;
+            final float divider = G * G + H * H;
+            if (divider != 0) {
+                return 2 * ((D * H * H + E * G * G - F * G * H) / divider);
+            } else {
+                return 0;
+            }
+        }
+    };
+
+    public static void main(String[] args) {
+        GeoGrid grid = grid(67, 41, 10, 20, new Random(1));
+        check(new GridMaximumCurvatureOperator(), MAXIMUM, grid);
+        check(new GridMinimumCurvatureOperator(), MINIMUM, grid);
+        check(new GridPlanCurvatureOperator(), PLAN, grid);
+        check(new PositiveMaximumCurvatureOperator(), POSITIVE_MAXIMUM, grid);
+
+        // smallest grids with a bottom row that is not also the top row
+        for (int rows = 2; rows <= 4; rows++) {
+            grid = grid(5, rows, 1, 0, new Random(rows));
+            check(new GridMaximumCurvatureOperator(), MAXIMUM, grid);
+            check(new GridMinimumCurvatureOperator(), MINIMUM, grid);
+            check(new GridPlanCurvatureOperator(), PLAN, grid);
+            check(new PositiveMaximumCurvatureOperator(), POSITIVE_MAXIMUM, grid);
+        }
+    }
+
+    /**
+     * Creates a grid with smooth undulations and noise.
+     * @param voidFrequency On average every voidFrequency-th cell is void. No
+     * void cells if 0.
+     */
+    static GeoGrid grid(int cols, int rows, double cellSize, int voidFrequency,
+            Random random) {
+        GeoGrid grid = new GeoGrid(cols, rows, cellSize);
+        float[][] g = grid.getGrid();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                g[row][col] = voidFrequency > 0 && random.nextInt(voidFrequency) == 0
+                        ? Float.NaN
+                        : (float) (100 * Math.sin(col * 0.3) * Math.cos(row * 0.2)
+                        + random.nextGaussian());
+            }
+        }
+        return grid;
+    }
+
+    private static void check(ThreadedGridOperator op, Kernel kernel, GeoGrid grid) {
+        final int rows = grid.getRows();
+        check(op, kernel, grid, op.operate(grid));
+
+        // bands of rows, as computed by concurrent threads
+        for (int bandHeight = 1; bandHeight <= 3; bandHeight++) {
+            GeoGrid dst = new GeoGrid(grid.getCols(), rows, grid.getCellSize());
+            for (int startRow = 0; startRow < rows; startRow += bandHeight) {
+                op.operate(grid, dst, startRow, Math.min(rows, startRow + bandHeight));
+            }
+            check(op, kernel, grid, dst);
+        }
+    }
+
+    private static void check(ThreadedGridOperator op, Kernel kernel,
+            GeoGrid grid, GeoGrid result) {
+        float[][] g = grid.getGrid();
+        float[][] r = result.getGrid();
+        final int rows = grid.getRows();
+        final int cols = grid.getCols();
+        boolean bottomRowComputed = false;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                final int rm = Math.max(0, row - 1);
+                final int rp = Math.min(rows - 1, row + 1);
+                final int cm = Math.max(0, col - 1);
+                final int cp = Math.min(cols - 1, col + 1);
+                float expected = kernel.value(
+                        g[rm][cm], g[rm][col], g[rm][cp],
+                        g[row][cm], g[row][col], g[row][cp],
+                        g[rp][cm], g[rp][col], g[rp][cp], grid.getCellSize());
+                if (Float.floatToIntBits(r[row][col]) != Float.floatToIntBits(expected)) {
+                    throw new AssertionError(op.getName() + ": cell " + col + "/"
+                            + row + " of " + cols + " x " + rows + " grid is "
+                            + r[row][col] + " instead of " + expected);
+                }
+                if (row == rows - 1 && r[row][col] != 0) {
+                    bottomRowComputed = true;
+                }
+            }
+        }
+
+        // the bottom row was left at 0 before the row range of the last band
+        // was fixed
+        if (!bottomRowComputed) {
+            throw new AssertionError(op.getName() + ": bottom row of "
+                    + cols + " x " + rows + " grid not computed");
+        }
+    }
+}
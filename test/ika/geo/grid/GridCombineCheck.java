@@ -0,0 +1,80 @@
+/*
+ * GridCombineCheck.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoBitGrid;
+import ika.geo.GeoGrid;
+import java.util.Random;
+
+/**
+ * Compares GridCombineOperator with cell-by-cell versions of the sum and the
+ * weighted sum on grids with void (NaN) cells, with and without a void mask.
+ * The mask is passed as a bit mask and as a float grid with void cells.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GridCombineCheck {
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        for (int cols : new int[]{1, 63, 64, 65, 130}) {
+            GeoGrid grid1 = CurvatureCheck.grid(cols, 9, 10, 10, random);
+            GeoGrid grid2 = CurvatureCheck.grid(cols, 9, 10, 10, random);
+            GeoGrid maskGrid = CurvatureCheck.grid(cols, 9, 10, 4, random);
+            GeoGrid weights = new GeoGrid(cols, 9, 10);
+            for (int row = 0; row < weights.getRows(); row++) {
+                for (int col = 0; col < cols; col++) {
+                    weights.setValue(random.nextFloat(), col, row);
+                }
+            }
+            GeoBitGrid voidMask = new GridVoidMaskOperator().createMask(maskGrid);
+
+            for (int i = 0; i < 3; i++) {
+                GridCombineOperator op = new GridCombineOperator();
+                op.setSrc2(grid2);
+                if (i == 1) {
+                    op.setVoidMask(voidMask);
+                } else if (i == 2) {
+                    op.setMask(maskGrid);
+                }
+                GeoGrid mask = i == 0 ? null : maskGrid;
+                check(op.operate(grid1), grid1, grid2, null, mask);
+                op.setWeightGrid(weights);
+                check(op.operate(grid1), grid1, grid2, weights, mask);
+            }
+        }
+    }
+
+    /**
+     * Compares a combined grid with the original cell-by-cell computation.
+     * @param weights Weights of grid1, or null.
+     * @param mask Cells that are NaN in this grid are expected to be NaN, can
+     * be null.
+     */
+    private static void check(GeoGrid result, GeoGrid grid1, GeoGrid grid2,
+            GeoGrid weights, GeoGrid mask) {
+        for (int row = 0; row < grid1.getRows(); row++) {
+            for (int col = 0; col < grid1.getCols(); col++) {
+                final float v1 = grid1.getValue(col, row);
+                final float v2 = grid2.getValue(col, row);
+                float expected;
+                if (mask != null && Float.isNaN(mask.getValue(col, row))) {
+                    expected = Float.NaN;
+                } else if (weights != null) {
+                    final float w = weights.getValue(col, row);
+                    expected = v1 * w + v2 * (1f - w);
+                } else {
+                    expected = v1 + v2;
+                }
+                final float v = result.getValue(col, row);
+                if (Float.floatToIntBits(v) != Float.floatToIntBits(expected)) {
+                    throw new AssertionError("cell " + col + "/" + row + " of grid with "
+                            + grid1.getCols() + " columns, weighted " + (weights != null)
+                            + ", masked " + (mask != null) + ": " + v
+                            + " instead of " + expected);
+                }
+            }
+        }
+    }
+}
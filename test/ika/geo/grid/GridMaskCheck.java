@@ -0,0 +1,56 @@
+/*
+ * GridMaskCheck.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoBitGrid;
+import ika.geo.GeoGrid;
+import java.util.Random;
+
+/**
+ * Compares the bit masks of GridVoidMaskOperator and GridThresholdOperator
+ * with the float grid values, for widths with and without unused bits in the
+ * last word of each row.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class GridMaskCheck {
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        for (int cols : new int[]{1, 63, 64, 65, 130}) {
+            GeoGrid grid = new GeoGrid(cols, 9, 1);
+            for (int row = 0; row < grid.getRows(); row++) {
+                for (int col = 0; col < cols; col++) {
+                    float v = (float) random.nextGaussian();
+                    grid.setValue(random.nextInt(5) == 0 ? Float.NaN : v, col, row);
+                }
+            }
+
+            GeoBitGrid voids = new GridVoidMaskOperator().createMask(grid);
+            GeoBitGrid voids2 = new GridVoidMaskOperator().operate(grid);
+            GridThresholdOperator thresholdOp = new GridThresholdOperator();
+            thresholdOp.clipSmallValues(0.5f);
+            GeoBitGrid small = thresholdOp.createMask(grid);
+            thresholdOp.clipLargeValues(-0.5f);
+            GeoBitGrid large = thresholdOp.createMask(grid);
+
+            float[][] g = grid.getGrid();
+            for (int row = 0; row < grid.getRows(); row++) {
+                for (int col = 0; col < cols; col++) {
+                    final float v = g[row][col];
+                    check(voids.get(col, row) == Float.isNaN(v), "void mask", col, row);
+                    check(voids2.get(col, row) == Float.isNaN(v), "void operator", col, row);
+                    check(small.get(col, row) == v < 0.5f, "smaller than", col, row);
+                    check(large.get(col, row) == v > -0.5f, "larger than", col, row);
+                }
+            }
+        }
+    }
+
+    private static void check(boolean ok, String name, int col, int row) {
+        if (!ok) {
+            throw new AssertionError(name + ": wrong cell " + col + "/" + row);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * NegativeMinimumCurvatureCheck.java
+ *
+ */
+package ika.geo.grid;
+
+import ika.geo.GeoGrid;
+import java.util.Random;
+
+/**
+ * Compares NegativeMinimumCurvatureOperator with a cell-by-cell version of
+ * the kernel on a grid with void (NaN) cells. Cells with void neighbors must
+ * be 0, not NaN.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class NegativeMinimumCurvatureCheck {
+
+    public static void main(String[] args) {
+        final int cols = 67;
+        final int rows = 41;
+        final double cellSize = 10;
+        Random random = new Random(1);
+        GeoGrid grid = new GeoGrid(cols, rows, cellSize);
+        float[][] g = grid.getGrid();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                g[row][col] = random.nextInt(20) == 0 ? Float.NaN
+                        : (float) (100 * Math.sin(col * 0.3) * Math.cos(row * 0.2)
+                        + random.nextGaussian());
+            }
+        }
+
+        GeoGrid result = new NegativeMinimumCurvatureOperator().operate(grid);
+        float[][] r = result.getGrid();
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                float expected = kernel(g, col, row, cellSize);
+                if (Float.floatToIntBits(r[row][col]) != Float.floatToIntBits(expected)) {
+                    throw new AssertionError("cell " + col + "/" + row + ": "
+                            + r[row][col] + " instead of " + expected);
+                }
+                if (Float.isNaN(r[row][col])) {
+                    throw new AssertionError("NaN at cell " + col + "/" + row);
+                }
+            }
+        }
+    }
+
+    /**
+     * The kernel as it was written before the inner loop was optimized, with
+     * neighbors clamped to the border of the grid.
+     */
+    private static float kernel(float[][] g, int col, int row, double cellSize) {
+        final int rows = g.length;
+        final int cols = g[0].length;
+        final int rm = Math.max(0, row - 1);
+        final int rp = Math.min(rows - 1, row + 1);
+        final int cm = Math.max(0, col - 1);
+        final int cp = Math.min(cols - 1, col + 1);
+
+        final float z1 = g[rm][cm];
+        final float z2 = g[rm][col];
+        final float z3 = g[rm][cp];
+        final float z4 = g[row][cm];
+        final float z5 = g[row][col];
+        final float z6 = g[row][cp];
+        final float z7 = g[rp][cm];
+        final float z8 = g[rp][col];
+        final float z9 = g[rp][cp];
+
+        final double gg = cellSize * cellSize;
+        final double a = gg * ((z1 + z3 + z4 + z6 + z7 + z9) / 6 - (z2 + z5 + z8) / 3);
+        final double b = gg * ((z1 + z2 + z3 + z7 + z8 + z9) / 6 - (z4 + z5 + z6) / 3);
+        final double a_b = a - b;
+        final double c = (z3 + z7 - z1 - z9) / 4 * gg;
+
+        final double v = -a - b - Math.sqrt(a_b * a_b + c * c);
+        return v < 0 ? (float) -v : 0f;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * ShapeWriterCheck.java
+ *
+ */
+package ika.geoexport;
+
+import ika.geo.GeoObject;
+import ika.geo.GeoPath;
+import ika.geo.GeoPathIterator;
+import ika.geo.GeoPathModel;
+import ika.geo.GeoPoint;
+import ika.geo.GeoSet;
+import ika.geoimport.ShapeGeometryImporter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Writes points, polylines and polygons with ShapeWriter, reads them with
+ * ShapeGeometryImporter, and compares the geometry. Also checks that invalid
+ * part offsets are rejected.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class ShapeWriterCheck {
+
+    public static void main(String[] args) throws IOException {
+        File dir = File.createTempFile("ShapeWriterCheck", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            checkPolylines(new File(dir, "lines.shp").getPath());
+            checkPolygons(new File(dir, "polygons.shp").getPath());
+            checkPoints(new File(dir, "points.shp").getPath());
+            checkInvalidParts(new File(dir, "invalid.shp").getPath());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void checkPolylines(String path) throws IOException {
+        GeoPath geoPath = new GeoPath();
+        geoPath.moveTo(1, 2);
+        geoPath.lineTo(3, 4);
+        geoPath.moveTo(5, 6);
+        geoPath.lineTo(7, 8);
+        geoPath.lineTo(9, 10);
+
+        ShapeWriter writer = new ShapeWriter(path,
+                ShapeGeometryExporter.POLYLINE_SHAPE_TYPE,
+                new String[]{"name"}, new Class<?>[]{String.class});
+        writer.writeLines(new double[]{0, 0, 10, 0, 10, 10, 20, 20, 30, 20, 99, 99},
+                5, new int[]{0, 3, 99}, 2, "two parts");
+        writer.write(geoPath, "path");
+        writer.writeLines(new double[0], 0, new int[0], 0, "empty");
+        writer.close();
+
+        ArrayList<String> paths = read(path);
+        check(paths, "M0.0,0.0 L10.0,0.0 L10.0,10.0 M20.0,20.0 L30.0,20.0",
+                "M1.0,2.0 L3.0,4.0 M5.0,6.0 L7.0,8.0 L9.0,10.0");
+    }
+
+    private static void checkPolygons(String path) throws IOException {
+        ShapeWriter writer = new ShapeWriter(path,
+                ShapeGeometryExporter.POLYGON_SHAPE_TYPE);
+        // an open ring and a closed ring
+        writer.writeLines(new double[]{0, 0, 10, 0, 10, 10, 20, 20, 30, 20, 30, 30, 20, 20},
+                7, new int[]{0, 3}, 2);
+        writer.close();
+
+        ArrayList<String> paths = read(path);
+        check(paths, "M0.0,0.0 L10.0,0.0 L10.0,10.0 C M20.0,20.0 L30.0,20.0 L30.0,30.0 C");
+    }
+
+    private static void checkPoints(String path) throws IOException {
+        ShapeWriter writer = new ShapeWriter(path,
+                ShapeGeometryExporter.POINT_SHAPE_TYPE);
+        writer.writePoint(1.5, -2.5);
+        writer.write(new GeoPoint(3, 4));
+        writer.close();
+
+        ArrayList<String> points = read(path);
+        check(points, "P1.5,-2.5", "P3.0,4.0");
+    }
+
+    private static void checkInvalidParts(String path) throws IOException {
+        ShapeWriter writer = new ShapeWriter(path,
+                ShapeGeometryExporter.POLYLINE_SHAPE_TYPE);
+        try {
+            final double[] xy = {0, 0, 1, 1, 2, 2, 3, 3};
+            int[][] invalidParts = {
+                {1, 2}, // does not start at 0
+                {0, 2, 1}, // descending
+                {0, 2, 2}, // empty part
+                {0, 4}, // starts after the last point
+                {0, -1}
+            };
+            for (int[] parts : invalidParts) {
+                try {
+                    writer.writeLines(xy, 4, parts, parts.length);
+                    throw new AssertionError("invalid parts accepted: "
+                            + java.util.Arrays.toString(parts));
+                } catch (IllegalArgumentException ex) {
+                    // expected
+                }
+            }
+            if (writer.getRecordCount() != 0) {
+                throw new AssertionError("record written for invalid parts");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads a shapefile and returns a string for each GeoPath or GeoPoint.
+     */
+    private static ArrayList<String> read(String path) throws IOException {
+        ArrayList<String> result = new ArrayList<String>();
+        GeoObject geoObject = new ShapeGeometryImporter().read(path);
+        toStrings(geoObject, result);
+        return result;
+    }
+
+    private static void toStrings(GeoObject geoObject, ArrayList<String> result) {
+        if (geoObject instanceof GeoSet) {
+            GeoSet geoSet = (GeoSet) geoObject;
+            for (int i = 0; i < geoSet.getNumberOfChildren(); i++) {
+                toStrings(geoSet.getGeoObject(i), result);
+            }
+        } else if (geoObject instanceof GeoPoint) {
+            GeoPoint point = (GeoPoint) geoObject;
+            result.add("P" + point.getX() + "," + point.getY());
+        } else if (geoObject instanceof GeoPath) {
+            StringBuilder sb = new StringBuilder();
+            GeoPathIterator pi = ((GeoPath) geoObject).getIterator();
+            do {
+                sb.append(sb.length() > 0 ? " " : "");
+                switch (pi.getInstruction()) {
+                    case GeoPathModel.MOVETO:
+                        sb.append('M').append(pi.getX()).append(',').append(pi.getY());
+                        break;
+                    case GeoPathModel.LINETO:
+                        sb.append('L').append(pi.getX()).append(',').append(pi.getY());
+                        break;
+                    case GeoPathModel.CLOSE:
+                        sb.append('C');
+                        break;
+                    default:
+                        sb.append('?');
+                }
+            } while (pi.next());
+            result.add(sb.toString());
+        }
+    }
+
+    private static void check(ArrayList<String> actual, String... expected) {
+        if (!actual.equals(java.util.Arrays.asList(expected))) {
+            throw new AssertionError("expected " + java.util.Arrays.toString(expected)
+                    + " but read " + actual);
+        }
+    }
+}
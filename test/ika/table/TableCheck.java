@@ -0,0 +1,158 @@
+/*
+ * TableCheck.java
+ *
+ */
+package ika.table;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Checks the columnar Table: a DBF file is imported and exported again, and
+ * the two files are compared byte by byte. findRowWithValue is compared with
+ * a linear search with equals(), with and without a hash index, for values
+ * that include null, NaN and 0 with both signs.
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class TableCheck {
+
+    public static void main(String[] args) throws IOException {
+        checkDBFRoundTrip();
+        checkFindRow();
+    }
+
+    private static void checkDBFRoundTrip() throws IOException {
+        File a = File.createTempFile("TableCheck", ".dbf");
+        File b = File.createTempFile("TableCheck", ".dbf");
+        File c = File.createTempFile("TableCheck", ".dbf");
+        try {
+            // the importer reads empty numbers and NaN as 0, so these are
+            // only expected to be stable after the first import
+            DBFWriter writer = new DBFWriter(a.getPath(),
+                    new String[]{"NAME", "VALUE", "CODE"},
+                    new Class<?>[]{String.class, Double.class, String.class});
+            writer.writeRow("alpha", 1.5, "x");
+            writer.writeRow("beta", -20000000., "y");
+            writer.writeRow("alpha", 0.12345678, "x");
+            writer.writeRow("\u00e9t\u00e9", 0., "");
+            writer.writeRow("gamma", 42., "a long string with spaces");
+            writer.close();
+            export(a, b);
+            checkSameBytes(a, b);
+
+            writer = new DBFWriter(a.getPath(),
+                    new String[]{"NAME", "VALUE"},
+                    new Class<?>[]{String.class, Double.class});
+            writer.writeRow("alpha", 1.5);
+            writer.writeRow(null, null);
+            writer.writeRow("", Double.NaN);
+            writer.writeRow("alpha", -0.);
+            writer.close();
+            export(a, b);
+            export(b, c);
+            checkSameBytes(b, c);
+            Table table = read(b);
+            if (!Double.valueOf(0).equals(table.getValueAt(1, 1))
+                    || !Double.valueOf(0).equals(table.getValueAt(2, 1))) {
+                throw new AssertionError("empty number or NaN not imported as 0");
+            }
+        } finally {
+            a.delete();
+            b.delete();
+            c.delete();
+        }
+    }
+
+    private static Table read(File file) throws IOException {
+        return new DBFImporter().read(file.toURI().toURL());
+    }
+
+    private static void export(File src, File dst) throws IOException {
+        Table table = read(src);
+        OutputStream out = new FileOutputStream(dst);
+        try {
+            new DBFExporter().exportTable(out, table);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Compares two DBF files. The date of the last update in bytes 1 to 3 of
+     * the header is ignored.
+     */
+    private static void checkSameBytes(File file1, File file2) throws IOException {
+        byte[] b1 = Files.readAllBytes(file1.toPath());
+        byte[] b2 = Files.readAllBytes(file2.toPath());
+        if (b1.length != b2.length) {
+            throw new AssertionError("DBF files of different size: "
+                    + b1.length + " and " + b2.length);
+        }
+        for (int i = 4; i < b1.length; i++) {
+            if (b1[i] != b2[i]) {
+                throw new AssertionError("DBF files differ at byte " + i);
+            }
+        }
+    }
+
+    private static void checkFindRow() {
+        Table table = new Table("UTF-8");
+        table.addColumn("string", String.class);
+        table.addColumn("double", Double.class);
+        table.addColumn("object");
+        Object[][] rows = {
+            {"a", 1., 1},
+            {null, null, null},
+            {"b", Double.NaN, "b"},
+            {"a", 0., 1},
+            {"", -0., null},
+            {"c", Double.NaN, 2},
+            {null, 1., "b"}
+        };
+        for (Object[] row : rows) {
+            table.addRow(row);
+        }
+        Object[] values = {"a", "b", "c", "", "d", null, 1., 0., -0., Double.NaN,
+            2., 1, 2, 3};
+
+        for (int col = 0; col < table.getColumnCount(); col++) {
+            checkFindRow(table, col, values);
+            table.setIndexed(col, true);
+            checkFindRow(table, col, values);
+
+            // the index must follow changes of values
+            Object old = table.getValueAt(0, col);
+            table.setValueAt(null, 0, col);
+            checkFindRow(table, col, values);
+            table.setValueAt(old, 0, col);
+            checkFindRow(table, col, values);
+
+            table.setIndexed(col, false);
+            checkFindRow(table, col, values);
+        }
+    }
+
+    /**
+     * Compares findRowWithValue with a linear search with equals().
+     */
+    private static void checkFindRow(Table table, int col, Object[] values) {
+        for (Object value : values) {
+            int expected = -1;
+            for (int row = 0; row < table.getRowCount(); row++) {
+                if (value != null && value.equals(table.getValueAt(row, col))) {
+                    expected = row;
+                    break;
+                }
+            }
+            int row = table.findRowWithValue(value, col);
+            if (row != expected) {
+                throw new AssertionError("column " + col + " indexed "
+                        + table.isIndexed(col) + ": found " + value + " in row "
+                        + row + " instead of " + expected);
+            }
+        }
+    }
+}
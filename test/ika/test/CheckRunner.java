@@ -0,0 +1,39 @@
+/*
+ * CheckRunner.java
+ *
+ */
+package ika.test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Runs the main method of each class passed on the command line and reports
+ * which classes failed. A class fails if its main method throws an exception
+ * or an error, for example an AssertionError.
+ * <p>
+ * Usage: CheckRunner class...
+ * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
+ */
+public class CheckRunner {
+
+    public static void main(String[] args) throws Exception {
+        int failed = 0;
+        for (String className : args) {
+            Method main = Class.forName(className).getMethod("main", String[].class);
+            try {
+                main.invoke(null, (Object) new String[0]);
+                System.out.println("passed: " + className);
+            } catch (InvocationTargetException ex) {
+                failed++;
+                System.out.println("FAILED: " + className);
+                ex.getCause().printStackTrace(System.out);
+            }
+        }
+        System.out.println((args.length - failed) + " of " + args.length
+                + " checks passed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}